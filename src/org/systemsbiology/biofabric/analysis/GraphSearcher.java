@@ -26,6 +26,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Iterator;
@@ -35,6 +36,7 @@ import java.util.TreeSet;
 
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NodeIndex;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.model.FabricLink;
@@ -500,10 +502,13 @@ public class GraphSearcher {
     List<QueueEntry> retval = new ArrayList<QueueEntry>();
     Map<NetNode, Set<NetLink>> outEdges = calcOutboundEdges(allEdges_);    
        
-    while (!toProcess.isEmpty()) {  
-	    queue.add(new QueueEntry(0, toProcess.get(0)));
-	    searchGutsBreadth(visited, queue, outEdges, retval, null, byDeg);
-	    toProcess.removeAll(visited);
+    NodeIndex degIndex = new NodeIndex(byDeg);
+    for (NetNode next : toProcess) {
+      if (visited.contains(next)) {
+        continue;
+      }
+	    queue.add(new QueueEntry(0, next));
+	    searchGutsBreadth(visited, queue, outEdges, retval, null, degIndex);
     }
     return (retval);
   }
@@ -548,7 +553,7 @@ public class GraphSearcher {
       queue.add(new QueueEntry(0, rit.next()));
     }
   
-    searchGutsBreadth(visited, queue, outEdges, retval, null, byDeg);
+    searchGutsBreadth(visited, queue, outEdges, retval, null, (byDeg == null) ? null : new NodeIndex(byDeg));
     return (retval);
   }
   
@@ -1614,7 +1619,7 @@ public class GraphSearcher {
   */
 
   private void searchGutsBreadth(HashSet<NetNode> visited, ArrayList<QueueEntry> queue, Map<NetNode, Set<NetLink>> edgesFromSrc, 
-                                 List<QueueEntry> results, CriteriaJudge judge, List<NetNode> byDegree) {
+                                 List<QueueEntry> results, CriteriaJudge judge, NodeIndex byDegree) {
 
     while (queue.size() > 0) {
       QueueEntry curr = queue.remove(0);
@@ -1636,20 +1641,29 @@ public class GraphSearcher {
       }
       
       if (byDegree != null) {
-      	HashSet<NetNode> fltrg = new HashSet<NetNode>();
+        //
+        // Targets go on the queue in degree order. The index of each target in the
+        // degree order is its rank, so just sort the ranks:
+        //
+      	int[] ranks = new int[outEdges.size()];
+      	int numRanks = 0;
       	for (NetLink fl : outEdges) {
+      	  NetNode trg;
       		if (fl.isDirected()) {
-      		  fltrg.add(fl.getTrgNode());
+      		  trg = fl.getTrgNode();
       		} else {
       		  NetNode flSrc = fl.getSrcNode();
-      		  fltrg.add((curr.name.equals(flSrc)) ? fl.getTrgNode() : flSrc);
+      		  trg = (curr.name.equals(flSrc)) ? fl.getTrgNode() : flSrc;
+      		}
+      		int rank = byDegree.indexOf(trg);
+      		if (rank != NodeIndex.NO_INDEX) {
+      		  ranks[numRanks++] = rank;
       		}
       	}
-        Iterator<NetNode> bdit = byDegree.iterator();
-        while (bdit.hasNext()) { 
-          NetNode trg = bdit.next();
-          if (fltrg.contains(trg)) {
-            queue.add(new QueueEntry(curr.depth + 1, trg));
+      	Arrays.sort(ranks, 0, numRanks);
+        for (int i = 0; i < numRanks; i++) {
+          if ((i == 0) || (ranks[i] != ranks[i - 1])) {
+            queue.add(new QueueEntry(curr.depth + 1, byDegree.getNode(ranks[i])));
           }
         }
         
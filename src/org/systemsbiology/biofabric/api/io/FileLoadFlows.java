@@ -31,6 +31,7 @@ import java.util.SortedMap;
 import org.systemsbiology.biofabric.api.model.AugRelation;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NetworkChange;
 import org.systemsbiology.biofabric.api.util.PluginResourceManager;
 import org.systemsbiology.biofabric.api.util.UniqueLabeller;
 import org.systemsbiology.biofabric.api.io.AttributeKey;
@@ -77,7 +78,7 @@ public interface FileLoadFlows {
   public static final boolean FILE_CAN_READ_DONT_CARE   = false;
   public static final boolean FILE_CAN_READ             = true;
   
-  public static enum FileLoadType {GW, SIF};
+  public static enum FileLoadType {GW, SIF, BINARY};
       
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -196,6 +197,24 @@ public interface FileLoadFlows {
 
   public FileLoadType getFileLoadType(File toCheck);
   
+  /***************************************************************************
+  **
+  ** Start a batch of changes to the network on display. Returns null if there
+  ** is no network.
+  */ 
+
+  public NetworkChange startNetworkChange();
+  
+  /***************************************************************************
+  **
+  ** Apply a batch of changes from startNetworkChange() without a new layout.
+  ** Only the parts of the display that change get redrawn. Throws an
+  ** IllegalArgumentException if the network has been replaced since the
+  ** batch was started.
+  */ 
+
+  public void applyNetworkChange(NetworkChange change);
+  
   /***************************************************************************
   **
   ** Return value for file loads.
@@ -20,20 +20,18 @@
 package org.systemsbiology.biofabric.api.layout;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.systemsbiology.biofabric.api.io.BuildData;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NodeIndex;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.LoopReporter;
@@ -110,74 +108,125 @@ public class DefaultLayout extends NodeLayout {
     // links first, and adds those link targets ASAP. If caller supplies a start node,
     // we go there first:
     // 
+    // Linked nodes get a dense index, so everything past the first pass works on
+    // int arrays instead of hashing node IDs.
+    //
     
-    HashMap<NetNode, Integer> linkCounts = new HashMap<NetNode, Integer>();
-    HashMap<NetNode, Set<NetNode>> targsPerSource = new HashMap<NetNode, Set<NetNode>>();
     ArrayList<NetNode> targets = new ArrayList<NetNode>();
-         
-    HashSet<NetNode> targsToGo = new HashSet<NetNode>();
+    HashSet<NetNode> linked = new HashSet<NetNode>();
     
     int numLink = allLinks.size();
     LoopReporter lr = new LoopReporter(numLink, 20, monitor, 0.0, 0.25, "progress.calculateNodeDegree");
     
-    Iterator<NetLink> alit = allLinks.iterator();
-    while (alit.hasNext()) {
-      NetLink nextLink = alit.next();
+    for (NetLink nextLink : allLinks) {
       lr.report();
-      NetNode sidwn = nextLink.getSrcNode();
-      NetNode tidwn = nextLink.getTrgNode();
-      Set<NetNode> targs = targsPerSource.get(sidwn);
-      if (targs == null) {
-        targs = new HashSet<NetNode>();
-        targsPerSource.put(sidwn, targs);
-      }
-      targs.add(tidwn);
-      targs = targsPerSource.get(tidwn);
-      if (targs == null) {
-        targs = new HashSet<NetNode>();
-        targsPerSource.put(tidwn, targs);
-      }
-      targs.add(sidwn);
-      targsToGo.add(sidwn);
-      targsToGo.add(tidwn);        
-      Integer srcCount = linkCounts.get(sidwn);
-      linkCounts.put(sidwn, (srcCount == null) ? Integer.valueOf(1) : Integer.valueOf(srcCount.intValue() + 1));
-      Integer trgCount = linkCounts.get(tidwn);
-      linkCounts.put(tidwn, (trgCount == null) ? Integer.valueOf(1) : Integer.valueOf(trgCount.intValue() + 1));
+      linked.add(nextLink.getSrcNode());
+      linked.add(nextLink.getTrgNode());
+    }
+    NodeIndex nodeIndex = new NodeIndex(linked);
+    int numNodes = nodeIndex.size();
+    int[] linkCounts = new int[numNodes];
+    int[] srcs = new int[numLink];
+    int[] trgs = new int[numLink];
+    int count = 0;
+    for (NetLink nextLink : allLinks) {
+      int sidx = nodeIndex.indexOf(nextLink.getSrcNode());
+      int tidx = nodeIndex.indexOf(nextLink.getTrgNode());
+      srcs[count] = sidx;
+      trgs[count++] = tidx;
+      linkCounts[sidx]++;
+      linkCounts[tidx]++;
     }
     lr.finish();
     
     //
-    // Rank the nodes by link count:
+    // Rank the nodes by link count, then by node order. Neighbors are processed in
+    // this same order, so from here on nodes are just their rank:
     //
     
-    lr = new LoopReporter(linkCounts.size(), 20, monitor, 0.25, 0.50, "progress.rankByDegree");
+    lr = new LoopReporter(numNodes, 20, monitor, 0.25, 0.50, "progress.rankByDegree");
     
-    TreeMap<Integer, SortedSet<NetNode>> countRank = new TreeMap<Integer, SortedSet<NetNode>>(Collections.reverseOrder());
-    Iterator<NetNode> lcit = linkCounts.keySet().iterator();
-    while (lcit.hasNext()) {
-      NetNode src = lcit.next();
-      lr.report();
-      Integer count = linkCounts.get(src);
-      SortedSet<NetNode> perCount = countRank.get(count);
-      if (perCount == null) {
-        perCount = new TreeSet<NetNode>();
-        countRank.put(count, perCount);
+    final int[] countsForSort = linkCounts;
+    final NodeIndex indexForSort = nodeIndex;
+    Integer[] byRankIdx = new Integer[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      byRankIdx[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(byRankIdx, new Comparator<Integer>() {
+      public int compare(Integer idx1, Integer idx2) {
+        int i1 = idx1.intValue();
+        int i2 = idx2.intValue();
+        if (countsForSort[i1] != countsForSort[i2]) {
+          return ((countsForSort[i1] > countsForSort[i2]) ? -1 : 1);
+        }
+        return (indexForSort.getNode(i1).compareTo(indexForSort.getNode(i2)));
       }
-      perCount.add(src);
+    });
+    NetNode[] byRank = new NetNode[numNodes];
+    int[] rankForIdx = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      lr.report();
+      int idx = byRankIdx[i].intValue();
+      byRank[i] = nodeIndex.getNode(idx);
+      rankForIdx[idx] = i;
     }
     lr.finish();
     
+    //
+    // Neighbors of each node, as sorted, distinct ranks:
+    //
+    
+    int[] nbrStart = new int[numNodes + 1];
+    for (int i = 0; i < numLink; i++) {
+      nbrStart[rankForIdx[srcs[i]] + 1]++;
+      nbrStart[rankForIdx[trgs[i]] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      nbrStart[i + 1] += nbrStart[i];
+    }
+    int[] nbrs = new int[nbrStart[numNodes]];
+    int[] fill = new int[numNodes];
+    System.arraycopy(nbrStart, 0, fill, 0, numNodes);
+    for (int i = 0; i < numLink; i++) {
+      int srcRank = rankForIdx[srcs[i]];
+      int trgRank = rankForIdx[trgs[i]];
+      nbrs[fill[srcRank]++] = trgRank;
+      nbrs[fill[trgRank]++] = srcRank;
+    }
+    int[] nbrEnd = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      Arrays.sort(nbrs, nbrStart[i], nbrStart[i + 1]);
+      int last = nbrStart[i];
+      for (int j = nbrStart[i] + 1; j < nbrStart[i + 1]; j++) {
+        if (nbrs[j] != nbrs[last]) {
+          nbrs[++last] = nbrs[j];
+        }
+      }
+      nbrEnd[i] = (nbrStart[i + 1] > nbrStart[i]) ? last + 1 : nbrStart[i];
+    }
+    
+    BitSet targsToGo = new BitSet(numNodes);
+    targsToGo.set(0, numNodes);
+    int toGo = numNodes;
+    int[] queue = new int[numNodes + ((startNodes == null) ? 0 : startNodes.size())];
+    
     //
     // Handle the specified starting nodes case:
     //
     
     if ((startNodes != null) && !startNodes.isEmpty()) {
-      ArrayList<NetNode> queue = new ArrayList<NetNode>();
-      targsToGo.removeAll(startNodes);
+      int qTail = 0;
+      for (NetNode start : startNodes) {
+        int idx = nodeIndex.indexOf(start);
+        if ((idx != NodeIndex.NO_INDEX) && targsToGo.get(rankForIdx[idx])) {
+          targsToGo.clear(rankForIdx[idx]);
+          toGo--;
+          // Unlinked start nodes have no kids to queue:
+          queue[qTail++] = rankForIdx[idx];
+        }
+      }
       targets.addAll(startNodes);
-      queue.addAll(startNodes);
-      flushQueue(targets, targsPerSource, linkCounts, targsToGo, queue, monitor, 0.50, 0.75);
+      toGo -= flushQueue(targets, byRank, nbrStart, nbrEnd, nbrs, targsToGo, toGo, queue, qTail, monitor, 0.50, 0.75);
     }   
     
     //
@@ -185,25 +234,15 @@ public class DefaultLayout extends NodeLayout {
     // stacks for huge networks!
     //
     // While we still have nodes to place, find the highest degree *unplaced* node, add it to order list,
-    // then handle all its children:
+    // then handle all its children. One pass in rank order covers everybody:
     //
      
-    while (!targsToGo.isEmpty()) {
-      Iterator<Integer> crit = countRank.keySet().iterator();
-      while (crit.hasNext()) {
-        Integer key = crit.next();
-        SortedSet<NetNode> perCount = countRank.get(key);
-        Iterator<NetNode> pcit = perCount.iterator();
-        while (pcit.hasNext()) {
-          NetNode node = pcit.next();
-          if (targsToGo.contains(node)) {
-            ArrayList<NetNode> queue = new ArrayList<NetNode>();
-            targsToGo.remove(node);
-            targets.add(node);
-            addMyKidsNR(targets, targsPerSource, linkCounts, targsToGo, node, queue, monitor, 0.75, 1.0);
-          }
-        }
-      }
+    for (int rank = targsToGo.nextSetBit(0); rank >= 0; rank = targsToGo.nextSetBit(rank + 1)) {
+      targsToGo.clear(rank);
+      toGo--;
+      targets.add(byRank[rank]);
+      queue[0] = rank;
+      toGo -= flushQueue(targets, byRank, nbrStart, nbrEnd, nbrs, targsToGo, toGo, queue, 1, monitor, 0.75, 1.0);
     }
     
     //
@@ -233,98 +272,36 @@ public class DefaultLayout extends NodeLayout {
         
   /***************************************************************************
   **
-  ** Ordering of neighbor nodes. 
-  */
-  
-  private List<NetNode> orderMyKids(Map<NetNode, Set<NetNode>> targsPerSource, 
-  		                                   Map<NetNode, Integer> linkCounts, 
-                                         Set<NetNode> targsToGo, NetNode node) {
-    Set<NetNode> targs = targsPerSource.get(node);
-    if (targs == null) {
-    	return (new ArrayList<NetNode>());
-    }
-    //
-    // Get the kids ordered highest degree to lowest, with lex ordering if equal degree:
-    //
-    TreeMap<Integer, SortedSet<NetNode>> kidMap = new TreeMap<Integer, SortedSet<NetNode>>(Collections.reverseOrder());
-    Iterator<NetNode> tait = targs.iterator();
-    while (tait.hasNext()) {  
-      NetNode nextTarg = tait.next(); 
-      Integer count = linkCounts.get(nextTarg);
-      SortedSet<NetNode> perCount = kidMap.get(count);
-      if (perCount == null) {
-        perCount = new TreeSet<NetNode>();
-        kidMap.put(count, perCount);
-      }
-      perCount.add(nextTarg);
-    }
-    
-    //
-    // Go through that map and return an ordered list of neighbors *that have not yet been placed!!*
-    //
-    
-    ArrayList<NetNode> myKidsToProc = new ArrayList<NetNode>();
-    Iterator<SortedSet<NetNode>> kmit = kidMap.values().iterator();
-    while (kmit.hasNext()) {  
-      SortedSet<NetNode> perCount = kmit.next(); 
-      Iterator<NetNode> pcit = perCount.iterator();
-      while (pcit.hasNext()) {  
-        NetNode kid = pcit.next();
-        if (targsToGo.contains(kid)) { 
-          myKidsToProc.add(kid);
-        }
-      }
-    }
-    return (myKidsToProc);
-  }    
-  
-  /***************************************************************************
-  **
-  ** Handle all kids of the given node by adding it to the queue and flushing the queue:
-  */
-  
-  private void addMyKidsNR(List<NetNode> targets, Map<NetNode, Set<NetNode>> targsPerSource, 
-                           Map<NetNode, Integer> linkCounts, 
-                           Set<NetNode> targsToGo, NetNode node, List<NetNode> queue,
-                           BTProgressMonitor monitor, double startFrac, double endFrac) 
-                          	 throws AsynchExitRequestException {
-    queue.add(node);
-    flushQueue(targets, targsPerSource, linkCounts, targsToGo, queue, monitor, startFrac, endFrac);
-    return;
-  }
-  
-  /***************************************************************************
-  **
-  ** Node ordering, non-recursive:
+  ** Node ordering, non-recursive. Nodes are ranks, and each node's neighbors are
+  ** already in rank order (highest degree to lowest, with lex ordering if equal
+  ** degree), so the kids of a node are just its neighbors that have not yet been placed.
+  ** The caller keeps the count of unplaced nodes; returns how many this placed.
   */
   
-  private void flushQueue(List<NetNode> targets, 
-  		                    Map<NetNode, Set<NetNode>> targsPerSource, 
-                          Map<NetNode, Integer> linkCounts, 
-                          Set<NetNode> targsToGo, List<NetNode> queue, 
-                          BTProgressMonitor monitor, double startFrac, double endFrac) 
-                            throws AsynchExitRequestException {
+  private int flushQueue(List<NetNode> targets, NetNode[] byRank,
+  		                   int[] nbrStart, int[] nbrEnd, int[] nbrs,
+                         BitSet targsToGo, int ttgSize, int[] queue, int qTail, 
+                         BTProgressMonitor monitor, double startFrac, double endFrac) 
+                           throws AsynchExitRequestException {
   	
-  	LoopReporter lr = new LoopReporter(targsToGo.size(), 20, monitor, startFrac, endFrac, "progress.nodeOrdering");
-  	int lastSize = targsToGo.size();	
-    while (!queue.isEmpty()) {
-      NetNode node = queue.remove(0);
-      int ttgSize = targsToGo.size();
-      lr.report(lastSize - ttgSize);
-      lastSize = ttgSize;
-      List<NetNode> myKids = orderMyKids(targsPerSource, linkCounts, targsToGo, node);
-      Iterator<NetNode> ktpit = myKids.iterator(); 
-      while (ktpit.hasNext()) {  
-        NetNode kid = ktpit.next();
-        if (targsToGo.contains(kid)) {
-          targsToGo.remove(kid);
-          targets.add(kid);
-          queue.add(kid);
+    int placed = 0;
+  	LoopReporter lr = new LoopReporter(ttgSize, 20, monitor, startFrac, endFrac, "progress.nodeOrdering");
+    int qHead = 0;
+    while (qHead < qTail) {
+      int node = queue[qHead++];
+      for (int i = nbrStart[node]; i < nbrEnd[node]; i++) {
+        int kid = nbrs[i];
+        if (targsToGo.get(kid)) {
+          targsToGo.clear(kid);
+          targets.add(byRank[kid]);
+          queue[qTail++] = kid;
+          placed++;
+          lr.report();
         }
       }
     }
     lr.finish();
-    return;
+    return (placed);
   }
   
   /***************************************************************************
@@ -20,6 +20,7 @@
 package org.systemsbiology.biofabric.api.model;
 
 import java.util.Iterator;
+import java.util.List;
 
 /****************************************************************************
 **
@@ -35,5 +36,9 @@ public interface AnnotationSet extends Iterable<Annot> {
   public void addAnnot(Annot an);
   
   public void fillAnnots(AnnotsForPos fillIt, Integer whereObj);
+  
+  public List<Annot> getAnnotsCovering(int pos);
+  
+  public List<Annot> getAnnotsOverlapping(int min, int max);
 
 }
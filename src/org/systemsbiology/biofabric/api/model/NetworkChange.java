@@ -0,0 +1,79 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.api.model;
+
+import java.util.Set;
+
+/****************************************************************************
+**
+** A batch of node and link additions and removals to apply to the network on
+** display without a new layout. Get one from FileLoadFlows.startNetworkChange(),
+** fill it in, and hand it to FileLoadFlows.applyNetworkChange(). Nodes and links
+** that stay keep their order; new nodes go at the bottom and new links at the
+** right.
+*/
+
+public interface NetworkChange {
+  
+  /***************************************************************************
+  **
+  ** Find the existing nodes with the given name
+  */
+  
+  public Set<NetNode> findNodes(String name);
+  
+  /***************************************************************************
+  **
+  ** Add a brand new node with the given name. It gets an ID not used in the
+  ** network (or by earlier calls).
+  */
+  
+  public NetNode addNode(String name);
+  
+  /***************************************************************************
+  **
+  ** Remove a node, along with all its links
+  */
+  
+  public void removeNode(NetNode node);
+  
+  /***************************************************************************
+  **
+  ** Add a link. The shadow is added for you. If directed is null, the link is
+  ** directed if existing links with the relation are. Links that are already in
+  ** the network are ignored.
+  */
+  
+  public void addLink(NetNode src, NetNode trg, String relation, Boolean directed);
+  
+  /***************************************************************************
+  **
+  ** Remove a link (and its shadow). Undirected links match either way around.
+  */
+  
+  public void removeLink(NetNode src, NetNode trg, String relation);
+  
+  /***************************************************************************
+  **
+  ** Answer if there is nothing to do
+  */
+  
+  public boolean isEmpty();
+}
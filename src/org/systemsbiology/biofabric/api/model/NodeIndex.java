@@ -0,0 +1,134 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.api.model;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/****************************************************************************
+**
+** Dense integer numbering of a fixed set of nodes. The numbers live in a
+** table owned by the index, keyed on node identity, so lookups of those same
+** node objects never hash the node's string ID, and the nodes themselves are
+** left alone. Equal nodes that are different objects still work through a
+** hash map built on first need.
+*/
+
+public final class NodeIndex {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  public static final int NO_INDEX = -1;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private NetNode[] nodes_;
+  private IdentityHashMap<NetNode, Integer> byObject_;
+  private HashMap<NetNode, Integer> fallback_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Number the nodes in iteration order. Nodes must be distinct.
+  */
+
+  public NodeIndex(Collection<? extends NetNode> nodes) {
+    nodes_ = new NetNode[nodes.size()];
+    byObject_ = new IdentityHashMap<NetNode, Integer>(nodes_.length);
+    int count = 0;
+    for (NetNode node : nodes) {
+      nodes_[count] = node;
+      byObject_.put(node, Integer.valueOf(count++));
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Number of nodes
+  */
+  
+  public int size() {
+    return (nodes_.length);
+  }
+  
+  /***************************************************************************
+  **
+  ** Node for an index
+  */
+  
+  public NetNode getNode(int index) {
+    return (nodes_[index]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of a node, or NO_INDEX if it is not in the set
+  */
+  
+  public int indexOf(NetNode node) {
+    Integer found = byObject_.get(node);
+    if (found != null) {
+      return (found.intValue());
+    }
+    found = fallback().get(node);
+    return ((found == null) ? NO_INDEX : found.intValue());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Hash lookup for equal nodes that are not the objects we were given
+  */
+  
+  private synchronized HashMap<NetNode, Integer> fallback() {
+    if (fallback_ == null) {
+      fallback_ = new HashMap<NetNode, Integer>();
+      for (int i = 0; i < nodes_.length; i++) {
+        fallback_.put(nodes_[i], Integer.valueOf(i));
+      }
+    }
+    return (fallback_);
+  }
+}
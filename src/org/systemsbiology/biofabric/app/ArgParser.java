@@ -48,6 +48,7 @@ public class ArgParser {
   public static final String SIF_BATCH_INPUT    = "sifImport";
   public static final String IMAGE_BATCH_OUTPUT = "pngExport";
   public static final String IMAGE_OUTPUT_WIDTH = "pngWidth";
+  public static final String MEMORY_REPORT      = "memReport";
 
   
   ////////////////////////////////////////////////////////////////////////////
@@ -183,6 +184,7 @@ public class ArgParser {
       retval.add(new ArgInfo(SIF_BATCH_INPUT, true, false));   
       retval.add(new ArgInfo(IMAGE_BATCH_OUTPUT, true, false)); 
       retval.add(new ArgInfo(IMAGE_OUTPUT_WIDTH, true, false));   
+      retval.add(new ArgInfo(MEMORY_REPORT, false, true));
     } else {
       throw new IllegalArgumentException();  
     }
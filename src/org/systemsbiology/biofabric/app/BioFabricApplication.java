@@ -93,6 +93,10 @@ public class BioFabricApplication {
   */
   
   public void shutdownFabric() {
+    CommandSet.getCmds("mainWindow").waitForPendingSave();
+    if (selectionWindow_ != null) {
+      CommandSet.getCmds("selectionWindow").waitForPendingSave();
+    }
     bfw_.stopBufferBuilding();
     bfw_.getWindow().dispose();
     if (selectionWindow_ != null) {
@@ -441,6 +441,9 @@ public class BioFabricWindow implements BackgroundWorkerControlManager {
     menuBar.add(sMenu);
     sMenu.add(fc.getAction(CommandSet.SEARCH, false, null));
     sMenu.add(fc.getAction(CommandSet.COMPARE_NODES, false, null));
+    if (isMain) {
+      sMenu.add(fc.getAction(CommandSet.MEMORY_REPORT, false, null));
+    }
     
     
      List<String> piks = fc.getPlugInKeys();
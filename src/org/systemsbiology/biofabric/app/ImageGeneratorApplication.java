@@ -32,6 +32,7 @@ import org.systemsbiology.biofabric.plugin.PlugInManager;
 import org.systemsbiology.biofabric.ui.ImageExporter;
 import org.systemsbiology.biofabric.ui.dialogs.ExportSettingsDialog;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.ResourceManager;
 
 /****************************************************************************
@@ -97,7 +98,7 @@ public class ImageGeneratorApplication {
     ResourceManager.initManager("org.systemsbiology.biofabric.props.BioFabric");
     ArgParser ap = new ArgParser(); 
     Map<String, Object> argMap = ap.parse(ArgParser.AppType.PIPELINE, argv);
-    if ((argMap == null) || (argMap.size() != 3)) {
+    if ((argMap == null) || (argMap.size() != 4)) {
       System.err.print(ap.getUsage(ArgParser.AppType.PIPELINE));
       System.exit(1);
     }
@@ -152,6 +153,7 @@ public class ImageGeneratorApplication {
     synchronized(CommandSet.class) {
       ResourceManager rMan = ResourceManager.getManager();    
       System.setProperty("java.awt.headless", "true");
+      HeapFootprint.setLogPhases(((Boolean)args_.get(ArgParser.MEMORY_REPORT)).booleanValue());
       BioFabricWindow bfw = new BioFabricWindow(args_, null, true, true);
       ExceptionHandler.getHandler().initializeForHeadless(false);
       PlugInManager plum = new PlugInManager();
@@ -210,6 +212,7 @@ public class ImageGeneratorApplication {
           Object[] osArgs = imageExportPrepForFile(args_, imageFileName, cmd);
           if (osArgs != null) {
             boolean hok = hexa.performOperation(osArgs);
+            HeapFootprint.logPhase("after image export", bfw.getFabricPanel());
             if (!hok) {
               System.err.println(rMan.getString("headless.imageExportFailure"));
             } else {
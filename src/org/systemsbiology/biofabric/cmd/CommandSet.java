@@ -22,6 +22,7 @@ package org.systemsbiology.biofabric.cmd;
 
 import java.awt.Color;
 import java.awt.Event;
+import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Point;
@@ -64,6 +65,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.HyperlinkEvent;
@@ -92,6 +94,7 @@ import org.systemsbiology.biofabric.layouts.ControlTopLayout;
 import org.systemsbiology.biofabric.layouts.NodeClusterLayout;
 import org.systemsbiology.biofabric.layouts.NodeSimilarityLayout;
 
+import org.systemsbiology.biofabric.model.BinaryNetworkIO;
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugIn;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugInCmd;
@@ -118,6 +121,7 @@ import org.systemsbiology.biofabric.ui.dialogs.SetRelationSemanticsDialog;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
 import org.systemsbiology.biofabric.ui.display.FabricMagnifyingTool;
 import org.systemsbiology.biofabric.util.FileExtensionFilters;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.InvalidInputException;
 import org.systemsbiology.biofabric.util.ResourceManager;
 import org.systemsbiology.biofabric.util.UiUtil;
@@ -194,6 +198,8 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
   public static final int ADD_LINK_ANNOTATIONS         = 56;
   
   public static final int SET_PLUGIN_DIR               = 57;
+  
+  public static final int MEMORY_REPORT                = 58;
  
   public static final int GENERAL_PUSH   = 0x01;
   public static final int ALLOW_NAV_PUSH = 0x02;
@@ -236,6 +242,16 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
     return (bfw_);
   }
    
+  /***************************************************************************
+  **
+  ** Wait for a save still running on its own thread
+  */ 
+  
+  public void waitForPendingSave() {
+    flf_.waitForPendingSave();
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Needed for refactoring
@@ -561,6 +577,9 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
           break;
         case SET_PLUGIN_DIR:
           retval = new SetPluginDirectory(withIcon); 
+          break;
+        case MEMORY_REPORT:
+          retval = new MemoryReportAction(withIcon); 
           break;          
           
         default:
@@ -1345,6 +1364,46 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
   ** Command
   */ 
   
+  private class MemoryReportAction extends ChecksForEnabled {
+    
+    private static final long serialVersionUID = 1L;
+   
+    MemoryReportAction(boolean doIcon) {
+      ResourceManager rMan = ResourceManager.getManager(); 
+      putValue(Action.NAME, rMan.getString("command.MemoryReport"));
+      if (doIcon) {
+        putValue(Action.SHORT_DESCRIPTION, rMan.getString("command.MemoryReport"));        
+        URL ugif = getClass().getResource("/org/systemsbiology/biofabric/images/FIXME24.gif");  
+        putValue(Action.SMALL_ICON, new ImageIcon(ugif));
+      } else {
+        char mnem = rMan.getChar("command.MemoryReportMnem"); 
+        putValue(Action.MNEMONIC_KEY, Integer.valueOf(mnem)); 
+      }
+    }
+    
+    public void actionPerformed(ActionEvent e) {
+      try {
+        HeapFootprint fp = new HeapFootprint("on request");
+        bfp_.reportFootprint(fp);
+        JTextArea area = new JTextArea(fp.getReport(), 25, 80);
+        area.setEditable(false);
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        ResourceManager rMan = ResourceManager.getManager();
+        JOptionPane.showMessageDialog(topWindow_, new JScrollPane(area), 
+                                      rMan.getString("memReport.title"),
+                                      JOptionPane.INFORMATION_MESSAGE);
+      } catch (Exception ex) {
+        ExceptionHandler.getHandler().displayException(ex);
+      }
+      return;
+    }
+  } 
+ 
+  /***************************************************************************
+  **
+  ** Command
+  */ 
+  
   private class ZoomToRect extends ChecksForEnabled {
     
     private static final long serialVersionUID = 1L;
@@ -2558,7 +2617,11 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
       while (file == null) {
         JFileChooser chooser = new JFileChooser(); 
         FileExtensionFilters.SimpleFilter sf = new FileExtensionFilters.SimpleFilter(".bif", "filterName.bif");
+        FileExtensionFilters.SimpleFilter bsf = new FileExtensionFilters.SimpleFilter(BinaryNetworkIO.SUFFIX, "filterName.bfb");
+        FileExtensionFilters.SimpleFilter gsf = new FileExtensionFilters.SimpleFilter(FileLoadFlowsImpl.COMPRESSED_XML_SUFFIX, "filterName.bifgz");
         chooser.addChoosableFileFilter(sf);
+        chooser.addChoosableFileFilter(bsf);
+        chooser.addChoosableFileFilter(gsf);
         chooser.setAcceptAllFileFilterUsed(true);
         chooser.setFileFilter(sf);
 
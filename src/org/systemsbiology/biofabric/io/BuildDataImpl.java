@@ -50,6 +50,7 @@ import org.systemsbiology.biofabric.layouts.SetLayout;
 import org.systemsbiology.biofabric.layouts.WorldBankLayout;
 
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.model.NetworkUpdate;
 import org.systemsbiology.biofabric.plugin.PluginBuildData;
 import org.systemsbiology.biofabric.ui.FabricColorGenerator;
 import org.systemsbiology.biofabric.util.DataUtil;
@@ -90,7 +91,8 @@ public class BuildDataImpl implements BuildData {
                          WORLD_BANK_LAYOUT,
                          SET_LAYOUT,
                          GROUP_PER_NETWORK_CHANGE,
-                         BUILD_FROM_PLUGIN
+                         BUILD_FROM_PLUGIN,
+                         INCREMENTAL_UPDATE
                         };
                                                 
   ////////////////////////////////////////////////////////////////////////////
@@ -108,6 +110,11 @@ public class BuildDataImpl implements BuildData {
   public List<BioFabricNetwork.NodeInfo> subNodes;
   public List<BioFabricNetwork.LinkInfo> subLinks;
   
+  //
+  // For incremental update builds (with fullNet):
+  //
+  public NetworkUpdate update;
+  
   //
   // For pre-built build data:
   //
@@ -182,6 +189,12 @@ public class BuildDataImpl implements BuildData {
     this.subLinks = subLinks;
   }
 
+  public BuildDataImpl(BioFabricNetwork fullNet, NetworkUpdate update) {
+    this(BuildMode.INCREMENTAL_UPDATE);
+    this.fullNet = fullNet;
+    this.update = update;
+  }
+
   public BuildDataImpl(BioFabricNetwork bfn, BuildMode mode) {
     this(mode);
     this.bfn_ = bfn;
@@ -445,6 +458,7 @@ public class BuildDataImpl implements BuildData {
       case BUILD_FROM_XML:
       case BUILD_FROM_SIF:
       case BUILD_FROM_PLUGIN:
+      case INCREMENTAL_UPDATE:
       default:
       	// Not legal!
         throw new IllegalStateException();
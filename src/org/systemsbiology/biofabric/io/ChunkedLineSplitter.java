@@ -0,0 +1,379 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/****************************************************************************
+**
+** Reads a file in byte range chunks that end on line boundaries, with a few
+** threads reading and splitting chunks at once. Chunks are handed back in file
+** order, so the caller sees the lines exactly as a BufferedReader would give
+** them. Only a window of chunks ahead of the caller is held at one time.
+*/
+
+class ChunkedLineSplitter {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int WINDOW_PER_THREAD_ = 2;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private File infile_;
+  private FabricImportLoader loader_;
+  private FileInputStream fis_;
+  private FileChannel channel_;
+  private long[] chunkStarts_;
+  private int numThreads_;
+  private int window_;
+  private int nextToSplit_;
+  private int nextToHand_;
+  private HashMap<Integer, Chunk> done_;
+  private Throwable error_;
+  private boolean quit_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Works out the chunk boundaries, but splits nothing until started.
+  */
+
+  ChunkedLineSplitter(File infile, int chunkBytes, int numThreads, FabricImportLoader loader) throws IOException {
+    infile_ = infile;
+    loader_ = loader;
+    numThreads_ = numThreads;
+    window_ = numThreads * WINDOW_PER_THREAD_;
+    chunkStarts_ = findChunkStarts(infile, chunkBytes);
+    done_ = new HashMap<Integer, Chunk>();
+    nextToSplit_ = 0;
+    nextToHand_ = 0;
+    quit_ = false;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of chunks in the file
+  */
+  
+  int getChunkCount() {
+    return (chunkStarts_.length - 1);
+  }
+  
+  /***************************************************************************
+  **
+  ** Start the splitting threads
+  */
+  
+  void start() throws IOException {
+    fis_ = new FileInputStream(infile_);
+    channel_ = fis_.getChannel();
+    for (int i = 0; i < numThreads_; i++) {
+      Thread runThread = new Thread(new SplitWorker(), "ImportSplitter-" + i);
+      runThread.setDaemon(true);
+      runThread.start();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the next chunk in file order, waiting for it if need be. Null when
+  ** we are out of chunks.
+  */
+  
+  synchronized Chunk nextChunk() throws IOException {
+    if (nextToHand_ >= getChunkCount()) {
+      return (null);
+    }
+    Integer key = Integer.valueOf(nextToHand_);
+    while (!done_.containsKey(key)) {
+      if (error_ instanceof IOException) {
+        throw (IOException)error_;
+      } else if (error_ instanceof Error) {
+        throw (Error)error_;
+      } else if (error_ != null) {
+        throw new IOException(error_.toString());
+      }
+      try {
+        wait();
+      } catch (InterruptedException iex) {
+        throw new IOException("Interrupted while reading");
+      }
+    }
+    Chunk retval = done_.remove(key);
+    nextToHand_++;
+    notifyAll(); // The window has moved
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Stop the threads and close the file. Call when done, or when bailing out.
+  */
+  
+  void shutdown() throws IOException {
+    synchronized (this) {
+      quit_ = true;
+      done_.clear();
+      notifyAll();
+    }
+    if (fis_ != null) {
+      fis_.close();
+    }
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Find where chunks start: at about every chunkBytes, moved up to just past
+  ** the next newline. The last entry is the file length.
+  */
+  
+  private long[] findChunkStarts(File infile, int chunkBytes) throws IOException {
+    ArrayList<Long> starts = new ArrayList<Long>();
+    RandomAccessFile raf = new RandomAccessFile(infile, "r");
+    try {
+      long fileLen = raf.length();
+      byte[] buf = new byte[4096];
+      long pos = 0L;
+      while (pos < fileLen) {
+        starts.add(Long.valueOf(pos));
+        long cut = pos + chunkBytes;
+        if (cut >= fileLen) {
+          break;
+        }
+        raf.seek(cut);
+        boolean found = false;
+        while (!found) {
+          int got = raf.read(buf);
+          if (got <= 0) {
+            cut = fileLen;
+            break;
+          }
+          for (int i = 0; i < got; i++) {
+            if (buf[i] == '\n') {
+              cut += i + 1;
+              found = true;
+              break;
+            }
+          }
+          if (!found) {
+            cut += got;
+          }
+        }
+        pos = cut;
+      }
+      starts.add(Long.valueOf(fileLen));
+    } finally {
+      raf.close();
+    }
+    int numStarts = starts.size();
+    long[] retval = new long[numStarts];
+    for (int i = 0; i < numStarts; i++) {
+      retval[i] = starts.get(i).longValue();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the next chunk to split, waiting until it is inside the window. Null
+  ** when there is nothing left to do.
+  */
+  
+  private synchronized Integer nextToSplit() {
+    while (true) {
+      if (quit_ || (error_ != null) || (nextToSplit_ >= getChunkCount())) {
+        return (null);
+      }
+      if (nextToSplit_ < nextToHand_ + window_) {
+        return (Integer.valueOf(nextToSplit_++));
+      }
+      try {
+        wait();
+      } catch (InterruptedException iex) {
+        return (null);
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Hand back a split chunk
+  */
+  
+  private synchronized void splitDone(Integer key, Chunk chunk) {
+    if (!quit_) {
+      done_.put(key, chunk);
+    }
+    notifyAll();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Report a failure. The reading thread throws it on.
+  */
+  
+  private synchronized void splitFailed(Throwable thr) {
+    if (error_ == null) {
+      error_ = thr;
+    }
+    notifyAll();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read and split one chunk. Line ends are handled as BufferedReader.readLine()
+  ** does: \n, \r, or \r\n. Chunks end just past a \n, so a line end is never
+  ** split across chunks, and neither is a UTF-8 character.
+  */
+  
+  private Chunk splitChunk(int index) throws IOException {
+    long start = chunkStarts_[index];
+    int len = (int)(chunkStarts_[index + 1] - start);
+    byte[] bytes = new byte[len];
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    while (bb.hasRemaining()) {
+      int got = channel_.read(bb, start + bb.position());
+      if (got < 0) {
+        throw new IOException("File changed while reading");
+      }
+    }
+    
+    Chunk retval = new Chunk(len);
+    int lineStart = 0;
+    int pos = 0;
+    while (pos < len) {
+      byte curr = bytes[pos];
+      if ((curr != '\n') && (curr != '\r')) {
+        pos++;
+        continue;
+      }
+      retval.addLine(loader_, new String(bytes, lineStart, pos - lineStart, "UTF-8"));
+      pos++;
+      if ((curr == '\r') && (pos < len) && (bytes[pos] == '\n')) {
+        pos++;
+      }
+      lineStart = pos;
+    }
+    if (lineStart < len) {
+      retval.addLine(loader_, new String(bytes, lineStart, len - lineStart, "UTF-8"));
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** The lines of a chunk that are not blank, each with its split tokens
+  */
+  
+  static class Chunk {
+    final int byteCount;
+    final List<String> lines;
+    final List<String[]> splits;
+    
+    Chunk(int byteCount) {
+      this.byteCount = byteCount;
+      this.lines = new ArrayList<String>();
+      this.splits = new ArrayList<String[]>();
+    }
+    
+    void addLine(FabricImportLoader loader, String line) {
+      if (line.trim().equals("")) {
+        return;
+      }
+      lines.add(line);
+      splits.add(loader.splitLine(line));
+      return;
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Splits chunks until there are none left
+  */
+  
+  private class SplitWorker implements Runnable {
+    
+    public void run() {
+      try {
+        while (true) {
+          Integer key = nextToSplit();
+          if (key == null) {
+            break;
+          }
+          splitDone(key, splitChunk(key.intValue()));
+        }
+      } catch (Throwable thr) { // Including running out of memory: the reader must hear about it
+        splitFailed(thr);
+      }
+      return;
+    }
+  }
+}
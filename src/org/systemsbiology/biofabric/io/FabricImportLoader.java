@@ -32,6 +32,7 @@ import java.util.Set;
 
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.util.PreferenceStorage;
 import org.systemsbiology.biofabric.api.util.NID;
 import org.systemsbiology.biofabric.api.util.UniqueLabeller;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
@@ -54,18 +55,32 @@ public abstract class FabricImportLoader {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  private static final int CHUNK_BYTES_ = 4 * 1024 * 1024;
+  private static final int MAX_IMPORT_THREADS_ = 8;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Preference for the number of threads splitting lines during import. Zero
+  ** reads and splits on the loading thread.
+  */
+  
+  public static final String IMPORT_THREADS_PREF = "ImportThreads";
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE MEMBERS
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  private HashMap<String, String> relations_;
+  private HashMap<String, NetNode> exactNames_;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTRUCTORS
@@ -78,7 +93,8 @@ public abstract class FabricImportLoader {
    */
   
   public FabricImportLoader() {
-  
+    relations_ = new HashMap<String, String>();
+    exactNames_ = new HashMap<String, NetNode>();
   }
   
   ////////////////////////////////////////////////////////////////////////////
@@ -89,10 +105,25 @@ public abstract class FabricImportLoader {
   
   /***************************************************************************
    **
-   ** Parse a line to tokens
+   ** Check the tokens split from a line, and return the ones to consume, or null
+   ** to skip the line. Called in file order.
    */
   
-  protected abstract String[] lineToToks(String line, FileImportStats stats) throws IOException;
+  protected abstract String[] lineToToks(String line, String[] split, FileImportStats stats) throws IOException;
+  
+  /***************************************************************************
+   **
+   ** Split a line to tokens: on tabs, or on spaces if there are no tabs. This can
+   ** be called on splitting threads, so it must not touch the loader's state.
+   */
+  
+  protected String[] splitLine(String line) {
+    String[] tokens = splitOn(line, '\t');
+    if ((tokens.length == 1) && (line.indexOf("\\t") == -1)) {
+      tokens = splitOn(line, ' ');
+    }
+    return (tokens);
+  }
   
   /***************************************************************************
    **
@@ -105,48 +136,120 @@ public abstract class FabricImportLoader {
   
   /***************************************************************************
    **
-   ** Process a SIF input
+   ** Process a SIF input, using the number of splitting threads from the preferences
    */
   
   public FileImportStats importFabric(File infile, UniqueLabeller idGen, List<NetLink> links,
                                       Set<NetNode> loneNodeIDs, Map<String, String> nameMap, Integer magBins,
                                       BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
+    return (importFabric(infile, idGen, links, loneNodeIDs, nameMap, magBins, importThreadCountFromPrefs(), monitor));
+  }
+  
+  /***************************************************************************
+   **
+   ** Process a SIF input. This streams: each line is tokenized and turned into
+   ** links as it is read, so we never hold more than a few chunks of tokens. With
+   ** splitting threads, chunks of the file are read and split ahead in parallel.
+   ** Lines are still checked and consumed on this thread in file order, so node
+   ** IDs come out the same as with no splitting threads.
+   */
+  
+  public FileImportStats importFabric(File infile, UniqueLabeller idGen, List<NetLink> links,
+                                      Set<NetNode> loneNodeIDs, Map<String, String> nameMap, Integer magBins,
+                                      int numSplitters, BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
     
     FileImportStats retval = new FileImportStats();
-    long fileLen = infile.length();
     HashMap<String, NetNode> nameToID = new HashMap<String, NetNode>();
-    BufferedReader in = null;
-    ArrayList<String[]> tokSets = new ArrayList<String[]>();
-    LoopReporter lr = new LoopReporter(fileLen, 20, monitor, 0.0, 1.0, "progress.readingFile");
     try {
-      in = new BufferedReader(new InputStreamReader(new FileInputStream(infile), "UTF-8"));
-      String line = null;
-      while ((line = in.readLine()) != null) {
-        lr.report(line.length() + 1);
-        if (line.trim().equals("")) {
-          continue;
-        }
-        String[] tokens = lineToToks(line, retval);
-        if (tokens != null) {
-          tokSets.add(tokens);
-        }
+      if ((numSplitters < 1) || (infile.length() <= CHUNK_BYTES_)) {
+        readLines(infile, idGen, links, loneNodeIDs, nameMap, magBins, nameToID, retval, monitor);
+      } else {
+        readChunks(infile, idGen, links, loneNodeIDs, nameMap, magBins, nameToID, numSplitters, retval, monitor);
       }
     } finally {
-      if (in != null) {
-        in.close();
+      relations_.clear();
+      exactNames_.clear();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+   **
+   ** Get the number of threads to split lines with during import: the preference
+   ** if set, else one less than the number of cores, since this thread is busy
+   ** making links.
+   */
+  
+  public static int importThreadCountFromPrefs() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    int retval = cores - 1;
+    String pref = new PreferenceStorage().getPreference(IMPORT_THREADS_PREF);
+    if (pref != null) {
+      try {
+        retval = Integer.parseInt(pref.trim());
+      } catch (NumberFormatException nfex) {
+        System.err.println("Bad " + IMPORT_THREADS_PREF + " preference: " + pref);
       }
     }
-    lr.finish();
+    return (Math.max(0, Math.min(retval, MAX_IMPORT_THREADS_)));
+  }
+  
+  /***************************************************************************
+   **
+   ** Set the number of threads to split lines with during future imports
+   */
+  
+  public static void setImportThreadCountPref(int numSplitters) {
+    new PreferenceStorage().setPreference(IMPORT_THREADS_PREF, Integer.toString(numSplitters));
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+   **
+   ** Split a line on one character, giving what String.split() gives for that
+   ** character as a pattern (including dropping trailing empty tokens), without
+   ** the regular expression.
+   */
+  
+  static String[] splitOn(String line, char sep) {
+    int len = line.length();
+    int count = 1;
+    for (int i = 0; i < len; i++) {
+      if (line.charAt(i) == sep) {
+        count++;
+      }
+    }
+    if (count == 1) {
+      return (new String[] {line});
+    }
     
-    int numLines = tokSets.size();
-    lr = new LoopReporter(numLines, 20, monitor, 0.0, 1.0, "progress.buildingEdgesAndNodes");
+    //
+    // Trailing empty tokens are dropped:
+    //
     
-    for (int i = 0; i < numLines; i++) {
-      String[] tokens = tokSets.get(i);
-      lr.report();
-      consumeTokens(tokens, idGen, links, loneNodeIDs, nameMap, magBins, nameToID, retval);
+    int end = len;
+    while ((end > 0) && (line.charAt(end - 1) == sep)) {
+      end--;
+      count--;
+    }
+    String[] retval = new String[(end == 0) ? 0 : count];
+    int start = 0;
+    int num = 0;
+    for (int i = 0; i < end; i++) {
+      if (line.charAt(i) == sep) {
+        retval[num++] = line.substring(start, i);
+        start = i + 1;
+      }
+    }
+    if (end > 0) {
+      retval[num] = line.substring(start, end);
     }
-    lr.finish();
     return (retval);
   }
   
@@ -207,14 +310,24 @@ public abstract class FabricImportLoader {
   
   protected NetNode nameToNode(String inString, UniqueLabeller idGen, Map<String, NetNode> nameToID) {
     
+    //
+    // Names mostly show up again spelled the same, so skip normalizing those:
+    //
+    
+    NetNode nodeID = exactNames_.get(inString);
+    if (nodeID != null) {
+      return (nodeID);
+    }
+    
     String normName = DataUtil.normKey(inString);
     
-    NetNode nodeID = nameToID.get(normName);
+    nodeID = nameToID.get(normName);
     if (nodeID == null) {
       NID nid = idGen.getNextOID();
       nodeID = new FabricNode(nid, inString);
       nameToID.put(normName, nodeID);
     }
+    exactNames_.put(inString, nodeID);
     return (nodeID);
   }
   
@@ -225,6 +338,18 @@ public abstract class FabricImportLoader {
   
   protected void buildLinkAndShadow(NetNode srcID, NetNode trgID, String rel, List<NetLink> links) {
     
+    //
+    // Every line splits out its own copy of the relation string. There are only
+    // a handful of distinct relations, so have all the links share one copy:
+    //
+    
+    String sharedRel = relations_.get(rel);
+    if (sharedRel == null) {
+      sharedRel = rel;
+      relations_.put(rel, rel);
+    }
+    rel = sharedRel;
+    
     FabricLink nextLink = new FabricLink(srcID, trgID, rel, false);
     links.add(nextLink);
     
@@ -237,6 +362,77 @@ public abstract class FabricImportLoader {
     return;
   }
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+   **
+   ** Read, split and consume lines on this thread
+   */
+  
+  private void readLines(File infile, UniqueLabeller idGen, List<NetLink> links,
+                         Set<NetNode> loneNodeIDs, Map<String, String> nameMap, Integer magBins,
+                         Map<String, NetNode> nameToID, FileImportStats stats,
+                         BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
+    BufferedReader in = null;
+    LoopReporter lr = new LoopReporter(infile.length(), 20, monitor, 0.0, 1.0, "progress.buildingEdgesAndNodes");
+    try {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(infile), "UTF-8"));
+      String line = null;
+      while ((line = in.readLine()) != null) {
+        lr.report(line.length() + 1);
+        if (line.trim().equals("")) {
+          continue;
+        }
+        String[] tokens = lineToToks(line, splitLine(line), stats);
+        if (tokens != null) {
+          consumeTokens(tokens, idGen, links, loneNodeIDs, nameMap, magBins, nameToID, stats);
+        }
+      }
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+    lr.finish();
+    return;
+  }
+  
+  /***************************************************************************
+   **
+   ** Have splitting threads read and split chunks, and consume their lines here
+   ** in file order
+   */
+  
+  private void readChunks(File infile, UniqueLabeller idGen, List<NetLink> links,
+                          Set<NetNode> loneNodeIDs, Map<String, String> nameMap, Integer magBins,
+                          Map<String, NetNode> nameToID, int numSplitters, FileImportStats stats,
+                          BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
+    ChunkedLineSplitter cls = new ChunkedLineSplitter(infile, CHUNK_BYTES_, numSplitters, this);
+    LoopReporter lr = new LoopReporter(infile.length(), 20, monitor, 0.0, 1.0, "progress.buildingEdgesAndNodes");
+    try {
+      cls.start();
+      ChunkedLineSplitter.Chunk chunk;
+      while ((chunk = cls.nextChunk()) != null) {
+        int numLines = chunk.lines.size();
+        for (int i = 0; i < numLines; i++) {
+          String[] tokens = lineToToks(chunk.lines.get(i), chunk.splits.get(i), stats);
+          if (tokens != null) {
+            consumeTokens(tokens, idGen, links, loneNodeIDs, nameMap, magBins, nameToID, stats);
+          }
+        }
+        lr.report(chunk.byteCount);
+      }
+    } finally {
+      cls.shutdown();
+    }
+    lr.finish();
+    return;
+  }
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC INNER CLASSES
@@ -33,6 +33,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -44,11 +45,11 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileFilter;
 
 import org.systemsbiology.biofabric.api.io.AttributeKey;
@@ -64,6 +65,7 @@ import org.systemsbiology.biofabric.api.model.AnnotationSet;
 import org.systemsbiology.biofabric.api.model.AugRelation;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NetworkChange;
 import org.systemsbiology.biofabric.api.parser.ParserClient;
 import org.systemsbiology.biofabric.api.util.ExceptionHandler;
 import org.systemsbiology.biofabric.api.util.PluginResourceManager;
@@ -81,7 +83,9 @@ import org.systemsbiology.biofabric.layouts.ControlTopLayout;
 import org.systemsbiology.biofabric.layouts.NodeClusterLayout;
 import org.systemsbiology.biofabric.layouts.NodeSimilarityLayout;
 import org.systemsbiology.biofabric.layouts.SetLayout;
+import org.systemsbiology.biofabric.model.BinaryNetworkIO;
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.model.NetworkUpdate;
 import org.systemsbiology.biofabric.parser.ProgressFilterInputStream;
 import org.systemsbiology.biofabric.parser.SUParser;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugInData;
@@ -94,8 +98,10 @@ import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
 import org.systemsbiology.biofabric.ui.dialogs.RelationDirectionDialog;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
 import org.systemsbiology.biofabric.ui.render.BufferBuilder;
+import org.systemsbiology.biofabric.ui.render.TileCodecs;
 import org.systemsbiology.biofabric.util.FileExtensionFilters;
 import org.systemsbiology.biofabric.util.GarbageRequester;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.InvalidInputException;
 import org.systemsbiology.biofabric.util.ResourceManager;
 import org.systemsbiology.biofabric.util.UiUtil;
@@ -118,6 +124,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   public static final int FILE_LENGTH_FOR_BACKGROUND_FILE_READ = 500000;
   public static final int SIZE_TO_ASK_ABOUT_SHADOWS = 100000;
   public static final int XML_SIZE_FOR_BACKGROUND_READ = 1000000;
+  public static final String COMPRESSED_XML_SUFFIX = ".bif.gz";
   
   /***************************************************************************
   **
@@ -142,7 +149,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   public static final boolean FILE_CAN_READ_DONT_CARE   = false;
   public static final boolean FILE_CAN_READ             = true;
   
-  public static enum FileLoadType {GW, SIF};
+  public static enum FileLoadType {GW, SIF, BINARY};
       
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -159,6 +166,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   private FabricColorGenerator colGen_;
   private CommandSet cSet_;
   private boolean isForMain_;
+  private PlugInInfo plugInInfo_;
+  private Thread pendingSave_;
+  private SnapshotSaver pendingSaver_;
+  private String titleName_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -197,7 +208,8 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   public void setFabricPanel(BioFabricPanel bfp) {
     bfp_ = bfp;
     if (isForMain_) {
-      pMan_.installAPI(new PlugInInfo(this, bfp_.getNetwork(), bfw_));
+      plugInInfo_ = new PlugInInfo(this, bfp_.getNetwork(), bfw_);
+      pMan_.installAPI(plugInInfo_);
     }
     return;
   } 
@@ -236,6 +248,54 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return;
   }
 
+  /***************************************************************************
+  **
+  ** Start a batch of changes to the network being displayed
+  */ 
+     
+  public NetworkChange startNetworkChange() {
+    BioFabricNetwork bfn = bfp_.getNetwork();
+    return ((bfn == null) ? null : new NetworkUpdate(bfn));
+  }
+  
+  /***************************************************************************
+  **
+  ** Apply a batch of changes from startNetworkChange()
+  */ 
+     
+  public void applyNetworkChange(NetworkChange change) {
+    if (!(change instanceof NetworkUpdate)) {
+      throw new IllegalArgumentException();
+    }
+    doNetworkUpdate((NetworkUpdate)change);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Apply an incremental update (added and removed nodes and links) to the
+  ** network being displayed, without a new layout
+  */ 
+     
+  public void doNetworkUpdate(NetworkUpdate update) {
+    if (update.getBaseNetwork() != bfp_.getNetwork()) {
+      throw new IllegalArgumentException();
+    }
+    if (update.isEmpty()) {
+      return;
+    }
+    File holdIt;  
+    try {
+      holdIt = File.createTempFile("BioFabricHold", ".zip");
+      holdIt.deleteOnExit();
+    } catch (IOException ioex) {
+      holdIt = null;
+    }
+    NetworkUpdater nu = new NetworkUpdater(); 
+    nu.doNetworkUpdate(update, holdIt);
+    return;
+  }
+
   /***************************************************************************
   **
   ** Do shape match relayout
@@ -648,6 +708,14 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     } catch (IOException ioex) {
       holdIt = null;
     }
+    
+    //
+    // A binary file already holds the finished network, names and all:
+    //
+    
+    if (type == FileLoadFlows.FileLoadType.BINARY) {
+      return (new FileLoadResultImpl(loadBinaryFromSource(file, holdIt), holdIt));
+    }
   
     ArrayList<NetLink> links = new ArrayList<NetLink>();
     HashSet<NetNode> loneNodes = new HashSet<NetNode>();
@@ -736,6 +804,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     HashSet<NetLink> reducedLinks = new HashSet<NetLink>();
     TreeMap<AugRelation, Boolean> relMap = new TreeMap<AugRelation, Boolean>();
     FabricImportLoader.FileImportStats sss = new FabricImportLoader.FileImportStats();
+    
+    if (type == FileLoadFlows.FileLoadType.BINARY) {
+      return (linksFromBinary(file, links, loneNodes, idGen, loadOnly, holdIt));
+    }
   
     // Always do background read- not worth checking file size- most files will likely be large
     BackgroundFileReader br = new BackgroundFileReader();
@@ -781,6 +853,41 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return (new FileLoadResultImpl(true, holdIt));
   }
   
+  /***************************************************************************
+  **
+  ** Binary version of the above. The links in the file have already been through
+  ** preprocessing, so if the caller wants more than the links, the network is
+  ** installed as it was saved.
+  */
+  
+  private FileLoadFlows.FileLoadResult linksFromBinary(File file, List<NetLink> links,
+                                                       Set<NetNode> loneNodes, UniqueLabeller idGen, 
+                                                       boolean loadOnly, File holdIt) {
+    BioFabricNetwork bfn = readBinaryNetwork(file, holdIt);
+    if (bfn == null) {
+      return (new FileLoadResultImpl(false, holdIt));
+    }
+    
+    HashSet<NetNode> linked = new HashSet<NetNode>();
+    for (NetLink link : bfn.getAllLinks(false)) {
+      links.add(link);
+      linked.add(link.getSrcNode());
+      linked.add(link.getTrgNode());
+    }
+    for (NetNode node : bfn.getNodeSetIDs()) {
+      idGen.addExistingLabel(node.getNID().getNID().getInternal());
+      if (!linked.contains(node)) {
+        loneNodes.add(node);
+      }
+    }
+    
+    if (!loadOnly) {
+      setCurrentXMLFile(file);
+      postNetworkLoad(bfn, file.getName(), holdIt);
+    }
+    return (new FileLoadResultImpl(true, holdIt));
+  }
+  
   /***************************************************************************
   **
   ** Preprocess ops that are either run in forground or background:
@@ -802,13 +909,18 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */ 
     
   public boolean loadXMLFromSource(File file, File holdIt) {  
+    if (BinaryNetworkIO.isBinaryNetworkFile(file)) {
+      return (loadBinaryFromSource(file, holdIt));
+    }
     ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
     FabricFactory ff = new FabricFactory(pMan_);
     alist.add(ff);
     SUParser sup = new SUParser(alist);   
-    if (file.length() > XML_SIZE_FOR_BACKGROUND_READ) {
+    boolean compressed = isGzipFile(file);
+    long xmlSize = (compressed) ? gzipContentLength(file) : file.length();
+    if (xmlSize > XML_SIZE_FOR_BACKGROUND_READ) {
       BackgroundFileReader br = new BackgroundFileReader(); 
-      boolean finished = br.doBackgroundRead(ff, sup, file, false, holdIt);
+      boolean finished = br.doBackgroundRead(ff, sup, file, compressed, holdIt);
       if (finished) {
         setCurrentXMLFile(file);
         postXMLLoad(ff, file.getName(), holdIt);
@@ -816,7 +928,11 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       return (true);
     } else {
       try {
-        sup.parse(file);  
+        if (compressed) {
+          parseCompressed(sup, file);
+        } else {
+          sup.parse(file);
+        }
       } catch (IOException ioe) {
         displayFileInputError(ioe);
         return (false);              
@@ -830,22 +946,128 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return (true);
   }
   
+  /***************************************************************************
+  **
+  ** Answers if the file starts with the gzip magic number
+  */ 
+    
+  private boolean isGzipFile(File file) {
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(file);
+      return ((fis.read() == 0x1f) && (fis.read() == 0x8b));
+    } catch (IOException ioex) {
+      return (false);
+    } finally {
+      if (fis != null) { try { fis.close(); } catch (IOException ioe) {} }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Uncompressed length of a gzip file, for progress. Gzip keeps it mod 2^32 in
+  ** the last four bytes; if that is no help, the file length will do.
+  */ 
+    
+  private long gzipContentLength(File file) {
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      long fileLen = raf.length();
+      if (fileLen < 4) {
+        return (fileLen);
+      }
+      raf.seek(fileLen - 4);
+      byte[] tail = new byte[4];
+      raf.readFully(tail);
+      long retval = (tail[0] & 0xffL) | ((tail[1] & 0xffL) << 8) | ((tail[2] & 0xffL) << 16) | ((tail[3] & 0xffL) << 24);
+      return ((retval > 0L) ? retval : fileLen);
+    } catch (IOException ioex) {
+      return (file.length());
+    } finally {
+      if (raf != null) { try { raf.close(); } catch (IOException ioe) {} }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Parse a compressed XML file on this thread
+  */ 
+    
+  private void parseCompressed(SUParser sup, File file) throws IOException {
+    ProgressFilterInputStream pfis = null;
+    try {
+      InputStream gis = new GZIPInputStream(new FileInputStream(file), 8 * 1024);
+      pfis = new ProgressFilterInputStream(new BufferedInputStream(gis), gzipContentLength(file));
+      sup.parse(pfis, null, false);
+    } catch (AsynchExitRequestException aeex) {
+      // No monitor; will not happen
+      throw new IOException();
+    } finally {
+      if (pfis != null) { try { pfis.close(); } catch (IOException ioe) {} }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Load a network saved in the binary format. No XML parsing; the file is
+  ** read in one pass and the network is built straight from its arrays.
+  */ 
+    
+  private boolean loadBinaryFromSource(File file, File holdIt) {  
+    BioFabricNetwork bfn = readBinaryNetwork(file, holdIt);
+    if (bfn == null) {
+      // As with XML, a background read that did not finish has still been handled:
+      return ((file.length() > XML_SIZE_FOR_BACKGROUND_READ) && (headlessOracle_ == null));
+    }
+    setCurrentXMLFile(file);
+    postNetworkLoad(bfn, file.getName(), holdIt);
+    return (true);
+  }
+  
+  /***************************************************************************
+  **
+  ** Read a binary network file, on a background thread if it is big. A null
+  ** holdIt means we are reading a restore cache. Returns null on failure or
+  ** cancellation; errors have already been reported.
+  */ 
+    
+  private BioFabricNetwork readBinaryNetwork(File file, File holdIt) {  
+    if ((file.length() > XML_SIZE_FOR_BACKGROUND_READ) && (headlessOracle_ == null)) {
+      ArrayList<BioFabricNetwork> result = new ArrayList<BioFabricNetwork>();
+      BackgroundFileReader br = new BackgroundFileReader(); 
+      boolean finished = br.doBackgroundBinaryRead(file, result, holdIt);
+      return ((finished && !result.isEmpty()) ? result.get(0) : null);
+    }
+    try {
+      return (BinaryNetworkIO.read(file, pMan_, null, (holdIt == null)));
+    } catch (AsynchExitRequestException aeex) {
+      // Not on background thread; will not happen
+      return (null);
+    } catch (IOException ioe) {
+      displayFileInputError(ioe);
+      return (null);              
+    } catch (OutOfMemoryError oom) {
+      ExceptionHandler.getHandler().displayOutOfMemory(oom);
+      return (null);  
+    }
+  }
+  
   /***************************************************************************
   **
   ** Restore a network from backup file following a cancellation.
   */ 
     
   private boolean restoreFromBackup(File file) {  
-    ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
-    FabricFactory ff = new FabricFactory(pMan_);
-    alist.add(ff);
-    SUParser sup = new SUParser(alist);   
-    BackgroundFileReader br = new BackgroundFileReader(); 
-    br.doBackgroundRead(ff, sup, file, true, null);
+    BioFabricNetwork bfn = readBinaryNetwork(file, null);
     file.delete();
+    if (bfn == null) {
+      return (false);
+    }
     // Fix for issue # 79
     String cfn = (currentFile_ == null) ? null : currentFile_.getName();
-    postXMLLoad(ff, cfn, null);
+    postNetworkLoad(bfn, cfn, null);
     return (true);
   }
   
@@ -855,9 +1077,22 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */ 
     
   public boolean postXMLLoad(FabricFactory ff, String fileName, File holdIt) {  
+    return (postNetworkLoad(ff.getFabricNetwork(), fileName, holdIt));
+  }
+  
+  /***************************************************************************
+  **
+  ** Common operations once a saved network has been read in.
+  */ 
+    
+  private boolean postNetworkLoad(BioFabricNetwork bfn, String fileName, File holdIt) {  
     NetworkBuilder nb = new NetworkBuilder(true, holdIt, null); 
-    nb.setBuildDataForXMLLoad(ff.getFabricNetwork(), BuildDataImpl.BuildMode.BUILD_FROM_XML);
-    nb.doNetworkBuild();
+    nb.setBuildDataForXMLLoad(bfn, BuildDataImpl.BuildMode.BUILD_FROM_XML);
+    if (headlessOracle_ == null) {
+      nb.doNetworkBuild();
+    } else {
+      nb.doNetworkBuildForeground();
+    }
     manageWindowTitle(fileName);
     return (true);
   }
@@ -1159,7 +1394,11 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       while (file == null) {
         JFileChooser chooser = new JFileChooser();
         FileExtensionFilters.SimpleFilter sf = new FileExtensionFilters.SimpleFilter(".bif", "filterName.bif");
+        FileExtensionFilters.SimpleFilter bsf = new FileExtensionFilters.SimpleFilter(BinaryNetworkIO.SUFFIX, "filterName.bfb");
+        FileExtensionFilters.SimpleFilter gsf = new FileExtensionFilters.SimpleFilter(COMPRESSED_XML_SUFFIX, "filterName.bifgz");
         chooser.addChoosableFileFilter(sf);
+        chooser.addChoosableFileFilter(bsf);
+        chooser.addChoosableFileFilter(gsf);
         chooser.setAcceptAllFileFilterUsed(true);
         chooser.setFileFilter(sf);
         if (dirName != null) {
@@ -1175,7 +1414,17 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         file = chooser.getSelectedFile();
         if (file != null) {
           if (!file.exists()) {
-            if (!FileExtensionFilters.hasSuffix(file.getName(), ".bif")) {
+            if (chooser.getFileFilter() == bsf) {
+              if (!FileExtensionFilters.hasSuffix(file.getName(), BinaryNetworkIO.SUFFIX)) {
+                file = new File(file.getAbsolutePath() + BinaryNetworkIO.SUFFIX);
+              }
+            } else if (chooser.getFileFilter() == gsf) {
+              if (!FileExtensionFilters.hasSuffix(file.getName(), COMPRESSED_XML_SUFFIX)) {
+                file = new File(file.getAbsolutePath() + COMPRESSED_XML_SUFFIX);
+              }
+            } else if (!FileExtensionFilters.hasSuffix(file.getName(), ".bif") && 
+                       !FileExtensionFilters.hasSuffix(file.getName(), BinaryNetworkIO.SUFFIX) &&
+                       !FileExtensionFilters.hasSuffix(file.getName(), COMPRESSED_XML_SUFFIX)) {
               file = new File(file.getAbsolutePath() + ".bif");
             }
           }
@@ -1198,14 +1447,18 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     }
 
     
+    //
+    // A save still going to the same file, or any file, finishes first:
+    //
+    
+    waitForPendingSave();
     BioFabricNetwork bfn = bfp_.getNetwork();    
     if (bfn.getLinkCount(true) > LINK_COUNT_FOR_BACKGROUND_WRITE) {
-      BackgroundFileWriter bw = new BackgroundFileWriter(); 
-      bw.doBackgroundWrite(file);
+      startSnapshotSave(bfn, file);
       return (true);
     } else {
       try {
-        saveToOutputStream(new FileOutputStream(file), false, null);
+        saveToFileStream(bfn, FabricDisplayOptionsManager.getMgr().getDisplayOptions(), file, null);
         setCurrentXMLFile(file);
         manageWindowTitle(file.getName());
         return (true);
@@ -1219,6 +1472,125 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     }  
   }
   
+  /***************************************************************************
+  **
+  ** Wait for a save running on its own thread to finish. Call before starting
+  ** another, and before quitting.
+  */   
+  
+  public void waitForPendingSave() {
+    Thread pending = pendingSave_;
+    if (pending == null) {
+      return;
+    }
+    if (pending.isAlive()) {
+      if ((headlessOracle_ == null) && SwingUtilities.isEventDispatchThread()) {
+        (new PendingSaveWaiter()).doBackgroundWait(pending, pendingSaver_.getProgress());
+      } else {
+        joinSave(pending);
+      }
+    }
+    pendingSave_ = null;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Block until the save thread is gone
+  */   
+  
+  private void joinSave(Thread pending) {
+    boolean interrupted = false;
+    while (pending.isAlive()) {
+      try {
+        pending.join();
+      } catch (InterruptedException iex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Start saving a big network on a thread of its own, so the user can keep
+  ** working. The network is not changed once installed, so holding on to it
+  ** is a snapshot; the display options are copied now.
+  */   
+  
+  private void startSnapshotSave(BioFabricNetwork bfn, File file) {
+    FabricDisplayOptions dops = FabricDisplayOptionsManager.getMgr().getDisplayOptions().clone();
+    pendingSaver_ = new SnapshotSaver(bfn, dops, file);
+    pendingSave_ = new Thread(pendingSaver_, "SnapshotSave");
+    pendingSave_.start();
+    manageWindowTitle(titleName_);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** A snapshot save is done. If the network is still the one showing, the file
+  ** is now current.
+  */   
+  
+  private void snapshotSaveDone(SnapshotSaver saver, BioFabricNetwork bfn, File file, 
+                                boolean ok, OutOfMemoryError oom) {
+    if (pendingSaver_ == saver) {
+      pendingSaver_ = null;
+      manageWindowTitle(titleName_);
+    }
+    if (oom != null) {
+      ExceptionHandler.getHandler().displayOutOfMemory(oom);
+      return;
+    } else if (!ok) {
+      displayFileOutputError();
+      return;
+    }
+    if ((bfp_ != null) && (bfp_.getNetwork() == bfn)) {
+      setCurrentXMLFile(file);
+      manageWindowTitle(file.getName());
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Save to the file, in the binary format if it has the binary suffix, compressed
+  ** XML if it has the compressed suffix, else as XML
+  */   
+  
+  private void saveToFileStream(BioFabricNetwork bfn, FabricDisplayOptions dops, File file, 
+                                BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
+    if (bfn == null) {
+      new FileOutputStream(file).close();
+    } else if (FileExtensionFilters.hasSuffix(file.getName(), BinaryNetworkIO.SUFFIX)) {
+      BinaryNetworkIO.write(bfn, dops, new FileOutputStream(file), monitor, false);
+    } else {
+      boolean compress = FileExtensionFilters.hasSuffix(file.getName(), COMPRESSED_XML_SUFFIX);
+      writeXMLToStream(bfn, dops, new FileOutputStream(file), compress, monitor);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Save to output stream using the binary format
+  */   
+  
+  public void saveBinaryToOutputStream(OutputStream stream, BTProgressMonitor monitor) 
+    throws AsynchExitRequestException, IOException {
+    BioFabricNetwork bfn = bfp_.getNetwork();
+    if (bfn == null) {
+      stream.close();
+      return;
+    }
+    BinaryNetworkIO.write(bfn, stream, monitor, false);
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Save to output stream
@@ -1226,24 +1598,45 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   
   public void saveToOutputStream(OutputStream stream, boolean compress, BTProgressMonitor monitor) 
   	throws AsynchExitRequestException, IOException {
+    BioFabricNetwork bfn = bfp_.getNetwork();
+    if (bfn == null) {
+      stream.close();
+      return;
+    }
+    writeXMLToStream(bfn, FabricDisplayOptionsManager.getMgr().getDisplayOptions(), stream, compress, monitor);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the network as XML. Compressed output is gzip, deflated a block at a
+  ** time on as many threads as the cores allow.
+  */   
+  
+  private void writeXMLToStream(BioFabricNetwork bfn, FabricDisplayOptions dops, OutputStream stream, 
+                                boolean compress, BTProgressMonitor monitor) 
+  	throws AsynchExitRequestException, IOException {
 
   	PrintWriter out = null;
-  	if (compress) {
-  		out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(stream, 8 * 1024), "UTF-8"));
-  	} else {
-  	  out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")));
-  	}  	
   	try {
+  	  OutputStream os = stream;
+  	  if (compress) {
+  	    os = new ParallelGzipOutputStream(stream, ParallelGzipOutputStream.defaultThreadCount());
+  	  }
+  	  out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8")));
 	    Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
-	    BioFabricNetwork bfn = bfp_.getNetwork();
-	    if (bfn != null) {
-	      bfn.writeXML(out, ind, monitor, compress);
-	    }
+	    bfn.writeXML(out, ind, dops, monitor, false);
   	} finally {
   		if (out != null) {
   			out.close();
-  		}  		
-  	}  
+  		} else {
+  		  stream.close();
+  		}
+  	}
+  	// PrintWriter swallows write failures, and a save we report back on must not:
+  	if (out.checkError()) {
+  	  throw new IOException();
+  	}
     return;
   }
   
@@ -1407,6 +1800,21 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       return (finished_);
     }
   
+    public boolean doBackgroundBinaryRead(File file, List<BioFabricNetwork> result, File holdIt) {
+    	holdIt_ = holdIt;
+      finished_ = true;
+      forRecovery_ = (holdIt == null);
+      try {
+      	BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "fileLoad.waitTitle", "fileLoad.wait", true, null);
+        BinaryReaderRunner runner = new BinaryReaderRunner(file, result, holdIt_, forRecovery_, bfw);                                                      
+        bfw.setCore(runner);
+        bfw.launchWorker(); 
+      } catch (Exception ex) {
+        ExceptionHandler.getHandler().displayException(ex);
+      }
+      return (finished_);
+    }
+  
     public boolean doBackgroundRead(FabricFactory ff, SUParser sup, File file, boolean compressed, File holdIt) {
     	holdIt_ = holdIt;
       finished_ = true;
@@ -1494,12 +1902,13 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         FileInputStream fis = new FileInputStream(myFile_);
         InputStream bis;
         if (compressed_) {
-          bis = new GZIPInputStream(fis, 8 * 1024);
+          fileLen = gzipContentLength(myFile_);
+          bis = new BufferedInputStream(new GZIPInputStream(fis, 8 * 1024));
         } else {
-          bis = new BufferedInputStream(new FileInputStream(myFile_));
+          bis = new BufferedInputStream(fis);
         } 
         pfis = new ProgressFilterInputStream(bis, fileLen);   
-        myParser_.parse(pfis, monitor, compressed_);
+        myParser_.parse(pfis, monitor, false);
         return (new Boolean(true));
       } catch (IOException ioe) {
         bfwk_.stashException(ioe);
@@ -1516,40 +1925,84 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
  
   /***************************************************************************
   **
-  ** Once directionality of link relations is established, we need to assign directions
-  ** and to remove non-directional synonymous and duplicate links. This is run in the
-  ** background, but must be preceded by the user providing directed relation info, and
-  ** followed by (maybe) telling the user what is dropped.
+  ** Background binary file load
   */ 
     
-  public class PreprocessNetwork implements BackgroundWorkerOwner {
-    
-    private boolean finished_;
+  private class BinaryReaderRunner implements BackgroundCore {
+   
+    private File myFile_;
+    private List<BioFabricNetwork> result_;
     private File holdIt_;
+    private boolean forRecovery_;
+    private BFWorker bfwk_;
     
-    public boolean doNetworkPreprocess(List<NetLink> links, 
-                                       SortedMap<AugRelation, Boolean> relaMap,
-                                       Set<NetLink> reducedLinks, Set<NetLink> culledLinks, File holdIt) {
+    BinaryReaderRunner(File file, List<BioFabricNetwork> result, File holdIt, boolean forRecovery, BFWorker bfwk) {
+    	bfwk_ = bfwk;
+      myFile_ = file;
+      result_ = result;
       holdIt_ = holdIt;
-      finished_ = true;
-      try {
-        BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "netPreprocess.waitTitle", "netPreprocess.wait", true, null);
-        PreprocessRunner runner = new PreprocessRunner(links, relaMap, reducedLinks, culledLinks, holdIt_, bfw);                                                        
-        bfw.setCore(runner);
-        bfw.launchWorker();  
-      } catch (Exception ex) {
-        ExceptionHandler.getHandler().displayException(ex);
-      }
-      return (finished_);
-    }
-
-    public boolean handleRemoteException(Exception remoteEx) {
-      finished_ = false;
-      return (false);
-    }    
-        
-    public void cleanUpPreEnable(Object result) {
-      return;
+      forRecovery_ = forRecovery;
+    }
+    
+    public Object getEarlyResult() {
+    	return (new Boolean(false));
+    }
+ 
+    public Object runCore() throws AsynchExitRequestException {
+    	BTProgressMonitor monitor = bfwk_.getMonitor();
+      if ((holdIt_ != null) && (holdIt_.length() == 0)) {
+        buildRestoreCache(holdIt_, monitor);
+      }
+      try {
+        result_.add(BinaryNetworkIO.read(myFile_, pMan_, monitor, forRecovery_));
+        return (new Boolean(true));
+      } catch (IOException ioe) {
+        bfwk_.stashException(ioe);
+        return (null);
+      }
+    } 
+    
+    public Object postRunCore() {
+      return (null);
+    } 
+  }
+ 
+  /***************************************************************************
+  **
+  ** Once directionality of link relations is established, we need to assign directions
+  ** and to remove non-directional synonymous and duplicate links. This is run in the
+  ** background, but must be preceded by the user providing directed relation info, and
+  ** followed by (maybe) telling the user what is dropped.
+  */ 
+    
+  public class PreprocessNetwork implements BackgroundWorkerOwner {
+    
+    private boolean finished_;
+    private File holdIt_;
+    
+    public boolean doNetworkPreprocess(List<NetLink> links, 
+                                       SortedMap<AugRelation, Boolean> relaMap,
+                                       Set<NetLink> reducedLinks, Set<NetLink> culledLinks, File holdIt) {
+      holdIt_ = holdIt;
+      finished_ = true;
+      try {
+        BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "netPreprocess.waitTitle", "netPreprocess.wait", true, null);
+        PreprocessRunner runner = new PreprocessRunner(links, relaMap, reducedLinks, culledLinks, holdIt_, bfw);                                                        
+        bfw.setCore(runner);
+        bfw.launchWorker();  
+      } catch (Exception ex) {
+        ExceptionHandler.getHandler().displayException(ex);
+      }
+      return (finished_);
+    }
+
+    public boolean handleRemoteException(Exception remoteEx) {
+      finished_ = false;
+      return (false);
+    }    
+        
+    public void cleanUpPreEnable(Object result) {
+      return;
     }
     
     public boolean handleCancellation() {
@@ -1820,6 +2273,199 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     } 
   } 
     
+  /***************************************************************************
+  **
+  ** Saves a snapshot on its own thread, then reports back on the UI thread
+  */ 
+    
+  private class SnapshotSaver implements Runnable {
+   
+    private BioFabricNetwork bfn_;
+    private FabricDisplayOptions dops_;
+    private File file_;
+    private SaveProgress progress_;
+    
+    SnapshotSaver(BioFabricNetwork bfn, FabricDisplayOptions dops, File file) {
+      bfn_ = bfn;
+      dops_ = dops;
+      file_ = file;
+      progress_ = new SaveProgress();
+    }
+    
+    File getFile() {
+      return (file_);
+    }
+    
+    SaveProgress getProgress() {
+      return (progress_);
+    }
+     
+    public void run() {
+      boolean ok = false;
+      OutOfMemoryError oom = null;
+      try {
+        saveToFileStream(bfn_, dops_, file_, progress_);
+        ok = true;
+      } catch (AsynchExitRequestException aeex) {
+        // Never cancelled; will not happen
+      } catch (IOException ioe) {
+        // Reported on the UI thread
+      } catch (OutOfMemoryError oomex) {
+        oom = oomex;
+      }
+      final boolean finalOk = ok;
+      final OutOfMemoryError finalOom = oom;
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          snapshotSaveDone(SnapshotSaver.this, bfn_, file_, finalOk, finalOom);
+        }
+      });
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Holds the progress of a snapshot save, for anyone who has to wait on it
+  */ 
+    
+  private static class SaveProgress implements BTProgressMonitor {
+   
+    private volatile int total_;
+    private volatile int done_;
+    private volatile String phase_;
+    
+    SaveProgress() {
+      total_ = 100;
+      done_ = 0;
+      phase_ = null;
+    }
+    
+    String getPhase() {
+      return (phase_);
+    }
+    
+    public void setTotal(int total) {
+      total_ = total;
+      return;
+    }
+    
+    public int getTotal() {
+      return (total_);
+    }
+    
+    public boolean updateUnknownProgress() {
+      return (true);
+    }
+    
+    public boolean updateProgress(int done) {
+      done_ = done;
+      return (true);
+    }
+    
+    public boolean updateProgressAndPhase(int done, String message) {
+      done_ = done;
+      phase_ = message;
+      return (true);
+    }
+    
+    public boolean updateRankings(SortedMap<Integer, Double> chartVals) {
+      return (true);
+    }
+    
+    public boolean keepGoing() {
+      return (true);
+    }
+    
+    public int getProgress() {
+      return (done_);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Waits out a snapshot save behind the usual modal progress dialog, so the
+  ** UI thread never blocks on the save thread itself.
+  */ 
+    
+  private class PendingSaveWaiter implements BackgroundWorkerOwner {
+
+    public void doBackgroundWait(Thread saver, SaveProgress progress) {
+      try { 
+        BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "fileWrite.waitTitle", "fileWrite.waitPending", false, null);
+        SaveWaitRunner runner = new SaveWaitRunner(saver, progress, bfw);
+        bfw.setCore(runner);
+        bfw.launchWorker();       
+      } catch (Exception ex) {
+        ExceptionHandler.getHandler().displayException(ex);
+      }
+      return;
+    }
+
+    public boolean handleRemoteException(Exception remoteEx) {
+      return (false);
+    }    
+        
+    public void cleanUpPreEnable(Object result) {
+      return;
+    }
+    
+    public boolean handleCancellation() {
+      return (false);
+    }     
+    
+    public void cleanUpPostRepaint(Object result, boolean skipImage) { 
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Background core that joins the save thread, passing its progress along
+  */ 
+    
+  private class SaveWaitRunner implements BackgroundCore {
+   
+    private static final long POLL_MSEC_ = 250L;
+    
+    private Thread saver_;
+    private SaveProgress progress_;
+    private BFWorker bfwk_;
+    
+    SaveWaitRunner(Thread saver, SaveProgress progress, BFWorker bfwk) {
+      saver_ = saver;
+      progress_ = progress;
+      bfwk_ = bfwk;
+    }
+     
+    public Object getEarlyResult() {
+      return (new Boolean(false));
+    }
+
+    public Object runCore() throws AsynchExitRequestException {
+      BTProgressMonitor monitor = bfwk_.getMonitor();
+      while (saver_.isAlive()) {
+        try {
+          saver_.join(POLL_MSEC_);
+        } catch (InterruptedException iex) {
+          // Just poll again
+        }
+        int percent = (int)(((double)progress_.getProgress() / (double)progress_.getTotal()) * 100.0);
+        String phase = progress_.getPhase();
+        if (phase == null) {
+          monitor.updateProgress(percent);
+        } else {
+          monitor.updateProgressAndPhase(percent, phase);
+        }
+      }
+      return (new Boolean(true));
+    }
+    
+    public Object postRunCore() {
+      return (null);
+    } 
+  }
+    
   /***************************************************************************
   **
   ** Background file write
@@ -1848,7 +2494,11 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
 
     public Object runCore() throws AsynchExitRequestException {
       try {
-        saveToOutputStream((myStream_ == null) ? new FileOutputStream(myFile_) : myStream_, false, bfwk_.getMonitor());
+        if (myStream_ == null) {
+          saveToFileStream(bfp_.getNetwork(), FabricDisplayOptionsManager.getMgr().getDisplayOptions(), myFile_, bfwk_.getMonitor());
+        } else {
+          saveToOutputStream(myStream_, false, bfwk_.getMonitor());
+        }
         return (new Boolean(true));
       } catch (IOException ioe) {
         bfwk_.stashException(ioe);
@@ -1866,7 +2516,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */
   
   public boolean cancelAndRestore(File restoreFile) {
-  	if ((restoreFile != null) && restoreFile.exists() && (restoreFile.length() > 20)) { // empty ZIP has 20 bytes
+  	if ((restoreFile != null) && restoreFile.exists() && (restoreFile.length() > 20)) { // a cache never written is empty
 	    ResourceManager rMan = ResourceManager.getManager();
 	    int restore =
 	      JOptionPane.showConfirmDialog(topWindow_, rMan.getString("progress.cancelled"),
@@ -1886,13 +2536,18 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
  
   /***************************************************************************
   **
-  ** Routine for handling cancellation/restore operation
+  ** Routine for handling cancellation/restore operation. The restore point is
+  ** a binary snapshot of the current network: no XML, no compression, and it
+  ** loads back without parsing.
   */
   
   public void buildRestoreCache(File restoreFile, BTProgressMonitor btpm) throws AsynchExitRequestException {
   	boolean throwOut = false;
     try {
-  	  saveToOutputStream(new FileOutputStream(restoreFile), true, btpm);
+      BioFabricNetwork bfn = bfp_.getNetwork();
+      if (bfn != null) {
+        BinaryNetworkIO.write(bfn, new FileOutputStream(restoreFile), btpm, true);
+      }
   	} catch (IOException ioex) {
   		System.err.println("bad write");
   		throwOut = true;
@@ -2095,16 +2750,16 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     public Object runCore() throws AsynchExitRequestException {
       try {
       	BTProgressMonitor monitor = bfwk_.getMonitor();
-        if ((holdIt_ != null) && (holdIt_.length() == 0)) {
-          buildRestoreCache(holdIt_, monitor);
-        }   
-        BuildData bd = generateBuildData();
-        preLoadOperations();
         // This can be run on foreground thread (for headless operation): shut up progress monitor
         // if that is the case:
         if (headlessOracle_ != null) {
         	monitor = null;
         }
+        if ((holdIt_ != null) && (holdIt_.length() == 0)) {
+          buildRestoreCache(holdIt_, monitor);
+        }   
+        BuildData bd = generateBuildData();
+        preLoadOperations();
         
         BufferedImage bi = expensiveModelOperations(bd, forMain_, monitor);
         if (linkCount_ > 10000) {
@@ -2335,7 +2990,12 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       rbd_.setLinkMeaning(linkMeaning_);
       
       bfn_ = null; // Let go so we get GC!
-      preLoadOperations();
+      
+      //
+      // The layout only reads the current network, and the renderers work off their own
+      // snapshots of it, so it keeps drawing until the new one is built. Only then do we
+      // tear down the display and swap:
+      //
       
       try {
        if (rbd_.needsLayoutForRelayout()) {
@@ -2351,7 +3011,9 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
             el.layoutEdges(rbd_, monitor);
           }
         }
-        BufferedImage bi = expensiveModelOperations(rbd_, true, monitor);
+        BioFabricNetwork newNet = new BioFabricNetwork(rbd_, pMan_, monitor);
+        preLoadOperations();
+        BufferedImage bi = expensiveDisplayOperations(newNet, true, monitor);
         (new GarbageRequester()).askForGC(monitor);
         return (bi);
       } catch (IOException ex) {
@@ -2457,6 +3119,124 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     } 
   }  
  
+  /***************************************************************************
+  **
+  ** Class for incremental network updates
+  */ 
+    
+  public class NetworkUpdater implements BackgroundWorkerOwner {
+    
+    private File holdIt_;
+    private UpdateNetworkRunner runner_;
+    
+    public void doNetworkUpdate(NetworkUpdate update, File holdIt) {
+      try {
+        holdIt_ = holdIt;
+        BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "netUpdate.waitTitle", "netUpdate.wait", true, null);
+        runner_ = new UpdateNetworkRunner(update, holdIt_, bfw);                                                              
+        if (headlessOracle_ == null) {
+          bfw.setCore(runner_);
+          bfw.launchWorker();
+        } else {
+          runner_.runCore();
+        }
+      } catch (Exception ex) {
+        ExceptionHandler.getHandler().displayException(ex);
+      }
+      return;
+    }
+
+    public boolean handleRemoteException(Exception remoteEx) {
+      if (remoteEx instanceof IOException) {
+        displayFileInputError((IOException)remoteEx);
+        cancelAndRestore(holdIt_);
+        return (true);
+      }
+      return (false);
+    }    
+        
+    public void cleanUpPreEnable(Object result) {
+      return;
+    }
+    
+    public boolean handleCancellation() {
+      return (cancelAndRestore(holdIt_));
+    }     
+    
+    public void cleanUpPostRepaint(Object result, boolean skipImage) {   
+      if (runner_.wasPatched()) {
+        postUpdateOperations((BufferedImage)result);
+      } else {
+        postLoadOperations((BufferedImage)result, skipImage);
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Background network update. If the display can be patched, only the tiles
+  ** the update touches get redrawn; else it is installed like a new network.
+  */ 
+    
+  private class UpdateNetworkRunner implements BackgroundCore {
+ 
+    private NetworkUpdate update_;
+    private File holdIt_;
+    private BFWorker bfwk_;
+    private boolean patched_;
+    
+    public UpdateNetworkRunner(NetworkUpdate update, File holdIt, BFWorker bfwk) {
+      update_ = update;
+      bfwk_ = bfwk;
+      holdIt_ = holdIt;
+      patched_ = false;
+    }
+    
+    boolean wasPatched() {
+      return (patched_);
+    }
+    
+    public Object getEarlyResult() {
+    	return (new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)); 
+    }
+    
+    public Object runCore() throws AsynchExitRequestException {
+      try { 
+      	BTProgressMonitor monitor = bfwk_.getMonitor();
+        // Run on the foreground thread when headless; no progress monitor then:
+        if (headlessOracle_ != null) {
+          monitor = null;
+        }
+      	if (holdIt_ != null) {
+          buildRestoreCache(holdIt_, monitor);
+      	}
+        BuildDataImpl bd = new BuildDataImpl(update_.getBaseNetwork(), update_);
+        BioFabricNetwork bfn = new BioFabricNetwork(bd, pMan_, monitor);
+        if (bfp_.installModelUpdate(bfn, monitor)) {
+          patched_ = true;
+          return (bfp_.getBufBuilder().getTopImage());
+        }
+        preLoadOperations();
+        BufferedImage bi = expensiveDisplayOperations(bfn, true, monitor);
+        if (bfn.getLinkCount(true) > 10000) {
+          (new GarbageRequester()).askForGC(monitor);
+        }
+        return (bi);
+      } catch (IOException ex) {
+        bfwk_.stashException(ex);
+        return (null);
+      } catch (LayoutCriterionFailureException ex) {
+        bfwk_.stashException(ex);
+        return (null);
+      }
+    }
+    
+    public Object postRunCore() {
+      return (null);
+    } 
+  }  
+ 
   /***************************************************************************
   **
   ** Build an empty network
@@ -2498,17 +3278,32 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
                                                 BTProgressMonitor monitor) throws IOException, 
   																																								AsynchExitRequestException,
   	                                                                              LayoutCriterionFailureException {
-    Dimension screenSize = (forMain && (headlessOracle_ == null)) ? Toolkit.getDefaultToolkit().getScreenSize() : new Dimension(600, 800);
     // Possibly expensive network analysis preparation:
     BioFabricNetwork bfn = new BioFabricNetwork(bfnbd, pMan_, monitor);
+    HeapFootprint.logPhase("after network build", bfn);
+    return (expensiveDisplayOperations(bfn, forMain, monitor));
+  }
+  
+  /***************************************************************************
+  **
+  ** Install a freshly built network in the display
+  */ 
+
+  private BufferedImage expensiveDisplayOperations(BioFabricNetwork bfn, boolean forMain, 
+                                                   BTProgressMonitor monitor) throws IOException, AsynchExitRequestException {
+    Dimension screenSize = (forMain && (headlessOracle_ == null)) ? Toolkit.getDefaultToolkit().getScreenSize() : new Dimension(600, 800);
     // Possibly expensive display object creation:
     bfp_.installModel(bfn, monitor);
+    HeapFootprint.logPhase("after display objects", bfp_);
     // Very expensive display buffer creation:
     int[] preZooms = bfp_.calcZoomSettings(screenSize);
     BufferedImage topImage = null;
     if (headlessOracle_ == null) {
       if (forMain) {
-        BufferBuilder bb = new BufferBuilder(null, 100, bfp_, bfp_.getBucketRend(), bfp_.getBufImgStack());
+        BufferBuilder bb = new BufferBuilder(null, 100, bfp_, bfp_.getBucketRend(), bfp_.getBufImgStack(), 
+                                           BufferBuilder.builderThreadCountFromPrefs(), TileCodecs.codecFromPrefs());
+        bb.setDownsampleLevels(BufferBuilder.downsampleLevelsFromPrefs());
+        installTilePyramid(bb, bfn);
         topImage = bb.buildBufs(preZooms, bfp_, 25, monitor);
         bfp_.setBufBuilder(bb);      
       } else {
@@ -2516,6 +3311,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         topImage = bb.buildOneBuf();      
         bfp_.setBufBuilder(null);
       }
+      HeapFootprint.logPhase("after tile buffers", bfp_);
     }
     return (topImage);
   }
@@ -2534,7 +3330,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     int[] zoomLevels = bfp_.getZoomController().getZoomLevels();
     BufferedImage topImage = null;
     if (forMain) {
-      BufferBuilder bb = new BufferBuilder(null, 100, bfp_, bfp_.getBucketRend(), bfp_.getBufImgStack());
+      BufferBuilder bb = new BufferBuilder(null, 100, bfp_, bfp_.getBucketRend(), bfp_.getBufImgStack(), 
+                                           BufferBuilder.builderThreadCountFromPrefs(), TileCodecs.codecFromPrefs());
+      bb.setDownsampleLevels(BufferBuilder.downsampleLevelsFromPrefs());
+      installTilePyramid(bb, bfp_.getNetwork());
       topImage = bb.buildBufs(zoomLevels, bfp_, 24, monitor);
       bfp_.setBufBuilder(bb);      
     } else {
@@ -2545,6 +3344,37 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return (topImage);
   }
   
+  /***************************************************************************
+  **
+  ** Have the buffer builder persist its tile pyramid, if the user has not turned that off
+  */ 
+
+  private void installTilePyramid(BufferBuilder bb, BioFabricNetwork bfn) {
+    if (bfn == null) {
+      return;
+    }
+    File pyrDir = BufferBuilder.pyramidDirFromPrefs();
+    if (pyrDir == null) {
+      return;
+    }
+    String key = tilePyramidKey(bfn);
+    if (key != null) {
+      bb.usePersistentPyramid(pyrDir, key);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Key for everything about the network that affects how it is drawn. The rows
+  ** and links are hashed once per network; colors, annotations and display
+  ** options are small and are hashed every time.
+  */ 
+
+  private String tilePyramidKey(BioFabricNetwork bfn) {
+    return (bfn.getDrawingDigest(FabricDisplayOptionsManager.getMgr().getDisplayOptions()));
+  }
+  
   /***************************************************************************
   **
   ** Handles post-recolor operations
@@ -2555,6 +3385,22 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return;
   }
    
+  /***************************************************************************
+  **
+  ** Handles post-update operations. Unlike a load, we keep the current view.
+  */ 
+       
+  public void postUpdateOperations(BufferedImage topImage) {
+    bfw_.getOverview().installImage(topImage, bfp_.getWorldScreen());
+    bfp_.installModelPost();
+    bfp_.getNetwork().prepareNameIndex(null);
+    installPlugInNetwork();
+    cSet_.checkForChanges();
+    cSet_.handleZoomButtons();
+    bfp_.repaint();
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Handles post-loading operations
@@ -2567,8 +3413,11 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   	}
     bfp_.installModelPost();
     bfp_.initZoom();
+    if (bfp_.getNetwork() != null) {
+      bfp_.getNetwork().prepareNameIndex(null);
+    }
     // Doing this before checkForChanges lets the plugins know how to answer: 
-    pMan_.newNetworkInstalled(bfp_.getNetwork());
+    installPlugInNetwork();
     cSet_.checkForChanges();
     cSet_.handleZoomButtons();
     bfp_.repaint();
@@ -2577,12 +3426,27 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   
   /***************************************************************************
   **
-  ** Information available to the plugin
+  ** Hand the network just installed to the plugins
+  */ 
+       
+  private void installPlugInNetwork() {
+    if (plugInInfo_ != null) {
+      plugInInfo_.installNetwork(bfp_.getNetwork());
+    }
+    pMan_.newNetworkInstalled(bfp_.getNetwork());
+    return;
+  }
+ 
+  /***************************************************************************
+  **
+  ** Information available to the plugin. Plugins may call in from their own
+  ** threads, so the network is swapped in as a whole when a new one is
+  ** installed, and each call works on the one it finds.
   */ 
     
   public static class PlugInInfo implements PlugInNetworkModelAPI {
    
-    private BioFabricNetwork bfn_;
+    private volatile BioFabricNetwork bfn_;
     private FileLoadFlows flf_;
     private BioFabricWindow bfw_;
     
@@ -2592,6 +3456,11 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       bfw_ = bfw;
     }
     
+    void installNetwork(BioFabricNetwork bfn) {
+      bfn_ = bfn;
+      return;
+    }
+    
     public int getLinkCount(boolean forShadow)  {
       return (bfn_.getLinkCount(forShadow));
     }
@@ -2652,6 +3521,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */ 
 
   public void manageWindowTitle(String fileName) {
+    titleName_ = fileName;
     if (headlessOracle_ != null) {
       return;
     }
@@ -2663,6 +3533,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       String titleFormat = rMan.getString("window.titleWithName");
       title = MessageFormat.format(titleFormat, new Object[] {fileName});
     }
+    if (pendingSaver_ != null) {
+      String savingFormat = rMan.getString("window.titleSaving");
+      title = MessageFormat.format(savingFormat, new Object[] {title, pendingSaver_.getFile().getName()});
+    }
     topWindow_.setTitle(title);
     return;
   }
@@ -2673,6 +3547,9 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */ 
 
   public FileLoadFlows.FileLoadType getFileLoadType(File toCheck) {
+    if (BinaryNetworkIO.isBinaryNetworkFile(toCheck)) {
+      return (FileLoadFlows.FileLoadType.BINARY);
+    }
     return ((GWImportLoader.isGWFile(toCheck)) ? FileLoadFlows.FileLoadType.GW : FileLoadFlows.FileLoadType.SIF);
   }
   
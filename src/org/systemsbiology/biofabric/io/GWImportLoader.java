@@ -89,22 +89,14 @@ public class GWImportLoader extends FabricImportLoader {
   
   /***************************************************************************
    **
-   ** Parse a line to tokens
+   ** Check the tokens split from a line
    */
   
-  protected String[] lineToToks(String line, FileImportStats stats) throws IOException {
-    if (line.trim().equals("")) {
-      return (null);
-    }
+  protected String[] lineToToks(String line, String[] tokens, FileImportStats stats) throws IOException {
     
     //
     // length == 1: Node Name or parameters(lines 0-3); Length == 4: Edge
     //
-  
-    String[] tokens = line.split("\\t");
-    if ((tokens.length == 1) && (line.indexOf("\\t") == -1)) {
-      tokens = line.split(" ");
-    }
     
     if (tokens.length == 0 || tokens.length == 2 || tokens.length == 3 || tokens.length > 4) {
       stats.badLines.add(line);
@@ -199,7 +191,13 @@ public class GWImportLoader extends FabricImportLoader {
     
     consTokIndex_++;
     
-    if (consTokIndex_ == HEADER_LINES + numNodes_ + 1 + numEdges_ + 1) { // reached end of file
+    //
+    // Tokens are consumed as each line is read, so the counts are not known
+    // until we get to their lines:
+    //
+    
+    if ((numNodes_ != null) && (numEdges_ != null) && 
+        (consTokIndex_ == HEADER_LINES + numNodes_ + 1 + numEdges_ + 1)) { // reached end of file
       addLoneNodes(idGen, loneNodeIDs, nameToID);
     }
     // We don't check if there may be more lines or edges after the specified number of edges
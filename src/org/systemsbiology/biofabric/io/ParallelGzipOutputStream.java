@@ -0,0 +1,431 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/****************************************************************************
+**
+** Writes a gzip stream, with a few threads compressing blocks of input at once.
+** Each block is deflated on its own, with no dictionary carried over from the
+** block before, and all but the last are ended with a sync flush so they finish
+** on a byte boundary. Laid end to end behind one gzip header, the blocks make a
+** single deflate stream that any gzip reader takes. The CRC is worked out on the
+** calling thread as bytes come in, and finished blocks are written out in order
+** by the calling thread too. Only a window of blocks ahead of the output is held
+** at one time. With no threads, blocks are deflated on the calling thread.
+*/
+
+class ParallelGzipOutputStream extends OutputStream {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int BLOCK_BYTES_ = 128 * 1024;
+  private static final int WINDOW_PER_THREAD_ = 2;
+  private static final int DEFLATE_BUFFER_ = 32 * 1024;
+  private static final int MAX_THREADS_ = 8;
+  
+  //
+  // Magic, deflate method, no flags, no time, no extra flags, unknown OS:
+  //
+  
+  private static final byte[] GZIP_HEADER_ = new byte[] {(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private OutputStream out_;
+  private int numThreads_;
+  private int window_;
+  private CRC32 crc_;
+  private long totalBytes_;
+  private byte[] block_;
+  private int blockFill_;
+  private int nextToSubmit_;
+  private int nextToWrite_;
+  private LinkedList<Block> pending_;
+  private HashMap<Integer, byte[]> done_;
+  private Deflater inlineDeflater_;
+  private Throwable error_;
+  private boolean quit_;
+  private boolean closed_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Writes the gzip header and starts the compressing threads.
+  */
+
+  ParallelGzipOutputStream(OutputStream out, int numThreads) throws IOException {
+    out_ = out;
+    numThreads_ = Math.max(0, numThreads);
+    window_ = Math.max(1, numThreads_ * WINDOW_PER_THREAD_);
+    crc_ = new CRC32();
+    totalBytes_ = 0L;
+    block_ = new byte[BLOCK_BYTES_];
+    blockFill_ = 0;
+    nextToSubmit_ = 0;
+    nextToWrite_ = 0;
+    pending_ = new LinkedList<Block>();
+    done_ = new HashMap<Integer, byte[]>();
+    quit_ = false;
+    closed_ = false;
+    out_.write(GZIP_HEADER_);
+    if (numThreads_ == 0) {
+      inlineDeflater_ = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    } else {
+      for (int i = 0; i < numThreads_; i++) {
+        Thread runThread = new Thread(new DeflateWorker(), "GzipBlock-" + i);
+        runThread.setDaemon(true);
+        runThread.start();
+      }
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of compressing threads to use: one less than the number of cores,
+  ** since the calling thread is busy writing.
+  */
+  
+  static int defaultThreadCount() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    return (Math.max(0, Math.min(cores - 1, MAX_THREADS_)));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Write a byte
+  */
+  
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write bytes, handing off each block as it fills
+  */
+  
+  @Override
+  public void write(byte[] buf, int off, int len) throws IOException {
+    if (closed_) {
+      throw new IOException("Stream closed");
+    }
+    crc_.update(buf, off, len);
+    totalBytes_ += len;
+    while (len > 0) {
+      int take = Math.min(len, BLOCK_BYTES_ - blockFill_);
+      System.arraycopy(buf, off, block_, blockFill_, take);
+      blockFill_ += take;
+      off += take;
+      len -= take;
+      if (blockFill_ == BLOCK_BYTES_) {
+        submitBlock(false);
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Nothing to do; blocks go out when they are full. Flushing a part block
+  ** would just cost compression.
+  */
+  
+  @Override
+  public void flush() throws IOException {
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Compress the last block, write everything out with the trailer, stop the
+  ** threads, and close the underlying stream.
+  */
+  
+  @Override
+  public void close() throws IOException {
+    if (closed_) {
+      return;
+    }
+    try {
+      submitBlock(true);
+      while (nextToWrite_ < nextToSubmit_) {
+        writeNextBlock();
+      }
+      writeIntLE((int)crc_.getValue());
+      writeIntLE((int)totalBytes_); // gzip keeps the length mod 2^32
+      out_.flush();
+    } finally {
+      closed_ = true;
+      shutdown();
+      out_.close();
+    }
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Hand off the current block, after writing out blocks until it fits in the
+  ** window. The last block always goes, even if empty, to end the deflate stream.
+  */
+  
+  private void submitBlock(boolean last) throws IOException {
+    byte[] data = new byte[blockFill_];
+    System.arraycopy(block_, 0, data, 0, blockFill_);
+    blockFill_ = 0;
+    Block block = new Block(nextToSubmit_, data, last);
+    if (inlineDeflater_ != null) {
+      out_.write(deflateBlock(inlineDeflater_, block));
+      nextToSubmit_++;
+      nextToWrite_++;
+      return;
+    }
+    while (nextToSubmit_ - nextToWrite_ >= window_) {
+      writeNextBlock();
+    }
+    synchronized (this) {
+      pending_.add(block);
+      nextToSubmit_++;
+      notifyAll();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write out the next block in order, waiting for it if need be
+  */
+  
+  private void writeNextBlock() throws IOException {
+    byte[] bytes;
+    synchronized (this) {
+      Integer key = Integer.valueOf(nextToWrite_);
+      while (!done_.containsKey(key)) {
+        if (error_ instanceof IOException) {
+          throw (IOException)error_;
+        } else if (error_ instanceof Error) {
+          throw (Error)error_;
+        } else if (error_ != null) {
+          throw new IOException(error_.toString());
+        }
+        try {
+          wait();
+        } catch (InterruptedException iex) {
+          throw new IOException("Interrupted while compressing");
+        }
+      }
+      bytes = done_.remove(key);
+    }
+    out_.write(bytes);
+    nextToWrite_++;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write an int, low byte first, as gzip wants
+  */
+  
+  private void writeIntLE(int val) throws IOException {
+    out_.write(val & 0xff);
+    out_.write((val >>> 8) & 0xff);
+    out_.write((val >>> 16) & 0xff);
+    out_.write((val >>> 24) & 0xff);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Stop the threads
+  */
+  
+  private synchronized void shutdown() {
+    quit_ = true;
+    pending_.clear();
+    done_.clear();
+    notifyAll();
+    if (inlineDeflater_ != null) {
+      inlineDeflater_.end();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the next block to compress, waiting for one. Null when there is
+  ** nothing left to do.
+  */
+  
+  private synchronized Block nextToDeflate() {
+    while (true) {
+      if (quit_ || (error_ != null)) {
+        return (null);
+      }
+      if (!pending_.isEmpty()) {
+        return (pending_.removeFirst());
+      }
+      try {
+        wait();
+      } catch (InterruptedException iex) {
+        return (null);
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Hand back a compressed block
+  */
+  
+  private synchronized void deflateDone(Block block, byte[] bytes) {
+    if (!quit_) {
+      done_.put(Integer.valueOf(block.index), bytes);
+    }
+    notifyAll();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Report a failure. The writing thread throws it on.
+  */
+  
+  private synchronized void deflateFailed(Throwable thr) {
+    if (error_ == null) {
+      error_ = thr;
+    }
+    notifyAll();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Deflate one block from a fresh start. All but the last end with a sync flush,
+  ** which leaves the block on a byte boundary without marking it final.
+  */
+  
+  private static byte[] deflateBlock(Deflater def, Block block) {
+    def.reset();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(block.data.length / 4 + 64);
+    byte[] buf = new byte[DEFLATE_BUFFER_];
+    def.setInput(block.data);
+    if (block.last) {
+      def.finish();
+      while (!def.finished()) {
+        int got = def.deflate(buf);
+        bos.write(buf, 0, got);
+      }
+    } else {
+      int got;
+      do {
+        got = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        bos.write(buf, 0, got);
+      } while (got == buf.length);
+    }
+    return (bos.toByteArray());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** A block of input waiting to be compressed
+  */
+  
+  private static class Block {
+    int index;
+    byte[] data;
+    boolean last;
+    
+    Block(int index, byte[] data, boolean last) {
+      this.index = index;
+      this.data = data;
+      this.last = last;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Compresses blocks until told to stop
+  */
+  
+  private class DeflateWorker implements Runnable {
+    
+    public void run() {
+      Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        Block block;
+        while ((block = nextToDeflate()) != null) {
+          deflateDone(block, deflateBlock(def, block));
+        }
+      } catch (Throwable thr) {
+        deflateFailed(thr);
+      } finally {
+        def.end();
+      }
+      return;
+    }
+  }
+}
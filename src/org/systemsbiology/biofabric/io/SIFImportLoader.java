@@ -75,18 +75,10 @@ public class SIFImportLoader extends FabricImportLoader {
    
   /***************************************************************************
   ** 
-  ** Parse a line to tokens
+  ** Check the tokens split from a line
   */
 
-  protected String[] lineToToks(String line, FileImportStats stats) throws IOException {
-  	if (line.trim().equals("")) {
-  		return (null);
-  	}
-    String[] tokens = line.split("\\t");
-    if ((tokens.length == 1) && (line.indexOf("\\t") == -1)) {
-      tokens = line.split(" ");
-    }
-    
+  protected String[] lineToToks(String line, String[] tokens, FileImportStats stats) throws IOException {
     if (tokens.length == 0) {
       return (null);
     } else if ((tokens.length == 2) || (tokens.length > 3)) {
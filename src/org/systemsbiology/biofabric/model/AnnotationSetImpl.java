@@ -21,7 +21,10 @@ package org.systemsbiology.biofabric.model;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SortedSet;
@@ -48,12 +51,36 @@ import org.xml.sax.Attributes;
 */
 
 public class AnnotationSetImpl implements AnnotationSet, Cloneable, Iterable<Annot> {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
   private TreeSet<Annot> annots_;
+  //
+  // Lazily built interval index; dropped whenever the set changes:
+  //
+  private volatile IntervalIndex index_;
  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
   public AnnotationSetImpl() {
     annots_ = new TreeSet<Annot>();
+    index_ = null;
   }
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
   @Override
   public AnnotationSetImpl clone() {
     try {
@@ -62,6 +89,7 @@ public class AnnotationSetImpl implements AnnotationSet, Cloneable, Iterable<Ann
       for (Annot annot : this.annots_) {
         retval.annots_.add(((AnnotImpl)annot).clone());
       }
+      retval.index_ = null;
       return (retval);
     } catch (CloneNotSupportedException cnse) {
       throw new IllegalStateException();
@@ -78,16 +106,155 @@ public class AnnotationSetImpl implements AnnotationSet, Cloneable, Iterable<Ann
   
   public void addAnnot(Annot an) {
     annots_.add(an);
+    index_ = null;
     return;
   }
   
   public void fillAnnots(AnnotsForPos fillIt, Integer whereObj) {
-    for (Annot an : annots_) {
-      if (an.getRange().contained(whereObj)) {
-        fillIt.addAnnot(an);
+    int where = whereObj.intValue();
+    getIndex().query(where, where, fillIt, null);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the annotations whose ranges cover the given position
+  */
+  
+  public List<Annot> getAnnotsCovering(int pos) {
+    return (getAnnotsOverlapping(pos, pos));
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the annotations whose ranges overlap the inclusive range [min, max]
+  */
+  
+  public List<Annot> getAnnotsOverlapping(int min, int max) {
+    ArrayList<Annot> retval = new ArrayList<Annot>();
+    if (min <= max) {
+      getIndex().query(min, max, null, retval);
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the interval index, building it if the set has changed
+  */
+  
+  private IntervalIndex getIndex() {
+    IntervalIndex retval = index_;
+    if (retval == null) {
+      retval = new IntervalIndex(annots_);
+      index_ = retval;
+    }
+    return (retval);
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Static interval tree over the annotation ranges. Annotations are sorted
+  ** by start position and laid out as an implicit balanced binary tree (the
+  ** root of [lo, hi] is at (lo + hi) / 2), with each node also holding the
+  ** largest end position found in its subtree. A query only descends into
+  ** subtrees that can still hold an overlapping range, so it costs
+  ** O(log n + k) for k hits instead of a scan of every annotation.
+  */  
+  
+  private static class IntervalIndex {
+    private Annot[] byStart_;
+    private int[] mins_;
+    private int[] maxs_;
+    private int[] subMax_;
+    
+    IntervalIndex(TreeSet<Annot> annots) {
+      byStart_ = annots.toArray(new Annot[annots.size()]);
+      //
+      // Stable sort, so hits come back in the same order the set iterates in:
+      //
+      Arrays.sort(byStart_, new Comparator<Annot>() {
+        public int compare(Annot a1, Annot a2) {
+          int min1 = a1.getRange().min;
+          int min2 = a2.getRange().min;
+          return ((min1 < min2) ? -1 : ((min1 == min2) ? 0 : 1));
+        }
+      });
+      int num = byStart_.length;
+      mins_ = new int[num];
+      maxs_ = new int[num];
+      subMax_ = new int[num];
+      for (int i = 0; i < num; i++) {
+        MinMax range = byStart_[i].getRange();
+        mins_[i] = range.min;
+        maxs_[i] = range.max;
       }
+      fillSubMax(0, num - 1);
+    }
+    
+    /***************************************************************************
+    **
+    ** Fill in the subtree maximum for [lo, hi], returning it
+    */
+    
+    private int fillSubMax(int lo, int hi) {
+      if (lo > hi) {
+        return (Integer.MIN_VALUE);
+      }
+      int mid = (lo + hi) >>> 1;
+      int max = maxs_[mid];
+      max = Math.max(max, fillSubMax(lo, mid - 1));
+      max = Math.max(max, fillSubMax(mid + 1, hi));
+      subMax_[mid] = max;
+      return (max);
+    }
+    
+    /***************************************************************************
+    **
+    ** Report every annotation overlapping [min, max] to whichever target is non-null
+    */
+    
+    void query(int min, int max, AnnotsForPos fillIt, List<Annot> fillList) {
+      query(0, byStart_.length - 1, min, max, fillIt, fillList);
+      return;
+    }
+    
+    private void query(int lo, int hi, int min, int max, AnnotsForPos fillIt, List<Annot> fillList) {
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (subMax_[mid] < min) {
+          // Nothing in this subtree reaches the query range
+          return;
+        }
+        query(lo, mid - 1, min, max, fillIt, fillList);
+        if (mins_[mid] > max) {
+          // This node, and everything to its right, starts past the query range
+          return;
+        }
+        if (maxs_[mid] >= min) {
+          if (fillIt != null) {
+            fillIt.addAnnot(byStart_[mid]);
+          }
+          if (fillList != null) {
+            fillList.add(byStart_[mid]);
+          }
+        }
+        lo = mid + 1;
+      }
+      return;
     }
-    return;
   }
  
   /***************************************************************************
@@ -0,0 +1,908 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.model;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.systemsbiology.biofabric.api.io.Indenter;
+import org.systemsbiology.biofabric.api.model.Annot;
+import org.systemsbiology.biofabric.api.model.AnnotationSet;
+import org.systemsbiology.biofabric.api.model.AugRelation;
+import org.systemsbiology.biofabric.api.model.Network;
+import org.systemsbiology.biofabric.api.parser.ParserClient;
+import org.systemsbiology.biofabric.api.util.MinMax;
+import org.systemsbiology.biofabric.api.util.NID;
+import org.systemsbiology.biofabric.api.util.UniqueLabeller;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.api.worker.LoopReporter;
+import org.systemsbiology.biofabric.io.FabricFactory;
+import org.systemsbiology.biofabric.parser.ProgressFilterInputStream;
+import org.systemsbiology.biofabric.parser.SUParser;
+import org.systemsbiology.biofabric.plugin.PlugInManager;
+import org.systemsbiology.biofabric.ui.FabricColorGenerator;
+import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
+import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
+import org.systemsbiology.biofabric.ui.NamedColor;
+
+/****************************************************************************
+**
+** Reads and writes a BioFabricNetwork in a compact binary form. This carries
+** the same content as the .bif XML file. Every name, NID, relation, color key,
+** cluster and tag goes once into a string table. Nodes, links, drain zones and
+** annotations are then written as parallel int arrays that index into that
+** table. A file is read into one buffer in a single pass, each array is pulled
+** out of it in bulk, and the network is built straight from the arrays with no XML parsing.
+** Plugin data sets are the one exception. Their format belongs to each plugin,
+** so they are kept as the XML the plugin writes and handed back to the
+** plugin's own XML worker.
+**
+** All values are big-endian. Layout, in order:
+**   header:       magic, version
+**   strings:      count, byte offsets (count + 1), UTF-8 bytes, padded to 4
+**   link groups:  present flag, mode, show annots flag, count, tags
+**   colors:       for brighter then darker: count, keys, RGB values
+**   display opts: one string index per value
+**   nodes:        count, then name, nid, row, color, cluster, minCol, maxCol,
+**                 minColSha, maxColSha arrays
+**   drain zones:  for plain then shadow: per-node starts (count + 1), zone
+**                 count, min and max arrays
+**   links:        count, then source node, target node, relation, flags,
+**                 column, shadowCol, srcRow, trgRow, color arrays
+**   annotations:  for nodes, links, shadow links: count, then tag, start,
+**                 end, layer, color arrays
+**   plugins:      byte count, UTF-8 XML
+** A string index of -1 means null.
+*/
+
+public class BinaryNetworkIO {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  public static final String SUFFIX = ".bfb";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int MAGIC_ = 0x42464E42; // "BFNB"
+  private static final int VERSION_ = 1;
+  
+  private static final int DIRECTED_FLAG_ = 0x01;
+  private static final int SHADOW_FLAG_ = 0x02;
+  
+  private static final int NUM_DISPLAY_OPTIONS_ = 13;
+  private static final int BUFFER_SIZE_ = 64 * 1024;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not to be instantiated
+  */
+
+  private BinaryNetworkIO() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the file starts with our magic number
+  */
+
+  public static boolean isBinaryNetworkFile(File file) {
+    if (!file.isFile() || (file.length() < 8)) {
+      return (false);
+    }
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(file);
+      byte[] head = new byte[4];
+      int got = 0;
+      while (got < head.length) {
+        int num = fis.read(head, got, head.length - got);
+        if (num < 0) {
+          return (false);
+        }
+        got += num;
+      }
+      return (ByteBuffer.wrap(head).getInt() == MAGIC_);
+    } catch (IOException ioex) {
+      return (false);
+    } finally {
+      if (fis != null) { try { fis.close(); } catch (IOException ioe) {} }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the network out. The stream is closed when we are done.
+  */
+
+  public static void write(BioFabricNetwork bfn, OutputStream stream, BTProgressMonitor monitor, 
+                           boolean forCache) throws AsynchExitRequestException, IOException {
+    write(bfn, FabricDisplayOptionsManager.getMgr().getDisplayOptions(), stream, monitor, forCache);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the network out with the given display options. The stream is closed
+  ** when we are done.
+  */
+
+  public static void write(BioFabricNetwork bfn, FabricDisplayOptions dops, OutputStream stream, 
+                           BTProgressMonitor monitor, boolean forCache) throws AsynchExitRequestException, IOException {
+
+    int numNodes = bfn.getRowCount();
+    int numLinks = bfn.getLinkCount(true);
+    String label = (forCache) ? "progress.cachingCurrentNetwork" : "progress.writingFile";
+    LoopReporter lr = new LoopReporter(numNodes + (2 * numLinks), 20, monitor, 0.0, 1.0, label);  
+    StringTable strings = new StringTable();
+    
+    //
+    // Nodes, in row order:
+    //
+    
+    IntList nName = new IntList(numNodes);
+    IntList nNID = new IntList(numNodes);
+    IntList nRow = new IntList(numNodes);
+    IntList nColor = new IntList(numNodes);
+    IntList nCluster = new IntList(numNodes);
+    IntList nMinCol = new IntList(numNodes);
+    IntList nMaxCol = new IntList(numNodes);
+    IntList nMinColSha = new IntList(numNodes);
+    IntList nMaxColSha = new IntList(numNodes);
+    ZoneLists plainZones = new ZoneLists(numNodes);
+    ZoneLists shadowZones = new ZoneLists(numNodes);
+    HashMap<NID, Integer> nodeIndex = new HashMap<NID, Integer>();
+    
+    Iterator<Integer> rit = bfn.orderedRows();
+    while (rit.hasNext()) {
+      Integer row = rit.next();
+      lr.report();
+      BioFabricNetwork.NodeInfo ni = bfn.getNodeDefinition(bfn.getNodeIDForRow(row));
+      nodeIndex.put(ni.getNodeID(), Integer.valueOf(nName.size()));
+      nName.add(strings.index(ni.getNodeName()));
+      nNID.add(strings.index(ni.getNodeID().getInternal()));
+      nRow.add(row.intValue());
+      nColor.add(strings.index(ni.colorKey));
+      nCluster.add(strings.index(ni.getCluster()));
+      MinMax nsCols = ni.getColRange(false);
+      nMinCol.add(nsCols.min);
+      nMaxCol.add(nsCols.max);
+      MinMax sCols = ni.getColRange(true);
+      nMinColSha.add(sCols.min);
+      nMaxColSha.add(sCols.max);
+      plainZones.addNode(ni.getDrainZones(false));
+      shadowZones.addNode(ni.getDrainZones(true));
+    }
+    
+    //
+    // Links, in shadow column order. Like the XML, the plain column comes from
+    // the non-shadow ordering:
+    //
+    
+    HashMap<Integer, Integer> inverse = new HashMap<Integer, Integer>();
+    Iterator<Integer> nsit = bfn.getOrderedLinkInfo(false);
+    while (nsit.hasNext()) {
+      Integer key = nsit.next();
+      lr.report();
+      inverse.put(Integer.valueOf(bfn.getLinkDefinition(key, false).getUseColumn(true)), key);
+    }
+    
+    IntList lSrc = new IntList(numLinks);
+    IntList lTrg = new IntList(numLinks);
+    IntList lRel = new IntList(numLinks);
+    IntList lFlags = new IntList(numLinks);
+    IntList lCol = new IntList(numLinks);
+    IntList lShadowCol = new IntList(numLinks);
+    IntList lSrcRow = new IntList(numLinks);
+    IntList lTrgRow = new IntList(numLinks);
+    IntList lColor = new IntList(numLinks);
+    
+    Iterator<Integer> ldit = bfn.getOrderedLinkInfo(true);
+    while (ldit.hasNext()) {
+      Integer col = ldit.next();
+      lr.report();
+      BioFabricNetwork.LinkInfo li = bfn.getLinkDefinition(col, true);
+      FabricLink link = li.getLink();
+      Integer srcIndex = nodeIndex.get(link.getSrcNode().getNID().getNID());
+      Integer trgIndex = nodeIndex.get(link.getTrgNode().getNID().getNID());
+      if ((srcIndex == null) || (trgIndex == null)) {
+        throw new IOException();
+      }
+      lSrc.add(srcIndex.intValue());
+      lTrg.add(trgIndex.intValue());
+      AugRelation augr = link.getAugRelation();
+      lRel.add(strings.index(augr.relation));
+      lFlags.add(((link.isDirected()) ? DIRECTED_FLAG_ : 0) | ((augr.isShadow) ? SHADOW_FLAG_ : 0));
+      Integer nsCol = inverse.get(col);
+      lCol.add((augr.isShadow || (nsCol == null)) ? Integer.MIN_VALUE : nsCol.intValue());
+      lShadowCol.add(col.intValue());
+      lSrcRow.add(li.getStartRow());
+      lTrgRow.add(li.getEndRow());
+      lColor.add(strings.index(li.getColorKey()));
+    }
+    inverse = null;
+    nodeIndex = null;
+    
+    //
+    // Link groups, colors, display options:
+    //
+    
+    List<String> groups = bfn.getLinkGrouping();
+    int[] groupTags = new int[groups.size()];
+    for (int i = 0; i < groupTags.length; i++) {
+      groupTags[i] = strings.index(groups.get(i));
+    }
+    Network.LayoutMode mode = bfn.getLayoutMode();
+    int layoutMode = strings.index((mode == null) ? null : mode.getText());
+    
+    FabricColorGenerator colGen = bfn.getColorGenerator();
+    int[][] brighter = colorsToInts(colGen.getColorsForIO(FabricColorGenerator.BRIGHTER), strings);
+    int[][] darker = colorsToInts(colGen.getColorsForIO(FabricColorGenerator.DARKER), strings);
+    
+    String[] optVals = dops.getValuesForIO();
+    int[] displayOpts = new int[optVals.length];
+    for (int i = 0; i < optVals.length; i++) {
+      displayOpts[i] = strings.index(optVals[i]);
+    }
+    
+    //
+    // Annotations:
+    //
+    
+    AnnotLists nodeAnnots = new AnnotLists(bfn.getNodeAnnotations(), strings);
+    AnnotLists linkAnnots = new AnnotLists(bfn.getLinkAnnotations(false), strings);
+    AnnotLists shadowAnnots = new AnnotLists(bfn.getLinkAnnotations(true), strings);
+    
+    //
+    // Plugin data, as the plugins write it:
+    //
+    
+    ByteArrayOutputStream plugBytes = new ByteArrayOutputStream();
+    PrintWriter plugOut = new PrintWriter(new OutputStreamWriter(plugBytes, "UTF-8"));
+    bfn.writePlugInXML(plugOut, new Indenter(plugOut, Indenter.DEFAULT_INDENT));
+    plugOut.close();
+    
+    //
+    // Now write it all out:
+    //
+    
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE_));
+    try {
+      out.writeInt(MAGIC_);
+      out.writeInt(VERSION_);
+      strings.write(out);
+      
+      out.writeInt((groups.isEmpty()) ? 0 : 1);
+      out.writeInt(layoutMode);
+      out.writeInt((bfn.getShowLinkGroupAnnotations()) ? 1 : 0);
+      writeCountedInts(out, groupTags);
+      
+      writeCountedInts(out, brighter[0]);
+      writeInts(out, brighter[1]);
+      writeCountedInts(out, darker[0]);
+      writeInts(out, darker[1]);
+      writeInts(out, displayOpts);
+      
+      out.writeInt(nName.size());
+      nName.write(out);
+      nNID.write(out);
+      nRow.write(out);
+      nColor.write(out);
+      nCluster.write(out);
+      nMinCol.write(out);
+      nMaxCol.write(out);
+      nMinColSha.write(out);
+      nMaxColSha.write(out);
+      plainZones.write(out);
+      shadowZones.write(out);
+      
+      out.writeInt(lSrc.size());
+      lSrc.write(out);
+      lTrg.write(out);
+      lRel.write(out);
+      lFlags.write(out);
+      lCol.write(out);
+      lShadowCol.write(out);
+      lSrcRow.write(out);
+      lTrgRow.write(out);
+      lColor.write(out);
+      
+      nodeAnnots.write(out);
+      linkAnnots.write(out);
+      shadowAnnots.write(out);
+      
+      byte[] plugs = plugBytes.toByteArray();
+      out.writeInt(plugs.length);
+      out.write(plugs);
+      lr.finish();
+    } finally {
+      out.close();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read a network in. The returned network is ready for a BUILD_FROM_XML build,
+  ** just like one from the XML FabricFactory. The file is read into a heap buffer
+  ** rather than mapped: a mapping outlives the close until it is collected, and
+  ** on Windows that blocks a save back over the same file.
+  */
+
+  public static BioFabricNetwork read(File file, PlugInManager pMan, BTProgressMonitor monitor, 
+                                      boolean fromCache) throws AsynchExitRequestException, IOException {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      FileChannel channel = fis.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException();
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int)size);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) < 0) {
+          throw new IOException();
+        }
+      }
+      buf.flip();
+      return (readNetwork(buf, pMan, monitor, (fromCache) ? "progress.fromCache" : "progress.readBinary"));
+    } catch (BufferUnderflowException buex) {
+      throw new IOException();
+    } catch (IndexOutOfBoundsException ioobex) {
+      throw new IOException();
+    } catch (IllegalArgumentException iaex) {
+      throw new IOException();
+    } finally {
+      fis.close();
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Build the network from the file contents
+  */
+
+  private static BioFabricNetwork readNetwork(ByteBuffer buf, PlugInManager pMan, BTProgressMonitor monitor, 
+                                              String label) throws AsynchExitRequestException, IOException {
+    if ((buf.getInt() != MAGIC_) || (buf.getInt() != VERSION_)) {
+      throw new IOException();
+    }
+    String[] strings = readStrings(buf);
+    BioFabricNetwork bfn = new BioFabricNetwork();
+    
+    //
+    // Link groups:
+    //
+    
+    boolean haveGroups = (buf.getInt() != 0);
+    String layoutMode = stringAt(strings, buf.getInt());
+    boolean showAnnots = (buf.getInt() != 0);
+    int[] groupTags = readCountedInts(buf);
+    if (haveGroups) {
+      bfn.setLayoutMode(Network.LayoutMode.fromString(layoutMode));
+      bfn.setShowLinkGroupAnnotations(showAnnots);
+      for (int i = 0; i < groupTags.length; i++) {
+        bfn.addLinkGroupForIO(stringAt(strings, groupTags[i]));
+      }
+    }
+    
+    //
+    // Colors and display options:
+    //
+    
+    FabricColorGenerator fcg = new FabricColorGenerator();
+    readColors(buf, strings, fcg, FabricColorGenerator.BRIGHTER);
+    readColors(buf, strings, fcg, FabricColorGenerator.DARKER);
+    bfn.setColorGenerator(fcg);
+    
+    int[] optIndex = readInts(buf, NUM_DISPLAY_OPTIONS_);
+    String[] optVals = new String[NUM_DISPLAY_OPTIONS_];
+    for (int i = 0; i < NUM_DISPLAY_OPTIONS_; i++) {
+      optVals[i] = stringAt(strings, optIndex[i]);
+    }
+    FabricDisplayOptionsManager.getMgr().setDisplayOptionsForIO(FabricDisplayOptions.buildFromValuesForIO(optVals));
+    
+    //
+    // Nodes:
+    //
+    
+    int numNodes = buf.getInt();
+    int[] nName = readInts(buf, numNodes);
+    int[] nNID = readInts(buf, numNodes);
+    int[] nRow = readInts(buf, numNodes);
+    int[] nColor = readInts(buf, numNodes);
+    int[] nCluster = readInts(buf, numNodes);
+    int[] nMinCol = readInts(buf, numNodes);
+    int[] nMaxCol = readInts(buf, numNodes);
+    int[] nMinColSha = readInts(buf, numNodes);
+    int[] nMaxColSha = readInts(buf, numNodes);
+    int[][] plainZones = readZones(buf, numNodes);
+    int[][] shadowZones = readZones(buf, numNodes);
+    
+    LoopReporter lr = new LoopReporter(numNodes, 20, monitor, 0.0, 0.5, label);
+    
+    UniqueLabeller ulb = new UniqueLabeller();
+    FabricNode[] nodes = new FabricNode[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      lr.report();
+      String nidStr = stringAt(strings, nNID[i]);
+      if ((nidStr == null) || !ulb.addExistingLabel(nidStr)) {
+        throw new IOException();
+      }
+      NID nid = new NID(nidStr);
+      String name = stringAt(strings, nName[i]);
+      nodes[i] = new FabricNode(new NID.WithName(nid, name));
+      BioFabricNetwork.NodeInfo ni = new BioFabricNetwork.NodeInfo(nid, name, nRow[i], stringAt(strings, nColor[i]));
+      String cluster = stringAt(strings, nCluster[i]);
+      if (cluster != null) {
+        ni.setCluster(cluster);
+      }
+      ni.updateMinMaxCol(nMinCol[i], false);
+      ni.updateMinMaxCol(nMaxCol[i], false);
+      ni.updateMinMaxCol(nMinColSha[i], true);
+      ni.updateMinMaxCol(nMaxColSha[i], true);
+      addZones(ni, plainZones, i, false);
+      addZones(ni, shadowZones, i, true);
+      bfn.addNodeInfoForIO(ni);
+    }
+    lr.finish();
+    
+    //
+    // Links:
+    //
+    
+    int numLinks = buf.getInt();
+    int[] lSrc = readInts(buf, numLinks);
+    int[] lTrg = readInts(buf, numLinks);
+    int[] lRel = readInts(buf, numLinks);
+    int[] lFlags = readInts(buf, numLinks);
+    int[] lCol = readInts(buf, numLinks);
+    int[] lShadowCol = readInts(buf, numLinks);
+    int[] lSrcRow = readInts(buf, numLinks);
+    int[] lTrgRow = readInts(buf, numLinks);
+    int[] lColor = readInts(buf, numLinks);
+    LoopReporter lr2 = new LoopReporter(numLinks, 20, monitor, 0.5, 1.0, label);
+    for (int i = 0; i < numLinks; i++) {
+      lr2.report();
+      boolean isShadow = ((lFlags[i] & SHADOW_FLAG_) != 0);
+      Boolean directed = Boolean.valueOf((lFlags[i] & DIRECTED_FLAG_) != 0);
+      String rel = stringAt(strings, lRel[i]);
+      if ((rel == null) || (!isShadow && (lCol[i] == Integer.MIN_VALUE))) {
+        throw new IOException();
+      }
+      FabricLink flink = new FabricLink(nodes[lSrc[i]], nodes[lTrg[i]], rel, isShadow, directed);
+      bfn.addLinkInfoForIO(new BioFabricNetwork.LinkInfo(flink, lSrcRow[i], lTrgRow[i], lCol[i], 
+                                                         lShadowCol[i], stringAt(strings, lColor[i])));
+    }
+    lr2.finish();
+    
+    //
+    // Annotations:
+    //
+    
+    bfn.setNodeAnnotations(readAnnots(buf, strings));
+    bfn.setLinkAnnotations(readAnnots(buf, strings), false);
+    bfn.setLinkAnnotations(readAnnots(buf, strings), true);
+    
+    //
+    // Plugin data:
+    //
+    
+    int numPlugBytes = buf.getInt();
+    if ((numPlugBytes < 0) || (numPlugBytes > buf.remaining())) {
+      throw new IOException();
+    }
+    byte[] plugs = new byte[numPlugBytes];
+    buf.get(plugs);
+    if ((plugs.length > 0) && !pMan.getOrderedToolPlugInKeys().isEmpty()) {
+      FabricFactory.FactoryWhiteboard board = new FabricFactory.FactoryWhiteboard();
+      board.bfn = bfn;
+      ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
+      alist.add(new PlugInManager.PlugInWorker(board, pMan));
+      SUParser sup = new SUParser(alist);
+      sup.parse(new ProgressFilterInputStream(new ByteArrayInputStream(plugs), plugs.length), null, false);
+    }
+    return (bfn);
+  }
+  
+  /***************************************************************************
+  **
+  ** Read the string table
+  */
+
+  private static String[] readStrings(ByteBuffer buf) throws IOException {
+    int count = buf.getInt();
+    int[] offsets = readInts(buf, count + 1);
+    byte[] bytes = new byte[offsets[count]];
+    buf.get(bytes);
+    skipPad(buf, bytes.length);
+    String[] retval = new String[count];
+    for (int i = 0; i < count; i++) {
+      retval[i] = new String(bytes, offsets[i], offsets[i + 1] - offsets[i], "UTF-8");
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Look up a string; -1 is null
+  */
+
+  private static String stringAt(String[] strings, int index) throws IOException {
+    if (index == -1) {
+      return (null);
+    }
+    if ((index < 0) || (index >= strings.length)) {
+      throw new IOException();
+    }
+    return (strings[index]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Bulk read of an int array
+  */
+
+  private static int[] readInts(ByteBuffer buf, int count) throws IOException {
+    if ((count < 0) || (count > (buf.remaining() / 4))) {
+      throw new IOException();
+    }
+    int[] retval = new int[count];
+    IntBuffer ib = buf.asIntBuffer();
+    ib.get(retval);
+    buf.position(buf.position() + (4 * count));
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Bulk read of an int array preceded by its length
+  */
+
+  private static int[] readCountedInts(ByteBuffer buf) throws IOException {
+    return (readInts(buf, buf.getInt()));
+  }
+ 
+  /***************************************************************************
+  **
+  ** Skip the padding following a byte array
+  */
+
+  private static void skipPad(ByteBuffer buf, int length) {
+    int pad = (4 - (length % 4)) % 4;
+    buf.position(buf.position() + pad);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read one set of colors into the generator
+  */
+
+  private static void readColors(ByteBuffer buf, String[] strings, FabricColorGenerator fcg, int target) throws IOException {
+    int[] keys = readCountedInts(buf);
+    int[] rgbs = readInts(buf, keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      String key = stringAt(strings, keys[i]);
+      fcg.addColorForIO(target, new NamedColor(key, new Color(rgbs[i]), key));
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read drain zones for all the nodes: starts, mins, maxes
+  */
+
+  private static int[][] readZones(ByteBuffer buf, int numNodes) throws IOException {
+    int[][] retval = new int[3][];
+    retval[0] = readInts(buf, numNodes + 1);
+    int numZones = buf.getInt();
+    retval[1] = readInts(buf, numZones);
+    retval[2] = readInts(buf, numZones);
+    if ((retval[0][0] != 0) || (retval[0][numNodes] != numZones)) {
+      throw new IOException();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Add drain zones to the node
+  */
+
+  private static void addZones(BioFabricNetwork.NodeInfo ni, int[][] zones, int node, boolean forShadow) {
+    int start = zones[0][node];
+    int end = zones[0][node + 1];
+    for (int i = start; i < end; i++) {
+      ni.addDrainZone(new BioFabricNetwork.DrainZone(new MinMax(zones[1][i], zones[2][i]), forShadow));
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read an annotation set
+  */
+
+  private static AnnotationSet readAnnots(ByteBuffer buf, String[] strings) throws IOException {
+    int count = buf.getInt();
+    int[] tags = readInts(buf, count);
+    int[] starts = readInts(buf, count);
+    int[] ends = readInts(buf, count);
+    int[] layers = readInts(buf, count);
+    int[] colors = readInts(buf, count);
+    AnnotationSetImpl retval = new AnnotationSetImpl();
+    for (int i = 0; i < count; i++) {
+      retval.addAnnot(new AnnotationSetImpl.AnnotImpl(stringAt(strings, tags[i]), starts[i], ends[i], 
+                                                      layers[i], stringAt(strings, colors[i])));
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Colors as keys and RGB values
+  */
+
+  private static int[][] colorsToInts(Map<String, Color> colors, StringTable strings) {
+    int[][] retval = new int[2][colors.size()];
+    int count = 0;
+    for (Map.Entry<String, Color> entry : colors.entrySet()) {
+      retval[0][count] = strings.index(entry.getKey());
+      retval[1][count++] = entry.getValue().getRGB();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Write an int array
+  */
+
+  private static void writeInts(DataOutputStream out, int[] vals) throws IOException {
+    for (int i = 0; i < vals.length; i++) {
+      out.writeInt(vals[i]);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write an int array preceded by its length
+  */
+
+  private static void writeCountedInts(DataOutputStream out, int[] vals) throws IOException {
+    out.writeInt(vals.length);
+    writeInts(out, vals);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Growable int array
+  */
+  
+  private static class IntList {
+    private int[] vals_;
+    private int size_;
+    
+    IntList(int initSize) {
+      vals_ = new int[Math.max(initSize, 4)];
+      size_ = 0;
+    }
+    
+    void add(int val) {
+      if (size_ == vals_.length) {
+        int[] grow = new int[vals_.length * 2];
+        System.arraycopy(vals_, 0, grow, 0, size_);
+        vals_ = grow;
+      }
+      vals_[size_++] = val;
+      return;
+    }
+    
+    int size() {
+      return (size_);
+    }
+    
+    void write(DataOutputStream out) throws IOException {
+      for (int i = 0; i < size_; i++) {
+        out.writeInt(vals_[i]);
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Every distinct string gets one slot
+  */
+  
+  private static class StringTable {
+    private LinkedHashMap<String, Integer> index_;
+    
+    StringTable() {
+      index_ = new LinkedHashMap<String, Integer>();
+    }
+    
+    int index(String str) {
+      if (str == null) {
+        return (-1);
+      }
+      Integer retval = index_.get(str);
+      if (retval == null) {
+        retval = Integer.valueOf(index_.size());
+        index_.put(str, retval);
+      }
+      return (retval.intValue());
+    }
+    
+    void write(DataOutputStream out) throws IOException {
+      int count = index_.size();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      int[] offsets = new int[count + 1];
+      int i = 0;
+      for (String str : index_.keySet()) {
+        offsets[i++] = bytes.size();
+        byte[] utf = str.getBytes("UTF-8");
+        bytes.write(utf, 0, utf.length);
+      }
+      offsets[count] = bytes.size();
+      out.writeInt(count);
+      writeInts(out, offsets);
+      bytes.writeTo(out);
+      int pad = (4 - (bytes.size() % 4)) % 4;
+      for (int j = 0; j < pad; j++) {
+        out.writeByte(0);
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Drain zones for each node, in compressed sparse row form
+  */
+  
+  private static class ZoneLists {
+    private IntList starts_;
+    private IntList mins_;
+    private IntList maxes_;
+    
+    ZoneLists(int numNodes) {
+      starts_ = new IntList(numNodes + 1);
+      mins_ = new IntList(numNodes);
+      maxes_ = new IntList(numNodes);
+      starts_.add(0);
+    }
+    
+    void addNode(List<BioFabricNetwork.DrainZone> zones) {
+      for (BioFabricNetwork.DrainZone dz : zones) {
+        MinMax mm = dz.getMinMax();
+        mins_.add(mm.min);
+        maxes_.add(mm.max);
+      }
+      starts_.add(mins_.size());
+      return;
+    }
+    
+    void write(DataOutputStream out) throws IOException {
+      starts_.write(out);
+      out.writeInt(mins_.size());
+      mins_.write(out);
+      maxes_.write(out);
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Annotations as parallel arrays
+  */
+  
+  private static class AnnotLists {
+    private IntList tags_;
+    private IntList starts_;
+    private IntList ends_;
+    private IntList layers_;
+    private IntList colors_;
+    
+    AnnotLists(AnnotationSet annots, StringTable strings) {
+      int size = (annots == null) ? 0 : annots.size();
+      tags_ = new IntList(size);
+      starts_ = new IntList(size);
+      ends_ = new IntList(size);
+      layers_ = new IntList(size);
+      colors_ = new IntList(size);
+      if (annots != null) {
+        for (Annot an : annots) {
+          tags_.add(strings.index(an.getName()));
+          starts_.add(an.getRange().min);
+          ends_.add(an.getRange().max);
+          layers_.add(an.getLayer());
+          colors_.add(strings.index((an.getColor() == null) ? null : an.getColor().getName()));
+        }
+      }
+    }
+    
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(tags_.size());
+      tags_.write(out);
+      starts_.write(out);
+      ends_.write(out);
+      layers_.write(out);
+      colors_.write(out);
+      return;
+    }
+  }
+}
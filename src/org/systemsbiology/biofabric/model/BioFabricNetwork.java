@@ -20,9 +20,14 @@
 
 package org.systemsbiology.biofabric.model;
 
+import java.awt.Color;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TreeSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,11 +56,13 @@ import org.systemsbiology.biofabric.api.model.AnnotationSet;
 import org.systemsbiology.biofabric.api.model.AugRelation;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NodeIndex;
 import org.systemsbiology.biofabric.api.model.Network;
 import org.systemsbiology.biofabric.api.parser.AbstractFactoryClient;
 import org.systemsbiology.biofabric.api.parser.GlueStick;
 import org.systemsbiology.biofabric.api.util.MinMax;
 import org.systemsbiology.biofabric.api.util.NID;
+import org.systemsbiology.biofabric.api.util.PreferenceStorage;
 import org.systemsbiology.biofabric.api.util.UniqueLabeller;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
@@ -69,6 +76,7 @@ import org.systemsbiology.biofabric.ui.FabricColorGenerator;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
 import org.systemsbiology.biofabric.util.DataUtil;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.UiUtil;
 
 /****************************************************************************
@@ -76,7 +84,7 @@ import org.systemsbiology.biofabric.util.UiUtil;
 ** This is the Network model.
 */
 
-public class BioFabricNetwork implements Network {
+public class BioFabricNetwork implements Network, HeapFootprint.Source {
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -84,11 +92,28 @@ public class BioFabricNetwork implements Network {
   //
   //////////////////////////////////////////////////////////////////////////// 
 
+  //
+  // Unless the user says otherwise, networks with at least this many links get
+  // columnar link storage:
+  //
+  
+  private static final int AUTO_COLUMNAR_LINKS_ = 1000000;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
   //
   //////////////////////////////////////////////////////////////////////////// 
+  
+  //
+  // User preference key for how links and rows are stored once the network is
+  // built. Map storage is the original; columnar storage uses far less memory
+  // on big networks, but builds link info objects on demand:
+  //
+  
+  public static final String LINK_STORAGE_PREF = "LinkStorage";
+  public static final String MAPPED_LINKS = "maps";
+  public static final String COLUMNAR_LINKS = "columnar";
                  
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -111,6 +136,45 @@ public class BioFabricNetwork implements Network {
   private TreeMap<Integer, Integer> nonShadowedLinkMap_;
   private HashMap<NetNode, NodeInfo> nodeDefs_;
   
+  //
+  // Once built, the row and link maps above (and the column assignment maps)
+  // may be swapped out for this:
+  //
+  
+  private LinkColumns linkCols_;
+  
+  //
+  // Link columns touching each row, for neighbor queries:
+  //
+  
+  private NodeAdjacency adjacency_;
+  
+  //
+  // Dense node numbering, in row order, with the row for each index:
+  //
+  
+  private NodeIndex nodeIndex_;
+  private int[] indexToRow_;
+  
+  //
+  // Built in the background after loading, or on the first node search:
+  //
+  
+  private volatile NodeNameIndex nameIndex_;
+  
+  //
+  // Digest of the rows and links, made the first time it is asked for:
+  //
+  
+  private String layoutDigest_;
+  
+  //
+  // Drain zones worked out on demand, if the network was laid out here
+  // instead of read in with its zones:
+  //
+  
+  private DrainZoneCache drainZones_;
+  
   //
   // Grouping for links:
   //
@@ -137,8 +201,14 @@ public class BioFabricNetwork implements Network {
   
   private UniqueLabeller nodeIDGenerator_;
   
-  private AnnotationSet nodeAnnot_;
-  private Map<Boolean, AnnotationSet> linkAnnots_;
+  //
+  // Annotations are the one thing that gets swapped into a network after it
+  // is built, while renderers may be reading it. They are replaced wholesale,
+  // never edited in place:
+  //
+  
+  private volatile AnnotationSet nodeAnnot_;
+  private volatile Map<Boolean, AnnotationSet> linkAnnots_;
 
   private PlugInManager pMan_;
   
@@ -203,6 +273,10 @@ public class BioFabricNetwork implements Network {
         this.layoutMode_ = bd.fullNet.layoutMode_;
         fillSubModel(bd.fullNet, bd.subNodes, bd.subLinks);
         break;
+      case INCREMENTAL_UPDATE:
+        standardBuildDataInit(bd);
+        applyUpdate(bd.fullNet, bd.update, monitor);
+        break;
       case BUILD_FROM_XML:
       case SHADOW_LINK_CHANGE:
         standardBuildDataTransfer(bd.getExistingNetwork());
@@ -218,6 +292,9 @@ public class BioFabricNetwork implements Network {
       default:
         throw new IllegalArgumentException();
     }
+    if (wantColumnarLinks(getLinkCount(true))) {
+      useColumnarLinks();
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -265,6 +342,10 @@ public class BioFabricNetwork implements Network {
     this.rowToTargID_ = built.rowToTargID_; 
     this.fullLinkDefs_ = built.fullLinkDefs_;
     this.nonShadowedLinkMap_ = built.nonShadowedLinkMap_;
+    this.linkCols_ = built.linkCols_;
+    this.adjacency_ = built.adjacency_;
+    this.nodeIndex_ = built.nodeIndex_;
+    this.indexToRow_ = built.indexToRow_;
     this.nodeDefs_ = built.nodeDefs_;
     this.colGen_ = built.colGen_;
     this.rowCount_ = built.rowCount_;
@@ -273,10 +354,207 @@ public class BioFabricNetwork implements Network {
     this.layoutMode_ = built.layoutMode_;
     this.nodeAnnot_ = built.nodeAnnot_;
     this.linkAnnots_= built.linkAnnots_;
- 
+    // Lazy drain zones get answered by us from now on, so the old network can go:
+    if (built.drainZones_ != null) {
+      installLazyDrainZones();
+    }
+    // Networks read in from XML are not built here, so they show up without one:
+    if (this.adjacency_ == null) {
+      buildAdjacency();
+    }
     return;
   }
   
+  /***************************************************************************
+  ** 
+  ** Answers if the user wants columnar link storage, or if we should use it anyway
+  ** given the network size.
+  */
+  
+  private static boolean wantColumnarLinks(int numLinks) {
+    String pref = new PreferenceStorage().getPreference(LINK_STORAGE_PREF);
+    if (pref != null) {
+      pref = pref.trim();
+      if (pref.equalsIgnoreCase(COLUMNAR_LINKS)) {
+        return (true);
+      } else if (pref.equalsIgnoreCase(MAPPED_LINKS)) {
+        return (false);
+      }
+    }
+    return (numLinks >= AUTO_COLUMNAR_LINKS_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Swap the row and link maps for columnar storage. The network is done building,
+  ** so nothing adds to them after this. Maps may be shared with the network we were
+  ** built from, so we just drop our references.
+  */
+  
+  private void useColumnarLinks() {
+    if (linkCols_ != null) {
+      return;
+    }
+    linkCols_ = new LinkColumns(fullLinkDefs_, nonShadowedLinkMap_, rowToTargID_);
+    fullLinkDefs_ = null;
+    nonShadowedLinkMap_ = null;
+    rowToTargID_ = null;
+    ColumnAssign normalCounts = new ColumnAssign();
+    normalCounts.columnCount = normalCols_.columnCount;
+    normalCols_ = normalCounts;
+    ColumnAssign shadowCounts = new ColumnAssign();
+    shadowCounts.columnCount = shadowCols_.columnCount;
+    shadowCols_ = shadowCounts;
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Build the per-row link adjacency from the current link definitions
+  */
+  
+  private void buildAdjacency() {
+    buildNodeIndex();
+    int numLinks = getLinkCount(true);
+    int[] srcRow = new int[numLinks];
+    int[] trgRow = new int[numLinks];
+    int[] shadowCol = new int[numLinks];
+    int[] plainCol = new int[numLinks];
+    int numRows = rowCount_;
+    int count = 0;
+    if (linkCols_ != null) {
+      for (int i = 0; i < numLinks; i++) {
+        srcRow[i] = rowForNode(linkCols_.getSource(i));
+        trgRow[i] = rowForNode(linkCols_.getTarget(i));
+        shadowCol[i] = linkCols_.getColumn(i, true);
+        plainCol[i] = (linkCols_.isShadow(i)) ? -1 : linkCols_.getColumn(i, false);
+      }
+      count = numLinks;
+    } else {
+      for (LinkInfo linf : fullLinkDefs_.values()) {
+        srcRow[count] = rowForNode(linf.getSource());
+        trgRow[count] = rowForNode(linf.getTarget());
+        shadowCol[count] = linf.getUseColumn(true);
+        plainCol[count] = (linf.isShadow()) ? -1 : linf.getUseColumn(false);
+        count++;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      numRows = Math.max(numRows, Math.max(srcRow[i], trgRow[i]) + 1);
+    }
+    adjacency_ = new NodeAdjacency(numRows, count, srcRow, trgRow, shadowCol, plainCol);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Number the nodes in row order. The numbers live only in the NodeIndex; node
+  ** objects are not touched.
+  */
+  
+  private void buildNodeIndex() {
+    ArrayList<NetNode> byRow = new ArrayList<NetNode>();
+    ArrayList<Integer> rows = new ArrayList<Integer>();
+    Iterator<Integer> rit = orderedRows();
+    while (rit.hasNext()) {
+      Integer row = rit.next();
+      rows.add(row);
+      byRow.add(getNodeIDForRow(row));
+    }
+    indexToRow_ = new int[rows.size()];
+    for (int i = 0; i < indexToRow_.length; i++) {
+      indexToRow_[i] = rows.get(i).intValue();
+    }
+    nodeIndex_ = new NodeIndex(byRow);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Row of a node, or -1 if it is not in the network
+  */
+  
+  private int rowForNode(NetNode node) {
+    int idx = nodeIndex_.indexOf(node);
+    return ((idx == NodeIndex.NO_INDEX) ? -1 : indexToRow_[idx]);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Digest of the node rows and link columns, made on first use
+  */
+  
+  private synchronized String getLayoutDigest() {
+    if (layoutDigest_ != null) {
+      return (layoutDigest_);
+    }
+    DigestBuilder db = new DigestBuilder();
+    if (db.failed()) {
+      return (null);
+    }
+    Iterator<Integer> rit = orderedRows();
+    while (rit.hasNext()) {
+      Integer row = rit.next();
+      NodeInfo ni = getNodeDefinition(getNodeIDForRow(row));
+      db.addInt(row.intValue());
+      db.addString(ni.getNodeName());
+      db.addString(ni.colorKey);
+      MinMax plain = ni.getColRange(false);
+      MinMax shadow = ni.getColRange(true);
+      db.addInt(plain.min);
+      db.addInt(plain.max);
+      db.addInt(shadow.min);
+      db.addInt(shadow.max);
+    }
+    Iterator<Integer> cit = getOrderedLinkInfo(true);
+    while (cit.hasNext()) {
+      Integer col = cit.next();
+      LinkInfo li = getLinkDefinition(col, true);
+      db.addInt(col.intValue());
+      db.addInt(li.getStartRow());
+      db.addInt(li.getEndRow());
+      db.addInt((li.isShadow()) ? -1 : li.getUseColumn(false));
+      db.addInt((li.isDirected()) ? 1 : 0);
+      db.addString(li.getColorKey());
+      db.addString(li.getAugRelation().relation);
+    }
+    layoutDigest_ = db.finish();
+    return (layoutDigest_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add an annotation set to a digest
+  */
+  
+  private void addAnnotsToDigest(DigestBuilder db, AnnotationSet annots) {
+    if (annots == null) {
+      db.addInt(-1);
+      return;
+    }
+    db.addInt(annots.size());
+    for (Annot an : annots) {
+      db.addString(an.getName());
+      db.addInt(an.getRange().min);
+      db.addInt(an.getRange().max);
+      db.addInt(an.getLayer());
+      db.addString((an.getColor() == null) ? null : an.getColor().getName());
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Rows that have a node, in order
+  */
+  
+  Iterator<Integer> orderedRows() {
+    if (linkCols_ != null) {
+      return (linkCols_.getRows());
+    }
+    return (new TreeSet<Integer>(rowToTargID_.keySet()).iterator());
+  }
+  
   /***************************************************************************
   ** 
   ** Build support
@@ -320,10 +598,11 @@ public class BioFabricNetwork implements Network {
   */
 
   public void setLinkAnnotations(AnnotationSet aSet, boolean forShadow) {
-    if (linkAnnots_ == null) {
-      linkAnnots_ = new HashMap<Boolean, AnnotationSet>();
-    }
-    linkAnnots_.put(Boolean.valueOf(forShadow), aSet);
+    Map<Boolean, AnnotationSet> oldAnnots = linkAnnots_;
+    HashMap<Boolean, AnnotationSet> newAnnots = (oldAnnots == null) ? new HashMap<Boolean, AnnotationSet>()
+                                                                     : new HashMap<Boolean, AnnotationSet>(oldAnnots);
+    newAnnots.put(Boolean.valueOf(forShadow), aSet);
+    linkAnnots_ = newAnnots;
     return;
   }
   
@@ -419,9 +698,12 @@ public class BioFabricNetwork implements Network {
     //
     
     HashSet<String> normedNames = new HashSet<String>();
-    Iterator<NetNode> rttvit = rowToTargID_.values().iterator();
-    while (rttvit.hasNext()) {
-    	NetNode key = rttvit.next();
+    TreeSet<Integer> rows = new TreeSet<Integer>();
+    Iterator<Integer> rowit = orderedRows();
+    while (rowit.hasNext()) {
+      Integer row = rowit.next();
+      rows.add(row);
+    	NetNode key = getNodeIDForRow(row);
     	NodeInfo ni = nodeDefs_.get(key);
       normedNames.add(DataUtil.normKey(ni.getNodeName()));
     }
@@ -448,7 +730,7 @@ public class BioFabricNetwork implements Network {
       }
     }
     
-    if (!asInts.equals(new TreeSet<Integer>(rowToTargID_.keySet()))) {
+    if (!asInts.equals(rows)) {
       return (false);
     }
     
@@ -527,7 +809,11 @@ public class BioFabricNetwork implements Network {
     // Has to be the case that all columns are also 1:1 and onto:
     //
     
-    TreeSet<Integer> ldks = new TreeSet<Integer>(fullLinkDefs_.keySet());
+    TreeSet<Integer> ldks = new TreeSet<Integer>();
+    Iterator<Integer> olit = getOrderedLinkInfo(true);
+    while (olit.hasNext()) {
+      ldks.add(olit.next());
+    }
     TreeSet<Integer> dmks = new TreeSet<Integer>(dirMap.keySet());
     
     if (!ldks.equals(dmks)) {
@@ -544,7 +830,7 @@ public class BioFabricNetwork implements Network {
   
   public Set<NetLink> getAllLinks(boolean withShadows) {  
     HashSet<NetLink> allLinks = new HashSet<NetLink>();
-    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
+    Iterator<Integer> ldit = getOrderedLinkInfo(true);
     while (ldit.hasNext()) {
       Integer col = ldit.next();
       LinkInfo li = getLinkDefinition(col, true);  // just get everybody...
@@ -562,6 +848,9 @@ public class BioFabricNetwork implements Network {
   */
   
   public Iterator<Integer> getOrderedLinkInfo(boolean withShadows) {  
+    if (linkCols_ != null) {
+      return (linkCols_.getColumns(withShadows));
+    }
     return ((withShadows) ? fullLinkDefs_.keySet().iterator() : nonShadowedLinkMap_.keySet().iterator());
   }
   
@@ -626,6 +915,12 @@ public class BioFabricNetwork implements Network {
     // For the lone nodes, they are assigned into the last column:
     //
     loneNodesToLastColumn(rbd.getSingletonNodes(), monitor);
+    
+    //
+    // Rows and columns are now fixed, so we can index the neighbors:
+    //
+    
+    buildAdjacency();
     return;
   }
   
@@ -712,10 +1007,206 @@ public class BioFabricNetwork implements Network {
     
     nodeAnnot_ = rbd.getNodeAnnotations();
     linkAnnots_ = rbd.getLinkAnnotations();
-
+    
+    buildAdjacency();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Apply an update to the given network without doing a layout. The existing
+  ** order is kept: dropped nodes and links fall out, new nodes go at the bottom,
+  ** and new links go at the right, each followed by its shadow. Annotations are
+  ** carried over onto the rows and columns that remain.
+  */
+  
+  private void applyUpdate(BioFabricNetwork oldNet, NetworkUpdate update, 
+                           BTProgressMonitor monitor) throws AsynchExitRequestException {
+    colGen_ = oldNet.colGen_;
+    linkGrouping_ = new ArrayList<String>(oldNet.linkGrouping_);
+    showLinkGroupAnnotations_ = oldNet.showLinkGroupAnnotations_;
+    layoutMode_ = oldNet.layoutMode_;
+    
+    //
+    // Node order is the old row order without the dropped nodes, then the new ones:
+    //
+    
+    Set<NetNode> dropNodes = update.getNodesToRemove();
+    for (NetNode node : dropNodes) {
+      if (!oldNet.nodeDefs_.containsKey(node)) {
+        throw new IllegalArgumentException();
+      }
+    }
+    ArrayList<Integer> oldRows = new ArrayList<Integer>();
+    Iterator<Integer> rit = oldNet.orderedRows();
+    while (rit.hasNext()) {
+      oldRows.add(rit.next());
+    }
+    int numOldRows = oldRows.size();
+    int[] rowMap = new int[(numOldRows == 0) ? 0 : oldRows.get(numOldRows - 1).intValue() + 1];
+    Arrays.fill(rowMap, -1);
+    ArrayList<NetNode> targetIDs = new ArrayList<NetNode>();
+    HashSet<NetNode> allNodes = new HashSet<NetNode>();
+    for (int i = 0; i < numOldRows; i++) {
+      Integer row = oldRows.get(i);
+      NetNode node = oldNet.getNodeIDForRow(row);
+      if (!dropNodes.contains(node)) {
+        rowMap[row.intValue()] = targetIDs.size();
+        targetIDs.add(node);
+        allNodes.add(node);
+      }
+    }
+    Map<NetNode, String> clustAssign = (oldNet.nodeClustersAssigned()) ? oldNet.nodeClusterAssigment() : null;
+    for (NetNode node : update.getNodesToAdd()) {
+      if (allNodes.add(node)) {
+        targetIDs.add(node);
+        if (clustAssign != null) {
+          clustAssign.put(node, "");
+        }
+      }
+    }
+    
+    //
+    // Link order is the old column order without the dropped links. Note where the
+    // survivors end up, for the annotations:
+    //
+    
+    HashSet<FabricLink> dropLinks = new HashSet<FabricLink>(update.getLinksToRemove());
+    int[] shadowColMap = new int[oldNet.getColumnCount(true) + 1];
+    int[] plainColMap = new int[oldNet.getColumnCount(false) + 1];
+    Arrays.fill(shadowColMap, -1);
+    Arrays.fill(plainColMap, -1);
+    ArrayList<NetLink> newOrder = new ArrayList<NetLink>();
+    HashSet<FabricLink> keptLinks = new HashSet<FabricLink>();
+    HashMap<String, Boolean> relDirs = new HashMap<String, Boolean>();
+    boolean adding = !update.getLinksToAdd().isEmpty();
+    int plainCount = 0;
+    
+    LoopReporter lr = new LoopReporter(oldNet.getLinkCount(true), 20, monitor, 0.0, 1.0, "progress.applyingUpdate");
+    Iterator<Integer> cit = oldNet.getOrderedLinkInfo(true);
+    while (cit.hasNext()) {
+      Integer col = cit.next();
+      lr.report();
+      LinkInfo li = oldNet.getLinkDefinition(col, true);
+      FabricLink link = li.getLink();
+      if (dropNodes.contains(link.getSrcNode()) || dropNodes.contains(link.getTrgNode())) {
+        continue;
+      }
+      FabricLink key = undirectedKey(link);
+      if (!dropLinks.isEmpty() && (dropLinks.contains(key) || (!link.isDirected() && !link.isFeedback() && dropLinks.contains(key.flipped())))) {
+        continue;
+      }
+      shadowColMap[col.intValue()] = newOrder.size();
+      newOrder.add(link);
+      if (!link.isShadow()) {
+        plainColMap[li.getUseColumn(false)] = plainCount++;
+        if (adding) {
+          keptLinks.add(key);
+          relDirs.put(DataUtil.normKey(link.getRelation()), Boolean.valueOf(link.isDirected()));
+        }
+      }
+    }
+    lr.finish();
+    
+    //
+    // New links go at the end. Ones we already have are skipped:
+    //
+    
+    for (FabricLink req : update.getLinksToAdd()) {
+      if (!allNodes.contains(req.getSrcNode()) || !allNodes.contains(req.getTrgNode())) {
+        throw new IllegalArgumentException();
+      }
+      Boolean dir;
+      if (req.directionFrozen()) {
+        dir = Boolean.valueOf(req.isDirected());
+      } else {
+        dir = relDirs.get(DataUtil.normKey(req.getRelation()));
+        if (dir == null) {
+          dir = Boolean.FALSE;
+        }
+      }
+      FabricLink key = undirectedKey(req);
+      if (keptLinks.contains(key) || (!dir.booleanValue() && !req.isFeedback() && keptLinks.contains(key.flipped()))) {
+        continue;
+      }
+      keptLinks.add(key);
+      relDirs.put(DataUtil.normKey(req.getRelation()), dir);
+      newOrder.add(new FabricLink(req.getSrcNode(), req.getTrgNode(), req.getRelation(), false, dir));
+      // We never create shadow feedback links!
+      if (!req.isFeedback()) {
+        newOrder.add(new FabricLink(req.getSrcNode(), req.getTrgNode(), req.getRelation(), true, dir));
+      }
+    }
+    
+    //
+    // Now it is a regular build from a specified order:
+    //
+    
+    HashSet<NetNode> loneNodes = new HashSet<NetNode>(allNodes);
+    TreeMap<Integer, NetLink> linkOrder = new TreeMap<Integer, NetLink>();
+    int numLinks = newOrder.size();
+    for (int i = 0; i < numLinks; i++) {
+      NetLink link = newOrder.get(i);
+      linkOrder.put(Integer.valueOf(i), link);
+      loneNodes.remove(link.getSrcNode());
+      loneNodes.remove(link.getTrgNode());
+    }
+    
+    fillNodesFromOrder(targetIDs, colGen_, clustAssign, monitor);
+    specifiedLinkToColumn(colGen_, linkOrder, false, monitor);
+    trimTargetRows(monitor);
+    loneNodesToLastColumn(loneNodes, monitor);
+    
+    nodeAnnot_ = remapAnnotations(oldNet.getNodeAnnotations(), rowMap);
+    linkAnnots_ = new HashMap<Boolean, AnnotationSet>();
+    linkAnnots_.put(Boolean.TRUE, remapAnnotations(oldNet.getLinkAnnotations(true), shadowColMap));
+    linkAnnots_.put(Boolean.FALSE, remapAnnotations(oldNet.getLinkAnnotations(false), plainColMap));
+    
+    buildAdjacency();
     return;
   }
   
+  /***************************************************************************
+  **
+  ** A non-shadow copy of the link with no direction, for matching up update requests
+  */
+  
+  private static FabricLink undirectedKey(FabricLink link) {
+    return (new FabricLink(link.getSrcNode(), link.getTrgNode(), link.getRelation(), false, null));
+  }
+  
+  /***************************************************************************
+  **
+  ** Move annotations onto the new rows or columns. The map gives the new position for
+  ** each old one, or -1 if it is gone. Annotations with nothing left are dropped.
+  */
+  
+  private static AnnotationSet remapAnnotations(AnnotationSet origAnnots, int[] oldToNew) {
+    AnnotationSet retval = new AnnotationSetImpl();
+    if (origAnnots == null) {
+      return (retval);
+    }
+    for (Annot origAnnot : origAnnots) {
+      MinMax range = origAnnot.getRange();
+      int min = Math.max(range.min, 0);
+      int max = Math.min(range.max, oldToNew.length - 1);
+      while ((min <= max) && (oldToNew[min] == -1)) {
+        min++;
+      }
+      while ((max >= min) && (oldToNew[max] == -1)) {
+        max--;
+      }
+      if (min > max) {
+        continue;
+      }
+      AnnotColorSource.AnnotColor color = origAnnot.getColor();
+      String colorName = (color == null) ? null : color.getName();
+      retval.addAnnot(new AnnotationSetImpl.AnnotImpl(origAnnot.getName(), oldToNew[min], oldToNew[max], 
+                                                      origAnnot.getLayer(), colorName));
+    }
+    return (retval);
+  }
+ 
   /***************************************************************************
   **
   ** Get specified node ID order list from attribute map
@@ -739,10 +1230,10 @@ public class BioFabricNetwork implements Network {
   
   public List<NetNode> existingIDOrder() {  
     ArrayList<NetNode> retval = new ArrayList<NetNode>();
-    Iterator<Integer> rtit = new TreeSet<Integer>(rowToTargID_.keySet()).iterator();
+    Iterator<Integer> rtit = orderedRows();
     while (rtit.hasNext()) {
       Integer row = rtit.next();
-      NetNode nodeID = rowToTargID_.get(row);
+      NetNode nodeID = getNodeIDForRow(row);
       retval.add(nodeID);
     }
     return (retval);
@@ -755,10 +1246,10 @@ public class BioFabricNetwork implements Network {
   
   public SortedMap<Integer, FabricLink> getExistingLinkOrder() {  
     TreeMap<Integer, FabricLink> retval = new TreeMap<Integer, FabricLink>();
-    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
+    Iterator<Integer> ldit = getOrderedLinkInfo(true);
     while (ldit.hasNext()) {
       Integer col = ldit.next();
-      LinkInfo li = fullLinkDefs_.get(col);
+      LinkInfo li = getLinkDefinition(col, true);
       FabricLink link = li.getLink();
       retval.put(col, link);
     }
@@ -794,118 +1285,51 @@ public class BioFabricNetwork implements Network {
     }
     lr.finish();
    
-    setDrainZonesWithMultipleLabels(true, monitor, 0.0, 0.5);
-    setDrainZonesWithMultipleLabels(false, monitor, 0.5, 1.0);
+    installLazyDrainZones();
  
     return;
   }
   
   /***************************************************************************
-   ** Calculates each MinMax region for every node's zero or more drain zones
   ** 
-   */
-  
-  private void setDrainZonesWithMultipleLabels(boolean forShadow,
-  		                                         BTProgressMonitor monitor, 
-					                                     double startFrac, 
-					                                     double endFrac) throws AsynchExitRequestException {
-    
-    List<LinkInfo> links = getLinkDefList(forShadow);
-    
-    if (links.isEmpty()) {
-    	return;
-    }
-    
-    int size = links.size() + nodeDefs_.size();
-    
-    String progressTag = (forShadow) ? "progress.findingDrainZonesWithShadow" : "progress.findingDrainZones";
-    LoopReporter lr = new LoopReporter(size, 20, monitor, startFrac, endFrac, progressTag);
-
-    Map<NetNode, List<DrainZone>> nodeToZones = new TreeMap<NetNode, List<DrainZone>>();
-
-    if (links.size() == 0) {
-      return;
-    }
-    LinkInfo current = links.get(0);  // these keep track of start of zone and zone's node
-    int startIdx = 0;
-    
-    for (int index = 0; index <= links.size(); index++) {
-      lr.report();
-      if (index == links.size()) {
-        
-        int endIdx = links.size() - 1;
-  
-        MinMax mm = new MinMax(startIdx, endIdx);
-        NetNode name = findZoneNode(mm, links);
-  
-        if (nodeToZones.get(name) == null) {
-          nodeToZones.put(name, new ArrayList<DrainZone>());
-        }
-        nodeToZones.get(name).add(new DrainZone(mm, forShadow));
-        
-      } else if (! isContiguous(links.get(index), current)) {
-        
-        int last = index - 1;  // backtrack one position
-  
-        MinMax mm = new MinMax(startIdx, last);
-        NetNode name = findZoneNode(mm, links);
+  ** Drain zones are worked out when they are first asked for, a band of rows at
+  ** a time. Hook up every node to do that.
+  */
   
-        if (nodeToZones.get(name) == null) {
-          nodeToZones.put(name, new ArrayList<DrainZone>());
-        }
-        nodeToZones.get(name).add(new DrainZone(mm, forShadow));
-        
-        startIdx = index;           // update the start index
-        current = links.get(index); // update the current node whose zone we're calculating
-      }    
-    }
-
-    for (Map.Entry<NetNode, List<DrainZone>> entry : nodeToZones.entrySet()) {     
-      NodeInfo ni = getNodeDefinition(entry.getKey());
-      lr.report();
-      ni.setDrainZones(entry.getValue(), forShadow);
+  private void installLazyDrainZones() {
+    drainZones_ = new DrainZoneCache(this);
+    for (NodeInfo ni : nodeDefs_.values()) {
+      ni.setDrainZoneSource(drainZones_);
     }
-    
-    lr.finish();
+    return;
   }
   
   /***************************************************************************
-   ** Returns true if two contiguous links are part of the same drain zone
-   **
-   */
+  ** 
+  ** For each link, in column order, the row it drains into: the top row for
+  ** regular links, the bottom row for shadow links.
+  */
   
-  private boolean isContiguous(LinkInfo A, LinkInfo B) {
-    
-    NetNode mainA;
-    if (A.isShadow()) {
-      mainA = getNodeIDForRow(A.bottomRow());
-    } else {
-      mainA = getNodeIDForRow(A.topRow());
-    }
-    
-    NetNode mainB;
-    if (B.isShadow()) {
-      mainB = getNodeIDForRow(B.bottomRow());
-    } else {
-      mainB = getNodeIDForRow(B.topRow());
+  int[] getDrainZoneRows(boolean forShadow) {
+    int numLinks = getLinkCount(forShadow);
+    int[] retval = new int[numLinks];
+    if (linkCols_ != null) {
+      for (int i = 0; i < numLinks; i++) {
+        retval[i] = linkCols_.getDrainRow(linkCols_.positionForOrdinal(i, forShadow));
+      }
+      return (retval);
     }
-    
-    return (mainA.equals(mainB));
-  }
-  
-  /***************************************************************************
-   * finds the node of the drain zone with bounds = MinMax([A,B])
-   */
-  
-  private NetNode findZoneNode(MinMax mm, List<LinkInfo> links) {
-    
-    LinkInfo li = links.get(mm.min); // checking min is enough
-
-    if (li.isShadow()) {
-      return (getNodeIDForRow(li.bottomRow()));
+    int count = 0;
+    if (forShadow) {
+      for (LinkInfo li : fullLinkDefs_.values()) {
+        retval[count++] = (li.isShadow()) ? li.bottomRow() : li.topRow();
+      }
     } else {
-      return (getNodeIDForRow(li.topRow()));
+      for (Integer mappedID : nonShadowedLinkMap_.values()) {
+        retval[count++] = fullLinkDefs_.get(mappedID).topRow();
+      }
     }
+    return (retval);
   }
    
   /***************************************************************************
@@ -914,11 +1338,23 @@ public class BioFabricNetwork implements Network {
   */
   
   public void writeXML(PrintWriter out, Indenter ind, BTProgressMonitor monitor, boolean forCache) throws AsynchExitRequestException {    
+    writeXML(out, ind, FabricDisplayOptionsManager.getMgr().getDisplayOptions(), monitor, forCache);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Dump the network using XML, with the given display options. A save running
+  ** off the UI thread passes a copy taken when it started.
+  */
+  
+  public void writeXML(PrintWriter out, Indenter ind, FabricDisplayOptions dops, 
+                       BTProgressMonitor monitor, boolean forCache) throws AsynchExitRequestException {    
     ind.indent();
     
-    int numNodes = rowToTargID_.size();
-    int numLinks = fullLinkDefs_.size();
-    int numLm = nonShadowedLinkMap_.size();
+    int numNodes = (linkCols_ != null) ? linkCols_.getRowsWithNodesCount() : rowToTargID_.size();
+    int numLinks = getLinkCount(true);
+    int numLm = getLinkCount(false);
     int numNA = (nodeAnnot_ == null) ? 0 : nodeAnnot_.size();
     int numLAs = (linkAnnots_ == null) ? 0 : linkAnnots_.get(Boolean.TRUE).size();
     int numLAns = (linkAnnots_ == null) ? 0 : linkAnnots_.get(Boolean.FALSE).size();
@@ -933,20 +1369,20 @@ public class BioFabricNetwork implements Network {
     // Display options:
     //
     
-    FabricDisplayOptionsManager.getMgr().writeXML(out, ind);
+    dops.writeXML(out, ind);
        
     //
     // Dump the nodes, then the links:
     //  
     
-    Iterator<Integer> r2tit = (new TreeSet<Integer>(rowToTargID_.keySet())).iterator();
+    Iterator<Integer> r2tit = orderedRows();
     ind.indent();
     out.println("<nodes>");
     ind.up();
     while (r2tit.hasNext()) {
       Integer row = r2tit.next();
       lr.report();
-      NetNode nodeID = rowToTargID_.get(row);
+      NetNode nodeID = getNodeIDForRow(row);
       NodeInfo ni = getNodeDefinition(nodeID);
       ni.writeXML(out, ind, row.intValue());
     }
@@ -974,14 +1410,14 @@ public class BioFabricNetwork implements Network {
     }
   
     HashMap<Integer, Integer> inverse = new HashMap<Integer, Integer>();
-    Iterator<Integer> nsit = nonShadowedLinkMap_.keySet().iterator();
+    Iterator<Integer> nsit = getOrderedLinkInfo(false);
     while (nsit.hasNext()) {
       Integer key = nsit.next();
       lr.report();
-      inverse.put(nonShadowedLinkMap_.get(key), key);
+      inverse.put(Integer.valueOf(getLinkDefinition(key, false).getUseColumn(true)), key);
     }    
     
-    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
+    Iterator<Integer> ldit = getOrderedLinkInfo(true);
     ind.indent();
     out.println("<links>");
     ind.up();
@@ -1059,6 +1495,20 @@ public class BioFabricNetwork implements Network {
     //
     // Let the plugins write to XML
     
+    writePlugInXML(out, ind);
+    
+    lr.finish();
+    ind.down().indent();
+    out.println("</BioFabric>"); 
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Dump the plugin data sets using XML
+  */
+  
+  void writePlugInXML(PrintWriter out, Indenter ind) {
     ind.indent();
     out.println("<plugInDataSets>");
     List<String> keyList = pMan_.getOrderedToolPlugInKeys();
@@ -1068,10 +1518,6 @@ public class BioFabricNetwork implements Network {
     }
     ind.indent();
     out.println("</plugInDataSets>");
-    
-    lr.finish();
-    ind.down().indent();
-    out.println("</BioFabric>"); 
     return;
   }
   
@@ -1082,10 +1528,10 @@ public class BioFabricNetwork implements Network {
   
   public void writeNOA(PrintWriter out) {    
     out.println("Node Row");
-    Iterator<Integer> r2tit = new TreeSet<Integer>(rowToTargID_.keySet()).iterator();
+    Iterator<Integer> r2tit = orderedRows();
     while (r2tit.hasNext()) {
       Integer row = r2tit.next();
-      NetNode nodeID = rowToTargID_.get(row);
+      NetNode nodeID = getNodeIDForRow(row);
       NodeInfo ni = getNodeDefinition(nodeID);
       out.print(ni.getNodeName());
       out.print(" = ");
@@ -1101,7 +1547,7 @@ public class BioFabricNetwork implements Network {
   
   public void writeEDA(PrintWriter out) {    
     out.println("Link Column");
-    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
+    Iterator<Integer> ldit = getOrderedLinkInfo(true);
     while (ldit.hasNext()) {
       Integer col = ldit.next();
       LinkInfo li = getLinkDefinition(col, true);
@@ -1139,6 +1585,10 @@ public class BioFabricNetwork implements Network {
   */
 
   public LinkInfo getLinkDefinition(Integer colObj, boolean forShadow) {
+    if (linkCols_ != null) {
+      int pos = linkCols_.positionForColumn(colObj.intValue(), forShadow);
+      return ((pos == -1) ? null : linkCols_.getLinkInfo(pos));
+    }
     if (forShadow) {
       return (fullLinkDefs_.get(colObj));
     } else {
@@ -1157,6 +1607,10 @@ public class BioFabricNetwork implements Network {
   */
 
   public NetNode getTargetIDForColumn(Integer colVal, boolean forShadow) {
+    if (linkCols_ != null) {
+      int pos = linkCols_.positionForColumn(colVal.intValue(), forShadow);
+      return ((pos == -1) ? null : linkCols_.getTarget(pos));
+    }
     ColumnAssign useCA = (forShadow) ? shadowCols_ : normalCols_;
     NetNode target = useCA.columnToTarget.get(colVal);
     return (target);
@@ -1170,9 +1624,8 @@ public class BioFabricNetwork implements Network {
   public NetNode getDrainForColumn(Integer colVal, boolean forShadow) {
   
     int col = colVal.intValue();
-    ColumnAssign useCA = (forShadow) ? shadowCols_ : normalCols_;
-    NetNode targetID = useCA.columnToTarget.get(colVal);
-    NetNode sourceID = useCA.columnToSource.get(colVal);
+    NetNode targetID = getTargetIDForColumn(colVal, forShadow);
+    NetNode sourceID = getSourceIDForColumn(colVal, forShadow);
     if (targetID != null) {
       NodeInfo nit = nodeDefs_.get(targetID);
       List<DrainZone> tdzs = nit.getDrainZones(forShadow);
@@ -1203,6 +1656,10 @@ public class BioFabricNetwork implements Network {
   */
 
   public NetNode getSourceIDForColumn(Integer colVal, boolean forShadow) {
+    if (linkCols_ != null) {
+      int pos = linkCols_.positionForColumn(colVal.intValue(), forShadow);
+      return ((pos == -1) ? null : linkCols_.getSource(pos));
+    }
     ColumnAssign useCA = (forShadow) ? shadowCols_ : normalCols_;
     NetNode source = useCA.columnToSource.get(colVal);
     return (source);
@@ -1214,6 +1671,9 @@ public class BioFabricNetwork implements Network {
   */
 
   public NetNode getNodeIDForRow(Integer rowObj) {
+    if (linkCols_ != null) {
+      return (linkCols_.getNodeForRow(rowObj.intValue()));
+    }
     NetNode node = rowToTargID_.get(rowObj);
     return (node);
   }
@@ -1224,6 +1684,9 @@ public class BioFabricNetwork implements Network {
   */
 
   public int getLinkCount(boolean forShadow) {
+    if (linkCols_ != null) {
+      return (linkCols_.getLinkCount(forShadow));
+    }
     return ((forShadow) ? fullLinkDefs_.size() : nonShadowedLinkMap_.size());
   } 
   
@@ -1255,6 +1718,52 @@ public class BioFabricNetwork implements Network {
     return (rowCount_);
   }
   
+  /***************************************************************************
+  ** 
+  ** Digest of everything that shows up in a drawing of the network: rows and
+  ** columns, names, color keys, annotations, colors, and the given display options.
+  ** Rows and links do not change once the network is built, so their part is
+  ** worked out once and kept. The rest is small and is hashed on every call.
+  */
+
+  public String getDrawingDigest(FabricDisplayOptions dops) {
+    DigestBuilder db = new DigestBuilder();
+    if (db.failed()) {
+      return (null);
+    }
+    db.addString(getLayoutDigest());
+    db.addInt(getRowCount());
+    db.addInt(getLinkCount(true));
+    db.addInt(getLinkCount(false));
+    db.addString((layoutMode_ == null) ? null : layoutMode_.getText());
+    if (linkGrouping_ != null) {
+      db.addInt(linkGrouping_.size());
+      for (String group : linkGrouping_) {
+        db.addString(group);
+      }
+    }
+    db.addInt((showLinkGroupAnnotations_) ? 1 : 0);
+    addAnnotsToDigest(db, nodeAnnot_);
+    if (linkAnnots_ != null) {
+      addAnnotsToDigest(db, linkAnnots_.get(Boolean.TRUE));
+      addAnnotsToDigest(db, linkAnnots_.get(Boolean.FALSE));
+    }
+    int[] targets = new int[] {FabricColorGenerator.BRIGHTER, FabricColorGenerator.DARKER};
+    for (int target : targets) {
+      Map<String, Color> colors = colGen_.getColorsForIO(target);
+      db.addInt(colors.size());
+      for (Map.Entry<String, Color> entry : new TreeMap<String, Color>(colors).entrySet()) {
+        db.addString(entry.getKey());
+        db.addInt(entry.getValue().getRGB());
+      }
+    }
+    String[] optVals = dops.getValuesForIO();
+    for (String val : optVals) {
+      db.addString(val);
+    }
+    return (db.finish());
+  }
+  
   /***************************************************************************
   **
   ** Stash plugin data for extraction
@@ -1303,6 +1812,14 @@ public class BioFabricNetwork implements Network {
   */
 
   public List<LinkInfo> getLinkDefList(boolean forShadow) {
+    if (linkCols_ != null) {
+      int numLinks = linkCols_.getLinkCount(forShadow);
+      ArrayList<LinkInfo> retval = new ArrayList<LinkInfo>(numLinks);
+      for (int i = 0; i < numLinks; i++) {
+        retval.add(linkCols_.getLinkInfo(linkCols_.positionForOrdinal(i, forShadow)));
+      }
+      return (retval);
+    }
     if (forShadow) {
       return (new ArrayList<LinkInfo>(fullLinkDefs_.values()));
     } else {
@@ -1341,16 +1858,153 @@ public class BioFabricNetwork implements Network {
   */
 
   public Set<NetNode> nodeMatches(boolean fullMatch, String searchString) {
-    HashSet<NetNode> retval = new HashSet<NetNode>();
-    Iterator<NetNode> nkit = nodeDefs_.keySet().iterator();
-    while (nkit.hasNext()) {
-      NetNode nodeID = nkit.next();
-      String nodeName = nodeDefs_.get(nodeID).getNodeName();
-      if (matches(searchString, nodeName, fullMatch)) {
-        retval.add(nodeID);
+    return (getNameIndex().matches(fullMatch, searchString));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add estimated heap bytes for the link defs, node defs, drain zones, indexes
+  ** and annotations to the footprint report. Nodes and their names are counted
+  ** with the node defs; links just point at them.
+  */
+
+  public synchronized void reportFootprint(HeapFootprint fp) {
+    String me = "BioFabricNetwork";
+    int numLinks = getLinkCount(true);
+    
+    long linkBytes;
+    if (linkCols_ != null) {
+      linkBytes = linkCols_.estimateBytes();
+    } else {
+      long linkInfo = HeapFootprint.object(24) + HeapFootprint.object(17);
+      linkBytes = HeapFootprint.treeMap(fullLinkDefs_.size()) + (fullLinkDefs_.size() * (HeapFootprint.INTEGER + linkInfo));
+      linkBytes += HeapFootprint.treeMap(nonShadowedLinkMap_.size()) + (nonShadowedLinkMap_.size() * 2 * HeapFootprint.INTEGER);
+      linkBytes += HeapFootprint.hashMap(rowToTargID_.size()) + (rowToTargID_.size() * HeapFootprint.INTEGER);
+    }
+    fp.add(me, "link defs", numLinks, linkBytes);
+    
+    long colBytes = 0L;
+    ColumnAssign[] assigns = new ColumnAssign[] {normalCols_, shadowCols_};
+    for (ColumnAssign ca : assigns) {
+      if (ca != null) {
+        colBytes += HeapFootprint.hashMap(ca.columnToSource.size()) + HeapFootprint.hashMap(ca.columnToTarget.size()); 
+        colBytes += (ca.columnToSource.size() + ca.columnToTarget.size()) * HeapFootprint.INTEGER;
       }
-    }    
-    return (retval);
+    }
+    fp.add(me, "column assignments", numLinks, colBytes);
+    fp.add(me, "link adjacency", numLinks, (adjacency_ == null) ? 0L : adjacency_.estimateBytes());
+    
+    int numNodes = nodeDefs_.size();
+    long nodeInfo = HeapFootprint.object(40) + (2 * HeapFootprint.MIN_MAX);
+    long netNode = HeapFootprint.object(8) + HeapFootprint.object(8) + HeapFootprint.object(4);
+    long nodeBytes = HeapFootprint.hashMap(numNodes);
+    long heldZoneBytes = 0L;
+    for (NodeInfo ni : nodeDefs_.values()) {
+      nodeBytes += nodeInfo + netNode + HeapFootprint.string(ni.getNodeName()) + HeapFootprint.string(ni.getNodeID().getInternal());
+      nodeBytes += HeapFootprint.string(ni.cluster_);
+      if (ni.zoneSource_ == null) {
+        heldZoneBytes += DrainZone.estimateBytes(ni.shadowDrainZones_) + DrainZone.estimateBytes(ni.plainDrainZones_);
+      }
+    }
+    if (nodeIndex_ != null) {
+      nodeBytes += HeapFootprint.refArray(nodeIndex_.size()) + HeapFootprint.intArray(indexToRow_.length);
+    }
+    fp.add(me, "node defs", numNodes, nodeBytes);
+    long cachedZoneBytes = (drainZones_ == null) ? 0L : drainZones_.estimateBytes();
+    fp.add(me, "drain zones", numNodes, heldZoneBytes + cachedZoneBytes);
+    fp.add(me, "name search index", numNodes, (nameIndex_ == null) ? 0L : nameIndex_.estimateBytes());
+    
+    int numAnnots = 0;
+    long annotBytes = 0L;
+    ArrayList<AnnotationSet> sets = new ArrayList<AnnotationSet>();
+    sets.add(nodeAnnot_);
+    Map<Boolean, AnnotationSet> linkAnnots = linkAnnots_;
+    if (linkAnnots != null) {
+      sets.addAll(linkAnnots.values());
+    }
+    for (AnnotationSet aSet : sets) {
+      if (aSet == null) {
+        continue;
+      }
+      annotBytes += HeapFootprint.treeMap(aSet.size());
+      for (Annot an : aSet) {
+        annotBytes += HeapFootprint.object(16) + HeapFootprint.MIN_MAX + HeapFootprint.string(an.getName());
+        numAnnots++;
+      }
+    }
+    fp.add(me, "annotations", numAnnots, annotBytes);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the node name search index if it has been built, else null. Never waits.
+  */
+
+  public NodeNameIndex getNameIndexIfBuilt() {
+    return (nameIndex_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Build the node name search index on a background thread, so the first search
+  ** does not have to. If not null, whenReady is run once the index is built, on
+  ** the builder thread (or right away if it already exists).
+  */
+
+  public void prepareNameIndex(final Runnable whenReady) {
+    if (nameIndex_ != null) {
+      if (whenReady != null) {
+        whenReady.run();
+      }
+      return;
+    }
+    Thread runThread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          getNameIndex();
+        } catch (OutOfMemoryError oom) {
+          // A search will try again and report it
+          return;
+        }
+        if (whenReady != null) {
+          whenReady.run();
+        }
+        return;
+      }
+    }, "NameIndexBuilder");
+    runThread.setDaemon(true);
+    runThread.setPriority(Thread.MIN_PRIORITY);
+    runThread.start();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the node name search index, building it on first use
+  */
+
+  public synchronized NodeNameIndex getNameIndex() {
+    if (nameIndex_ == null) {
+      int numNodes = nodeIndex_.size();
+      NetNode[] nodes = new NetNode[numNodes];
+      String[] names = new String[numNodes];
+      for (int i = 0; i < numNodes; i++) {
+        nodes[i] = nodeIndex_.getNode(i);
+        names[i] = nodeDefs_.get(nodes[i]).getNodeName();
+      }
+      nameIndex_ = new NodeNameIndex(nodes, names);
+    }
+    return (nameIndex_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the dense node numbering for this network. Nodes are numbered in row order.
+  */
+
+  public NodeIndex getNodeIndex() {
+    return (nodeIndex_);
   }
   
   /***************************************************************************
@@ -1359,16 +2013,13 @@ public class BioFabricNetwork implements Network {
   */
 
   public void getFirstNeighbors(NetNode nodeID, Set<NetNode> nodeSet, List<NodeInfo> nodes, List<LinkInfo> links) {
-    Iterator<LinkInfo> ldit = fullLinkDefs_.values().iterator();
-    while (ldit.hasNext()) {
-      LinkInfo linf = ldit.next();
-      if (linf.getSource().equals(nodeID)) {
-        nodeSet.add(linf.getTarget());
-        links.add(linf);
-      } else if (linf.getTarget().equals(nodeID)) {
-        nodeSet.add(linf.getSource());
-        links.add(linf);
-      }
+    int row = rowForNode(nodeID);
+    int degree = adjacency_.getDegree(row, true);
+    for (int i = 0; i < degree; i++) {
+      Integer col = Integer.valueOf(adjacency_.getColumn(row, i, true));
+      LinkInfo linf = getLinkDefinition(col, true);
+      nodeSet.add(otherEnd(linf.getSource(), linf.getTarget(), nodeID));
+      links.add(linf);
     }
     Iterator<NetNode> nsit = nodeSet.iterator();
     while (nsit.hasNext()) {
@@ -1385,14 +2036,11 @@ public class BioFabricNetwork implements Network {
 
   public Set<NetNode> getFirstNeighbors(NetNode nodeID) {
     HashSet<NetNode> nodeSet = new HashSet<NetNode>();
-    Iterator<LinkInfo> ldit = fullLinkDefs_.values().iterator();
-    while (ldit.hasNext()) {
-      LinkInfo linf = ldit.next();
-      if (linf.getSource().equals(nodeID)) {
-        nodeSet.add(linf.getTarget());
-      } else if (linf.getTarget().equals(nodeID)) {
-        nodeSet.add(linf.getSource());
-      }
+    int row = rowForNode(nodeID);
+    int degree = adjacency_.getDegree(row, true);
+    for (int i = 0; i < degree; i++) {
+      Integer col = Integer.valueOf(adjacency_.getColumn(row, i, true));
+      nodeSet.add(otherEnd(getSourceIDForColumn(col, true), getTargetIDForColumn(col, true), nodeID));
     }
     return (nodeSet);
   }
@@ -1404,40 +2052,28 @@ public class BioFabricNetwork implements Network {
 
   public void addFirstNeighbors(Set<NetNode> nodeSet, Set<Integer> columnSet, Set<FabricLink> linkSet, boolean forShadow) {
     HashSet<NetNode> newNodes = new HashSet<NetNode>();
-    Iterator<LinkInfo> ldit = fullLinkDefs_.values().iterator();
-    while (ldit.hasNext()) {
-      LinkInfo linf = ldit.next();
-      if (!forShadow && linf.isShadow()) {
-        continue;
-      }
-      if (nodeSet.contains(linf.getSource())) {
-        newNodes.add(linf.getTarget());
-        columnSet.add(Integer.valueOf(linf.getUseColumn(forShadow)));
-        linkSet.add(linf.getLink());
-      }
-      if (nodeSet.contains(linf.getTarget())) {
-        newNodes.add(linf.getSource());
-        columnSet.add(Integer.valueOf(linf.getUseColumn(forShadow)));
+    for (NetNode node : nodeSet) {
+      int row = rowForNode(node);
+      int degree = adjacency_.getDegree(row, forShadow);
+      for (int i = 0; i < degree; i++) {
+        Integer col = Integer.valueOf(adjacency_.getColumn(row, i, forShadow));
+        columnSet.add(col);
+        LinkInfo linf = getLinkDefinition(col, forShadow);
+        newNodes.add(otherEnd(linf.getSource(), linf.getTarget(), node));
         linkSet.add(linf.getLink());
       }
     }
     nodeSet.addAll(newNodes);
     return;
   }
-
+  
   /***************************************************************************
-  **
-  ** Do the match
   ** 
+  ** The end of a link that is not the given node (the node itself for a feedback link)
   */
- 
-  private boolean matches(String searchString, String nodeName, boolean isFull) {
-    String canonicalNodeName = DataUtil.normKey(nodeName);
-    if (isFull) {
-      return (canonicalNodeName.equals(searchString));
-    } else {
-      return (canonicalNodeName.indexOf(searchString) != -1);
-    }
+
+  private NetNode otherEnd(NetNode src, NetNode trg, NetNode node) {
+    return ((src.equals(node)) ? trg : src);
   }
 
   /***************************************************************************
@@ -1849,6 +2485,7 @@ public class BioFabricNetwork implements Network {
     	}
     }
     
+    buildAdjacency();
     return;
   }
 
@@ -2023,7 +2660,17 @@ public class BioFabricNetwork implements Network {
 
   public Set<NetNode> getLoneNodes(BTProgressMonitor monitor) throws AsynchExitRequestException { 
     HashSet<NetNode> retval = new HashSet<NetNode>(nodeDefs_.keySet());
-    LoopReporter lr = new LoopReporter(fullLinkDefs_.size(), 20, monitor, 0.0, 1.0, "progress.findingLoneNodes");   
+    LoopReporter lr = new LoopReporter(getLinkCount(true), 20, monitor, 0.0, 1.0, "progress.findingLoneNodes");   
+    if (linkCols_ != null) {
+      int numLinks = linkCols_.getLinkCount(true);
+      for (int i = 0; i < numLinks; i++) {
+        lr.report();
+        retval.remove(linkCols_.getSource(i));
+        retval.remove(linkCols_.getTarget(i));
+      }
+      lr.finish();
+      return (retval);
+    }
     for (LinkInfo lif : fullLinkDefs_.values()) {
       lr.report();
       NetLink link = lif.getLink();
@@ -2268,6 +2915,7 @@ public class BioFabricNetwork implements Network {
     
     private List<DrainZone> shadowDrainZones_;
     private List<DrainZone> plainDrainZones_;
+    private DrainZoneCache zoneSource_;
     
     NodeInfo(NID nodeID, String nodeName, int nodeRow, String colorKey) {
     	nodeID_ = nodeID;
@@ -2281,6 +2929,7 @@ public class BioFabricNetwork implements Network {
       shadowDrainZones_ = new ArrayList<DrainZone>();
       cluster_ = null;
       plainDrainZones_ = new ArrayList<DrainZone>();
+      zoneSource_ = null;
     }
       
     public String getNodeName() { 
@@ -2296,10 +2945,39 @@ public class BioFabricNetwork implements Network {
     } 
  
     public List<DrainZone> getDrainZones(boolean forShadow) {
+      if (zoneSource_ != null) {
+        return (new ArrayList<DrainZone>(zoneSource_.getDrainZones(nodeRow, forShadow)));
+      }
       return (forShadow) ? new ArrayList<DrainZone>(shadowDrainZones_) : new ArrayList<DrainZone>(plainDrainZones_);
     }
     
+    /***************************************************************************
+    **
+    ** Have drain zones worked out on demand by the given source. Null to go back
+    ** to the zones held here.
+    */
+    
+    void setDrainZoneSource(DrainZoneCache source) {
+      zoneSource_ = source;
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Before changing zones by hand, grab the on-demand ones to start from
+    */
+    
+    private void holdDrainZones() {
+      if (zoneSource_ != null) {
+        shadowDrainZones_ = getDrainZones(true);
+        plainDrainZones_ = getDrainZones(false);
+        zoneSource_ = null;
+      }
+      return;
+    }
+    
     public void addDrainZone(DrainZone dz) {
+      holdDrainZones();
       if (dz.isShadow()) {
         shadowDrainZones_.add(dz);
       } else {
@@ -2309,6 +2987,7 @@ public class BioFabricNetwork implements Network {
     }
   
     public void setDrainZones(List<DrainZone> zones, boolean forShadow) {
+      holdDrainZones();
       if (forShadow) {
         shadowDrainZones_ = new ArrayList<DrainZone>(zones);
       } else {
@@ -2372,12 +3051,15 @@ public class BioFabricNetwork implements Network {
       // DRAIN ZONES XML
       //
       
+      List<DrainZone> plainZones = getDrainZones(false);
+      List<DrainZone> shadowZones = getDrainZones(true);
+      
       ind.up();
       ind.indent();
-      if (this.plainDrainZones_.size() > 0) {
+      if (plainZones.size() > 0) {
         out.println("<drainZones>");
         ind.up();
-        for (DrainZone dz : this.plainDrainZones_) {
+        for (DrainZone dz : plainZones) {
           dz.writeXML(out, ind);
         }
         ind.down();
@@ -2388,10 +3070,10 @@ public class BioFabricNetwork implements Network {
       }
       
       ind.indent();
-      if (this.shadowDrainZones_.size() > 0) {
+      if (shadowZones.size() > 0) {
         out.println("<drainZonesShadow>");
         ind.up();
-        for (DrainZone dzSha : this.shadowDrainZones_) {
+        for (DrainZone dzSha : shadowZones) {
           dzSha.writeXML(out, ind);
         }
         ind.down();
@@ -2447,6 +3129,65 @@ public class BioFabricNetwork implements Network {
     public MinMax getMinMax() {
       return dzmm;
     }
+    
+    static long estimateBytes(List<DrainZone> zones) {
+      if (zones.isEmpty()) {
+        return (0L);
+      }
+      return (HeapFootprint.arrayList(zones.size()) + (zones.size() * (HeapFootprint.object(8) + HeapFootprint.MIN_MAX)));
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Feeds ints and strings into a SHA-1 digest
+  */  
+  
+  private static class DigestBuilder {
+    private MessageDigest md_;
+    private byte[] intBytes_;
+    
+    DigestBuilder() {
+      try {
+        md_ = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException nsae) {
+        md_ = null;
+      }
+      intBytes_ = new byte[4];
+    }
+    
+    boolean failed() {
+      return (md_ == null);
+    }
+    
+    void addInt(int val) {
+      intBytes_[0] = (byte)(val >>> 24);
+      intBytes_[1] = (byte)(val >>> 16);
+      intBytes_[2] = (byte)(val >>> 8);
+      intBytes_[3] = (byte)val;
+      md_.update(intBytes_);
+      return;
+    }
+    
+    void addString(String val) {
+      if (val == null) {
+        addInt(-1);
+        return;
+      }
+      byte[] bytes;
+      try {
+        bytes = val.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException ueex) {
+        throw new IllegalStateException();
+      }
+      addInt(bytes.length);
+      md_.update(bytes);
+      return;
+    }
+    
+    String finish() {
+      return (DataUtil.toHexString(md_.digest()));
+    }
   }
   
   /***************************************************************************
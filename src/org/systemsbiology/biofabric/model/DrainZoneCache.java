@@ -0,0 +1,268 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.systemsbiology.biofabric.api.util.MinMax;
+import org.systemsbiology.biofabric.util.HeapFootprint;
+
+/****************************************************************************
+**
+** Drain zones for a BioFabricNetwork, worked out when they are first asked for
+** instead of for every node at build time. A drain zone is a maximal run of
+** consecutive link columns that all drain into the same node row (the top row
+** of a regular link, the bottom row of a shadow link). On first use for a shadow
+** state, one pass over the links records each run as a pair of ints, grouped by
+** row. DrainZone objects are then built a band of rows at a time, and only the
+** most recently used bands are kept.
+*/
+
+class DrainZoneCache {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int BAND_ROWS_ = 256;
+  private static final int MAX_BANDS_ = 64;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private BioFabricNetwork bfn_;
+  private ZoneRuns shadowRuns_;
+  private ZoneRuns plainRuns_;
+  private BandCache shadowBands_;
+  private BandCache plainBands_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Nothing is computed until asked for.
+  */
+
+  DrainZoneCache(BioFabricNetwork bfn) {
+    bfn_ = bfn;
+    shadowBands_ = new BandCache();
+    plainBands_ = new BandCache();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the drain zones for the node in the given row, in column order. The
+  ** list is shared with the cache and must not be changed.
+  */
+  
+  synchronized List<BioFabricNetwork.DrainZone> getDrainZones(int row, boolean forShadow) {
+    ZoneRuns runs = getRuns(forShadow);
+    if ((row < 0) || (row >= runs.numRows)) {
+      return (Collections.<BioFabricNetwork.DrainZone>emptyList());
+    }
+    BandCache bands = (forShadow) ? shadowBands_ : plainBands_;
+    Integer bandKey = Integer.valueOf(row / BAND_ROWS_);
+    List<List<BioFabricNetwork.DrainZone>> band = bands.get(bandKey);
+    if (band == null) {
+      band = buildBand(runs, bandKey.intValue(), forShadow);
+      bands.put(bandKey, band);
+    }
+    return (band.get(row % BAND_ROWS_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Estimated heap bytes for the runs and the bands of zones we are holding
+  */
+  
+  synchronized long estimateBytes() {
+    long retval = HeapFootprint.object(20);
+    ZoneRuns[] allRuns = new ZoneRuns[] {shadowRuns_, plainRuns_};
+    for (ZoneRuns runs : allRuns) {
+      if (runs != null) {
+        retval += HeapFootprint.object(16) + HeapFootprint.intArray(runs.rowStart.length) + 
+                  HeapFootprint.intArray(runs.runMin.length) + HeapFootprint.intArray(runs.runMax.length);
+      }
+    }
+    BandCache[] allBands = new BandCache[] {shadowBands_, plainBands_};
+    for (BandCache bands : allBands) {
+      retval += HeapFootprint.linkedHashMap(bands.size());
+      for (List<List<BioFabricNetwork.DrainZone>> band : bands.values()) {
+        retval += HeapFootprint.INTEGER + HeapFootprint.arrayList(band.size());
+        for (List<BioFabricNetwork.DrainZone> zones : band) {
+          retval += BioFabricNetwork.DrainZone.estimateBytes(zones);
+        }
+      }
+    }
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the zone runs for a shadow state, building them on first use
+  */
+  
+  private ZoneRuns getRuns(boolean forShadow) {
+    ZoneRuns retval = (forShadow) ? shadowRuns_ : plainRuns_;
+    if (retval == null) {
+      retval = new ZoneRuns(bfn_.getDrainZoneRows(forShadow), bfn_.getRowCount());
+      if (forShadow) {
+        shadowRuns_ = retval;
+      } else {
+        plainRuns_ = retval;
+      }
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the drain zones for a band of rows
+  */
+  
+  private List<List<BioFabricNetwork.DrainZone>> buildBand(ZoneRuns runs, int band, boolean forShadow) {
+    int firstRow = band * BAND_ROWS_;
+    ArrayList<List<BioFabricNetwork.DrainZone>> retval = new ArrayList<List<BioFabricNetwork.DrainZone>>(BAND_ROWS_);
+    for (int i = 0; i < BAND_ROWS_; i++) {
+      int row = firstRow + i;
+      if (row >= runs.numRows) {
+        retval.add(Collections.<BioFabricNetwork.DrainZone>emptyList());
+        continue;
+      }
+      int start = runs.rowStart[row];
+      int end = runs.rowStart[row + 1];
+      if (start == end) {
+        retval.add(Collections.<BioFabricNetwork.DrainZone>emptyList());
+        continue;
+      }
+      ArrayList<BioFabricNetwork.DrainZone> zones = new ArrayList<BioFabricNetwork.DrainZone>(end - start);
+      for (int j = start; j < end; j++) {
+        zones.add(new BioFabricNetwork.DrainZone(new MinMax(runs.runMin[j], runs.runMax[j]), forShadow));
+      }
+      retval.add(zones);
+    }
+    return (retval);
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Drain zone runs, grouped by row in compressed sparse row form. Runs for a
+  ** row are in column order.
+  */
+  
+  private static class ZoneRuns {
+    int numRows;
+    int[] rowStart;
+    int[] runMin;
+    int[] runMax;
+    
+    ZoneRuns(int[] zoneRows, int rowCount) {
+      int numLinks = zoneRows.length;
+      numRows = rowCount;
+      for (int i = 0; i < numLinks; i++) {
+        numRows = Math.max(numRows, zoneRows[i] + 1);
+      }
+      
+      //
+      // Count the runs for each row, then turn counts into starting offsets:
+      //
+      
+      rowStart = new int[numRows + 1];
+      for (int i = 0; i < numLinks; i++) {
+        if ((i == 0) || (zoneRows[i] != zoneRows[i - 1])) {
+          rowStart[zoneRows[i] + 1]++;
+        }
+      }
+      for (int i = 0; i < numRows; i++) {
+        rowStart[i + 1] += rowStart[i];
+      }
+      
+      //
+      // Fill, in column order:
+      //
+      
+      int numRuns = rowStart[numRows];
+      runMin = new int[numRuns];
+      runMax = new int[numRuns];
+      int[] fill = new int[numRows];
+      System.arraycopy(rowStart, 0, fill, 0, numRows);
+      int runStart = 0;
+      for (int i = 1; i <= numLinks; i++) {
+        if ((i == numLinks) || (zoneRows[i] != zoneRows[i - 1])) {
+          int row = zoneRows[i - 1];
+          int slot = fill[row]++;
+          runMin[slot] = runStart;
+          runMax[slot] = i - 1;
+          runStart = i;
+        }
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Least recently used bands of drain zones
+  */
+  
+  private static class BandCache extends LinkedHashMap<Integer, List<List<BioFabricNetwork.DrainZone>>> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    BandCache() {
+      super(16, 0.75F, true);
+    }
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, List<List<BioFabricNetwork.DrainZone>>> eldest) {
+      return (size() > MAX_BANDS_);
+    }
+  }
+}
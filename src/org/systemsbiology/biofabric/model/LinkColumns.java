@@ -0,0 +1,645 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.util.NID;
+import org.systemsbiology.biofabric.util.HeapFootprint;
+
+/****************************************************************************
+**
+** Compact, read-only storage of the link and row layout of a BioFabricNetwork.
+** Instead of maps from boxed columns and rows to objects, each link attribute
+** is an int array. Nodes, relations and color keys are held once in tables and
+** referenced by index. LinkInfo objects are built on demand.
+**
+** Shadow links are virtual: a shadow link that mirrors a regular link (same
+** ends, relation, direction and rows) is not stored as a link of its own, but
+** is just a column position pointing back at its twin, plus its color. Only
+** shadows with no such twin get a full link record.
+*/
+
+class LinkColumns {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int SHADOW_FLAG_ = 0x01;
+  private static final int DIRECTED_FLAG_ = 0x02;
+  private static final int UNDIRECTED_FLAG_ = 0x04;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // Rows:
+  //
+  
+  private NetNode[] rowNodes_;
+  private int numRowsWithNodes_;
+  
+  //
+  // Lookup tables:
+  //
+  
+  private NetNode[] nodes_;
+  private String[] relations_;
+  private String[] colorKeys_;
+  
+  //
+  // Link positions, in shadow column order. Shadow column keys are null if they
+  // are just 0..n-1. Each position points to a link record, or holds ~record for
+  // the virtual shadow of that record. Record keys are null if position and record
+  // are the same for every link:
+  //
+  
+  private int numLinks_;
+  private int[] shadowCols_;
+  private int[] posToRec_;
+  private int[] colorKey_;
+  
+  //
+  // Link records. These are the regular links plus any shadow links without a twin:
+  //
+  
+  private int numRecs_;
+  private int[] plainCol_;
+  private int[] srcNode_;
+  private int[] trgNode_;
+  private int[] startRow_;
+  private int[] endRow_;
+  private int[] relation_;
+  private byte[] flags_;
+  
+  //
+  // Non-shadow columns, sorted, with the position of each link. Keys are null
+  // if they are just 0..n-1:
+  //
+  
+  private int numPlain_;
+  private int[] plainCols_;
+  private int[] plainToPos_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build from the map-based storage
+  */
+
+  LinkColumns(TreeMap<Integer, BioFabricNetwork.LinkInfo> fullLinkDefs, 
+              TreeMap<Integer, Integer> nonShadowedLinkMap, 
+              Map<Integer, NetNode> rowToTargID) {
+    
+    HashMap<NetNode, Integer> nodeIndex = new HashMap<NetNode, Integer>();
+    ArrayList<NetNode> nodeList = new ArrayList<NetNode>();
+    
+    //
+    // Rows. Row nodes go into the node table first, so links share the same objects:
+    //
+    
+    int maxRow = -1;
+    for (Integer row : rowToTargID.keySet()) {
+      maxRow = Math.max(maxRow, row.intValue());
+    }
+    rowNodes_ = new NetNode[maxRow + 1];
+    for (Map.Entry<Integer, NetNode> entry : rowToTargID.entrySet()) {
+      NetNode node = entry.getValue();
+      rowNodes_[entry.getKey().intValue()] = nodeList.get(nodeIndex(node, nodeIndex, nodeList));
+    }
+    numRowsWithNodes_ = rowToTargID.size();
+    
+    //
+    // Links. First pass gives each regular link a record, second pass hooks each
+    // shadow link to its twin if it has one, else gives it a record too:
+    //
+    
+    numLinks_ = fullLinkDefs.size();
+    BioFabricNetwork.LinkInfo[] infos = fullLinkDefs.values().toArray(new BioFabricNetwork.LinkInfo[numLinks_]);
+    posToRec_ = new int[numLinks_];
+    HashMap<FabricLink, Integer> twinCandidates = new HashMap<FabricLink, Integer>();
+    numRecs_ = 0;
+    for (int i = 0; i < numLinks_; i++) {
+      FabricLink link = infos[i].getLink();
+      if (!link.isShadow()) {
+        posToRec_[i] = numRecs_++;
+        twinCandidates.put(link, Integer.valueOf(i));
+      }
+    }
+    BitSet twinned = new BitSet(numLinks_);
+    for (int i = 0; i < numLinks_; i++) {
+      BioFabricNetwork.LinkInfo li = infos[i];
+      FabricLink link = li.getLink();
+      if (!link.isShadow()) {
+        continue;
+      }
+      FabricLink asRegular = link.clone();
+      asRegular.dropShadowStatus();
+      Integer twinPos = twinCandidates.get(asRegular);
+      if (twinPos != null) {
+        int twin = twinPos.intValue();
+        BioFabricNetwork.LinkInfo twinInfo = infos[twin];
+        if (!twinned.get(twin) && (twinInfo.getStartRow() == li.getStartRow()) && (twinInfo.getEndRow() == li.getEndRow())) {
+          twinned.set(twin);
+          posToRec_[i] = ~posToRec_[twin];
+          continue;
+        }
+      }
+      posToRec_[i] = numRecs_++;
+    }
+    twinCandidates = null;
+    
+    shadowCols_ = new int[numLinks_];
+    colorKey_ = new int[numLinks_];
+    plainCol_ = new int[numRecs_];
+    srcNode_ = new int[numRecs_];
+    trgNode_ = new int[numRecs_];
+    startRow_ = new int[numRecs_];
+    endRow_ = new int[numRecs_];
+    relation_ = new int[numRecs_];
+    flags_ = new byte[numRecs_];
+    
+    HashMap<String, Integer> relIndex = new HashMap<String, Integer>();
+    ArrayList<String> relList = new ArrayList<String>();
+    HashMap<String, Integer> colIndex = new HashMap<String, Integer>();
+    ArrayList<String> colList = new ArrayList<String>();
+    HashMap<Integer, Integer> shadowColToPos = new HashMap<Integer, Integer>();
+    
+    boolean dense = true;
+    boolean sameRecs = true;
+    int pos = 0;
+    for (Integer colObj : fullLinkDefs.keySet()) {
+      int col = colObj.intValue();
+      BioFabricNetwork.LinkInfo li = infos[pos];
+      dense &= (col == pos);
+      shadowCols_[pos] = col;
+      shadowColToPos.put(colObj, Integer.valueOf(pos));
+      colorKey_[pos] = tableIndex(li.getColorKey(), colIndex, colList);
+      int rec = posToRec_[pos];
+      sameRecs &= (rec == pos);
+      if (rec >= 0) {
+        FabricLink link = li.getLink();
+        srcNode_[rec] = nodeIndex(link.getSrcNode(), nodeIndex, nodeList);
+        trgNode_[rec] = nodeIndex(link.getTrgNode(), nodeIndex, nodeList);
+        startRow_[rec] = li.getStartRow();
+        endRow_[rec] = li.getEndRow();
+        plainCol_[rec] = (link.isShadow()) ? Integer.MIN_VALUE : li.getUseColumn(false);
+        relation_[rec] = tableIndex(link.getRelation(), relIndex, relList);
+        int flags = (link.isShadow()) ? SHADOW_FLAG_ : 0;
+        if (link.directionFrozen()) {
+          flags |= (link.isDirected()) ? DIRECTED_FLAG_ : UNDIRECTED_FLAG_;
+        }
+        flags_[rec] = (byte)flags;
+      }
+      pos++;
+    }
+    infos = null;
+    if (dense) {
+      shadowCols_ = null;
+    }
+    if (sameRecs) {
+      posToRec_ = null;
+    }
+    
+    numPlain_ = nonShadowedLinkMap.size();
+    plainCols_ = new int[numPlain_];
+    plainToPos_ = new int[numPlain_];
+    boolean plainDense = true;
+    int ppos = 0;
+    for (Map.Entry<Integer, Integer> entry : nonShadowedLinkMap.entrySet()) {
+      int col = entry.getKey().intValue();
+      plainDense &= (col == ppos);
+      plainCols_[ppos] = col;
+      plainToPos_[ppos] = shadowColToPos.get(entry.getValue()).intValue();
+      ppos++;
+    }
+    if (plainDense) {
+      plainCols_ = null;
+    }
+    
+    nodes_ = nodeList.toArray(new NetNode[nodeList.size()]);
+    relations_ = relList.toArray(new String[relList.size()]);
+    colorKeys_ = colList.toArray(new String[colList.size()]);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of links
+  */
+  
+  int getLinkCount(boolean forShadow) {
+    return ((forShadow) ? numLinks_ : numPlain_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of rows that have a node
+  */
+  
+  int getRowsWithNodesCount() {
+    return (numRowsWithNodes_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Position of the link in the column, or -1 if there is none
+  */
+  
+  int positionForColumn(int col, boolean forShadow) {
+    if (forShadow) {
+      return (indexOf(shadowCols_, numLinks_, col));
+    }
+    int idx = indexOf(plainCols_, numPlain_, col);
+    return ((idx == -1) ? -1 : plainToPos_[idx]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Position of the link at the given place in column order
+  */
+  
+  int positionForOrdinal(int ordinal, boolean forShadow) {
+    return ((forShadow) ? ordinal : plainToPos_[ordinal]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the link info for a position
+  */
+  
+  BioFabricNetwork.LinkInfo getLinkInfo(int pos) {
+    int rec = record(pos);
+    return (new BioFabricNetwork.LinkInfo(getLink(pos), startRow_[rec], endRow_[rec], 
+                                          getColumn(pos, false), shadowCol(pos), colorKeys_[colorKey_[pos]]));
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the link for a position
+  */
+  
+  FabricLink getLink(int pos) {
+    int rec = record(pos);
+    int flags = flags_[rec];
+    Boolean directed = null;
+    if ((flags & DIRECTED_FLAG_) != 0) {
+      directed = Boolean.TRUE;
+    } else if ((flags & UNDIRECTED_FLAG_) != 0) {
+      directed = Boolean.FALSE;
+    }
+    return (new FabricLink(nodes_[srcNode_[rec]], nodes_[trgNode_[rec]], relations_[relation_[rec]], 
+                           isShadow(pos), directed));
+  }
+  
+  /***************************************************************************
+  **
+  ** Cheap accessors for a position
+  */
+  
+  NetNode getSource(int pos) {
+    return (nodes_[srcNode_[record(pos)]]);
+  }
+  
+  NetNode getTarget(int pos) {
+    return (nodes_[trgNode_[record(pos)]]);
+  }
+  
+  boolean isShadow(int pos) {
+    return (isVirtualShadow(pos) || ((flags_[record(pos)] & SHADOW_FLAG_) != 0));
+  }
+  
+  int getColumn(int pos, boolean forShadow) {
+    if (forShadow) {
+      return (shadowCol(pos));
+    }
+    return ((isVirtualShadow(pos)) ? Integer.MIN_VALUE : plainCol_[record(pos)]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Row the link drains into: the top row for regular links, the bottom row for shadows
+  */
+  
+  int getDrainRow(int pos) {
+    int rec = record(pos);
+    int top = Math.min(startRow_[rec], endRow_[rec]);
+    int bottom = Math.max(startRow_[rec], endRow_[rec]);
+    return ((isShadow(pos)) ? bottom : top);
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of links with a record of their own; the rest are virtual shadows
+  */
+  
+  int getRecordCount() {
+    return (numRecs_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Estimated heap bytes. Nodes belong to the network and are not counted here,
+  ** but the relation and color key tables are.
+  */
+  
+  long estimateBytes() {
+    long retval = HeapFootprint.object(80);
+    retval += HeapFootprint.refArray(rowNodes_.length) + HeapFootprint.refArray(nodes_.length);
+    retval += HeapFootprint.refArray(relations_.length) + HeapFootprint.refArray(colorKeys_.length);
+    for (String relation : relations_) {
+      retval += HeapFootprint.string(relation);
+    }
+    for (String colorKey : colorKeys_) {
+      retval += HeapFootprint.string(colorKey);
+    }
+    int[][] tables = new int[][] {shadowCols_, posToRec_, colorKey_, plainCol_, srcNode_, trgNode_, 
+                                  startRow_, endRow_, relation_, plainCols_, plainToPos_};
+    for (int[] table : tables) {
+      retval += (table == null) ? 0L : HeapFootprint.intArray(table.length);
+    }
+    retval += HeapFootprint.byteArray(flags_.length);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Node for the row, or null
+  */
+  
+  NetNode getNodeForRow(int row) {
+    return (((row < 0) || (row >= rowNodes_.length)) ? null : rowNodes_[row]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Iterate the rows that have a node, in order
+  */
+  
+  Iterator<Integer> getRows() {
+    return (new Iterator<Integer>() {
+      private int next_ = advance(0);
+      
+      private int advance(int from) {
+        while ((from < rowNodes_.length) && (rowNodes_[from] == null)) {
+          from++;
+        }
+        return (from);
+      }
+      
+      public boolean hasNext() {
+        return (next_ < rowNodes_.length);
+      }
+      
+      public Integer next() {
+        if (next_ >= rowNodes_.length) {
+          throw new NoSuchElementException();
+        }
+        Integer retval = Integer.valueOf(next_);
+        next_ = advance(next_ + 1);
+        return (retval);
+      }
+      
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+  
+  /***************************************************************************
+  **
+  ** Iterate the columns that have a link, in order
+  */
+  
+  Iterator<Integer> getColumns(final boolean forShadow) {
+    return (new Iterator<Integer>() {
+      private int next_ = 0;
+      
+      public boolean hasNext() {
+        return (next_ < getLinkCount(forShadow));
+      }
+      
+      public Integer next() {
+        if (next_ >= getLinkCount(forShadow)) {
+          throw new NoSuchElementException();
+        }
+        int[] keys = (forShadow) ? shadowCols_ : plainCols_;
+        int col = (keys == null) ? next_ : keys[next_];
+        next_++;
+        return (Integer.valueOf(col));
+      }
+      
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Shadow column for a position
+  */
+  
+  private int shadowCol(int pos) {
+    return ((shadowCols_ == null) ? pos : shadowCols_[pos]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Link record for a position. Virtual shadows use the record of their twin.
+  */
+  
+  private int record(int pos) {
+    if (posToRec_ == null) {
+      return (pos);
+    }
+    int rec = posToRec_[pos];
+    return ((rec < 0) ? ~rec : rec);
+  }
+  
+  /***************************************************************************
+  **
+  ** Answers if the position is a shadow derived from its twin
+  */
+  
+  private boolean isVirtualShadow(int pos) {
+    return ((posToRec_ != null) && (posToRec_[pos] < 0));
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of the key in sorted keys (or in 0..size-1 if keys are null), else -1
+  */
+  
+  private static int indexOf(int[] keys, int size, int key) {
+    if (keys == null) {
+      return (((key < 0) || (key >= size)) ? -1 : key);
+    }
+    int idx = Arrays.binarySearch(keys, 0, size, key);
+    return ((idx < 0) ? -1 : idx);
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of a node in the node table, adding it if needed. Equal nodes share
+  ** the first object we see.
+  */
+  
+  private static int nodeIndex(NetNode node, HashMap<NetNode, Integer> nodeIndex, ArrayList<NetNode> nodeList) {
+    Integer idx = nodeIndex.get(node);
+    if (idx == null) {
+      idx = Integer.valueOf(nodeList.size());
+      nodeIndex.put(node, idx);
+      nodeList.add(node);
+    }
+    return (idx.intValue());
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of a string in a lookup table, adding it if needed
+  */
+  
+  private static int tableIndex(String val, HashMap<String, Integer> index, ArrayList<String> list) {
+    Integer idx = index.get(val);
+    if (idx == null) {
+      idx = Integer.valueOf(list.size());
+      index.put(val, idx);
+      list.add(val);
+    }
+    return (idx.intValue());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // TEST FRAME
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Compare the heap used by the map storage (link maps plus the column to
+  ** source and target maps) and the columnar storage for a synthetic network,
+  ** where every other link is the shadow of the one before. Run with a big heap,
+  ** e.g. -Xmx8g. Args: link count, node count.
+  */
+  
+  public static void main(String[] argv) {
+    int numLinks = (argv.length > 0) ? Integer.parseInt(argv[0]) : 5000000;
+    int numNodes = (argv.length > 1) ? Integer.parseInt(argv[1]) : 500000;
+    java.util.Random rand = new java.util.Random(1234L);
+    String[] rels = new String[] {"pp", "pd", "gi"};
+    
+    NetNode[] nodes = new NetNode[numNodes];
+    HashMap<Integer, NetNode> rowToTargID = new HashMap<Integer, NetNode>();
+    for (int i = 0; i < numNodes; i++) {
+      nodes[i] = new FabricNode(new NID("N" + i), "node" + i);
+      rowToTargID.put(Integer.valueOf(i), nodes[i]);
+    }
+    
+    long base = usedHeap();
+    TreeMap<Integer, BioFabricNetwork.LinkInfo> fullLinkDefs = new TreeMap<Integer, BioFabricNetwork.LinkInfo>();
+    TreeMap<Integer, Integer> nonShadowedLinkMap = new TreeMap<Integer, Integer>();
+    BioFabricNetwork.ColumnAssign shadowCa = new BioFabricNetwork.ColumnAssign();
+    BioFabricNetwork.ColumnAssign normalCa = new BioFabricNetwork.ColumnAssign();
+    int plainCol = 0;
+    int src = 0;
+    int trg = 0;
+    for (int i = 0; i < numLinks; i++) {
+      boolean isShadow = ((i % 2) == 1);
+      if (!isShadow) {
+        src = rand.nextInt(numNodes);
+        trg = rand.nextInt(numNodes);
+      }
+      FabricLink link = new FabricLink(nodes[src], nodes[trg], rels[(i / 2) % rels.length], isShadow, Boolean.FALSE);
+      Integer col = Integer.valueOf(i);
+      fullLinkDefs.put(col, new BioFabricNetwork.LinkInfo(link, Math.min(src, trg), Math.max(src, trg), 
+                                                          (isShadow) ? Integer.MIN_VALUE : plainCol, i, "EX-blue"));
+      shadowCa.columnToSource.put(col, link.getSrcNode());
+      shadowCa.columnToTarget.put(col, link.getTrgNode());
+      if (!isShadow) {
+        Integer pCol = Integer.valueOf(plainCol++);
+        nonShadowedLinkMap.put(pCol, col);
+        normalCa.columnToSource.put(pCol, link.getSrcNode());
+        normalCa.columnToTarget.put(pCol, link.getTrgNode());
+      }
+    }
+    long mapBytes = usedHeap() - base;
+    
+    LinkColumns cols = new LinkColumns(fullLinkDefs, nonShadowedLinkMap, rowToTargID);
+    long withBoth = usedHeap();
+    fullLinkDefs = null;
+    nonShadowedLinkMap = null;
+    shadowCa = null;
+    normalCa = null;
+    long colBytes = usedHeap() - base;
+    
+    System.out.println(numLinks + " links, " + numNodes + " nodes");
+    System.out.println("maps:     " + (mapBytes / (1024 * 1024)) + " MB, " + (mapBytes / numLinks) + " bytes/link");
+    System.out.println("columnar: " + (colBytes / (1024 * 1024)) + " MB, " + (colBytes / numLinks) + " bytes/link");
+    System.out.println("peak during conversion: " + ((withBoth - base) / (1024 * 1024)) + " MB");
+    System.out.println("link records: " + cols.getRecordCount() + " (" + (numLinks - cols.getRecordCount()) + " virtual shadows)");
+    System.out.println("check: " + cols.getLinkInfo(cols.positionForColumn(numLinks / 2, true)).getLink());
+    return;
+  }
+  
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException iex) {
+      }
+    }
+    return (rt.totalMemory() - rt.freeMemory());
+  }
+}
@@ -0,0 +1,215 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NetworkChange;
+import org.systemsbiology.biofabric.api.util.NID;
+import org.systemsbiology.biofabric.api.util.UniqueLabeller;
+
+/****************************************************************************
+**
+** A batch of changes to apply to an existing network without laying it out
+** again. The current node and link order is kept: removed nodes and links just
+** drop out, new nodes go in at the bottom, and new links (each followed by its
+** shadow) go in at the right. Hand it to a BuildDataImpl for an incremental
+** update build. Outside callers see it as a NetworkChange, through
+** FileLoadFlows.startNetworkChange() and applyNetworkChange().
+*/
+
+public class NetworkUpdate implements NetworkChange {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private BioFabricNetwork base_;
+  private UniqueLabeller idGen_;
+  private LinkedHashSet<NetNode> addNodes_;
+  private HashSet<NetNode> dropNodes_;
+  private ArrayList<FabricLink> addLinks_;
+  private ArrayList<FabricLink> dropLinks_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public NetworkUpdate(BioFabricNetwork base) {
+    base_ = base;
+    idGen_ = null;
+    addNodes_ = new LinkedHashSet<NetNode>();
+    dropNodes_ = new HashSet<NetNode>();
+    addLinks_ = new ArrayList<FabricLink>();
+    dropLinks_ = new ArrayList<FabricLink>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the network the update applies to
+  */
+  
+  public BioFabricNetwork getBaseNetwork() {
+    return (base_);
+  }
+   
+  /***************************************************************************
+  **
+  ** Find the existing nodes with the given name
+  */
+  
+  public Set<NetNode> findNodes(String name) {
+    return (base_.nodeMatches(true, name));
+  }
+   
+  /***************************************************************************
+  **
+  ** Add a brand new node with the given name. It gets an ID not used in the base
+  ** network (or by earlier calls).
+  */
+  
+  public NetNode addNode(String name) {
+    if (idGen_ == null) {
+      idGen_ = new UniqueLabeller();
+      for (NetNode node : base_.getNodeSetIDs()) {
+        idGen_.addExistingLabel(node.getNID().getNID().getInternal());
+      }
+    }
+    NID nid = idGen_.getNextOID();
+    NetNode retval = new FabricNode(nid, name);
+    addNodes_.add(retval);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Add a node that was created elsewhere. Nodes already in the network are ignored.
+  */
+  
+  public void addNode(NetNode node) {
+    addNodes_.add(node);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Remove a node, along with all its links
+  */
+  
+  public void removeNode(NetNode node) {
+    dropNodes_.add(node);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add a link. The shadow is added for you. If directed is null, the link is
+  ** directed if existing links with the relation are. Links that are already in
+  ** the network are ignored.
+  */
+  
+  public void addLink(NetNode src, NetNode trg, String relation, Boolean directed) {
+    addLinks_.add(new FabricLink(src, trg, relation, false, directed));
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Remove a link (and its shadow). Undirected links match either way around.
+  */
+  
+  public void removeLink(NetNode src, NetNode trg, String relation) {
+    dropLinks_.add(new FabricLink(src, trg, relation, false, null));
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if there is nothing to do
+  */
+  
+  public boolean isEmpty() {
+    return (addNodes_.isEmpty() && dropNodes_.isEmpty() && addLinks_.isEmpty() && dropLinks_.isEmpty());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Nodes to add, in order
+  */
+  
+  Set<NetNode> getNodesToAdd() {
+    return (Collections.unmodifiableSet(addNodes_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Nodes to drop
+  */
+  
+  Set<NetNode> getNodesToRemove() {
+    return (Collections.unmodifiableSet(dropNodes_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Links to add, in order. Direction may not be frozen.
+  */
+  
+  List<FabricLink> getLinksToAdd() {
+    return (Collections.unmodifiableList(addLinks_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Links to drop. Direction is not frozen.
+  */
+  
+  List<FabricLink> getLinksToRemove() {
+    return (Collections.unmodifiableList(dropLinks_));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.Arrays;
+
+import org.systemsbiology.biofabric.util.HeapFootprint;
+
+/****************************************************************************
+**
+** Per-row adjacency of a BioFabricNetwork, in compressed sparse row form. For
+** each node row we hold the columns of the links touching it, once for the
+** shadow layout (every link) and once for the plain layout (non-shadow links).
+** Columns for a row are in increasing order. Columns do not depend on how the
+** network stores its links, so this works for both maps and columnar storage.
+*/
+
+class NodeAdjacency {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private int numRows_;
+  private int[] shadowStart_;
+  private int[] shadowCols_;
+  private int[] plainStart_;
+  private int[] plainCols_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build from per-link arrays, given in shadow column order. The plain column
+  ** is -1 for shadow links.
+  */
+
+  NodeAdjacency(int numRows, int numLinks, int[] srcRow, int[] trgRow, int[] shadowCol, int[] plainCol) {
+    numRows_ = numRows;
+    shadowStart_ = new int[numRows + 1];
+    plainStart_ = new int[numRows + 1];
+    
+    //
+    // Count, then turn counts into starting offsets:
+    //
+    
+    for (int i = 0; i < numLinks; i++) {
+      boolean isPlain = (plainCol[i] != -1);
+      shadowStart_[srcRow[i] + 1]++;
+      if (isPlain) {
+        plainStart_[srcRow[i] + 1]++;
+      }
+      if (trgRow[i] != srcRow[i]) {
+        shadowStart_[trgRow[i] + 1]++;
+        if (isPlain) {
+          plainStart_[trgRow[i] + 1]++;
+        }
+      }
+    }
+    for (int i = 0; i < numRows; i++) {
+      shadowStart_[i + 1] += shadowStart_[i];
+      plainStart_[i + 1] += plainStart_[i];
+    }
+    
+    //
+    // Fill. Links arrive in shadow column order, so each row's shadow columns
+    // end up sorted. Plain columns are sorted afterwards:
+    //
+    
+    shadowCols_ = new int[shadowStart_[numRows]];
+    plainCols_ = new int[plainStart_[numRows]];
+    int[] shadowFill = new int[numRows];
+    int[] plainFill = new int[numRows];
+    System.arraycopy(shadowStart_, 0, shadowFill, 0, numRows);
+    System.arraycopy(plainStart_, 0, plainFill, 0, numRows);
+    for (int i = 0; i < numLinks; i++) {
+      boolean isPlain = (plainCol[i] != -1);
+      shadowCols_[shadowFill[srcRow[i]]++] = shadowCol[i];
+      if (isPlain) {
+        plainCols_[plainFill[srcRow[i]]++] = plainCol[i];
+      }
+      if (trgRow[i] != srcRow[i]) {
+        shadowCols_[shadowFill[trgRow[i]]++] = shadowCol[i];
+        if (isPlain) {
+          plainCols_[plainFill[trgRow[i]]++] = plainCol[i];
+        }
+      }
+    }
+    for (int i = 0; i < numRows; i++) {
+      Arrays.sort(plainCols_, plainStart_[i], plainStart_[i + 1]);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Number of link columns touching the row
+  */
+  
+  int getDegree(int row, boolean forShadow) {
+    if ((row < 0) || (row >= numRows_)) {
+      return (0);
+    }
+    int[] start = (forShadow) ? shadowStart_ : plainStart_;
+    return (start[row + 1] - start[row]);
+  }
+  
+  /***************************************************************************
+  **
+  ** The i-th link column touching the row
+  */
+  
+  int getColumn(int row, int i, boolean forShadow) {
+    int[] start = (forShadow) ? shadowStart_ : plainStart_;
+    int[] cols = (forShadow) ? shadowCols_ : plainCols_;
+    return (cols[start[row] + i]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Estimated heap bytes
+  */
+  
+  long estimateBytes() {
+    return (HeapFootprint.object(20) + 
+            HeapFootprint.intArray(shadowStart_.length) + HeapFootprint.intArray(shadowCols_.length) +
+            HeapFootprint.intArray(plainStart_.length) + HeapFootprint.intArray(plainCols_.length));
+  }
+}
@@ -0,0 +1,439 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.util.DataUtil;
+import org.systemsbiology.biofabric.util.HeapFootprint;
+
+/****************************************************************************
+**
+** Search index over normalized node names. Partial matches use a suffix array
+** over all the names, so a search is a binary search for the range of suffixes
+** that start with the search string. Full matches use the names in sorted order.
+** Search strings must already be normalized with DataUtil.normKey(). 
+*/
+
+public class NodeNameIndex {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final char END_ = '\0';
+  private static final int INSERTION_SORT_ = 12;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private NetNode[] nodes_;
+  private String[] normNames_;
+  private int[] byName_;
+  
+  //
+  // Names end to end, each followed by END_, with the start of each name,
+  // and the sorted suffixes:
+  //
+  
+  private char[] text_;
+  private int[] nameStart_;
+  private int[] suffixes_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build for the given nodes and names
+  */
+
+  NodeNameIndex(NetNode[] nodes, String[] names) {
+    int numNodes = nodes.length;
+    nodes_ = nodes;
+    normNames_ = new String[numNodes];
+    int textLen = 0;
+    int numSuffixes = 0;
+    for (int i = 0; i < numNodes; i++) {
+      normNames_[i] = DataUtil.normKey(names[i]);
+      textLen += normNames_[i].length() + 1;
+      numSuffixes += normNames_[i].length();
+    }
+    
+    text_ = new char[textLen];
+    nameStart_ = new int[numNodes];
+    suffixes_ = new int[numSuffixes];
+    int pos = 0;
+    int suf = 0;
+    for (int i = 0; i < numNodes; i++) {
+      nameStart_[i] = pos;
+      int len = normNames_[i].length();
+      normNames_[i].getChars(0, len, text_, pos);
+      for (int j = 0; j < len; j++) {
+        suffixes_[suf++] = pos + j;
+      }
+      pos += len;
+      text_[pos++] = END_;
+    }
+    sortSuffixes(0, numSuffixes - 1, 0);
+    
+    Integer[] order = new Integer[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer n1, Integer n2) {
+        return (normNames_[n1.intValue()].compareTo(normNames_[n2.intValue()]));
+      }
+    });
+    byName_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      byName_[i] = order[i].intValue();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Nodes whose normalized name matches the normalized search string
+  */
+  
+  public Set<NetNode> matches(boolean fullMatch, String searchString) {
+    Search search = newSearch(fullMatch);
+    search.update(searchString);
+    return (search.getMatches());
+  }
+  
+  /***************************************************************************
+  **
+  ** Start a search that will be refined as the user types
+  */
+  
+  public Search newSearch(boolean fullMatch) {
+    return (new Search(fullMatch));
+  }
+  
+  /***************************************************************************
+  **
+  ** Estimated heap bytes. The nodes are the network's, but the normalized
+  ** names are our own.
+  */
+  
+  long estimateBytes() {
+    long retval = HeapFootprint.object(24) + HeapFootprint.refArray(nodes_.length) + 
+                  HeapFootprint.refArray(normNames_.length) + HeapFootprint.intArray(byName_.length) +
+                  HeapFootprint.charArray(text_.length) + HeapFootprint.intArray(nameStart_.length) + 
+                  HeapFootprint.intArray(suffixes_.length);
+    for (String name : normNames_) {
+      retval += HeapFootprint.string(name);
+    }
+    return (retval);
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** An incremental search. When the new search string extends the last one, we
+  ** only look inside the last range. 
+  */
+  
+  public class Search {
+    
+    private boolean fullMatch_;
+    private String last_;
+    private int lo_;
+    private int hi_;
+    private BitSet found_;
+    private int count_;
+    
+    Search(boolean fullMatch) {
+      fullMatch_ = fullMatch;
+      last_ = null;
+    }
+    
+    /***************************************************************************
+    **
+    ** Search for the string, answering the number of matching nodes
+    */
+    
+    public int update(String searchString) {
+      boolean narrow = (last_ != null) && searchString.startsWith(last_);
+      int from = (narrow) ? lo_ : 0;
+      int to = (narrow) ? hi_ : ((fullMatch_) ? byName_.length : suffixes_.length);
+      last_ = searchString;
+      found_ = new BitSet(nodes_.length);
+      
+      if (fullMatch_) {
+        lo_ = lowerName(searchString, from, to);
+        hi_ = upperName(searchString, lo_, to);
+        for (int i = lo_; i < hi_; i++) {
+          if (normNames_[byName_[i]].length() == searchString.length()) {
+            found_.set(byName_[i]);
+          }
+        }
+      } else if (searchString.length() == 0) {
+        // Everybody contains the empty string, even nodes with empty names:
+        lo_ = 0;
+        hi_ = suffixes_.length;
+        found_.set(0, nodes_.length);
+      } else {
+        lo_ = lowerSuffix(searchString, from, to);
+        hi_ = upperSuffix(searchString, lo_, to);
+        for (int i = lo_; i < hi_; i++) {
+          found_.set(nodeForPosition(suffixes_[i]));
+        }
+      }
+      count_ = found_.cardinality();
+      return (count_);
+    }
+    
+    /***************************************************************************
+    **
+    ** Number of matching nodes
+    */
+    
+    public int getCount() {
+      return (count_);
+    }
+    
+    /***************************************************************************
+    **
+    ** Matching nodes
+    */
+    
+    public Set<NetNode> getMatches() {
+      HashSet<NetNode> retval = new HashSet<NetNode>();
+      if (found_ != null) {
+        for (int i = found_.nextSetBit(0); i >= 0; i = found_.nextSetBit(i + 1)) {
+          retval.add(nodes_[i]);
+        }
+      }
+      return (retval);
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Compare the suffix to the search string, only as far as the length of the
+  ** search string. A suffix that ends first is smaller.
+  */
+  
+  private int comparePrefix(int pos, String searchString) {
+    int len = searchString.length();
+    for (int i = 0; i < len; i++) {
+      char tc = text_[pos + i];
+      char sc = searchString.charAt(i);
+      if (tc != sc) {
+        return ((tc == END_) ? -1 : tc - sc);
+      }
+    }
+    return (0);
+  }
+  
+  /***************************************************************************
+  **
+  ** First suffix in the range not less than the search string
+  */
+  
+  private int lowerSuffix(String searchString, int from, int to) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (comparePrefix(suffixes_[mid], searchString) < 0) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return (from);
+  }
+  
+  /***************************************************************************
+  **
+  ** First suffix in the range that does not start with the search string
+  */
+  
+  private int upperSuffix(String searchString, int from, int to) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (comparePrefix(suffixes_[mid], searchString) <= 0) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return (from);
+  }
+  
+  /***************************************************************************
+  **
+  ** First name in the range not less than the search string
+  */
+  
+  private int lowerName(String searchString, int from, int to) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (normNames_[byName_[mid]].compareTo(searchString) < 0) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return (from);
+  }
+  
+  /***************************************************************************
+  **
+  ** First name in the range that does not start with the search string. Keeping
+  ** the whole prefix range lets later, longer strings narrow it.
+  */
+  
+  private int upperName(String searchString, int from, int to) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (comparePrefix(nameStart_[byName_[mid]], searchString) <= 0) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return (from);
+  }
+  
+  /***************************************************************************
+  **
+  ** Node owning a text position
+  */
+  
+  private int nodeForPosition(int pos) {
+    int idx = Arrays.binarySearch(nameStart_, pos);
+    return ((idx >= 0) ? idx : -idx - 2);
+  }
+  
+  /***************************************************************************
+  **
+  ** Character at depth into a suffix
+  */
+  
+  private char charAt(int suffix, int depth) {
+    return (text_[suffixes_[suffix] + depth]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Three-way radix quicksort of the suffixes in [lo, hi], all of which agree
+  ** up to depth. Suffixes that hit END_ together are equal, so we stop there.
+  */
+  
+  private void sortSuffixes(int lo, int hi, int depth) {
+    while (hi - lo > INSERTION_SORT_) {
+      swap(lo, (lo + hi) >>> 1);
+      char pivot = charAt(lo, depth);
+      int lt = lo;
+      int gt = hi;
+      int i = lo + 1;
+      while (i <= gt) {
+        char c = charAt(i, depth);
+        if (c < pivot) {
+          swap(lt++, i++);
+        } else if (c > pivot) {
+          swap(i, gt--);
+        } else {
+          i++;
+        }
+      }
+      sortSuffixes(lo, lt - 1, depth);
+      sortSuffixes(gt + 1, hi, depth);
+      if (pivot == END_) {
+        return;
+      }
+      // Loop, rather than recurse, on the equal range to keep the stack shallow:
+      lo = lt;
+      hi = gt;
+      depth++;
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; (j > lo) && (compareSuffixes(j, j - 1, depth) < 0); j--) {
+        swap(j, j - 1);
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Compare two suffixes from depth on
+  */
+  
+  private int compareSuffixes(int s1, int s2, int depth) {
+    int p1 = suffixes_[s1] + depth;
+    int p2 = suffixes_[s2] + depth;
+    while (true) {
+      char c1 = text_[p1++];
+      char c2 = text_[p2++];
+      if (c1 != c2) {
+        return (c1 - c2);
+      }
+      if (c1 == END_) {
+        return (0);
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Swap two suffixes
+  */
+  
+  private void swap(int i, int j) {
+    int hold = suffixes_[i];
+    suffixes_[i] = suffixes_[j];
+    suffixes_[j] = hold;
+    return;
+  }
+}
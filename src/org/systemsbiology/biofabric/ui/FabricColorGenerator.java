@@ -145,7 +145,7 @@ public class FabricColorGenerator {
   ** Add color for IO
   */
 
-  void addColorForIO(int target, NamedColor color) {
+  public void addColorForIO(int target, NamedColor color) {
     switch (target) {
       case BRIGHTER:
         brighter_.put(color.name, color.color);
@@ -160,6 +160,23 @@ public class FabricColorGenerator {
     return;
   }
   
+  /***************************************************************************
+  ** 
+  ** Get the brighter or darker colors for IO
+  */
+
+  public Map<String, Color> getColorsForIO(int target) {
+    switch (target) {
+      case BRIGHTER:
+        return (new HashMap<String, Color>(brighter_));
+      case DARKER:
+        return (new HashMap<String, Color>(darker_));
+      case UNCHANGED:
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+  
   /***************************************************************************
   ** 
   ** Get the modified color
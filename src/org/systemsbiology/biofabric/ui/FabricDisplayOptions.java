@@ -497,6 +497,30 @@ public class FabricDisplayOptions implements Cloneable {
     }
   }
  
+  /***************************************************************************
+  **
+  ** Get the option values as strings, in the order taken by the IO constructor.
+  ** Used by the binary network format.
+  */
+  
+  public String[] getValuesForIO() {
+    String[] retval = new String[13];
+    retval[0] = Double.toString(selectionOpaqueLevel_);
+    retval[1] = Double.toString(nodeLighterLevel_);
+    retval[2] = Double.toString(linkDarkerLevel_);
+    retval[3] = Boolean.toString(displayShadows_);
+    retval[4] = Boolean.toString(shadeNodes_);
+    retval[5] = Integer.toString(minDrainZone_);
+    retval[6] = Boolean.toString(minShadSubLinks_);
+    retval[7] = Boolean.toString(offerNodeBrowser_);
+    retval[8] = Boolean.toString(offerLinkBrowser_);
+    retval[9] = Boolean.toString(offerMouseOverView_);
+    retval[10] = browserURL_;
+    retval[11] = browserLinkURL_;
+    retval[12] = mouseOverURL_;
+    return (retval);
+  }
+  
   /***************************************************************************
   **
   ** Write the item to XML
@@ -596,6 +620,23 @@ public class FabricDisplayOptions implements Cloneable {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Build from the values given by getValuesForIO()
+  */  
+  
+  public static FabricDisplayOptions buildFromValuesForIO(String[] vals) throws IOException {
+    if (vals.length != 13) {
+      throw new IOException();
+    }
+    try {
+      return (new FabricDisplayOptions(vals[0], vals[1], vals[2], vals[3], vals[4], vals[5], vals[6],
+                                       vals[7], vals[8], vals[9], vals[10], vals[11], vals[12]));
+    } catch (NumberFormatException nfex) {
+      throw new IOException();
+    }
+  }
+  
   /***************************************************************************
   **
   ** For XML I/O
@@ -39,6 +39,7 @@ import org.systemsbiology.biofabric.api.util.ExceptionHandler;
 import org.systemsbiology.biofabric.api.util.FixedJButton;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
+import org.systemsbiology.biofabric.ui.render.BufferBuilder;
 import org.systemsbiology.biofabric.util.ResourceManager;
 
 /****************************************************************************
@@ -75,6 +76,7 @@ public class FabricDisplayOptionsDialog extends BTStashResultsDialog {
   private JTextField browserURLField_;
   private JCheckBox offerLinkBrowser_;
   private JTextField browserLinkURLField_;
+  private JComboBox builderThreadsBox_;
   //private JCheckBox offerMouseOverView_;
   //private JTextField mouseOverTemplateField_;
   private FabricDisplayOptions newOpts_;
@@ -158,6 +160,15 @@ public class FabricDisplayOptionsDialog extends BTStashResultsDialog {
     label = new JLabel(rMan.getString("displayOptions.browserLinkURL"));
     addLabeledWidget(label, browserLinkURLField_, false, false); 
     
+    Integer[] threadChoices = new Integer[BufferBuilder.MAX_BUILDER_THREADS];
+    for (int i = 0; i < threadChoices.length; i++) {
+      threadChoices[i] = Integer.valueOf(i + 1);
+    }
+    builderThreadsBox_ = new JComboBox(threadChoices);  // have to use unchecked for v1.6
+    builderThreadsBox_.setSelectedIndex(BufferBuilder.builderThreadCountFromPrefs() - 1);
+    label = new JLabel(rMan.getString("displayOptions.tileBuilderThreads"));
+    addLabeledWidget(label, builderThreadsBox_, false, false);
+    
     //offerMouseOverView_ = new JCheckBox(rMan.getString("displayOptions.offerMouseOverView"));
     //offerMouseOverView_.setSelected(options.getOfferMouseOverView());
     //addWidgetFullRow(offerMouseOverView_, false); 
@@ -322,6 +333,15 @@ public class FabricDisplayOptionsDialog extends BTStashResultsDialog {
     }
     newOpts_.setBrowserLinkURL(browserLinkURL);
     
+    //
+    // Not a display option, but a preference, picked up by the next tile build:
+    //
+    
+    int newThreads = builderThreadsBox_.getSelectedIndex() + 1;
+    if (newThreads != BufferBuilder.builderThreadCountFromPrefs()) {
+      BufferBuilder.setBuilderThreadCountPref(newThreads);
+    }
+    
    // String mouseOverURL = this.mouseOverTemplateField_.getText().trim();
     //UiUtil.fixMePrintout("Test this URL for correctness");
     //newOpts_.setMouseOverURL(mouseOverURL);
@@ -441,6 +461,7 @@ public class FabricDisplayOptionsDialog extends BTStashResultsDialog {
     shadeNodesBox_.setSelected(defOptions.getShadeNodes());   
     browserURLField_.setText(defOptions.getBrowserURL());
     browserLinkURLField_.setText(defOptions.getBrowserLinkURL());
+    builderThreadsBox_.setSelectedIndex(BufferBuilder.defaultBuilderThreadCount() - 1);
     //mouseOverTemplateField_.setText(defOptions.getMouseOverURL());
     return;
   }   
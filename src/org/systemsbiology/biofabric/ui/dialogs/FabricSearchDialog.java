@@ -25,6 +25,7 @@ import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.text.MessageFormat;
 import java.util.Set;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
@@ -33,9 +34,12 @@ import javax.swing.JTextField;
 import javax.swing.JPanel;
 import javax.swing.Box;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.util.Vector;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.SwingUtilities;
 
 import javax.swing.JOptionPane;
 
@@ -43,6 +47,7 @@ import org.systemsbiology.biofabric.api.model.NetNode;
 import org.systemsbiology.biofabric.api.util.ExceptionHandler;
 import org.systemsbiology.biofabric.api.util.FixedJButton;
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.model.NodeNameIndex;
 import org.systemsbiology.biofabric.util.ChoiceContent;
 import org.systemsbiology.biofabric.util.DataUtil;
 import org.systemsbiology.biofabric.util.ResourceManager;
@@ -80,6 +85,9 @@ public class FabricSearchDialog extends JDialog {
   private BioFabricNetwork bfn_;
   private Set<NetNode> result_;
   private boolean doDiscard_;
+  private JLabel matchCount_;
+  private NodeNameIndex.Search liveSearch_;
+  private boolean liveFull_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -155,6 +163,25 @@ public class FabricSearchDialog extends JDialog {
     UiUtil.gbcSet(gbc, 0, rowNum, 4, 1, UiUtil.HOR, 0, 0, 5, 5, 5, 5, UiUtil.SE, 1.0, 0.0);
     cp.add(buttonPanel, gbc);
     setLocationRelativeTo(parent);
+    
+    //
+    // Match counts need the name index. If the network has not finished building
+    // it yet, counts show as pending until it is ready:
+    //
+    
+    bfn_.prepareNameIndex(new Runnable() {
+      public void run() {
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            try {
+              updateMatchCount();
+            } catch (Exception ex) {
+              ExceptionHandler.getHandler().displayException(ex);
+            }
+          }
+        });
+      }
+    });
   }
 
   /***************************************************************************
@@ -216,6 +243,31 @@ public class FabricSearchDialog extends JDialog {
 
     JLabel label = new JLabel(rMan.getString("nsearch.searchString"));   
     stringField_ = new JTextField();
+    stringField_.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent e) {
+        try {
+          updateMatchCount();
+        } catch (Exception ex) {
+          ExceptionHandler.getHandler().displayException(ex);
+        }
+      }
+      
+      public void removeUpdate(DocumentEvent e) {
+        try {
+          updateMatchCount();
+        } catch (Exception ex) {
+          ExceptionHandler.getHandler().displayException(ex);
+        }
+      }
+      
+      public void changedUpdate(DocumentEvent e) {
+        try {
+          updateMatchCount();
+        } catch (Exception ex) {
+          ExceptionHandler.getHandler().displayException(ex);
+        }
+      }
+    });
 
     int rowNum = 0;
     UiUtil.gbcSet(gbc, 0, rowNum, 1, 1, UiUtil.NONE, 0, 0, 5, 5, 5, 5, UiUtil.E, 0.0, 1.0);
@@ -224,9 +276,22 @@ public class FabricSearchDialog extends JDialog {
     cp.add(stringField_, gbc); 
     
     matchTypeCombo_ = new JComboBox(getMatchChoices());
+    matchTypeCombo_.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent ev) {
+        try {
+          updateMatchCount();
+        } catch (Exception ex) {
+          ExceptionHandler.getHandler().displayException(ex);
+        }
+      }
+    });
     
     UiUtil.gbcSet(gbc, 2, rowNum++, 1, 1, UiUtil.HOR, 0, 0, 5, 5, 5, 5, UiUtil.CEN, 0.0, 1.0);
     cp.add(matchTypeCombo_, gbc);    
+    
+    matchCount_ = new JLabel(" ");
+    UiUtil.gbcSet(gbc, 1, rowNum++, 1, 1, UiUtil.HOR, 0, 0, 5, 5, 5, 5, UiUtil.W, 1.0, 1.0);
+    cp.add(matchCount_, gbc);
       
     if (haveSelection) {
       discardSelections_ = new JCheckBox(rMan.getString("nsearch.discardCurrentSelections"));
@@ -251,6 +316,36 @@ public class FabricSearchDialog extends JDialog {
     return (retval);
   }
 
+  /***************************************************************************
+  **
+  ** Show the number of matches as the user types. Each keystroke that extends
+  ** the string just narrows the last search. Never builds the name index on
+  ** the EDT; until the background build is done, the count is shown as pending.
+  ** 
+  */
+  
+  private void updateMatchCount() { 
+    String text = stringField_.getText().trim();
+    if (text.length() == 0) {
+      matchCount_.setText(" ");
+      return;
+    }
+    NodeNameIndex nameIndex = bfn_.getNameIndexIfBuilt();
+    if (nameIndex == null) {
+      matchCount_.setText(ResourceManager.getManager().getString("nsearch.countingMatches"));
+      return;
+    }
+    boolean fullMatch = (((ChoiceContent)matchTypeCombo_.getSelectedItem()).val == FULL_MATCH_);
+    if ((liveSearch_ == null) || (liveFull_ != fullMatch)) {
+      liveSearch_ = nameIndex.newSearch(fullMatch);
+      liveFull_ = fullMatch;
+    }
+    int count = liveSearch_.update(normalizeSearchString(text));
+    String format = ResourceManager.getManager().getString("nsearch.matchCountFormat");
+    matchCount_.setText(MessageFormat.format(format, new Object[] {Integer.valueOf(count)}));
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Do the search
@@ -69,7 +69,6 @@ import org.systemsbiology.biofabric.api.util.MinMax;
 import org.systemsbiology.biofabric.api.util.NID;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
-import org.systemsbiology.biofabric.api.worker.LoopReporter;
 import org.systemsbiology.biofabric.app.BioFabricApplication;
 import org.systemsbiology.biofabric.app.BioFabricWindow;
 import org.systemsbiology.biofabric.cmd.CommandSet;
@@ -94,7 +93,7 @@ import org.systemsbiology.biofabric.ui.render.BufBuildDrawer;
 import org.systemsbiology.biofabric.ui.render.ImgAndBufPool;
 import org.systemsbiology.biofabric.ui.render.BufferBuilder;
 import org.systemsbiology.biofabric.ui.render.PaintCacheSmall;
-import org.systemsbiology.biofabric.util.QuadTree;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.UiUtil;
 
 /****************************************************************************
@@ -103,7 +102,8 @@ import org.systemsbiology.biofabric.util.UiUtil;
 */
 
 public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
-                                       BufBuildDrawer, BufferBuilder.BufferBuilderClient {
+                                       BufBuildDrawer, BufferBuilder.BufferBuilderClient, 
+                                       HeapFootprint.Source {
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -183,8 +183,9 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   private PaintCacheSmall.FloaterSet floaterSet_;
   private Point selFocus_;
   private Point tourFocus_;
+  private Point2D lastMouseInWorld_;
   
-  private BioFabricNetwork bfn_;
+  private volatile BioFabricNetwork bfn_;
   private PaintCacheSmall painter_;
 
   private BioFabricApplication bfa_;
@@ -196,9 +197,6 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   private boolean doBuildSelect_;
   private CursorManager cursorMgr_;
   private BioFabricWindow bfw_;
-  private Map<NetNode, Rectangle2D> nodeNameLocations_;
-  private Map<NetNode, List<Rectangle2D>> drainNameLocations_;
-  private QuadTree forSelections_;
    
   private PopupMenuControl popCtrl_;
   
@@ -402,8 +400,6 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       fnt_.haveAModel(false);
     }
     floaterSet_.clear();
-    nodeNameLocations_ = null;
-    drainNameLocations_ = null;
     return;
   } 
   
@@ -455,6 +451,27 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   public BufferBuilder getBufBuilder() {
     return (bufferBuilder_);
   }  
+  
+  /***************************************************************************
+  **
+  ** Report estimated heap bytes for the network and everything we built to
+  ** draw it
+  */
+  
+  public void reportFootprint(HeapFootprint fp) {
+    BioFabricNetwork bfn = bfn_;
+    if (bfn != null) {
+      bfn.reportFootprint(fp);
+    }
+    painter_.reportFootprint(fp);
+    if (bufferBuilder_ != null) {
+      bufferBuilder_.reportFootprint(fp);
+    }
+    if (bis_ != null) {
+      fp.add("ImgAndBufPool", "pooled images and buffers", bis_.getPooledCount(), bis_.estimateBytes());
+    }
+    return;
+  }
  
   /***************************************************************************
   **
@@ -591,7 +608,9 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     currLinkSelections_.clear();
     currNodeSelections_.clear();
     currColSelections_.clear();
-    fmt_.setSelections(null);
+    if (fmt_ != null) {
+      fmt_.setSelections(null);
+    }
     targetList_.clear();
     linkList_.clear();
     floaterSet_.currSelRect = null;
@@ -937,7 +956,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     //
     boolean nodeAlive = (!selectedOnly) ? true : currNodeSelections_.contains(nodeName);
     if ((inc == -1) && nodeAlive) { 
-      Rectangle2D targName = nodeNameLocations_.get(nodeName);
+      Rectangle2D targName = nodeNameLocation(nodeName);
       Point targNameRC = worldToRowCol(new Point2D.Double(targName.getCenterX(), targName.getCenterY()));
       int useCol = targNameRC.x;
       return (handleTourStop(useCol, tourFocus_.y, Integer.valueOf(useCol), nodeName));
@@ -967,7 +986,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     
     boolean nodeAlive = (!selectedOnly) ? true : currNodeSelections_.contains(nodeName);
     if (!goRight && nodeAlive) { 
-      Rectangle2D targName = nodeNameLocations_.get(nodeName);
+      Rectangle2D targName = nodeNameLocation(nodeName);
       Point targNameRC = worldToRowCol(new Point2D.Double(targName.getCenterX(), targName.getCenterY()));
       useCol = targNameRC.x;
       return (handleTourStop(useCol, tourFocus_.y, Integer.valueOf(useCol), nodeName));
@@ -1072,7 +1091,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     //
     // On an name, depends on node selections:
     //
-    Rectangle2D targName = nodeNameLocations_.get(nodeName);
+    Rectangle2D targName = nodeNameLocation(nodeName);
     Point targNameRC = worldToRowCol(new Point2D.Double(targName.getCenterX(), targName.getCenterY()));
     boolean onTargName = focusPoint.equals(targNameRC);
     if (onTargName) {
@@ -1267,8 +1286,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
    
     BioFabricNetwork.Extents ext = new BioFabricNetwork.Extents(bfn_, monitor);
     painter_.buildObjCache(bfn_.getNodeDefList(), bfn_.getLinkDefList(showShadows), shadeNodes, 
-									         showShadows, ext, new HashMap<NetNode, Rectangle2D>(), 
-									         new HashMap<NetNode, List<Rectangle2D>>(), worldRectNetAR_, 
+									         showShadows, ext, worldRectNetAR_, 
 									         bfn_.getNodeAnnotations(), bfn_.getLinkAnnotations(Boolean.valueOf(showShadows)), monitor);
     
     handleFloaterChange();
@@ -1295,12 +1313,9 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   
     Rectangle2D linksAndNodes = new Rectangle2D.Double(0.0, 0.0, netWidth, netHeight);
  
-    nodeNameLocations_ = new HashMap<NetNode, Rectangle2D>();
-    drainNameLocations_ = new HashMap<NetNode, List<Rectangle2D>>();
     BioFabricNetwork.Extents ext = new BioFabricNetwork.Extents(bfn_, monitor);
     Rectangle2D fullNetRect = painter_.buildObjCache(bfn_.getNodeDefList(), bfn_.getLinkDefList(showShadows), 
-													    		                   shadeNodes, showShadows, ext, nodeNameLocations_, 
-													    		                   drainNameLocations_, linksAndNodes, 
+													    		                   shadeNodes, showShadows, ext, linksAndNodes, 
 													    		                   bfn_.getNodeAnnotations(), 
 													    		                   bfn_.getLinkAnnotations(Boolean.valueOf(showShadows)), monitor);
     
@@ -1318,36 +1333,78 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     		                         bfn_.getNodeAnnotations(), bfn_.getLinkAnnotations(Boolean.valueOf(showShadows)),
     		                         ext, showShadows);
       
-    LoopReporter lr = new LoopReporter(drainNameLocations_.size(), 20, monitor, 0.0, 1.0, "progress.drainsToQuad");
-
-    forSelections_ = new QuadTree(fullNetRect, 5);
-    Iterator<NetNode> kit = drainNameLocations_.keySet().iterator();
-    int count = 0;
-    while (kit.hasNext()) {
-    	NetNode nid = kit.next();
-    	lr.report();
-    	List<Rectangle2D> rects = drainNameLocations_.get(nid);
-    	int numR = rects.size();
-    	for (int i = 0; i < numR; i++) {
-    	  String key = Integer.toString(count++);
-    	  QuadTree.Payload pay = new QuadTree.Payload(rects.get(i), key);
-    	  forSelections_.insertPayload(pay);
-    	}
-    }
-    lr.finish();
     if (fnt_ != null) {
       fnt_.haveAModel(true);
     }
     return;
   }
   
+  /***************************************************************************
+  ** 
+  ** Install an incremental update of the current model, patching the display 
+  ** objects and redrawing just the tiles it touches. The view stays put. Returns
+  ** false if that cannot be done (e.g. the network grew past the world we are
+  ** tiling, or the display options changed), in which case installModel() is
+  ** needed.
+  */
+
+  public boolean installModelUpdate(BioFabricNetwork bfn, BTProgressMonitor monitor) throws IOException, AsynchExitRequestException {
+    FabricDisplayOptions fdo = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
+    boolean shadeNodes = fdo.getShadeNodes();
+    boolean showShadows = fdo.getDisplayShadows();
+    if ((bfn_ == null) || (bufferBuilder_ == null) || !painter_.canPatch(shadeNodes, showShadows)) {
+      return (false);
+    }
+    
+    double netWidth = bfn.getColumnCount(showShadows) * GRID_SIZE;
+    double netHeight = bfn.getRowCount() * GRID_SIZE;
+    Rectangle2D linksAndNodes = new Rectangle2D.Double(0.0, 0.0, netWidth, netHeight);
+    
+    ArrayList<Rectangle2D> dirty = new ArrayList<Rectangle2D>();
+    BioFabricNetwork.Extents ext = new BioFabricNetwork.Extents(bfn, monitor);
+    Rectangle2D fullNetRect = painter_.patchObjCache(bfn.getNodeDefList(), bfn.getLinkDefList(showShadows), 
+                                                     shadeNodes, showShadows, ext, linksAndNodes, 
+                                                     bfn.getNodeAnnotations(), 
+                                                     bfn.getLinkAnnotations(Boolean.valueOf(showShadows)), dirty, monitor);
+    if (!worldRectNetAR_.contains(fullNetRect)) {
+      return (false);
+    }
+    
+    bfn_ = bfn;
+    bucketRend_.buildBucketCache(bfn_.getNodeDefList(), bfn_.getLinkDefList(showShadows), 
+                                 bfn_.getNodeAnnotations(), bfn_.getLinkAnnotations(Boolean.valueOf(showShadows)),
+                                 ext, showShadows);
+    clearSelections();
+    
+    //
+    // The renderers swap in their new snapshots whole, so the tile builders kept going
+    // on the old ones while we worked. Now let the tiles in flight finish and hold the
+    // builders until the dirty ones are tossed, so none of those finish stale:
+    //
+    
+    bufferBuilder_.holdBuilders();
+    bufferBuilder_.patchBufs(dirty, monitor);
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Where a node's label is drawn, worked out when asked for
+  */
+
+  private Rectangle2D nodeNameLocation(NetNode node) {
+    return (painter_.getNodeNameBounds(bfn_.getNodeDefinition(node)));
+  }
+  
   /***************************************************************************
   ** 
   ** Install a model
   */
 
   public void installModelPost() { 
-    fmt_.setModel(bfn_);
+    if (fmt_ != null) {
+      fmt_.setModel(bfn_);
+    }
     if (myPanel_ != null) {
       myPanel_.requestFocus();
     }
@@ -2040,7 +2097,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       if ((nimm.min <= cprc.x) && (nimm.max >= cprc.x)) {
         retval.nodeDesc = target.getName();           
       } else {
-        Rectangle2D nnl = nodeNameLocations_.get(target);
+        Rectangle2D nnl = nodeNameLocation(target);
         Point2D inWorld = rowColToWorld(cprc);
         UiUtil.fixMePrintout("zigg.sif plus zigg.noa see null ptr here *on mouse move during node-attribute relayout??*");
         if ((nnl == null) || (inWorld == null)) {
@@ -2083,7 +2140,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
                                   Set<Integer> cols, boolean shiftPressed) { 
 
 
-    if ((nodeNameLocations_ == null) || (drainNameLocations_ == null)) {
+    if (!painter_.havePainting()) {
       return;
     }
   
@@ -2132,22 +2189,8 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     // Do we have a drain zone from a one point click?
     //
     
-    NetNode gotDrain = null;
     Point2D worldPt = viewToWorld(sloc);
-    Iterator<NetNode> dnlit = drainNameLocations_.keySet().iterator(); 
-    while (dnlit.hasNext()) {
-      NetNode target = dnlit.next();
-      List<Rectangle2D> nameLocs = drainNameLocations_.get(target);
-      for (Rectangle2D zone : nameLocs) {
-        if (zone.contains(worldPt)) {
-          gotDrain = target;
-          break;
-        }
-      }
-    }
-
-    HashSet<String> foundKeys = new HashSet<String>();   
-    forSelections_.getPayloadKeys(worldPt, foundKeys);
+    NetNode gotDrain = painter_.getDrainNameAt(worldPt);
 
     UiUtil.fixMePrintout("READ ME FOR NEW POLICY");
     // Rectangle selection should pull in links with glyphs within the rectangle, along with nodes they
@@ -2189,7 +2232,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
         } 
       } else {
         Point2D worldPt2 = rowColToWorld(new Point(col, row)); // Looking at the crossing of the node and the link line
-        Rectangle2D nameLoc = nodeNameLocations_.get(target); 
+        Rectangle2D nameLoc = nodeNameLocation(target); 
         if (nameLoc.contains(worldPt2)) { // Does name location for target contain this world point??
           if (nodes.contains(target)) { // Same remove or add logic as above
             nodes.remove(target);
@@ -2288,7 +2331,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
                                  Set<Integer> cols) { 
 
 
-    if ((nodeNameLocations_ == null) || (drainNameLocations_ == null)) {
+    if (!painter_.havePainting()) {
       return;
     }
  
@@ -2356,7 +2399,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       NetNode target = tgit.next();
       BioFabricNetwork.NodeInfo targetInf = bfn_.getNodeDefinition(target);
       targetList_.add(targetInf);
-      Rectangle2D targName = nodeNameLocations_.get(target);
+      Rectangle2D targName = nodeNameLocation(target);
       Point targNameRC = worldToRowCol(new Point2D.Double(targName.getCenterX(), targName.getCenterY()));
       focus.setLocation(targNameRC.x, targetInf.nodeRow);
       sortTargs.put(Integer.valueOf(targetInf.nodeRow), buildFocusBox(focus));  
@@ -2579,7 +2622,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       Integer testRow = Integer.valueOf(i);
       NetNode nodeName = bfn_.getNodeIDForRow(testRow);
       if (nodeName != null) {
-        Rectangle2D nnl = nodeNameLocations_.get(nodeName);
+        Rectangle2D nnl = nodeNameLocation(nodeName);
         Point2D nameCenter = new Point2D.Double(nnl.getCenterX(), nnl.getCenterY());
         if ((nameCenter.getX() >= inWorldL.getX()) && (nameCenter.getX() <= inWorldR.getX())) {
           Point2D ncRC = worldToRowCol(nameCenter);
@@ -2603,11 +2646,17 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   
   private static class ImageToUse {
     BufferedImage image;
+    Rectangle source;
+    int width;
+    int height;
     int stX;
     int stY;
     
-    ImageToUse(BufferedImage image, int stX, int stY) {
-      this.image = image;
+    ImageToUse(BufferBuilder.PieceImage piece, int stX, int stY) {
+      this.image = piece.image;
+      this.source = piece.source;
+      this.width = piece.width;
+      this.height = piece.height;
       this.stX = stX;
       this.stY = stY;
     }
@@ -3006,6 +3055,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       try {
         Point currPt = me.getPoint();
         Point2D cpw = viewToWorld(currPt);
+        lastMouseInWorld_ = cpw;
         Point cprc = worldToRowCol(cpw);
         fmt_.setCenter(cpw, cprc, false);  
         bfo_.setMouse(cpw, cprc);
@@ -3119,13 +3169,13 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
       AffineTransform wideTrans = null;
       for (int i = 0; i < numSlice; i++) {
         Rectangle2D worldRect = slicesToCover.get(i);
-        BufferedImage img = null;
+        BufferBuilder.PieceImage piece = null;
         try {
-          img = bufferBuilder_.getImageForPiece(numObj.intValue(), worldRect);
+          piece = bufferBuilder_.getPieceImage(numObj.intValue(), worldRect);
         } catch (IOException ioex) {
           System.err.println("Bad load");
         }
-        if (img != null) {
+        if (piece != null) {
           Point wtv = pointToViewport(new Point((int)Math.round(worldRect.getX()), (int)Math.round(worldRect.getY())));
           int stX = wtv.x;
           int stY = wtv.y;
@@ -3164,15 +3214,23 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
             wideTrans.translate(viewDim.getWidth() / 2.0, viewDim.getHeight() / 2.0);
             wideTrans.scale(izoom, izoom);
             UiUtil.fixMePrintout("Scaling image " + izoom);
-            wideTrans.translate(-img.getWidth() / 2.0, -img.getHeight() / 2.0);
+            wideTrans.translate(-piece.width / 2.0, -piece.height / 2.0);
             stX = 0;
             stY = 0;
           }
 
-          ImageToUse itu = new ImageToUse(img, stX, stY);
+          ImageToUse itu = new ImageToUse(piece, stX, stY);
           imagesToUse.add(itu);
         }
       }
+      
+      //
+      // Let the builders get ahead of where we are heading:
+      //
+      
+      if (!wideCase) {
+        bufferBuilder_.viewChanged(numObj.intValue(), viewInWorld, lastMouseInWorld_);
+      }
       if (imagesToUse.isEmpty()) {
         return;
       }
@@ -3189,7 +3247,13 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
             stash = g2p.getTransform();
             g2p.transform(wideTrans);
           }
-          g2p.drawImage(it.image, useX, useY, null);
+          if (it.source == null) {
+            g2p.drawImage(it.image, useX, useY, null);
+          } else { // Placeholder: stretch the part of the ancestor image that covers us
+            g2p.drawImage(it.image, useX, useY, useX + it.width, useY + it.height, 
+                          it.source.x, it.source.y, it.source.x + it.source.width, 
+                          it.source.y + it.source.height, null);
+          }
           if (stash != null) {
             g2p.setTransform(stash); 
             staleImages_.add(it.image);
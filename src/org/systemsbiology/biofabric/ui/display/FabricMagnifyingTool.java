@@ -101,7 +101,7 @@ public class FabricMagnifyingTool extends JPanel {
   private NodeLabels nodeLabels_;
   private LinkLabels topLinkLabels_;
   private LinkDisplay linkDisplay_;
-  private BioFabricNetwork model_;
+  private volatile BioFabricNetwork model_;
   private Font tiny_;
   private FabricColorGenerator colGen_;
   private boolean mouseIn_;
@@ -603,7 +603,8 @@ public class FabricMagnifyingTool extends JPanel {
     @Override
     public void paintComponent(Graphics g) {
       super.paintComponent(g);
-      if (model_ == null) {
+      BioFabricNetwork model = model_;
+      if (model == null) {
         return;
       }
       if (!mouseIn_ && !byTour_ && !ignore_) {
@@ -625,11 +626,11 @@ public class FabricMagnifyingTool extends JPanel {
       int startCen = myCen.y - (currSize_ / 2) - 1;
       int endCen = myCen.y + (currSize_ / 2) + 1;   
       for (int i = startCen; i <= endCen; i++) {
-        NetNode node = model_.getNodeIDForRow(Integer.valueOf(i));
+        NetNode node = model.getNodeIDForRow(Integer.valueOf(i));
         if (node == null) {
           continue;
         }
-        BioFabricNetwork.NodeInfo ni = model_.getNodeDefinition(node);
+        BioFabricNetwork.NodeInfo ni = model.getNodeDefinition(node);
         MinMax nimm = ni.getColRange(showShadows);
         if ((nimm.min <= myCen.x + (currSize_ / 2)) && (nimm.max >= myCen.x - (currSize_ / 2))) {
           Rectangle2D bounds = tiny_.getStringBounds(node.getName(), frc);
@@ -672,7 +673,8 @@ public class FabricMagnifyingTool extends JPanel {
     @Override
     public void paintComponent(Graphics g) {
       super.paintComponent(g);
-      if (model_ == null) {
+      BioFabricNetwork model = model_;
+      if (model == null) {
         return;
       }
       if (!mouseIn_ && !byTour_ && !ignore_) {
@@ -693,7 +695,7 @@ public class FabricMagnifyingTool extends JPanel {
       g2.setStroke(selectedStroke);
      
       FontRenderContext frc = g2.getFontRenderContext();
-      int numCol = model_.getColumnCount(showShadows);
+      int numCol = model.getColumnCount(showShadows);
       int startCen = myCen.x - (currSize_ / 2);
       if (startCen < 0) {
         startCen = 0;
@@ -713,12 +715,12 @@ public class FabricMagnifyingTool extends JPanel {
       for (int i = startCen; i <= endCen; i++) {
         count++;
         Integer colObj = Integer.valueOf(i);
-        NetNode src = model_.getSourceIDForColumn(colObj, showShadows);
-        NetNode trg = model_.getTargetIDForColumn(colObj, showShadows);
+        NetNode src = model.getSourceIDForColumn(colObj, showShadows);
+        NetNode trg = model.getTargetIDForColumn(colObj, showShadows);
         if ((src == null) || (trg == null)) {
           continue;
         }
-        BioFabricNetwork.LinkInfo li = model_.getLinkDefinition(colObj, showShadows);
+        BioFabricNetwork.LinkInfo li = model.getLinkDefinition(colObj, showShadows);
         if (li == null) {
           continue;
         }
@@ -795,7 +797,8 @@ public class FabricMagnifyingTool extends JPanel {
     
     public List<LinkListElementDisplay> calcLinks() {
       ArrayList<LinkListElementDisplay> list = new ArrayList<LinkListElementDisplay>();
-      if (!mouseIn_ && !byTour_ && !ignore_) {
+      BioFabricNetwork model = model_;
+      if ((model == null) || (!mouseIn_ && !byTour_ && !ignore_)) {
         return (list);
       }
     
@@ -808,11 +811,11 @@ public class FabricMagnifyingTool extends JPanel {
    
       for (int i = startCen; i <= endCen; i++) {
         Integer colObj = Integer.valueOf(i);
-        NetNode src = model_.getSourceIDForColumn(colObj, showShadows);
+        NetNode src = model.getSourceIDForColumn(colObj, showShadows);
         if (src == null) {
           continue;
         }
-        BioFabricNetwork.LinkInfo li = model_.getLinkDefinition(colObj, showShadows);
+        BioFabricNetwork.LinkInfo li = model.getLinkDefinition(colObj, showShadows);
         if (li == null) {
           continue;
         }
@@ -38,7 +38,6 @@ public class BoxPath {
   
   private Color col;
   private Rectangle nodeShadeRect;
-  private Rectangle scratchRect;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -54,7 +53,6 @@ public class BoxPath {
   public BoxPath(Color col, Rectangle rect) {
     this.col = col;
     this.nodeShadeRect = rect;
-    this.scratchRect = new Rectangle();
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -65,14 +63,16 @@ public class BoxPath {
 
   /***************************************************************************
   **
-  **  Draw it:
+  **  Draw it. Tile builders on several threads can be painting the same path at
+  **  once, so the clipped rectangle is built locally instead of in a shared scratch.
   */
  
   public int paint(Graphics2D g2, Rectangle bounds) {
     g2.setPaint(col);
+    Rectangle useRect;
     // No bounds? Rectangle fully in bounds? Just draw the actual rectangle!
     if ((bounds == null) || bounds.contains(nodeShadeRect)) {
-      scratchRect.setRect(nodeShadeRect);
+      useRect = nodeShadeRect;
     } else {
       // Nothing to draw:
       if (!bounds.intersects(nodeShadeRect)) {
@@ -94,9 +94,10 @@ public class BoxPath {
       double yMinUse = (yMinN < yMinB) ? yMinB - 1000.0 : yMinN; 
       double yMaxUse = (yMaxN > yMaxB) ? yMaxB + 1000.0 : yMaxN; 
       
-      scratchRect.setRect(xMinUse, yMinUse, xMaxUse - xMinUse, yMaxUse - yMinUse);
+      useRect = new Rectangle();
+      useRect.setRect(xMinUse, yMinUse, xMaxUse - xMinUse, yMaxUse - yMinUse);
     } 
-    g2.fill(scratchRect);
+    g2.fill(useRect);
     return (1);
   } 
 } 
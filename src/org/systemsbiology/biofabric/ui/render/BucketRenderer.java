@@ -27,7 +27,11 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.systemsbiology.biofabric.api.layout.AnnotColorSource;
@@ -56,23 +60,28 @@ public class BucketRenderer implements BufBuildDrawer {
   //
   ////////////////////////////////////////////////////////////////////////////
   
-  private List<BioFabricNetwork.NodeInfo> targetList_;
-  private List<BioFabricNetwork.LinkInfo> linkList_;
-  private BioFabricNetwork.Extents ext_;
-  private AnnotationSet nodeAnnot_;
-  private AnnotationSet linkAnnot_;
-  
-  private Dimension screenDim_;
-  private boolean showShadows_;
-  private Rectangle2D worldRect_;
-  private ImgAndBufPool bis_;
-  private AnnotColorSource.AnnotColor[] annotColors_;
-  private Color[] linkAnnotGrays_;
-  private final Color[] nodeCycle_;
-  private final Color[] linkCycle_;
+  //
+  // Everything the tile builders read about the network lives in one
+  // immutable snapshot, swapped in whole. Builders grab it once per tile, so
+  // a new model can be installed while they are still drawing the old one:
+  //
+  
+  private volatile Buckets buckets_;
+  
+  private volatile Dimension screenDim_;
+  private volatile Rectangle2D worldRect_;
+  private volatile ImgAndBufPool bis_;
+  private final int[] annotArgb_;
+  private final int[] linkAnnotGrayArgb_;
+  private final int[] nodeCycleRgb_;
+  private final int[] linkCycleRgb_;
   
   private static final int LINK_MAX_ALPHA_ = 180;
   private static final int NODE_MAX_ALPHA_ = 180;
+  
+  private static final int WHITE_ = 0x00FFFFFF;
+  private static final int OPAQUE_MASK_ = 0xFF000000;
+  private static final int OPAQUE_WHITE_ = OPAQUE_MASK_ | WHITE_;
 
 
   ////////////////////////////////////////////////////////////////////////////
@@ -88,12 +97,10 @@ public class BucketRenderer implements BufBuildDrawer {
 
   public BucketRenderer(FabricColorGenerator colGen) {
 
-    targetList_ = new ArrayList<NodeInfo>();
-    linkList_ = new ArrayList<LinkInfo>();
-    ext_ = new BioFabricNetwork.Extents();
     worldRect_ = new Rectangle2D.Double(0.0, 0.0, 100.0, 100.0);
-    nodeAnnot_ = new AnnotationSetImpl();
-    linkAnnot_ = new AnnotationSetImpl();
+    buckets_ = new Buckets(new ArrayList<NodeInfo>(), new ArrayList<LinkInfo>(), 
+                           new AnnotationSetImpl(), new AnnotationSetImpl(), 
+                           new BioFabricNetwork.Extents(), false, new SpanIndex(0), new SpanIndex(0));
     bis_ = null;
     
     //
@@ -102,7 +109,7 @@ public class BucketRenderer implements BufBuildDrawer {
     // regular renderer. Same thing below for link cycle.
     //
     
-    nodeCycle_ = new Color[] {
+    Color[] nodeCycle = new Color[] {
       new Color(145,141,126),
       new Color(194,201,213),
       new Color(160,141,129),
@@ -139,7 +146,7 @@ public class BucketRenderer implements BufBuildDrawer {
     // Link color cycle sampled off of screen capture from regular renderer:
     //
     
-    linkCycle_ = new Color[] {
+    Color[] linkCycle = new Color[] {
       new Color(123,104,111),
       new Color(92,92,90),
       new Color(129,124,117),
@@ -172,8 +179,19 @@ public class BucketRenderer implements BufBuildDrawer {
       new Color(99,90,102)
     };
     
-    annotColors_ = AnnotColorSource.getColorCycle();
-    linkAnnotGrays_ = AnnotColorSource.getGrayCycle();
+    //
+    // Tiles get composited a pixel at a time, so pack all the colors up front:
+    //
+    
+    nodeCycleRgb_ = packColors(nodeCycle);
+    linkCycleRgb_ = packColors(linkCycle);
+    AnnotColorSource.AnnotColor[] annotColors = AnnotColorSource.getColorCycle();
+    Color[] annotCols = new Color[annotColors.length];
+    for (int i = 0; i < annotColors.length; i++) {
+      annotCols[i] = annotColors[i].getColor();
+    }
+    annotArgb_ = packColors(annotCols);
+    linkAnnotGrayArgb_ = packColors(AnnotColorSource.getGrayCycle());
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -196,7 +214,8 @@ public class BucketRenderer implements BufBuildDrawer {
 
   /***************************************************************************
   ** 
-  ** Install a model
+  ** Install a model. The new snapshot is built off to the side and published
+  ** in one write; tiles already underway finish with the one they started on.
   */
    
   public void buildBucketCache(List<BioFabricNetwork.NodeInfo> targets, 
@@ -204,12 +223,30 @@ public class BucketRenderer implements BufBuildDrawer {
   		                         AnnotationSet nodeAnnot, AnnotationSet linkAnnot,
   		                         BioFabricNetwork.Extents ext, boolean showShadows) { 
  
-  	targetList_ = targets;
-    linkList_ = links;
-    ext_ = ext;
-    nodeAnnot_ = nodeAnnot;
-    linkAnnot_ = linkAnnot;
-    showShadows_ = showShadows;
+    //
+    // Tiles only need the links whose column falls inside the clip, and the nodes whose
+    // row falls inside the clip. So build the lookup tables once here instead of scanning
+    // every link and node for every tile:
+    //
+    
+    int numLinks = links.size();
+    SpanIndex linkIdx = new SpanIndex(numLinks);
+    for (int i = 0; i < numLinks; i++) {
+      BioFabricNetwork.LinkInfo lif = links.get(i);
+      linkIdx.add(lif.getUseColumn(showShadows), lif.topRow(), lif.bottomRow());
+    }
+    linkIdx.sort();
+    
+    int numNodes = targets.size();
+    SpanIndex nodeIdx = new SpanIndex(numNodes);
+    for (int i = 0; i < numNodes; i++) {
+      BioFabricNetwork.NodeInfo nif = targets.get(i);
+      MinMax colRange = nif.getColRange(showShadows);
+      nodeIdx.add(nif.nodeRow, colRange.min, colRange.max);
+    }
+    nodeIdx.sort();
+    
+    buckets_ = new Buckets(targets, links, nodeAnnot, linkAnnot, ext, showShadows, linkIdx, nodeIdx);
     return;
   }
   
@@ -219,195 +256,233 @@ public class BucketRenderer implements BufBuildDrawer {
   */
    
   public void setModelDims(Dimension screenDim, Rectangle2D worldRect, ImgAndBufPool bis) { 
-    screenDim_ = screenDim;
-    worldRect_.setRect(worldRect);
     bis_ = bis;
+    worldRect_ = (Rectangle2D)worldRect.clone();
+    screenDim_ = screenDim;
     return;
   }
 
   /***************************************************************************
   **
-  ** Drawing core
+  ** Drawing core. Each layer is tallied into a pooled scratch buffer laid out
+  ** row-major like the tile, then one pass composites white, node annotations,
+  ** link annotations, nodes and links straight into the tile's pixels.
   */
   
   public boolean drawForBuffer(BufferedImage bi, Rectangle2D clip, Dimension screenDim, 
   		                         Rectangle2D worldRec, int heightPad, double linksPerPixel) {
   	
-  	int imgHeight = bi.getHeight();
-    int imgWidth = bi.getWidth();
-  	Graphics2D g2 = bi.createGraphics();
-  	g2.setPaint(Color.WHITE);
-    g2.fillRect(0, 0, imgWidth, imgHeight);
- 
-    if ((nodeAnnot_ != null) && nodeAnnot_.size() > 0){
-	    BufferedImage bina = bis_.fetchImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
-	    drawNodeAnnotsForBuffer(bina, clip, screenDim, worldRec, heightPad, linksPerPixel);
-	    g2.drawImage(bina, 0, 0, null);
-	    bis_.returnImage(bina);
+    //
+    // We write pixels directly, which needs a packed int raster. Anything else gets
+    // drawn into one of those first, then copied over:
+    //
+    
+    Buckets buck = buckets_;
+    ImgAndBufPool bis = bis_;
+    boolean direct = isPackedInt(bi);
+    BufferedImage target = (direct) ? bi : bis.fetchImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_RGB);
+    
+    BufAndMeta bam = new BufAndMeta(target, clip, screenDim, worldRec);
+    boolean doNodeAnnots = (buck.nodeAnnot != null) && (buck.nodeAnnot.size() > 0);
+    boolean doLinkAnnots = (buck.linkAnnot != null) && (buck.linkAnnot.size() > 0);
+    int[] nodeAnnotBuf = (doNodeAnnots) ? tallyNodeAnnots(buck, bis, bam, clip) : null;
+    int[] linkAnnotBuf = (doLinkAnnots) ? tallyLinkAnnots(buck, bis, bam, clip) : null;
+    int[] nodeBuf = tallyNodes(buck, bis, bam, clip);
+    int[] linkBuf = tallyLinks(buck, bis, bam, clip);
+    
+    //
+    // Link annotations go gray if node annotations are also showing:
+    //
+    
+    int[] linkAnnotColors = (doNodeAnnots) ? linkAnnotGrayArgb_ : annotArgb_;
+    composite(target, bam, nodeAnnotBuf, linkAnnotBuf, linkAnnotColors, nodeBuf, linkBuf, linksPerPixel);
+    
+    if (nodeAnnotBuf != null) {
+      bis.returnBuf(nodeAnnotBuf);
     }
-    if ((linkAnnot_ != null) && linkAnnot_.size() > 0){
-      BufferedImage binal = bis_.fetchImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
-      drawLinkAnnotsForBuffer(binal, clip, screenDim, worldRec, heightPad, linksPerPixel);
-      g2.drawImage(binal, 0, 0, null);
-    	bis_.returnImage(binal);
+    if (linkAnnotBuf != null) {
+      bis.returnBuf(linkAnnotBuf);
+    }
+    bis.returnBuf(nodeBuf);
+    bis.returnBuf(linkBuf);
+    
+    if (!direct) {
+      Graphics2D g2 = bi.createGraphics();
+      g2.drawImage(target, 0, 0, null);
+      g2.dispose();
+      bis.returnImage(target);
     }
-    BufferedImage bin = bis_.fetchImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
-    drawNodesForBuffer(bin, clip, screenDim, worldRec, heightPad, linksPerPixel);
-    g2.drawImage(bin, 0, 0, null);
-  	BufferedImage bil = bis_.fetchImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
-  	drawLinksForBuffer(bil, clip, screenDim, worldRec, heightPad, linksPerPixel);
-  	g2.drawImage(bil, 0, 0, null);
-  	g2.dispose();
-  	
-  
-  	bis_.returnImage(bin);
-  	bis_.returnImage(bil);
-  	
   	return (true);
   }
-
+  
   /***************************************************************************
   **
-  ** Drawing core
+  ** Answers if we can write pixels straight into the image's int array
   */
   
-  private boolean drawLinksForBuffer(BufferedImage bi, Rectangle2D clip, Dimension screenDim, Rectangle2D worldRec, int heightPad, double lpp) {
-  	
-    BufAndMeta bam = new BufAndMeta(bi, clip, screenDim, worldRec, heightPad, lpp, bis_);
+  private static boolean isPackedInt(BufferedImage bi) {
+    int type = bi.getType();
+    if ((type != BufferedImage.TYPE_INT_RGB) && (type != BufferedImage.TYPE_INT_ARGB)) {
+      return (false);
+    }
+    WritableRaster raster = bi.getRaster();
+    return ((raster.getDataBuffer() instanceof DataBufferInt) && 
+            (raster.getSampleModel() instanceof SinglePixelPackedSampleModel));
+  }
+  
+  /***************************************************************************
+  **
+  ** Single pass over the tile, blending each layer over the one below. Pixels
+  ** outside the screen dimensions stay white.
+  */
+  
+  private void composite(BufferedImage bi, BufAndMeta bam, int[] nodeAnnotBuf, int[] linkAnnotBuf, 
+                         int[] linkAnnotColors, int[] nodeBuf, int[] linkBuf, double lpp) {
     
-	  int bufOffset = (bam.ulInV.x * bam.scrnHeight) + bam.ulInV.y;	  
-	  
-    for (BioFabricNetwork.LinkInfo lif : linkList_) {
-
-	    bam.yStrt = lif.topRow() * BioFabricPanel.GRID_SIZE;
-	    bam.yEnd = lif.bottomRow() * BioFabricPanel.GRID_SIZE;
-	    bam.x = lif.getUseColumn(showShadows_) * BioFabricPanel.GRID_SIZE;
+    WritableRaster raster = bi.getRaster();
+    int stride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+    int base = raster.getDataBuffer().getOffset() - (raster.getSampleModelTranslateY() * stride) - raster.getSampleModelTranslateX();
+    int[] pixels = ((DataBufferInt)raster.getDataBuffer()).getData();
+    
+    int useRows = Math.min(bam.imgHeight, bam.scrnHeight);
+    int useCols = Math.min(bam.imgWidth, bam.scrnWidth);
+    
+    for (int y = 0; y < bam.imgHeight; y++) {
+      int rowStart = base + (y * stride);
+      if (y >= useRows) {
+        Arrays.fill(pixels, rowStart, rowStart + bam.imgWidth, OPAQUE_WHITE_);
+        continue;
+      }
+      int nodeRgb = nodeCycleRgb_[y % nodeCycleRgb_.length];
+      int bufRow = y * bam.scrnWidth;
+      for (int x = 0; x < useCols; x++) {
+        int i = bufRow + x;
+        int rgb = WHITE_;
+        if (nodeAnnotBuf != null) {
+          int val = nodeAnnotBuf[i];
+          if (val > 0) {
+            rgb = annotArgb_[val - 1] & WHITE_;
+          }
+        }
+        if (linkAnnotBuf != null) {
+          int val = linkAnnotBuf[i];
+          if (val > 0) {
+            int argb = linkAnnotColors[val - 1];
+            rgb = blend(rgb, argb, argb >>> 24);
+          }
+        }
+        int pix = nodeBuf[i];
+        if (pix != 0) {
+          rgb = blend(rgb, nodeRgb, countAlpha(pix, lpp, NODE_MAX_ALPHA_));
+        }
+        pix = linkBuf[i];
+        if (pix != 0) {
+          rgb = blend(rgb, linkCycleRgb_[x % linkCycleRgb_.length], countAlpha(pix, lpp, LINK_MAX_ALPHA_));
+        }
+        pixels[rowStart + x] = OPAQUE_MASK_ | rgb;
+      }
+      if (useCols < bam.imgWidth) {
+        Arrays.fill(pixels, rowStart + useCols, rowStart + bam.imgWidth, OPAQUE_WHITE_);
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Alpha for a count of overlapping links (or nodes) in a pixel
+  */
+  
+  private static int countAlpha(int count, double lpp, int maxAlpha) {
+    return (Math.min(maxAlpha, (int)Math.round((count / lpp) * maxAlpha)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Source-over blend of a color with the given alpha onto an opaque color.
+  ** Alpha bits of the source color are ignored.
+  */
+  
+  private static int blend(int dst, int src, int alpha) {
+    if (alpha >= 255) {
+      return (src & WHITE_);
+    }
+    int inv = 255 - alpha;
+    int red = ((((src >> 16) & 0xFF) * alpha) + (((dst >> 16) & 0xFF) * inv) + 127) / 255;
+    int green = ((((src >> 8) & 0xFF) * alpha) + (((dst >> 8) & 0xFF) * inv) + 127) / 255;
+    int blue = (((src & 0xFF) * alpha) + ((dst & 0xFF) * inv) + 127) / 255;
+    return ((red << 16) | (green << 8) | blue);
+  }
+  
+  /***************************************************************************
+  **
+  ** Count the links crossing each pixel. Links are vertical, so each one
+  ** is a column of pixels.
+  */
+  
+  private int[] tallyLinks(Buckets buck, ImgAndBufPool bis, BufAndMeta bam, Rectangle2D clip) {
+  	
+    int[] mybuf = bis.fetchBuf(bam.bufLen);
+    SpanIndex lidx = buck.linksByCol;
+    int first = lidx.firstAtOrAbove(gridCeil(clip.getX()));
+    int last = lidx.firstAbove(gridFloor(clip.getX() + clip.getWidth()));
+    for (int j = first; j < last; j++) {
+	    bam.yStrt = lidx.spanMin[j] * BioFabricPanel.GRID_SIZE;
+	    bam.yEnd = lidx.spanMax[j] * BioFabricPanel.GRID_SIZE;
+	    bam.x = lidx.keys[j] * BioFabricPanel.GRID_SIZE;
 	   	if (!bam.clipForLinks(clip)) {
 	    	continue;
 	    }
-	    int bufStart = (bam.startPtInV.x * bam.scrnHeight) + bam.startPtInV.y - bufOffset;
-	    int bufEnd = (bam.endPtInV.x * bam.scrnHeight) + bam.endPtInV.y - bufOffset;
-	    
-	    bam.transToBuf(bufStart, bufEnd);
+	    int col = bam.startPtInV.x - bam.ulInV.x;
+	    int rowStart = bam.startPtInV.y - bam.ulInV.y;
+	    int rowEnd = bam.endPtInV.y - bam.ulInV.y;
+	    bam.countColumn(mybuf, col, rowStart, rowEnd);
     }
- 
-    for (int i = 0; i < bam.bufLen; i++) {
-    	int pix = bam.mybuf[i];
-    	
-    	int red = 0;
-    	int green = 0;
-    	int blue = 0;
-    	int alpha = 0; 	
-    	
-    	int xval = i / bam.scrnHeight;
-      
-      if (pix != 0) {
-        double val = pix / lpp; 
-        int index = xval % linkCycle_.length;       
-        red = linkCycle_[index].getRed();
-        green = linkCycle_[index].getGreen();
-        blue = linkCycle_[index].getBlue();
-        alpha = Math.min(LINK_MAX_ALPHA_, (int)Math.round(val * LINK_MAX_ALPHA_));
-      }
-    	
-      int rgb = alpha << 24 | red << 16 | green << 8 | blue;
-      
-    	if (xval >= bam.imgWidth) {
-    		continue;
-    	}
-    	int yval = i % bam.scrnHeight;
-    	if (yval >= bam.imgHeight) {
-    		continue;
-    	}
-      bi.setRGB(xval, yval, rgb);
-	  }
-    
-    bis_.returnBuf(bam.mybuf);
-    return (true);
+    return (mybuf);
   }
  
   /***************************************************************************
   **
-  ** Drawing core
+  ** Count the nodes crossing each pixel. Nodes are horizontal runs.
   */
   
-  private boolean drawNodesForBuffer(BufferedImage bi, Rectangle2D clip, Dimension screenDim, Rectangle2D worldRec, int heightPad, double lpp) {
+  private int[] tallyNodes(Buckets buck, ImgAndBufPool bis, BufAndMeta bam, Rectangle2D clip) {
   
-  	BufAndMeta bam = new BufAndMeta(bi, clip, screenDim, worldRec, heightPad, lpp, bis_);
-
+    int[] mybuf = bis.fetchBuf(bam.bufLen);
 	  int bufOffset = (bam.ulInV.y * bam.scrnWidth) + bam.ulInV.x;	  
-	  
-    for (BioFabricNetwork.NodeInfo nif : targetList_) {
-
-	    MinMax colRange = nif.getColRange(showShadows_);	    				
-	    bam.xStrt = colRange.min * BioFabricPanel.GRID_SIZE;
-	    bam.xEnd = colRange.max * BioFabricPanel.GRID_SIZE;
-	    bam.y = nif.nodeRow * BioFabricPanel.GRID_SIZE;
+    SpanIndex nidx = buck.nodesByRow;
+    int first = nidx.firstAtOrAbove(gridCeil(clip.getY()));
+    int last = nidx.firstAbove(gridFloor(clip.getY() + clip.getHeight()));
+    for (int j = first; j < last; j++) {
+	    bam.xStrt = nidx.spanMin[j] * BioFabricPanel.GRID_SIZE;
+	    bam.xEnd = nidx.spanMax[j] * BioFabricPanel.GRID_SIZE;
+	    bam.y = nidx.keys[j] * BioFabricPanel.GRID_SIZE;
 	    if (!bam.clipForNodes(clip)) {
 	    	continue;
 	    }
 	    int bufStart = (bam.startPtInV.y * bam.scrnWidth) + bam.startPtInV.x - bufOffset;
 	    int bufEnd = (bam.endPtInV.y * bam.scrnWidth) + bam.endPtInV.x - bufOffset;
-	       
-	    bam.transToBuf(bufStart, bufEnd);
+	    bam.countRun(mybuf, bufStart, bufEnd);
     }
-    
-    for (int i = 0; i < bam.bufLen; i++) {
-    	int pix = bam.mybuf[i];
-    	
-    	int red = 0;
-    	int green = 0;
-    	int blue = 0;
-    	int alpha = 0;
-    	
-    	int yval = i / bam.scrnWidth;
-    	
-    	if (pix != 0) {
-    	  double val = pix / lpp; 
-    	  int index = yval % nodeCycle_.length;    	  
-    	  red = nodeCycle_[index].getRed();
-    	  green = nodeCycle_[index].getGreen();
-    	  blue = nodeCycle_[index].getBlue();
-    	  alpha = Math.min(NODE_MAX_ALPHA_, (int)Math.round(val * NODE_MAX_ALPHA_));
-    	}
-    	
-      int rgb = alpha << 24 | red << 16 | green << 8 | blue;
-    //  mybuf[i] = rgb;
-    	
-    	
-    	if (yval >= bam.imgHeight) {
-    		continue;
-    	}
-    	int xval = i % bam.scrnWidth;
-    	if (xval >= bam.imgWidth) {
-    		continue;
-    	}
-      bi.setRGB(xval, yval, rgb);
-	  }
-    // Use this instead:
-    // int[] a = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
-    // System.arraycopy(mybuf, 0, a, 0, Math.min(mybuf.length, a.length));
-    bis_.returnBuf(bam.mybuf);
-    return (true);
+    return (mybuf);
   }
   
   /***************************************************************************
   **
-  ** Drawing core
+  ** Tag each pixel with its node annotation color number (plus one). Overlaps are -1.
   */
   
-  private boolean drawNodeAnnotsForBuffer(BufferedImage bi, Rectangle2D clip, Dimension screenDim, Rectangle2D worldRec, int heightPad, double lpp) {
+  private int[] tallyNodeAnnots(Buckets buck, ImgAndBufPool bis, BufAndMeta bam, Rectangle2D clip) {
   
-  	BufAndMeta bam = new BufAndMeta(bi, clip, screenDim, worldRec, heightPad, lpp, bis_);
-
+    int[] mybuf = bis.fetchBuf(bam.bufLen);
 	  int bufOffset = (bam.ulInV.y * bam.scrnWidth) + bam.ulInV.x;	  
-	  
-	  MinMax linkCols = ext_.allLinkFullRange.get(Boolean.valueOf(showShadows_));
-	  int pad = PaintCacheSmall.calcAnnotationPad(linkCols);
+	  MinMax linkCols = buck.ext.allLinkFullRange.get(Boolean.valueOf(buck.showShadows));
 	  
 	  int colNum = 0;
-    for (Annot annot : this.nodeAnnot_) {
+    for (Annot annot : buck.nodeAnnot) {
 	    MinMax rowRange = annot.getRange();
+      AnnotColorSource.AnnotColor acol = annot.getColor();
+      int useColorNum = (acol == null) ? colNum : acol.getCycle();
       for (int i = rowRange.min; i <= rowRange.max; i++) {
 		    bam.xStrt = linkCols.min * BioFabricPanel.GRID_SIZE;
 		    bam.xEnd = linkCols.max * BioFabricPanel.GRID_SIZE;
@@ -417,76 +492,30 @@ public class BucketRenderer implements BufBuildDrawer {
 		    }
 		    int bufStart = (bam.startPtInV.y * bam.scrnWidth) + bam.startPtInV.x - bufOffset;
 		    int bufEnd = (bam.endPtInV.y * bam.scrnWidth) + bam.endPtInV.x - bufOffset;
-		      
-		    AnnotColorSource.AnnotColor acol = annot.getColor();
-		    int useColorNum = (acol == null) ? colNum : acol.getCycle();
-		    
-		    bam.transColorToBuf(bufStart, bufEnd, useColorNum);
+		    bam.colorRun(mybuf, bufStart, bufEnd, useColorNum);
       }
-      colNum = (colNum + 1) % annotColors_.length;
+      colNum = (colNum + 1) % annotArgb_.length;
     }
-    
-    for (int i = 0; i < bam.bufLen; i++) {
-    	int val = bam.mybuf[i];
-    	if ((val == -1) || (val == 0)) {
-    		continue;
-    	}
-    	Color col = annotColors_[val - 1].getColor();
-    	int red = col.getRed();
-    	int green = col.getGreen();
-    	int blue = col.getBlue();
- 
-      int rgb = 255 << 24 | red << 16 | green << 8 | blue;
-    //  mybuf[i] = rgb;
-    	int yval = i / bam.scrnWidth;
-    	
-    	if (yval >= bam.imgHeight) {
-    		continue;
-    	}
-    	int xval = i % bam.scrnWidth;
-    	if (xval >= bam.imgWidth) {
-    		continue;
-    	}
-
-      bi.setRGB(xval, yval, rgb);
-	  }
-    // Use this instead:
-    // int[] a = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
-    // System.arraycopy(mybuf, 0, a, 0, Math.min(mybuf.length, a.length));
-    bis_.returnBuf(bam.mybuf);
-    return (true);
+    return (mybuf);
   }
   
   /***************************************************************************
   **
-  ** Drawing core
+  ** Tag each pixel with its link annotation color number (plus one). Overlaps are -1.
   */
   
-  private boolean drawLinkAnnotsForBuffer(BufferedImage bi, Rectangle2D clip, 
-                                          Dimension screenDim, Rectangle2D worldRec, 
-                                          int heightPad, double lpp) {
+  private int[] tallyLinkAnnots(Buckets buck, ImgAndBufPool bis, BufAndMeta bam, Rectangle2D clip) {
   
-  	BufAndMeta bam = new BufAndMeta(bi, clip, screenDim, worldRec, heightPad, lpp, bis_);
-
+    int[] mybuf = bis.fetchBuf(bam.bufLen);
 	  int bufOffset = (bam.ulInV.y * bam.scrnWidth) + bam.ulInV.x;	  
-	  
-	  MinMax nodeRows = ext_.allNodeFullRange.get(Boolean.valueOf(showShadows_));
-	  int pad = PaintCacheSmall.calcAnnotationPad(nodeRows);
-	  
-	  Color[] useColors;
-	  if ((nodeAnnot_ != null) && (nodeAnnot_.size() > 0)) {
-	  	useColors = linkAnnotGrays_;
-	  	
-	  } else {
-	  	useColors = new Color[annotColors_.length];
-	  	for (int i = 0; i < annotColors_.length; i++) {
-	  		useColors[i] = annotColors_[i].getColor();
-	  	}
-	  }
+	  MinMax nodeRows = buck.ext.allNodeFullRange.get(Boolean.valueOf(buck.showShadows));
+	  int numColors = ((buck.nodeAnnot != null) && (buck.nodeAnnot.size() > 0)) ? linkAnnotGrayArgb_.length : annotArgb_.length;
 	  
 	  int colNum = 0;
-    for (Annot annot : linkAnnot_) {
+    for (Annot annot : buck.linkAnnot) {
 	    MinMax colRange = annot.getRange();
+      AnnotColorSource.AnnotColor acol = annot.getColor();
+      int useColorNum = (acol == null) ? colNum : acol.getCycle();
       for (int i = nodeRows.min; i <= nodeRows.max; i++) {
 		    bam.xStrt = colRange.min * BioFabricPanel.GRID_SIZE;
 		    bam.xEnd = colRange.max * BioFabricPanel.GRID_SIZE;
@@ -496,44 +525,42 @@ public class BucketRenderer implements BufBuildDrawer {
 		    }
 		    int bufStart = (bam.startPtInV.y * bam.scrnWidth) + bam.startPtInV.x - bufOffset;
 		    int bufEnd = (bam.endPtInV.y * bam.scrnWidth) + bam.endPtInV.x - bufOffset;
-		      
-        AnnotColorSource.AnnotColor acol = annot.getColor();
-        int useColorNum = (acol == null) ? colNum : acol.getCycle();
-
-		    bam.transColorToBuf(bufStart, bufEnd, useColorNum);
+		    bam.colorRun(mybuf, bufStart, bufEnd, useColorNum);
       }
-      colNum = (colNum + 1) % useColors.length;
+      colNum = (colNum + 1) % numColors;
     }
-    
-    for (int i = 0; i < bam.bufLen; i++) {
-    	int val = bam.mybuf[i];
-    	if ((val == -1) || (val == 0)) {
-    		continue;
-    	}
-    	int red = useColors[val - 1].getRed();
-    	int green = useColors[val - 1].getGreen();
-    	int blue = useColors[val - 1].getBlue();
-    	int alpha = useColors[val - 1].getAlpha();
- 
-      int rgb = alpha << 24 | red << 16 | green << 8 | blue;
-    //  mybuf[i] = rgb;
-    	int yval = i / bam.scrnWidth;
-    	
-    	if (yval >= bam.imgHeight) {
-    		continue;
-    	}
-    	int xval = i % bam.scrnWidth;
-    	if (xval >= bam.imgWidth) {
-    		continue;
-    	}
-
-      bi.setRGB(xval, yval, rgb);
-	  }
-    // Use this instead:
-    // int[] a = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
-    // System.arraycopy(mybuf, 0, a, 0, Math.min(mybuf.length, a.length));
-    bis_.returnBuf(bam.mybuf);
-    return (true);
+    return (mybuf);
+  }
+  
+  /***************************************************************************
+  **
+  ** Colors as packed ARGB ints
+  */
+  
+  private static int[] packColors(Color[] colors) {
+    int[] retval = new int[colors.length];
+    for (int i = 0; i < colors.length; i++) {
+      retval[i] = colors[i].getRGB();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Smallest grid index whose world coordinate is at or past the given value
+  */
+  
+  private static int gridCeil(double worldVal) {
+    return ((int)Math.ceil(worldVal / BioFabricPanel.GRID_SIZE));
+  }
+  
+  /***************************************************************************
+  **
+  ** Largest grid index whose world coordinate is at or before the given value
+  */
+  
+  private static int gridFloor(double worldVal) {
+    return ((int)Math.floor(worldVal / BioFabricPanel.GRID_SIZE));
   }
   
   ////////////////////////////////////////////////////////////////////////////
@@ -542,6 +569,136 @@ public class BucketRenderer implements BufBuildDrawer {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Immutable snapshot of the network as the tile builders see it
+  */
+  
+  private static class Buckets {
+    final List<BioFabricNetwork.NodeInfo> targets;
+    final List<BioFabricNetwork.LinkInfo> links;
+    final AnnotationSet nodeAnnot;
+    final AnnotationSet linkAnnot;
+    final BioFabricNetwork.Extents ext;
+    final boolean showShadows;
+    final SpanIndex linksByCol;
+    final SpanIndex nodesByRow;
+    
+    Buckets(List<BioFabricNetwork.NodeInfo> targets, List<BioFabricNetwork.LinkInfo> links,
+            AnnotationSet nodeAnnot, AnnotationSet linkAnnot, BioFabricNetwork.Extents ext, 
+            boolean showShadows, SpanIndex linksByCol, SpanIndex nodesByRow) {
+      this.targets = targets;
+      this.links = links;
+      this.nodeAnnot = nodeAnnot;
+      this.linkAnnot = linkAnnot;
+      this.ext = ext;
+      this.showShadows = showShadows;
+      this.linksByCol = linksByCol;
+      this.nodesByRow = nodesByRow;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Primitive index of drawn spans, sorted on the key. For links the key is the
+  ** column and the span is the row range; for nodes the key is the row and the
+  ** span is the column range. Once sorted, it is read-only and can be shared by
+  ** multiple tile builders.
+  */
+  
+  private static class SpanIndex {
+    int[] keys;
+    int[] spanMin;
+    int[] spanMax;
+    int size;
+    
+    SpanIndex(int capacity) {
+      keys = new int[capacity];
+      spanMin = new int[capacity];
+      spanMax = new int[capacity];
+      size = 0;
+    }
+    
+    void add(int key, int min, int max) {
+      keys[size] = key;
+      spanMin[size] = min;
+      spanMax[size] = max;
+      size++;
+      return;
+    }
+    
+    //
+    // Lists usually arrive already in column order, so check before paying for the sort.
+    // Sort is done on packed (key, position) longs to avoid boxing:
+    //
+    
+    void sort() {
+      boolean ordered = true;
+      for (int i = 1; i < size; i++) {
+        if (keys[i - 1] > keys[i]) {
+          ordered = false;
+          break;
+        }
+      }
+      if (ordered) {
+        return;
+      }
+      long[] packed = new long[size];
+      for (int i = 0; i < size; i++) {
+        packed[i] = ((long)keys[i] << 32) | (i & 0xFFFFFFFFL);
+      }
+      Arrays.sort(packed);
+      int[] newKeys = new int[size];
+      int[] newMin = new int[size];
+      int[] newMax = new int[size];
+      for (int i = 0; i < size; i++) {
+        int pos = (int)(packed[i] & 0xFFFFFFFFL);
+        newKeys[i] = keys[pos];
+        newMin[i] = spanMin[pos];
+        newMax[i] = spanMax[pos];
+      }
+      keys = newKeys;
+      spanMin = newMin;
+      spanMax = newMax;
+      return;
+    }
+    
+    //
+    // Index of first entry with key >= val (size if none):
+    //
+    
+    int firstAtOrAbove(int val) {
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (keys[mid] < val) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return (lo);
+    }
+    
+    //
+    // Index of first entry with key > val (size if none):
+    //
+    
+    int firstAbove(int val) {
+      if (val == Integer.MAX_VALUE) {
+        return (size);
+      }
+      return (firstAtOrAbove(val + 1));
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Geometry for mapping a tile's world rect onto its scratch buffers, which are
+  ** screen-sized and row-major.
+  */
+  
   private static class BufAndMeta {
   	int imgHeight;
     int imgWidth;
@@ -557,7 +714,6 @@ public class BucketRenderer implements BufBuildDrawer {
     int bufLen;
     
     Point2D newPoint;
-  	int[] mybuf;
 	
   	Point pts;
     Point pte;    
@@ -578,8 +734,7 @@ public class BucketRenderer implements BufBuildDrawer {
 	  double xEnd;
 	  double y;
  
-	  BufAndMeta(BufferedImage bi, Rectangle2D clip, Dimension screenDim, Rectangle2D worldRec, 
-	  		       int heightPad, double lpp, ImgAndBufPool bis) {
+	  BufAndMeta(BufferedImage bi, Rectangle2D clip, Dimension screenDim, Rectangle2D worldRec) {
   	
 	  	imgHeight = bi.getHeight();
 	    imgWidth = bi.getWidth();
@@ -599,8 +754,6 @@ public class BucketRenderer implements BufBuildDrawer {
 	    bufLen = scrnHeight * scrnWidth;
 	    
 	    newPoint = new Point2D.Double();
-	   
-	    mybuf = bis.fetchBuf(bufLen);
 	    
 	    pts = new Point();
 	    pte = new Point();    
@@ -608,7 +761,11 @@ public class BucketRenderer implements BufBuildDrawer {
 		  endPoint = new Point();
 		  
 		  startPoint.setLocation(worldRec.getX(), worldRec.getY());
-		  ulInV = BasicZoomTargetSupport.pointToViewport(startPoint, transform, newPoint,pts); 
+		  //
+		  // The clip methods reuse pts for each start point, so hang onto our own copy:
+		  //
+		  
+		  ulInV = new Point(BasicZoomTargetSupport.pointToViewport(startPoint, transform, newPoint, pts)); 
 	  }
 	  
 	  boolean clipForLinks(Rectangle2D clip) {
@@ -662,35 +819,49 @@ public class BucketRenderer implements BufBuildDrawer {
 	    return (true);
 	  } 
 	  
-	  void transToBuf(int bufStart, int bufEnd) {
-	  	for (int i = bufStart; i < bufEnd; i++) {
-	    	int off = i;
-	    	if (off < 0) {
-	    		continue;
-	    	}
-	    	if (off >= mybuf.length) {
-          continue;	
-	    	}
-	    	mybuf[off] += 1;    	
+	  //
+	  // Bump the count for a horizontal run of buffer slots:
+	  //
+	  
+	  void countRun(int[] buf, int bufStart, int bufEnd) {
+	    int start = Math.max(0, bufStart);
+	    int end = Math.min(bufLen, bufEnd);
+	  	for (int i = start; i < end; i++) {
+	    	buf[i] += 1;    	
 	    }
 	  	return;
 	  }
 	  
-	  void transColorToBuf(int bufStart, int bufEnd, int color) {
-	  	for (int i = bufStart; i < bufEnd; i++) {
-	    	int off = i;
-	    	if (off < 0) {
-	    		continue;
-	    	}
-	    	if (off >= mybuf.length) {
-          continue;	
-	    	}
-	    	int currCol = mybuf[off];
-	    	int slotCol = color + 1;
+	  //
+	  // Bump the count for rows [rowStart, rowEnd) of a column:
+	  //
+	  
+	  void countColumn(int[] buf, int col, int rowStart, int rowEnd) {
+	    if ((col < 0) || (col >= scrnWidth)) {
+	      return;
+	    }
+	    int start = Math.max(0, rowStart);
+	    int end = Math.min(scrnHeight, rowEnd);
+	    for (int i = (start * scrnWidth) + col; start < end; start++, i += scrnWidth) {
+	      buf[i] += 1;
+	    }
+	    return;
+	  }
+	  
+	  //
+	  // Tag a run of buffer slots with a color number, or -1 where colors collide:
+	  //
+	  
+	  void colorRun(int[] buf, int bufStart, int bufEnd, int color) {
+	    int start = Math.max(0, bufStart);
+	    int end = Math.min(bufLen, bufEnd);
+	    int slotCol = color + 1;
+	  	for (int i = start; i < end; i++) {
+	    	int currCol = buf[i];
 	    	if ((currCol == 0) || (currCol == slotCol)) {
-	    	  mybuf[off] = slotCol;
+	    	  buf[i] = slotCol;
 	    	} else {
-	    		mybuf[off] = -1;
+	    		buf[i] = -1;
 	    	}
 	    }
 	  	return;
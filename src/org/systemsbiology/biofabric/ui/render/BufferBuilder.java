@@ -22,22 +22,32 @@ package org.systemsbiology.biofabric.ui.render;
 
 import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import javax.swing.SwingUtilities;
 
+import org.systemsbiology.biofabric.api.util.PreferenceStorage;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.LoopReporter;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.util.DataUtil;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.QuadTree;
 import org.systemsbiology.biofabric.util.UiUtil;
 
@@ -67,12 +77,61 @@ public class BufferBuilder {
   
   private static final double TRANSITION_LPP_ = 20.0;
   
+  //
+  // Never spin up more tile builders than this, regardless of core count:
+  //
+  
+  
+  //
+  // How many persisted tile pyramids to keep around:
+  //
+  
+  private static final int MAX_PYRAMIDS_ = 8;
+  
+  //
+  // Most lo-res placeholder requests we hang onto. Older ones get tossed:
+  //
+  
+  private static final int MAX_LO_RES_QUEUE_ = 64;
+  
+  //
+  // Caps on how many tiles we prefetch ahead of the view, and at the next zoom level:
+  //
+  
+  private static final int MAX_AHEAD_TILES_ = 32;
+  private static final int MAX_NEXT_LEVEL_TILES_ = 16;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
   //
   //////////////////////////////////////////////////////////////////////////// 
   
+  //
+  // User preference key for the number of background tile builder threads:
+  //
+  
+  public static final String BUILDER_THREADS_PREF = "TileBuilderThreads";
+  public static final int MAX_BUILDER_THREADS = 16;
+  
+  //
+  // User preference key for the directory holding persisted tile pyramids. Set it
+  // to NO_TILE_PYRAMID to turn off persistence:
+  //
+  
+  public static final String TILE_PYRAMID_DIR_PREF = "TilePyramidDir";
+  public static final String NO_TILE_PYRAMID = "none";
+  
+  //
+  // User preference key for how coarser zoom levels get built. Either every level is
+  // rendered, or coarser levels are reduced from the four tiles below them (all but
+  // the single top tile, which is rendered so there is something to show at once):
+  //
+  
+  public static final String TILE_PYRAMID_MODE_PREF = "TilePyramidMode";
+  public static final String RENDER_LEVELS = "render";
+  public static final String DOWNSAMPLE_LEVELS = "downsample";
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE MEMBERS
@@ -89,8 +148,21 @@ public class BufferBuilder {
   private Rectangle2D worldRect_;
   private BufferBuilderClient bbc_;
   private boolean timeToExit_;
-  private BuildImageWorker biw_;
+  private int numBuilders_;
+  private ArrayList<QueueRequest> requests_;
+  private HashSet<QueueRequest> inProgress_;
+  private boolean haveBuilders_;
+  private ArrayList<QueueRequest> loResRequests_;
+  private boolean haveLoResWorker_;
   private ImgAndBufPool bis_;
+  private String codecName_;
+  private File pyramidDir_;
+  private String pyramidContentKey_;
+  private TilePyramidFile pyramid_;
+  private boolean downsampleLevels_;
+  private TilePrefetcher prefetcher_;
+  private HashSet<QueueRequest> prefetched_;
+  private boolean onHold_;
 
   
   ////////////////////////////////////////////////////////////////////////////
@@ -105,10 +177,11 @@ public class BufferBuilder {
   */
 
   public BufferBuilder(String cachePref, int maxMeg, BufBuildDrawer drawRender, 
-  		                 BufBuildDrawer binRender, ImgAndBufPool bis) {
+  		                 BufBuildDrawer binRender, ImgAndBufPool bis, int numBuilders, TileCodec codec) {
   	BufferedImage forModel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
   	DirectColorModel dcm = (DirectColorModel)forModel.getColorModel();
-    cache_ = new RasterCache(cachePref, maxMeg, dcm);
+    cache_ = new RasterCache(cachePref, maxMeg, dcm, codec);
+    codecName_ = codec.getName();
     allWorldsToImageName_ = new HashMap<Rectangle2D, WorldPieceOffering>();
     findWorldsQT_ = null;
     drawRender_ = drawRender;
@@ -116,6 +189,14 @@ public class BufferBuilder {
     bbc_ = null;
     timeToExit_ = false;
     bis_ = bis;
+    numBuilders_ = Math.max(1, Math.min(numBuilders, MAX_BUILDER_THREADS));
+    requests_ = new ArrayList<QueueRequest>();
+    inProgress_ = new HashSet<QueueRequest>();
+    haveBuilders_ = false;
+    loResRequests_ = new ArrayList<QueueRequest>();
+    haveLoResWorker_ = false;
+    prefetcher_ = new TilePrefetcher();
+    prefetched_ = new HashSet<QueueRequest>();
   }
   
   /***************************************************************************
@@ -131,8 +212,99 @@ public class BufferBuilder {
     bbc_ = null;
     timeToExit_ = false;
     bis_ = bis;
+    numBuilders_ = 1;
+    requests_ = new ArrayList<QueueRequest>();
+    inProgress_ = new HashSet<QueueRequest>();
+    haveBuilders_ = false;
+    loResRequests_ = new ArrayList<QueueRequest>();
+    haveLoResWorker_ = false;
+    prefetcher_ = new TilePrefetcher();
+    prefetched_ = new HashSet<QueueRequest>();
   }
 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of background tile builders to use. Taken from the user preference
+  ** (set in the display options dialog) if set, else the default.
+  */
+  
+  public static int builderThreadCountFromPrefs() {
+    int retval = defaultBuilderThreadCount();
+    String pref = new PreferenceStorage().getPreference(BUILDER_THREADS_PREF);
+    if (pref != null) {
+      try {
+        retval = Integer.parseInt(pref.trim());
+      } catch (NumberFormatException nfex) {
+        System.err.println("Bad " + BUILDER_THREADS_PREF + " preference: " + pref);
+      }
+    }
+    return (Math.max(1, Math.min(retval, MAX_BUILDER_THREADS)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Default number of background tile builders: one less than the number of
+  ** cores, so the UI stays responsive
+  */
+  
+  public static int defaultBuilderThreadCount() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    return (Math.max(1, Math.min(cores - 1, MAX_BUILDER_THREADS)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Set the number of background tile builders to use for future builds
+  */
+  
+  public static void setBuilderThreadCountPref(int numBuilders) {
+    new PreferenceStorage().setPreference(BUILDER_THREADS_PREF, Integer.toString(numBuilders));
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if the user wants coarser zoom levels reduced from finer ones instead
+  ** of rendered
+  */
+  
+  public static boolean downsampleLevelsFromPrefs() {
+    String pref = new PreferenceStorage().getPreference(TILE_PYRAMID_MODE_PREF);
+    return ((pref != null) && pref.trim().equalsIgnoreCase(DOWNSAMPLE_LEVELS));
+  }
+  
+  /***************************************************************************
+  **
+  ** Directory for persisted tile pyramids, from the user preference if set, else
+  ** under the user's home directory. Null if persistence is turned off or the 
+  ** directory cannot be used.
+  */
+  
+  public static File pyramidDirFromPrefs() {
+    String pref = new PreferenceStorage().getPreference(TILE_PYRAMID_DIR_PREF);
+    File dir;
+    if (pref != null) {
+      pref = pref.trim();
+      if (pref.equalsIgnoreCase(NO_TILE_PYRAMID)) {
+        return (null);
+      }
+      dir = new File(pref);
+    } else {
+      dir = new File(new File(System.getProperty("user.home"), ".BioFabric"), "tilePyramids");
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      System.err.println("Cannot use tile pyramid directory " + dir);
+      return (null);
+    }
+    return (dir);
+  }
+ 
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC METHODS
@@ -148,15 +320,81 @@ public class BufferBuilder {
     synchronized (this) {
       timeToExit_ = true;
       bbc_ = null;
-      this.notify();
+      requests_.clear();
+      loResRequests_.clear();
+      prefetched_.clear();
+      this.notifyAll();
     }
     if (findWorldsQT_ != null) {
     	findWorldsQT_.clear();
     }
+    if (pyramid_ != null) {
+      pyramid_.close();
+    }
     cache_.releaseResources();
     return;
   }
   
+  /***************************************************************************
+  **
+  ** Report estimated heap bytes for the tile bookkeeping and the in-memory tiles.
+  ** The image pool is shared with the panel, which reports it. The tile cache hit,
+  ** miss and spill counts go along too, for sizing the cache.
+  */
+  
+  public void reportFootprint(HeapFootprint fp) {
+    String struct = "BufferBuilder";
+    synchronized (this) {
+      int numTiles = allWorldsToImageName_.size();
+      long offerBytes = HeapFootprint.object(28) + HeapFootprint.RECTANGLE_2D + HeapFootprint.object(8) + HeapFootprint.string("img0000000");
+      fp.add(struct, "tile map", numTiles, HeapFootprint.hashMap(numTiles) + (numTiles * (HeapFootprint.RECTANGLE_2D + offerBytes)));
+      if (findWorldsQT_ != null) {
+        int[] treeCounts = new int[2];
+        long treeBytes = findWorldsQT_.estimateBytes(treeCounts);
+        fp.add(struct, "tile quad tree", treeCounts[1], treeBytes);
+      }
+    }
+    if (cache_ != null) {
+      RasterCache.Stats stats = cache_.getStats();
+      fp.add("RasterCache", "in-memory tiles", stats.tilesInMemory, cache_.estimateMemoryBytes());
+      fp.addNote("RasterCache", "hits " + stats.hits + ", misses " + stats.misses + 
+                 " (hit rate " + Math.round(stats.hitRate() * 100.0) + "%), spills " + stats.spills + 
+                 " (" + HeapFootprint.formatBytes(stats.spillBytes) + "), tiles on disk " + stats.tilesOnDisk + 
+                 ", in-memory limit " + HeapFootprint.formatBytes(stats.maxBytes));
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Persist the pyramid in the given directory, keyed by a hash of everything
+  ** about the network that affects the pixels (layout, display options, colors).
+  ** Tiles already on disk for the key are served without rendering. Call before
+  ** buildBufs().
+  */
+  
+  public void usePersistentPyramid(File dir, String contentKey) {
+    pyramidDir_ = dir;
+    pyramidContentKey_ = contentKey;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** In downsample mode, the background builders start on the deepest level, and
+  ** each coarser tile is reduced from its four children once they are all done.
+  ** If a coarser tile is needed before its children are ready, the children are
+  ** queued first and the tile waits for them. The one exception is the single
+  ** top tile. It is rendered up front, since it is handed back by buildBufs()
+  ** and reducing it would mean building the whole pyramid first. Call before
+  ** buildBufs().
+  */
+  
+  public void setDownsampleLevels(boolean downsample) {
+    downsampleLevels_ = downsample;
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Simple overview one-shot
@@ -182,7 +420,9 @@ public class BufferBuilder {
   public void getSlicesToCover(int depth, Rectangle2D viewInWorld, List<Rectangle2D>slicesToCover) {
   
   	ArrayList<QuadTree.QuadTreeNode> qtnList = new ArrayList<QuadTree.QuadTreeNode>();
-  	findWorldsQT_.getNodes(viewInWorld, depth, qtnList);
+  	synchronized (this) { // Builders walk the tree too, and it splits lazily
+  	  findWorldsQT_.getNodes(viewInWorld, depth, qtnList);
+  	}
   	int lsiz = qtnList.size();
   	for (int i = 0; i < lsiz; i++) {
   		QuadTree.QuadTreeNode qtn = qtnList.get(i);
@@ -206,38 +446,155 @@ public class BufferBuilder {
     drawRender_.dimsForBuf(screenDim_, worldRect_); // These values are now ours
     Rectangle worldPiece = UiUtil.rectFromRect2D(worldRect_);   
     findWorldsQT_ = new QuadTree(worldPiece, zooms.length);
+    openPyramid(zooms, worldPiece);
          
     //
-    // Build the first two zoom levels before we even get started:
+    // Build the first two zoom levels before we even get started. In downsample mode,
+    // just the top one; the builders reduce the second from the third:
     //
     
-    List<QueueRequest> requestQueuePre = buildQueue(0, 1, 10); 
+    List<QueueRequest> requestQueuePre = buildQueue(0, lastUpFrontLevel(), 10); 
     LoopReporter lr = new LoopReporter(requestQueuePre.size(), 20, monitor, 0.0, 1.0, "progress.stockingImageBufferTop");
     while (!requestQueuePre.isEmpty()) {
       QueueRequest qr = requestQueuePre.remove(0);
       lr.report();
-      buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr);
+      buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr, bis_);
     }
     
     //
-    // Now build up the requests for the background thread:
-    //   
+    // Now build up the requests for the background threads. With a single builder, we
+    // just prime the queue and let tile requests from the view drive it. With a pool,
+    // each builder gets a share of the deeper levels to get started on. In downsample
+    // mode, builders start at the bottom; coarser tiles get queued up as their children
+    // are finished.
+    //
     
-    int useMax = 1; //maxSize; 
-    List<QueueRequest> requestQueue = (zooms.length > 2) ? buildQueue(2, zooms.length - 1, useMax) : new ArrayList<QueueRequest>();
+    int useMax = (numBuilders_ > 1) ? maxSize * numBuilders_ : 1; 
+    int startLevel = (downsampleLevels_) ? zooms.length - 1 : 2;
+    List<QueueRequest> requestQueue = (zooms.length > 2) ? buildQueue(startLevel, zooms.length - 1, useMax) : new ArrayList<QueueRequest>();
  
     bbc_ = bbc;
  
-    if (!requestQueue.isEmpty()) {
-      biw_ = new BuildImageWorker(screenDim_, requestQueue);
-      Thread runThread = new Thread(biw_);
-      runThread.setPriority(runThread.getPriority() - 2);
-      runThread.start();
+    if (zooms.length > 2) {
+      synchronized (this) {
+        requests_.addAll(requestQueue);
+        haveBuilders_ = true;
+      }
+      for (int i = 0; i < numBuilders_; i++) {
+        Thread runThread = new Thread(new BuildImageWorker(bis_.getBinSize()), "TileBuilder-" + i);
+        runThread.setPriority(runThread.getPriority() - 2);
+        runThread.setDaemon(true);
+        runThread.start();
+      }
     }
 
     return (getTopImage()); 
   }
 
+  /***************************************************************************
+  **
+  ** Stop the background builders from starting on new tiles, and wait until the
+  ** ones they are working on are installed. Call before changing what the renderers
+  ** draw for a network update, then call patchBufs() to get them going again.
+  */
+  
+  public synchronized void holdBuilders() {
+    onHold_ = true;
+    while (!inProgress_.isEmpty() && !timeToExit_) {
+      try {
+        this.wait();
+      } catch (InterruptedException e) {
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The renderers now draw an updated network that fits in the same world. Toss
+  ** every tile touching one of the dirty world rects, redraw the top two levels 
+  ** here, queue up the rest for the builders, and let them go again. Tiles we
+  ** have not touched are kept. Since the tiles no longer match the content key,
+  ** we stop persisting the pyramid.
+  */
+  
+  public BufferedImage patchBufs(List<Rectangle2D> dirty, BTProgressMonitor monitor) throws IOException, AsynchExitRequestException {
+    ArrayList<QueueRequest> rebuildNow = new ArrayList<QueueRequest>();
+    ArrayList<QueueRequest> rebuildLater = new ArrayList<QueueRequest>();
+    TilePyramidFile oldPyramid;
+    synchronized (this) {
+      oldPyramid = pyramid_;
+      pyramid_ = null;
+      ArrayList<QuadTree.QuadTreeNode> path = new ArrayList<QuadTree.QuadTreeNode>();
+      for (WorldPieceOffering wpo : allWorldsToImageName_.values()) {
+        if (!touchesDirty(wpo, dirty)) {
+          continue;
+        }
+        if (!wpo.isDrawn && (wpo.cacheHandle == null)) { // Nothing to toss; lo-res in flight is now stale 
+          wpo.version++;
+          continue;
+        }
+        if ((wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
+          cache_.dropAnImage(wpo.cacheHandle, bis_);
+        }
+        wpo.cacheHandle = null;
+        wpo.isDrawn = false;
+        wpo.fromPyramid = false;
+        wpo.version++;
+        path.clear();
+        if (!findWorldsQT_.getPath(wpo.worldRect, path)) {
+          throw new IllegalStateException();
+        }
+        int depth = path.size() - 1;
+        QueueRequest qr = new QueueRequest(depth, screenDim_, wpo.worldRect);
+        requests_.remove(qr);
+        if (depth <= lastUpFrontLevel()) {
+          rebuildNow.add(qr);
+        } else {
+          rebuildLater.add(qr);
+        }
+      }
+    }
+    if (oldPyramid != null) {
+      oldPyramid.close();
+    }
+    
+    LoopReporter lr = new LoopReporter(rebuildNow.size(), 20, monitor, 0.0, 1.0, "progress.stockingImageBufferTop");
+    for (QueueRequest qr : rebuildNow) {
+      lr.report();
+      buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr, bis_);
+    }
+     
+    synchronized (this) {
+      if (haveBuilders_) {
+        requests_.addAll(0, rebuildLater);
+      }
+      onHold_ = false;
+      this.notifyAll();
+    }
+    return (getTopImage());
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if the tile touches any of the dirty world rects. At coarse zooms a 
+  ** few pixels of stroke cover a lot of world, so we pad by that much.
+  */
+  
+  private boolean touchesDirty(WorldPieceOffering wpo, List<Rectangle2D> dirty) {
+    Rectangle2D tile = wpo.worldRect;
+    double worldPerPix = tile.getWidth() / wpo.imageDim.getWidth();
+    double pad = Math.max(BioFabricPanel.GRID_SIZE, 4.0 * worldPerPix);
+    Rectangle2D padded = new Rectangle2D.Double(tile.getX() - pad, tile.getY() - pad, 
+                                                tile.getWidth() + (2.0 * pad), tile.getHeight() + (2.0 * pad));
+    for (Rectangle2D rect : dirty) {
+      if (padded.intersects(rect)) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+ 
   /***************************************************************************
   **
   ** Get the top buffered image
@@ -249,10 +606,6 @@ public class BufferBuilder {
   	if (!found || (nodes.size() != 1)) {
   		throw new IOException();
   	}
-    WorldPieceOffering wpo = allWorldsToImageName_.get(nodes.get(0).getWorldExtent());
-    if (wpo == null) { // After a new network is created....
-    	return (null);
-    }
     BufferedImage retval = null;
     
     //
@@ -260,147 +613,495 @@ public class BufferBuilder {
     // bis_ BufImgStack. But since bis_ does not acquire any locks during its methods, we
     // do not need to worry about deadlock conditions.
     //
+    String handle;
     synchronized (this) {
-      retval = cache_.getAnImage(wpo.cacheHandle, bis_);
+      WorldPieceOffering wpo = allWorldsToImageName_.get(nodes.get(0).getWorldExtent());
+      if (wpo == null) { // After a new network is created....
+        return (null);
+      }
+      handle = wpo.cacheHandle;
+    }
+    if ((handle != null) && !handle.equals("")) {
+      retval = cache_.getAnImage(handle, bis_);
     }
     return (retval);
   }
 
   /***************************************************************************
   **
-  ** Get an image at the given depth
+  ** Get an image at the given depth. This is called on the AWT thread, so it never
+  ** builds anything. If we lack the tile, we hand back the best cached ancestor to
+  ** stretch over the spot, and ask for a lo-res slice and the hi-res tile to be built
+  ** in the background. Returns null if the piece is blank.
+  */
+  
+  public PieceImage getPieceImage(int depth, Rectangle2D worldRect) throws IOException {
+  	WorldPieceOffering wpo;
+  	boolean needLoRes = false;
+  	String handle;
+    synchronized (this) {
+      wpo = allWorldsToImageName_.get(worldRect);
+      if (wpo == null) {
+        wpo = new WorldPieceOffering(null, screenDim_, worldRect, false);
+        allWorldsToImageName_.put(worldRect, wpo);
+      }
+      handle = wpo.cacheHandle;
+      needLoRes = (handle == null);
+      if (needLoRes && !wpo.loResPending) {
+        queueLoRes(new QueueRequest(depth, screenDim_, worldRect));
+        wpo.loResPending = true;
+      }
+    }
+    
+    //
+    // The cache is thread-safe on its own, so decompression happens outside our lock:
+    //
+    
+    if (!needLoRes) {
+      if (handle.equals("")) {
+        return (null);
+      }
+      BufferedImage bi = cache_.getAnImage(handle, bis_);
+      return ((bi == null) ? null : new PieceImage(bi, null, bi.getWidth(), bi.getHeight(), !wpo.isDrawn));
+    }
+    bumpRequest(new QueueRequest(depth, screenDim_, worldRect));
+    AncestorImage anc = findAncestorImage(worldRect, bis_);
+    if ((anc == null) || anc.isBlank()) {
+      return (null);
+    }
+    return (new PieceImage(anc.image, anc.source, screenDim_.width, screenDim_.height + SLICE_HEIGHT_HACK_, true));
+  }
+  
+  /***************************************************************************
+  **
+  ** The view has just been drawn at the given depth. Reorder the builder queue so the
+  ** tiles in view come first, then those the view is moving toward, then the next
+  ** zoom level around the cursor (which may be null). Prefetches we queued earlier
+  ** that are no longer wanted get dropped.
+  */
+  
+  public void viewChanged(int depth, Rectangle2D viewInWorld, Point2D cursorInWorld) {
+    synchronized (this) {
+      if (!haveBuilders_ || timeToExit_) {
+        return;
+      }
+    }
+    TilePrefetcher.Plan plan = prefetcher_.update(depth, viewInWorld, cursorInWorld, 
+                                                  System.currentTimeMillis(), bbZooms_.length);
+    if (plan == null) {
+      return;
+    }
+    synchronized (this) {
+      if (!haveBuilders_ || timeToExit_) {
+        return;
+      }
+      ArrayList<QueueRequest> wanted = new ArrayList<QueueRequest>();
+      HashSet<QueueRequest> seen = new HashSet<QueueRequest>();
+      addPlanTiles(plan.depth, plan.visible, null, Integer.MAX_VALUE, wanted, seen);
+      if (plan.ahead != null) {
+        addPlanTiles(plan.depth, plan.ahead, plan.aheadCenter, MAX_AHEAD_TILES_, wanted, seen);
+      }
+      if (plan.nextRect != null) {
+        Point2D nextCenter = new Point2D.Double(plan.nextRect.getCenterX(), plan.nextRect.getCenterY());
+        addPlanTiles(plan.nextDepth, plan.nextRect, nextCenter, MAX_NEXT_LEVEL_TILES_, wanted, seen);
+      }
+      
+      //
+      // Anything we prefetched for an earlier view and no longer want is stale. A jump
+      // needs no special case; it just leaves nothing of the old plan wanted:
+      //
+      
+      for (QueueRequest qr : prefetched_) {
+        if (!seen.contains(qr)) {
+          requests_.remove(qr);
+        }
+      }
+      prefetched_.clear();
+      if (!wanted.isEmpty()) {
+        requests_.removeAll(seen);
+        requests_.addAll(0, wanted);
+        prefetched_.addAll(seen);
+        this.notifyAll();
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add requests for the unbuilt tiles at the depth covering the rect, nearest the
+  ** given point first (if not null). Caller holds the lock.
+  */
+  
+  private void addPlanTiles(int depth, Rectangle2D rect, final Point2D nearest, int max,
+                            List<QueueRequest> wanted, HashSet<QueueRequest> seen) {
+    if ((depth < 0) || (depth >= bbZooms_.length)) {
+      return;
+    }
+    ArrayList<QuadTree.QuadTreeNode> nodes = new ArrayList<QuadTree.QuadTreeNode>();
+    findWorldsQT_.getNodes(rect, depth, nodes);
+    if (nearest != null) {
+      Collections.sort(nodes, new Comparator<QuadTree.QuadTreeNode>() {
+        public int compare(QuadTree.QuadTreeNode n1, QuadTree.QuadTreeNode n2) {
+          Rectangle2D r1 = n1.getWorldExtent();
+          Rectangle2D r2 = n2.getWorldExtent();
+          double d1 = nearest.distanceSq(r1.getCenterX(), r1.getCenterY());
+          double d2 = nearest.distanceSq(r2.getCenterX(), r2.getCenterY());
+          return (Double.compare(d1, d2));
+        }
+      });
+    }
+    int count = 0;
+    int numNodes = nodes.size();
+    for (int i = 0; (i < numNodes) && (count < max); i++) {
+      Rectangle2D worldPiece = nodes.get(i).getWorldExtent();
+      WorldPieceOffering wpo = allWorldsToImageName_.get(worldPiece);
+      if ((wpo != null) && wpo.isDrawn) {
+        continue;
+      }
+      QueueRequest qr = new QueueRequest(depth, screenDim_, worldPiece);
+      if (inProgress_.contains(qr) || seen.contains(qr)) {
+        continue;
+      }
+      if (wpo == null) {
+        wpo = new WorldPieceOffering(null, screenDim_, worldPiece, false);
+        allWorldsToImageName_.put(worldPiece, wpo);
+      }
+      wanted.add(qr);
+      seen.add(qr);
+      count++;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Find the closest ancestor with a cached image, and the part of that image that
+  ** covers the world rect. Returns null if no ancestor is cached yet. If a blank
+  ** ancestor says the piece is blank too, the result has no image.
+  */
+  
+  private AncestorImage findAncestorImage(Rectangle2D worldRect, ImgAndBufPool pool) throws IOException {
+    ArrayList<QuadTree.QuadTreeNode> path = new ArrayList<QuadTree.QuadTreeNode>();
+    synchronized (this) {
+      if (!findWorldsQT_.getPath(worldRect, path)) {
+    	  throw new IllegalStateException();
+      }
+    }
+    
+    //
+    // Crank backwards up the chain to find an image to use:
+    //
+    
+    BufferedImage bi1 = null;
+    Rectangle2D ancRect = null;
+    for (int i = path.size() - 2; i >= 0; i--) {
+    	QuadTree.QuadTreeNode node = path.get(i);
+      String handle = null;
+      boolean blank = false;
+      synchronized (this) {
+        WorldPieceOffering wpou = allWorldsToImageName_.get(node.getWorldExtent());  
+        if (wpou != null) {
+          handle = wpou.cacheHandle;
+          blank = wpou.isDrawn && "".equals(handle);
+        }
+      }
+      if (blank) {
+        return (new AncestorImage(null, null));
+      }
+      if ((handle != null) && !handle.equals("")) {
+        bi1 = cache_.getAnImage(handle, pool);
+        if (bi1 != null) {
+          ancRect = node.getWorldExtent();
+          break;
+        }
+      }
+    }
+    if (bi1 == null) {
+      return (null);
+    }
+    
+    //
+    // The piece of the image we use depends on how the target world rect fits inside the
+    // world rect of the image we are using:
+    //
+    
+    double subxFrac = (worldRect.getX() - ancRect.getX()) / ancRect.getWidth();
+    int subxLoc = (int)Math.round(subxFrac * screenDim_.getWidth());
+    double subyFrac = (worldRect.getY() - ancRect.getY()) / ancRect.getHeight();
+    int subyLoc = (int)Math.round(subyFrac * screenDim_.getHeight());
+    int subW = (int)Math.round((worldRect.getWidth() / ancRect.getWidth()) * bi1.getWidth());
+    int subH = (int)Math.round((worldRect.getHeight() / ancRect.getHeight()) * bi1.getHeight());  
+    return (new AncestorImage(bi1, new Rectangle(subxLoc, subyLoc, subW, subH)));
+  }
+ 
+  /***************************************************************************
+  **
+  ** Build the request queue
+  */
+  
+  private List<QueueRequest> buildQueue(int startIndex, int endIndex, int maxCount)  {
+    ArrayList<QueueRequest> retval = new ArrayList<QueueRequest>();
+    ArrayList<QuadTree.QuadTreeNode> nodes = new ArrayList<QuadTree.QuadTreeNode>();
+    findWorldsQT_.getAllNodesToDepth(startIndex, endIndex, nodes);
+    Rectangle2D emptyExtent = new Rectangle2D.Double(0.0, 0.0, 0.0, 0.0);
+    int numWorlds = nodes.size();
+    for (int i = 0; i < numWorlds; i++) {
+    	QuadTree.QuadTreeNode node = nodes.get(i);
+    	Rectangle2D worldExtent = node.getWorldExtent();
+    	if (worldExtent.equals(emptyExtent)) { // This is an empty model...
+    		continue;
+    	}
+      WorldPieceOffering wpo = allWorldsToImageName_.get(worldExtent);
+      if ((wpo != null) && wpo.fromPyramid) { // Already have it from disk
+        continue;
+      }
+      if (wpo != null) {
+      	UiUtil.fixMePrintout("Cancel of relayout puts us here");
+      	System.err.println("Dup " + worldExtent);
+      	throw new IllegalStateException();
+      }
+      wpo = new WorldPieceOffering(null, screenDim_, worldExtent, false);
+      allWorldsToImageName_.put(worldExtent, wpo);        
+      retval.add(new QueueRequest(node.getDepth(), screenDim_, wpo.worldRect));
+      if (retval.size() >= maxCount) {
+        return (retval);
+      }
+    }
+    return (retval);
+  }  
+
+  /***************************************************************************
+  **
+  ** If we are persisting, open up the pyramid file and install what it already has
+  */
+  
+  private void openPyramid(int[] zooms, Rectangle worldPiece) {
+    if ((pyramidDir_ == null) || (pyramidContentKey_ == null)) {
+      return;
+    }
+    String fullKey = fullPyramidKey(zooms, worldPiece);
+    if (fullKey == null) {
+      return;
+    }
+    File file = TilePyramidFile.fileForKey(pyramidDir_, fullKey);
+    try {
+      pyramid_ = TilePyramidFile.open(file, fullKey);
+    } catch (IOException ioex) {
+      System.err.println("Cannot use tile pyramid " + file + ": " + ioex.getMessage());
+      pyramid_ = null;
+      return;
+    }
+    for (TilePyramidFile.Entry entry : pyramid_.getEntries()) {
+      String handle = (entry.isBlank()) ? "" : cache_.cachePyramidTile(pyramid_, entry);
+      WorldPieceOffering wpo = new WorldPieceOffering(handle, screenDim_, entry.worldRect, true);
+      wpo.fromPyramid = true;
+      allWorldsToImageName_.put(entry.worldRect, wpo);
+    }
+    TilePyramidFile.prune(pyramidDir_, MAX_PYRAMIDS_, file);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The pyramid key adds how we slice up the world and how tiles are encoded
+  ** to the content key.
+  */
+  
+  private String fullPyramidKey(int[] zooms, Rectangle worldPiece) {
+    StringBuffer buf = new StringBuffer();
+    buf.append(pyramidContentKey_);
+    buf.append(':').append(screenDim_.width).append('x').append(screenDim_.height);
+    buf.append(':').append(worldPiece.x).append(',').append(worldPiece.y);
+    buf.append(',').append(worldPiece.width).append(',').append(worldPiece.height);
+    for (int i = 0; i < zooms.length; i++) {
+      buf.append(':').append(zooms[i]);
+    }
+    buf.append(':').append(codecName_);
+    buf.append(':').append((downsampleLevels_) ? DOWNSAMPLE_LEVELS : RENDER_LEVELS);
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      return (DataUtil.toHexString(md.digest(buf.toString().getBytes("UTF-8"))));
+    } catch (NoSuchAlgorithmException nsae) {
+      return (null);
+    } catch (IOException ioex) {
+      return (null);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the buffers
+  */
+  
+  private boolean buildBuffer(Dimension imageDim, QueueRequest qr, ImgAndBufPool pool) throws IOException {     
+    //
+    // To chunk the image, we parcel out pieces of world to pieces of screen:
+    //
+    synchronized (this) {
+      if (timeToExit_) {
+        return (false);
+      }
+    }
+    if (downsampleLevels_ && (qr.depth > lastUpFrontLevel()) && (qr.depth < (bbZooms_.length - 1))) {
+      if (buildReducedSlice(imageDim, qr.depth, qr.worldPiece, pool)) {
+        return (true);
+      }
+      if (deferToKids(qr)) {
+        return (true);
+      }
+    }
+    buildHiResSlice(imageDim, qr.depth, qr.worldPiece, pool);     
+    return (true);
+  }  
+  
+  /***************************************************************************
+  **
+  ** Get the next request for a builder thread. Returns null when it is time to quit.
+  */
+  
+  private synchronized QueueRequest getNextRequest() {
+    while (requests_.isEmpty() || onHold_) {
+      if (timeToExit_) {
+        return (null);
+      }
+      try {
+        this.wait();
+      } catch (InterruptedException e) {
+      }
+    }
+    if (timeToExit_) {
+      return (null);
+    }
+    QueueRequest retval = requests_.remove(0);
+    inProgress_.add(retval);
+    return (retval);     
+  }
+  
+  /***************************************************************************
+  **
+  ** Builder is done with a request
+  */
+  
+  private synchronized void requestDone(QueueRequest qr) {
+    inProgress_.remove(qr);
+    if (onHold_ && inProgress_.isEmpty()) {
+      this.notifyAll();
+    }
+    return;
+  }
+     
+  /***************************************************************************
+  **
+  ** When a lo-res result is all we can return, push the hi-res requests to the
+  ** front of the queue. If a builder is already working on it, leave it be.
+  */
+    
+  private synchronized void bumpRequest(QueueRequest qr) {
+    if (!haveBuilders_ || inProgress_.contains(qr)) {
+      return;
+    }
+    requests_.remove(qr);  // May not be there!!!!
+    requests_.add(0, qr);
+    this.notifyAll(); 
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Queue up a lo-res slice build. Newest requests are handled first, since the
+  ** view has probably moved on from the old ones. Caller holds the lock.
   */
-  
-  public BufferedImage getImageForPiece(int depth, Rectangle2D worldRect) throws IOException {
-  	WorldPieceOffering wpo = allWorldsToImageName_.get(worldRect);
-  	if (wpo == null) {
-  		wpo = new WorldPieceOffering(null, screenDim_, worldRect, false);
-  		allWorldsToImageName_.put(worldRect, wpo);;
-  	}
-  	boolean needLoRes = false;
-    synchronized (this) {  	
-      needLoRes = (wpo.cacheHandle == null);
+    
+  private void queueLoRes(QueueRequest qr) {
+    if (timeToExit_) {
+      return;
     }
-    // Yeah, this could be stale. Not the end of the world though, and we are not going to
-    // hold the lock until the lo-res slice is built...
-    if (needLoRes) {
-    	UiUtil.fixMePrintout("RACE CONDITION! Make sure low-res does not replace a high-res if it gets done second");
-      buildLoResSlice(worldRect, wpo);
-      if (biw_ != null) {
-        biw_.bumpRequest(new QueueRequest(depth, screenDim_, worldRect));
+    if (loResRequests_.size() >= MAX_LO_RES_QUEUE_) {
+      QueueRequest stale = loResRequests_.remove(0);
+      WorldPieceOffering swpo = allWorldsToImageName_.get(stale.worldPiece);
+      if (swpo != null) {
+        swpo.loResPending = false;
       }
     }
-    BufferedImage retval = null;
-    synchronized (this) {
-      if ((wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
-        retval = cache_.getAnImage(wpo.cacheHandle, bis_);
-      }
+    loResRequests_.add(qr);
+    if (!haveLoResWorker_) {
+      haveLoResWorker_ = true;
+      Thread runThread = new Thread(new LoResWorker(bis_.getBinSize()), "TilePlaceholder");
+      runThread.setDaemon(true);
+      runThread.start();
     }
-    return (retval);
+    this.notifyAll();
+    return;
   }
- 
+  
   /***************************************************************************
   **
-  ** Build the request queue
+  ** Get the next lo-res request. Returns null when it is time to quit.
   */
   
-  private List<QueueRequest> buildQueue(int startIndex, int endIndex, int maxCount)  {
-    ArrayList<QueueRequest> retval = new ArrayList<QueueRequest>();
-    ArrayList<QuadTree.QuadTreeNode> nodes = new ArrayList<QuadTree.QuadTreeNode>();
-    findWorldsQT_.getAllNodesToDepth(startIndex, endIndex, nodes);
-    Rectangle2D emptyExtent = new Rectangle2D.Double(0.0, 0.0, 0.0, 0.0);
-    int numWorlds = nodes.size();
-    for (int i = 0; i < numWorlds; i++) {
-    	QuadTree.QuadTreeNode node = nodes.get(i);
-    	Rectangle2D worldExtent = node.getWorldExtent();
-    	if (worldExtent.equals(emptyExtent)) { // This is an empty model...
-    		continue;
-    	}
-      WorldPieceOffering wpo = allWorldsToImageName_.get(worldExtent);
-      if (wpo != null) {
-      	UiUtil.fixMePrintout("Cancel of relayout puts us here");
-      	System.err.println("Dup " + worldExtent);
-      	throw new IllegalStateException();
+  private synchronized QueueRequest getNextLoResRequest() {
+    while (loResRequests_.isEmpty()) {
+      if (timeToExit_) {
+        return (null);
       }
-      wpo = new WorldPieceOffering(null, screenDim_, worldExtent, false);
-      allWorldsToImageName_.put(worldExtent, wpo);        
-      retval.add(new QueueRequest(node.getDepth(), screenDim_, wpo.worldRect));
-      if (retval.size() >= maxCount) {
-        return (retval);
+      try {
+        this.wait();
+      } catch (InterruptedException e) {
       }
     }
-    return (retval);
-  }  
-
+    if (timeToExit_) {
+      return (null);
+    }
+    return (loResRequests_.remove(loResRequests_.size() - 1));
+  }
+  
   /***************************************************************************
   **
-  ** Build the buffers
+  ** Tell the client a tile at the given depth is ready
   */
   
-  private boolean buildBuffer(Dimension imageDim, QueueRequest qr) throws IOException {     
-    //
-    // To chunk the image, we parcel out pieces of world to pieces of screen:
-    //
+  private void tellClient(int depth) {
+    final BufferBuilderClient fth;
     synchronized (this) {
-      if (timeToExit_) {
-        return (false);
-      }
+      fth = bbc_;
     }
-    buildHiResSlice(imageDim, qr.depth, qr.worldPiece);     
-    return (true);
-  }  
+    if (fth != null) {
+      final int noteKey = depth;
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          fth.yourOrderIsReady(noteKey);
+        }
+      });
+    }
+    return;
+  }
    
   /***************************************************************************
   **
-  ** If we lack an image slice, we first create a lo-res version from existing images. NOTE
-  ** THAT THIS IS RUNNING ON THE AWT THREAD.
-  ** 
+  ** If we lack an image slice, we first create a lo-res version from existing images.
+  ** This runs on the lo-res worker. It is only installed if nothing else has been
+  ** installed for the piece since the request was made (i.e. the version has not
+  ** changed), so it can never replace a hi-res slice. Returns true if installed.
   */
   
-  private String buildLoResSlice(Rectangle2D worldRect, WorldPieceOffering wpo) throws IOException {
+  private boolean buildLoResSlice(Rectangle2D worldRect, WorldPieceOffering wpo, 
+                                  int version, ImgAndBufPool pool) throws IOException {
   	// Useful to track memory usage:
     //long preRend = Runtime.getRuntime().freeMemory();  
     //System.out.println("preRend " + preRend);
-    ArrayList<QuadTree.QuadTreeNode> path = new  ArrayList<QuadTree.QuadTreeNode>() ;  
-    BufferedImage bi1 = null;
-
-    if (!findWorldsQT_.getPath(worldRect, path)) {
-    	throw new IllegalStateException();
-    }
-    
-    //
-    // Crank backwards up the chain to find an image to use:
-    //
-    
-    WorldPieceOffering wpou = null;
-    int pathLen = path.size();
-    for (int i = pathLen - 1; i >= 0; i--) {
-    	QuadTree.QuadTreeNode node = path.get(i);
-      synchronized (this) {
-        wpou = allWorldsToImageName_.get(node.getWorldExtent());  
-        if ((wpou != null) && (wpou.cacheHandle != null) && !wpou.cacheHandle.equals("")) {
-          bi1 = cache_.getAnImage(wpou.cacheHandle, bis_);
-          break;
-        }
-      }
-      
-    }
-
-    if (bi1 == null) {  // blank!
-      return (null);
+    AncestorImage anc = findAncestorImage(worldRect, pool);
+    if (anc == null) {
+      // Nothing to work from yet. Leave the piece alone so the next paint asks again:
+      return (false);
+    } else if (anc.isBlank()) {
+      return (installLoRes(wpo, version, null, pool));
     }
-
-    //
-    // The piece of the image we use depends on how the target world rect fits inside the
-    // world rect of the image we are using:
-    //
-    
-    double subxFrac = (worldRect.getX() - wpou.worldRect.getX()) / wpou.worldRect.getWidth();
-    int subxLoc = (int)Math.round(subxFrac * screenDim_.getWidth());
-    double subyFrac = (worldRect.getY() - wpou.worldRect.getY()) / wpou.worldRect.getHeight();
-    int subyLoc = (int)Math.round(subyFrac * screenDim_.getHeight());
-    int subW = (int)Math.round((worldRect.getWidth() / wpou.worldRect.getWidth()) * bi1.getWidth());
-    int subH = (int)Math.round((worldRect.getHeight() / wpou.worldRect.getHeight()) * bi1.getHeight());  
+    BufferedImage bi1 = anc.image;
+    int subxLoc = anc.source.x;
+    int subyLoc = anc.source.y;
+    int subW = anc.source.width;
+    int subH = anc.source.height;  
     
     //
     // Previous version created a BufferedImage from a chunk of the bigger image, which was not
@@ -421,20 +1122,20 @@ public class BufferBuilder {
     //
     RasterCache.ShiftData sd = new RasterCache.ShiftData((DirectColorModel)bi1.getColorModel());
     UiUtil.fixMePrintout("OK, should do scaling with original int array, but stick with old code for the moment");
-    int[] bbcI = bis_.fetchBuf(pixNum);
+    int[] bbcI = pool.fetchBuf(pixNum);
     wr.getDataElements(subxLoc, subyLoc, subW, subH, bbcI); 
     int smallLen = pixNum * 3;
-    byte[] bbc = bis_.fetchByteBuf(smallLen);
+    byte[] bbc = pool.fetchByteBuf(smallLen);
     RasterCache.oneIntToThreeBytes(bbcI, bbc, sd);
-    bis_.returnBuf(bbcI);
+    pool.returnBuf(bbcI);
      
     //
     // Get the image we are going to produce:
     //
     
-    BufferedImage scaled = bis_.fetchImage(screenDim_.width, screenDim_.height + SLICE_HEIGHT_HACK_, BufferedImage.TYPE_INT_RGB);
+    BufferedImage scaled = pool.fetchImage(screenDim_.width, screenDim_.height + SLICE_HEIGHT_HACK_, BufferedImage.TYPE_INT_RGB);
     int scaledIntBufSize = scaled.getRaster().getDataBuffer().getSize();
-    byte[] bbs = bis_.fetchByteBuf(scaledIntBufSize * 3);    
+    byte[] bbs = pool.fetchByteBuf(scaledIntBufSize * 3);    
     
     for (int i = 0; i < bbs.length; i++) {
     	bbs[i] = (byte)255;
@@ -504,35 +1205,55 @@ public class BufferBuilder {
     //
     // We need an array of ints to set here:
     //
-    int[] bbsI = bis_.fetchBuf(scaledIntBufSize);
+    int[] bbsI = pool.fetchBuf(scaledIntBufSize);
     RasterCache.threeBytesToOneInt(bbs, bbsI, sd);
  
   	bisRast.setDataElements(0, 0, screenDim_.width, screenDim_.height + SLICE_HEIGHT_HACK_, bbsI);
  
-    String handle = null;
-    synchronized (this) {
-      if (!wpo.isDrawn) {
-        if (!isBlankImage(scaled)) {
-        	// Caching recycles the image
-          wpo.cacheHandle = cache_.cacheAnImage(scaled, bis_);
-        } else {
-          wpo.cacheHandle = "";
-          // gotta manually recycle the image:
-          bis_.returnImage(scaled);
-        }
-      } 
+    //
+    // Compress outside the lock; packing recycles the image:
+    //
+    
+    RasterCache.PackedImage packed = null;
+    if (!isBlankImage(scaled)) {
+      packed = cache_.packImage(scaled, pool);
+    } else {
+      pool.returnImage(scaled);
     }
-    bis_.returnImage(bi1);
-    bis_.returnByteBuf(bbc);
-    bis_.returnByteBuf(bbs);
-    bis_.returnBuf(bbsI);
+    pool.returnImage(bi1);
+    pool.returnByteBuf(bbc);
+    pool.returnByteBuf(bbs);
+    pool.returnBuf(bbsI);
     
     // Useful to track memory usage:
     //long po = Runtime.getRuntime().freeMemory();
     //long used = preRend - po;
     //System.out.println("Post getSub " + po);
     //System.out.println("rendering new scaled image used: " + used);
-    return (handle);
+    return (installLoRes(wpo, version, packed, pool));
+  }
+  
+  /***************************************************************************
+  **
+  ** Install a lo-res slice (null for blank), unless the piece has moved on
+  ** since we started.
+  */
+  
+  private boolean installLoRes(WorldPieceOffering wpo, int version, 
+                               RasterCache.PackedImage packed, ImgAndBufPool pool) throws IOException {
+    boolean installed = false;
+    synchronized (this) {
+      if (!wpo.isDrawn && (wpo.version == version)) {
+        wpo.cacheHandle = (packed != null) ? cache_.cachePackedImage(packed, pool) : "";
+        wpo.version++;
+        packed = null;
+        installed = true;
+      }
+    }
+    if (packed != null) {
+      cache_.discardPackedImage(packed, pool);
+    }
+    return (installed);
   }
   
   /***************************************************************************
@@ -592,46 +1313,270 @@ public class BufferBuilder {
   ** slice that is cached:
   */
   
-  private void buildHiResSlice(Dimension imageDim, int depth, Rectangle2D worldPiece) throws IOException {
-    BufferedImage bi = bis_.fetchImage(imageDim.width, imageDim.height + SLICE_HEIGHT_HACK_, BufferedImage.TYPE_INT_RGB);
+  private void buildHiResSlice(Dimension imageDim, int depth, Rectangle2D worldPiece, ImgAndBufPool pool) throws IOException {
+    BufferedImage bi = pool.fetchImage(imageDim.width, imageDim.height + SLICE_HEIGHT_HACK_, BufferedImage.TYPE_INT_RGB);
 
     double lpp = linksPerPix(imageDim, worldPiece);
     BufBuildDrawer useDrawer = (lpp < TRANSITION_LPP_) ? drawRender_ : binRender_;
    
     boolean didDraw = useDrawer.drawForBuffer(bi, worldPiece, imageDim, worldPiece, SLICE_HEIGHT_HACK_, lpp);
+    installSlice(bi, didDraw, imageDim, depth, worldPiece, pool);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build a slice by reducing its four children 2x2. Returns false if the children
+  ** are not all available, so the slice needs to be rendered instead.
+  */
+  
+  private boolean buildReducedSlice(Dimension imageDim, int depth, Rectangle2D worldPiece, ImgAndBufPool pool) throws IOException {
+    String[] handles = kidHandles(worldPiece);
+    if (handles == null) {
+      return (false);
+    }
+    BufferedImage[] kids = new BufferedImage[handles.length];
+    try {
+      boolean anyKid = false;
+      for (int i = 0; i < handles.length; i++) {
+        if (!handles[i].equals("")) {
+          kids[i] = cache_.getAnImage(handles[i], pool);
+          if (kids[i] == null) {
+            return (false);
+          }
+          anyKid = true;
+        }
+      }
+      BufferedImage bi = pool.fetchImage(imageDim.width, imageDim.height + SLICE_HEIGHT_HACK_, BufferedImage.TYPE_INT_RGB);
+      if (anyKid) {
+        reduceKids(kids, bi, imageDim.height);
+      }
+      installSlice(bi, anyKid, imageDim, depth, worldPiece, pool);
+      return (true);
+    } finally {
+      for (int i = 0; i < kids.length; i++) {
+        if (kids[i] != null) {
+          pool.returnImage(kids[i]);
+        }
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the cache handles for the four children ("" if blank), or null if any
+  ** of them is not finished.
+  */
+  
+  private synchronized String[] kidHandles(Rectangle2D worldPiece) {
+    ArrayList<QuadTree.QuadTreeNode> kids = new ArrayList<QuadTree.QuadTreeNode>();
+    if (!findWorldsQT_.getChildren(worldPiece, kids)) {
+      return (null);
+    }
+    String[] retval = new String[kids.size()];
+    for (int i = 0; i < retval.length; i++) {
+      WorldPieceOffering wpo = allWorldsToImageName_.get(kids.get(i).getWorldExtent());
+      if ((wpo == null) || !wpo.isDrawn || (wpo.cacheHandle == null)) {
+        return (null);
+      }
+      retval[i] = wpo.cacheHandle;
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Average each 2x2 block of the children (upper left, upper right, lower left,
+  ** lower right; null is blank) into the target. Each image carries the extra
+  ** slice height row; for the upper children it is covered by the lower ones.
+  */
+  
+  private void reduceKids(BufferedImage[] kids, BufferedImage target, int sliceHeight) {
+    int width = target.getWidth();
+    int height = target.getHeight();
+    int[] out = ((DataBufferInt)target.getRaster().getDataBuffer()).getData();
+    int[][] kidData = new int[kids.length][];
+    for (int i = 0; i < kids.length; i++) {
+      kidData[i] = (kids[i] == null) ? null : ((DataBufferInt)kids[i].getRaster().getDataBuffer()).getData();
+    }
+    int lastRow = 2 * sliceHeight; // The lower kids' extra row
+    int outIndex = 0;
+    for (int y = 0; y < height; y++) {
+      int sy0 = Math.min(2 * y, lastRow);
+      int sy1 = Math.min((2 * y) + 1, lastRow);
+      for (int x = 0; x < width; x++) {
+        int sx = 2 * x;
+        int p0 = kidPixel(kidData, width, sliceHeight, sx, sy0);
+        int p1 = kidPixel(kidData, width, sliceHeight, sx + 1, sy0);
+        int p2 = kidPixel(kidData, width, sliceHeight, sx, sy1);
+        int p3 = kidPixel(kidData, width, sliceHeight, sx + 1, sy1);
+        //
+        // TYPE_INT_RGB is always 8 bits per channel, red high:
+        //
+        int red = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+        int grn = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+        int blu = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+        out[outIndex++] = (red << 16) | (grn << 8) | blu;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Pixel from the 2x2 mosaic of children
+  */
+  
+  private static int kidPixel(int[][] kidData, int width, int sliceHeight, int x, int y) {
+    int kid = 0;
+    if (x >= width) {
+      kid += 1;
+      x -= width;
+    }
+    if (y >= sliceHeight) {
+      kid += 2;
+      y -= sliceHeight;
+    }
+    int[] data = kidData[kid];
+    return ((data == null) ? 0xFFFFFF : data[(y * width) + x]);
+  }
+  
+  /***************************************************************************
+  **
+  ** In downsample mode, a coarser tile whose children are not all done waits for
+  ** them instead of being rendered. The missing children go to the front of the
+  ** queue, and once the last one is installed the tile is queued up again to be
+  ** reduced. Returns false if there is nothing to wait for, so it gets rendered.
+  */
+  
+  private synchronized boolean deferToKids(QueueRequest qr) {
+    if (!haveBuilders_ || timeToExit_) {
+      return (false);
+    }
+    ArrayList<QuadTree.QuadTreeNode> kids = new ArrayList<QuadTree.QuadTreeNode>();
+    if (!findWorldsQT_.getChildren(qr.worldPiece, kids)) {
+      return (false);
+    }
+    ArrayList<QueueRequest> kidRequests = new ArrayList<QueueRequest>();
+    int waiting = 0;
+    for (QuadTree.QuadTreeNode kid : kids) {
+      Rectangle2D kidRect = kid.getWorldExtent();
+      WorldPieceOffering kwpo = allWorldsToImageName_.get(kidRect);
+      if ((kwpo != null) && kwpo.isDrawn) {
+        continue;
+      }
+      if (kwpo == null) {
+        kwpo = new WorldPieceOffering(null, screenDim_, kidRect, false);
+        allWorldsToImageName_.put(kidRect, kwpo);
+      }
+      waiting++;
+      QueueRequest kqr = new QueueRequest(kid.getDepth(), screenDim_, kidRect);
+      if (inProgress_.contains(kqr)) {
+        continue;
+      }
+      requests_.remove(kqr);
+      kidRequests.add(kqr);
+    }
+    if (waiting == 0) {
+      return (false);
+    }
+    requests_.addAll(0, kidRequests);
+    this.notifyAll();
+    return (true);
+  }
+  
+  /***************************************************************************
+  **
+  ** Deepest level rendered directly before the builders start. In downsample
+  ** mode that is just the top tile, unless there are too few levels to have
+  ** builders at all.
+  */
+  
+  private int lastUpFrontLevel() {
+    return ((downsampleLevels_ && (bbZooms_.length > 2)) ? 0 : 1);
+  }
+  
+  /***************************************************************************
+  **
+  ** In downsample mode, once all four children of a tile are done, queue it up
+  ** to be reduced. Caller holds the lock.
+  */
+  
+  private void queueParentIfReady(int depth, Rectangle2D worldPiece) {
+    if (!downsampleLevels_ || !haveBuilders_ || (depth <= (lastUpFrontLevel() + 1))) {
+      return;
+    }
+    ArrayList<QuadTree.QuadTreeNode> path = new ArrayList<QuadTree.QuadTreeNode>();
+    if (!findWorldsQT_.getPath(worldPiece, path) || (path.size() < 2)) {
+      return;
+    }
+    QuadTree.QuadTreeNode parent = path.get(path.size() - 2);
+    Rectangle2D parentRect = parent.getWorldExtent();
+    WorldPieceOffering pwpo = allWorldsToImageName_.get(parentRect);
+    if (((pwpo != null) && pwpo.isDrawn) || (kidHandles(parentRect) == null)) {
+      return;
+    }
+    if (pwpo == null) {
+      pwpo = new WorldPieceOffering(null, screenDim_, parentRect, false);
+      allWorldsToImageName_.put(parentRect, pwpo);
+    }
+    QueueRequest pqr = new QueueRequest(parent.getDepth(), screenDim_, parentRect);
+    if (inProgress_.contains(pqr) || requests_.contains(pqr)) {
+      return;
+    }
+    requests_.add(0, pqr);
+    this.notifyAll();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Cache a freshly built slice and tell the client. *recycles the image*
+  */
   
-    BufferBuilderClient tellHim = null;
+  private void installSlice(BufferedImage bi, boolean didDraw, Dimension imageDim, 
+                            int depth, Rectangle2D worldPiece, ImgAndBufPool pool) throws IOException {
+    //
+    // Compress outside the lock, so builders are not serialized on it; packing recycles the image:
+    //
+    
+    RasterCache.PackedImage packed = (didDraw) ? cache_.packImage(bi, pool) : null;
+    
+    //
+    // Save it for next time. Has to happen before the cache owns the bytes:
+    //
+    
+    if (pyramid_ != null) {
+      if (didDraw) {
+        pyramid_.append(depth, worldPiece, packed.getWidth(), packed.getHeight(), packed.getBytes(), packed.getUsed());
+      } else {
+        pyramid_.append(depth, worldPiece, imageDim.width, imageDim.height + SLICE_HEIGHT_HACK_, null, 0);
+      }
+    }
+    
     synchronized (this) {
     	WorldPieceOffering wpo = allWorldsToImageName_.get(worldPiece);
       if (didDraw) {
         UiUtil.fixMePrintout("saw an NPE here. wpo must have been null!");
         if ((wpo.cacheHandle == null) || wpo.cacheHandle.equals("")) {
-          wpo.cacheHandle = cache_.cacheAnImage(bi, bis_);
+          wpo.cacheHandle = cache_.cachePackedImage(packed, pool);
         } else {
-          cache_.replaceAnImage(wpo.cacheHandle, bi, bis_);
+          cache_.replacePackedImage(wpo.cacheHandle, packed, pool);
         }
         wpo.isDrawn = true;
+        wpo.version++;
       } else {  // nothing drawn
-        if (wpo.cacheHandle == null) {
-          wpo.cacheHandle = "";
-        } else if (!wpo.cacheHandle.equals("")) {
-          cache_.dropAnImage(wpo.cacheHandle, bis_);
+        if ((wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
+          cache_.dropAnImage(wpo.cacheHandle, pool);
         }
+        wpo.cacheHandle = "";
+        wpo.isDrawn = true;
+        wpo.version++;
+        pool.returnImage(bi);
       }
-      if (bbc_ != null) {
-        tellHim = bbc_;
-      }
-    }
-    
-    if (tellHim != null) {
-      final int noteKey = depth;
-      final BufferBuilderClient fth = tellHim;
-      SwingUtilities.invokeLater(new Runnable() {
-        public void run() {
-          fth.yourOrderIsReady(noteKey);
-        }
-      });
+      queueParentIfReady(depth, worldPiece);
     }
+    tellClient(depth);
     return;
   }
  
@@ -661,19 +1606,20 @@ public class BufferBuilder {
   
   /***************************************************************************
   **
-  ** Build images in the background:
+  ** Build images in the background. There can be several of these running at
+  ** once, all draining the same request queue. Each has its own image and buffer
+  ** pool, so builders do not contend with each other (or the AWT thread) for
+  ** scratch storage.
   */
 
   public class BuildImageWorker implements Runnable {
 
-    private Dimension screenDim_;
     @SuppressWarnings("unused")
     private String errString_;
-    private ArrayList<QueueRequest> requests_;
+    private ImgAndBufPool myPool_;
 
-    public BuildImageWorker(Dimension screenDim, List<QueueRequest> requests) {
-      screenDim_ = (Dimension)screenDim.clone();
-      requests_ = new ArrayList<QueueRequest>(requests);
+    public BuildImageWorker(int binSize) {
+      myPool_ = new ImgAndBufPool(binSize);
     }
 
     public void run() {
@@ -683,8 +1629,12 @@ public class BufferBuilder {
           if (qr == null) {
             break;
           }
-          if (!buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr)) {
-            return;
+          try {
+            if (!buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr, myPool_)) {
+              return;
+            }
+          } finally {
+            requestDone(qr);
           }
         }
       } catch (IOException ex) {
@@ -695,49 +1645,119 @@ public class BufferBuilder {
         oom.printStackTrace();
         errString_ = MessageFormat.format(format, new Object[] {oom.getMessage()}); 
       }
-   //   client_.retrievedResult(theUrl_, myResult_);
       return;
     }
+  }
     
-    
-    private QueueRequest getNextRequest() {
-      synchronized (BufferBuilder.this) {
-        while (requests_.isEmpty()) {
-	        try {
-		        BufferBuilder.this.wait();
-	        } catch (InterruptedException e) {
-	        }
-          if (timeToExit_) {
-            return (null);
+  /***************************************************************************
+  **
+  ** Build lo-res placeholder slices in the background, so the AWT thread never
+  ** has to. Has its own pool, like the builders.
+  */
+
+  public class LoResWorker implements Runnable {
+
+    private ImgAndBufPool myPool_;
+
+    public LoResWorker(int binSize) {
+      myPool_ = new ImgAndBufPool(binSize);
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          QueueRequest qr = getNextLoResRequest();
+          if (qr == null) {
+            break;
+          }
+          WorldPieceOffering wpo;
+          int version;
+          synchronized (BufferBuilder.this) {
+            wpo = allWorldsToImageName_.get(qr.worldPiece);
+            if (wpo == null) {
+              continue;
+            }
+            if (wpo.isDrawn || (wpo.cacheHandle != null)) {
+              wpo.loResPending = false;
+              continue;
+            }
+            version = wpo.version;
           }
-	      }
-        return (requests_.remove(0));     
+          boolean installed;
+          try {
+            installed = buildLoResSlice(qr.worldPiece, wpo, version, myPool_);
+          } finally {
+            synchronized (BufferBuilder.this) {
+              wpo.loResPending = false;
+            }
+          }
+          if (installed) {
+            tellClient(qr.depth);
+          }
+        }
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      } catch (Throwable oom) {
+        oom.printStackTrace();
       }
+      return;
     }
-       
-    //
-    // When a lo-res result is all we can return, push the hi-res requests to the
-    // front of the queue:
-    //
+  }
+  
+  /***************************************************************************
+  **
+  ** An image for a piece of the world. If the source rect is not null, just that
+  ** part of the image is to be stretched to the given size; this is what we hand
+  ** back while waiting for the real tile. 
+  */  
+  
+  public static class PieceImage {
+    public final BufferedImage image;
+    public final Rectangle source;
+    public final int width;
+    public final int height;
+    public final boolean isPlaceholder;
     
-    void bumpRequest(QueueRequest qr) {
-      synchronized (BufferBuilder.this) {
-        requests_.remove(qr);  // May not be there!!!!
-        requests_.add(0, qr);
-        BufferBuilder.this.notify(); 
-      }
-      return;
+    PieceImage(BufferedImage image, Rectangle source, int width, int height, boolean isPlaceholder) {
+      this.image = image;
+      this.source = source;
+      this.width = width;
+      this.height = height;
+      this.isPlaceholder = isPlaceholder;
     }
   }
+  
+  /***************************************************************************
+  **
+  ** A cached ancestor image, and the part of it covering a piece
+  */  
+  
+  private static class AncestorImage {
+    BufferedImage image;
+    Rectangle source;
+    
+    AncestorImage(BufferedImage image, Rectangle source) {
+      this.image = image;
+      this.source = source;
+    }
     
+    boolean isBlank() {
+      return (image == null);
+    }
+  }
+  
   /***************************************************************************
   **
-  ** World Piece Offering
+  ** World Piece Offering. Version is bumped every time a new slice is installed,
+  ** so a lo-res build that finishes after something better got in can tell. 
   */  
   
   private static class WorldPieceOffering implements Cloneable {
     String cacheHandle;
     boolean isDrawn;
+    boolean fromPyramid;
+    boolean loResPending;
+    int version;
     Dimension imageDim;
     Rectangle2D worldRect;
     
@@ -28,6 +28,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
+import org.systemsbiology.biofabric.util.HeapFootprint;
+
 
 /****************************************************************************
 **
@@ -71,6 +73,15 @@ public class ImgAndBufPool {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  ** 
+  ** Get the bin size used for byte buffers
+  */
+  
+  public int getBinSize() {
+    return (binSize_);
+  }
+  
   /***************************************************************************
   ** 
   ** Get a buffered image
@@ -277,6 +288,54 @@ public class ImgAndBufPool {
     return;
   } 
   
+  /***************************************************************************
+  ** 
+  ** Estimated heap bytes for the pooled images and buffers
+  */
+  
+  public synchronized long estimateBytes() {
+    long retval = HeapFootprint.hashMap(biStack_.size()) + HeapFootprint.hashMap(bufStack_.size()) + 
+                  HeapFootprint.hashMap(byteStack_.size());
+    for (List<BufferedImage> stack : biStack_.values()) {
+      retval += HeapFootprint.object(12) + HeapFootprint.arrayList(stack.size());
+      for (BufferedImage bi : stack) {
+        retval += HeapFootprint.image(bi);
+      }
+    }
+    for (List<int[]> stack : bufStack_.values()) {
+      retval += HeapFootprint.INTEGER + HeapFootprint.arrayList(stack.size());
+      for (int[] buf : stack) {
+        retval += HeapFootprint.intArray(buf.length);
+      }
+    }
+    for (List<byte[]> stack : byteStack_.values()) {
+      retval += HeapFootprint.INTEGER + HeapFootprint.arrayList(stack.size());
+      for (byte[] buf : stack) {
+        retval += HeapFootprint.byteArray(buf.length);
+      }
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Count of pooled images and buffers
+  */
+  
+  public synchronized int getPooledCount() {
+    int retval = 0;
+    for (List<BufferedImage> stack : biStack_.values()) {
+      retval += stack.size();
+    }
+    for (List<int[]> stack : bufStack_.values()) {
+      retval += stack.size();
+    }
+    for (List<byte[]> stack : byteStack_.values()) {
+      retval += stack.size();
+    }
+    return (retval);
+  }
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // INNER CLASSES
@@ -28,11 +28,15 @@ import java.awt.font.FontRenderContext;
 import java.awt.font.LineMetrics;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,6 +56,7 @@ import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
 import org.systemsbiology.biofabric.util.DoubMinMax;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.QuadTree;
 import org.systemsbiology.biofabric.util.UiUtil;
 
@@ -76,6 +81,9 @@ public class PaintCacheSmall {
   private final static double DRAIN_ZONE_ROW_OFFSET_ = 0.5F; // Lifts drain zone text above the node line & boxes
   private final static double NODE_LABEL_X_SHIM_ = 5.0F;
   private final static double LABEL_FONT_HEIGHT_SCALE_ = 2.0 / 3.0;
+  
+  private final static int BAND_ROWS_ = 256;
+  private final static int MAX_BANDS_ = 64;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -94,22 +102,25 @@ public class PaintCacheSmall {
   private HashMap<TextPath.FontSizes, Font> fonts_; 
   private ArrayList<TextPath.FontSizes> bigToLittle_; 
  
-  private List<BioFabricNetwork.NodeInfo> nodeRefs_;
-  private List<BioFabricNetwork.LinkInfo> linkRefs_;
-  private int[] linkIndex_;
-  private int indexOffset_;
-  private int[] nodeIndex_;
-  private int nodeIndexOffset_;
-  private boolean nodesForShadow_;
-  private QuadTree names_;
+  //
+  // What paintIt() draws is an immutable snapshot, swapped in whole when a build
+  // or patch finishes. Painters grab it once per call, so tiles for the old
+  // network can keep drawing while the next one is being built:
+  //
+  
+  private volatile Painting painting_;
+  
+  //
+  // Builder-side state for annotations. The paint maps are filled in here, then handed
+  // off to the snapshot and never touched again; the next build starts on new (or copied)
+  // maps. Node glyphs are not built here at all, but by the snapshot when a tile needs them:
+  //
+  
   private HashMap<String, BoxPath> nameKeyToPaintZero_;
   private HashMap<String, BoxPath> nameKeyToPaintOneQuarter_;
   private HashMap<String, TextPath> nameKeyToPaintOneHalf_;
-  private HashMap<String, BoxPath> nameKeyToPaintFirst_;
-  private HashMap<String, TextPath> nameKeyToPaintSecond_;
-  private HashMap<String, TextPath> nameKeyToPaintThird_;
   private int nameKeyCount_;
-  private HashMap<String, NID> nameKeyToNodeID_;
+  private HashMap<String, List<AnnotGlyphs>> annotGlyphs_;
   
   private FabricColorGenerator colGen_;
   private Color superLightPink_;
@@ -145,13 +156,9 @@ public class PaintCacheSmall {
   	bigToLittle_.add(TextPath.FontSizes.TINY);
     fonts_.put(TextPath.FontSizes.TINY, new Font("SansSerif", Font.PLAIN, 10));
   
-    nameKeyToPaintZero_ = new HashMap<String, BoxPath>();
-    nameKeyToPaintOneQuarter_ = new HashMap<String, BoxPath>();
-    nameKeyToPaintOneHalf_ = new HashMap<String, TextPath>();
-    nameKeyToPaintFirst_ = new HashMap<String, BoxPath>();
-    nameKeyToPaintSecond_ = new HashMap<String, TextPath>();
-    nameKeyToPaintThird_ = new HashMap<String, TextPath>();
-    nameKeyToNodeID_ = new HashMap<String, NID>();
+    startPaintMaps(null);
+    annotGlyphs_ = new HashMap<String, List<AnnotGlyphs>>();
+    painting_ = null;
 
     colGen_ = colGen;
     superLightPink_ = new Color(255, 244, 244);
@@ -170,29 +177,71 @@ public class PaintCacheSmall {
 
   /***************************************************************************
   **
-  **  Dump used memory
+  **  Dump used memory. The snapshot is dropped, not emptied, since a painter
+  **  may still be working from it.
   */
   
   public void clear() {
-    nameKeyToPaintZero_.clear();
-    nameKeyToPaintOneQuarter_.clear();
-    nameKeyToPaintOneHalf_.clear();
-  	nameKeyToPaintFirst_.clear();
-    nameKeyToPaintSecond_.clear();
-    nameKeyToPaintThird_.clear();
-    nameKeyToNodeID_.clear();
-    nodeRefs_ = null;
-    linkRefs_ = null;
-    nodeIndex_ = null;
-    nodeIndexOffset_ = 0;
-    nodesForShadow_ = false;
-    linkIndex_ = null;
-    indexOffset_ = 0;
-    if (names_ != null) {
-    	names_.clear();
-    }
+    painting_ = null;
+    startPaintMaps(null);
+    annotGlyphs_ = new HashMap<String, List<AnnotGlyphs>>();
   	return;
   }
+  
+  /***************************************************************************
+  **
+  **  Answer if we have something to paint
+  */
+  
+  public boolean havePainting() {
+    return (painting_ != null);
+  }
+  
+  /***************************************************************************
+  **
+  **  World bounds of a node's label, as it is drawn. Null if we have nothing
+  **  to paint.
+  */
+  
+  public Rectangle2D getNodeNameBounds(BioFabricNetwork.NodeInfo node) {
+    Painting paint = painting_;
+    if ((paint == null) || (node == null)) {
+      return (null);
+    }
+    FontRenderContext frc = new FontRenderContext(new AffineTransform(), true, true);
+    return (nameBounds(node, paint.nodeGlyphs.showShadows, frc));
+  }
+  
+  /***************************************************************************
+  **
+  **  Node whose drain zone label is at the world point, or null. Labels sit over
+  **  the columns of their zone, so only the zones around the point are checked.
+  */
+  
+  public NetNode getDrainNameAt(Point2D worldPt) {
+    Painting paint = painting_;
+    if ((paint == null) || (paint.linkRefs == null)) {
+      return (null);
+    }
+    int col = (int)Math.round(worldPt.getX() / BioFabricPanel.GRID_SIZE);
+    MinMax zone = new MinMax();
+    for (int i = col - 1; i <= col + 1; i++) {
+      BioFabricNetwork.NodeInfo owner = drainOwner(paint, i, zone);
+      if (owner == null) {
+        continue;
+      }
+      NodeGlyphs glyphs = glyphsForRow(paint.nodeGlyphs, owner.nodeRow);
+      if (glyphs == null) {
+        continue;
+      }
+      for (Rectangle2D rect : glyphs.drainRects) {
+        if (rect.contains(worldPt)) {
+          return (glyphs.node);
+        }
+      }
+    }
+    return (null);
+  }
  
 
   /***************************************************************************
@@ -202,10 +251,12 @@ public class PaintCacheSmall {
   
   public boolean paintIt(Graphics2D g2, Rectangle clip, Reduction reduce) {
     boolean retval = false;
-    HashSet<String> pKeys = new HashSet<String>();
-    if (names_ != null) {
-      names_.getPayloadKeys(clip, pKeys);
+    Painting paint = painting_;
+    if (paint == null) {
+      return (retval);
     }
+    HashSet<String> pKeys = new HashSet<String>();
+    paint.names.getPayloadKeys(clip, pKeys);
     
     //
     // Zero pass is node annotation rectangles, which are not drawn for selections:
@@ -213,7 +264,7 @@ public class PaintCacheSmall {
     
     if (reduce == null) {
       for (String pkey : pKeys) {
-        BoxPath pp = nameKeyToPaintZero_.get(pkey);
+        BoxPath pp = paint.nameKeyToPaintZero.get(pkey);
         if (pp != null) {
           int result = pp.paint(g2, clip);
           retval = retval || (result > 0);
@@ -227,7 +278,7 @@ public class PaintCacheSmall {
     
     if (reduce == null) {
       for (String pkey : pKeys) {
-        BoxPath pp = nameKeyToPaintOneQuarter_.get(pkey);
+        BoxPath pp = paint.nameKeyToPaintOneQuarter.get(pkey);
         if (pp != null) {
           int result = pp.paint(g2, clip);
           retval = retval || (result > 0);
@@ -241,7 +292,7 @@ public class PaintCacheSmall {
     
     if (reduce == null) {
       for (String pkey : pKeys) {
-        TextPath pp = nameKeyToPaintOneHalf_.get(pkey);
+        TextPath pp = paint.nameKeyToPaintOneHalf.get(pkey);
         if (pp != null) {
           int result = pp.paint(g2, clip, fonts_);
           retval = retval || (result > 0);
@@ -249,37 +300,53 @@ public class PaintCacheSmall {
       }
     }
        
+    //
+    // Node glyphs are built a band of rows at a time, the first time a tile needs
+    // them. Node names sit on their own rows. Drain zone labels and shading sit over
+    // the columns of their zone, wherever the row that owns the zone is:
+    //
+    
+    ArrayList<NodeGlyphs> nameGlyphs = new ArrayList<NodeGlyphs>();
+    ArrayList<NodeGlyphs> drainGlyphs = new ArrayList<NodeGlyphs>();
+    if ((paint.nodeRefs != null) && (paint.linkRefs != null)) {
+      glyphsForRows(paint.nodeGlyphs, clip, nameGlyphs);
+      glyphsForColumns(paint, clip, drainGlyphs);
+    }
+       
     //
     // First pass is background rectangles, which are not drawn for selections:
     //
     
     if (reduce == null) {
-	    for (String pkey : pKeys) {
-	      BoxPath pp = nameKeyToPaintFirst_.get(pkey);
-	    	if (pp != null) {
-	        int result = pp.paint(g2, clip);
-	        retval = retval || (result > 0);
-	    	}
-	    }
+      for (NodeGlyphs glyphs : drainGlyphs) {
+        for (BoxPath pp : glyphs.shades) {
+          int result = pp.paint(g2, clip);
+          retval = retval || (result > 0);
+        }
+      }
     }
     
     //
     // Draw strings for nodes, if in bounds and for selections, if selected:
     //
     
-    for (String pkey : pKeys) {
-    	NID forKey = nameKeyToNodeID_.get(pkey); 			
-      if ((reduce == null) || reduce.paintNames.contains(forKey)) {
-        TextPath pp = nameKeyToPaintSecond_.get(pkey);
-    	  if (pp != null) {
+    for (NodeGlyphs glyphs : nameGlyphs) {
+      if ((reduce == null) || reduce.paintNames.contains(glyphs.nodeID)) {
+        int result = glyphs.name.paint(g2, clip, fonts_);
+        retval = retval || (result > 0);
+      }
+    }
+    for (NodeGlyphs glyphs : drainGlyphs) {
+      if ((reduce == null) || reduce.paintNames.contains(glyphs.nodeID)) {
+        for (TextPath pp : glyphs.drainLabels) {
           int result = pp.paint(g2, clip, fonts_);
           retval = retval || (result > 0);
-    	  }
+        }
       }
     }
 	    
 
-    if (nodeRefs_ != null) {  	
+    if (paint.nodeRefs != null) {  	
     	double minY = clip.getMinY() / BioFabricPanel.GRID_SIZE;
     	double maxY = clip.getMaxY() / BioFabricPanel.GRID_SIZE;  
     	//
@@ -293,8 +360,8 @@ public class PaintCacheSmall {
 	    int startRow = (int)Math.floor(minY) - extraRows;
 	    int endRow = (int)Math.floor(maxY) + extraRows;
 	       
-	    startRow = (startRow < nodeIndexOffset_) ? nodeIndexOffset_ : startRow;
-	    endRow = (endRow >= (nodeIndex_.length + nodeIndexOffset_)) ? nodeIndex_.length - 1 + nodeIndexOffset_: endRow;
+	    startRow = (startRow < paint.nodeIndexOffset) ? paint.nodeIndexOffset : startRow;
+	    endRow = (endRow >= (paint.nodeIndex.length + paint.nodeIndexOffset)) ? paint.nodeIndex.length - 1 + paint.nodeIndexOffset: endRow;
 	    
 	    Line2D line = new Line2D.Double();
       LinePath lp = new LinePath();
@@ -302,12 +369,12 @@ public class PaintCacheSmall {
 
 	    for (int i = startRow; i <= endRow; i++) {
 	    	// If we are not drawing contiguous nodes (subviews with gaps) we will hit non-node rows to skip:
-	      if (nodeIndex_[i - nodeIndexOffset_] == -1) {
+	      if (paint.nodeIndex[i - paint.nodeIndexOffset] == -1) {
 	      	continue;
 	      }
 	    	if ((reduce == null) || reduce.paintRows.contains(Integer.valueOf(i))) {
-	    		BioFabricNetwork.NodeInfo ni = nodeRefs_.get(nodeIndex_[i - nodeIndexOffset_]);
-	    		MinMax nmm = ni.getColRange(nodesForShadow_);
+	    		BioFabricNetwork.NodeInfo ni = paint.nodeRefs.get(paint.nodeIndex[i - paint.nodeIndexOffset]);
+	    		MinMax nmm = ni.getColRange(paint.nodesForShadow);
           int sCol = nmm.min;
           int eCol = nmm.max;
           Color paintCol = getColorForNode(ni, colGen_);
@@ -323,7 +390,7 @@ public class PaintCacheSmall {
 	    }
     }
 
-    if (linkRefs_ != null) {  	
+    if (paint.linkRefs != null) {  	
     	double minX = clip.getMinX() / BioFabricPanel.GRID_SIZE;
     	double maxX = clip.getMaxX() / BioFabricPanel.GRID_SIZE;   	
     	//
@@ -338,8 +405,8 @@ public class PaintCacheSmall {
 	    int startCol = (int)Math.floor(minX) - extraCols;
 	    int endCol = (int)Math.floor(maxX) + extraCols;
 	    
-	    startCol = (startCol < indexOffset_) ? indexOffset_ : startCol;
-	    endCol = (endCol >= (linkIndex_.length + indexOffset_)) ? linkIndex_.length - 1 + indexOffset_: endCol;
+	    startCol = (startCol < paint.indexOffset) ? paint.indexOffset : startCol;
+	    endCol = (endCol >= (paint.linkIndex.length + paint.indexOffset)) ? paint.linkIndex.length - 1 + paint.indexOffset: endCol;
 
 	    Line2D line = new Line2D.Double();
       LinePath lp = new LinePath();
@@ -349,12 +416,12 @@ public class PaintCacheSmall {
       int count = 0;
 	    for (int i = startCol; i <= endCol; i++) {
 	    	// If we are not drawing contiguous links (subviews with gaps) we will hit non-link columns to skip:
-	      if (linkIndex_[i - indexOffset_] == -1) {
+	      if (paint.linkIndex[i - paint.indexOffset] == -1) {
 	      	continue;
 	      }
 	    	if ((reduce == null) || reduce.paintCols.contains(Integer.valueOf(i))) {
 
-	    		BioFabricNetwork.LinkInfo li = linkRefs_.get(linkIndex_[i - indexOffset_]);
+	    		BioFabricNetwork.LinkInfo li = paint.linkRefs.get(paint.linkIndex[i - paint.indexOffset]);
           int sRow = li.topRow();
           int eRow = li.bottomRow();
           Color paintCol = getColorForLink(li, colGen_);
@@ -385,14 +452,12 @@ public class PaintCacheSmall {
     // Draw strings that appear on top of everything:
     //
     
-    for (String pkey : pKeys) {
-    	NID forKey = nameKeyToNodeID_.get(pkey); 			
-      if ((reduce == null) || reduce.paintNames.contains(forKey)) {
-        TextPath pp = nameKeyToPaintThird_.get(pkey);
-    	  if (pp != null) {
+    for (NodeGlyphs glyphs : drainGlyphs) {
+      if ((reduce == null) || reduce.paintNames.contains(glyphs.nodeID)) {
+        for (TextPath pp : glyphs.tinyDrainLabels) {
           int result = pp.paint(g2, clip, fonts_);
           retval = retval || (result > 0);
-    	  }
+        }
       }
     }
 
@@ -427,25 +492,128 @@ public class PaintCacheSmall {
  
   /***************************************************************************
   **
-  ** Build objcache
+  ** Build objcache. Node glyphs are left to be built as tiles need them; returns
+  ** the world bounds of everything that can be drawn.
   */
   
   public Rectangle2D buildObjCache(List<BioFabricNetwork.NodeInfo> targets, List<BioFabricNetwork.LinkInfo> links, 
 				                           boolean shadeNodes, boolean showShadows, BioFabricNetwork.Extents ext, 
-				                           Map<NetNode, Rectangle2D> nameMap, 
-				                           Map<NetNode, List<Rectangle2D>> drainMap, Rectangle2D netBounds,
-				                           AnnotationSet nodeAnnot, AnnotationSet linkAnnot, 
+				                           Rectangle2D netBounds, AnnotationSet nodeAnnot, AnnotationSet linkAnnot, 
 				                           BTProgressMonitor monitor) throws AsynchExitRequestException {
+    return (buildOrPatchObjCache(targets, links, shadeNodes, showShadows, ext, 
+                                 netBounds, nodeAnnot, linkAnnot, null, monitor));
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if we can patch the objcache for an updated network with these
+  ** display settings, instead of building it from scratch
+  */
+  
+  public boolean canPatch(boolean shadeNodes, boolean showShadows) {
+    Painting paint = painting_;
+    return ((paint != null) && (paint.glyphsShaded == shadeNodes) && (paint.nodesForShadow == showShadows));
+  }
+  
+  /***************************************************************************
+  **
+  ** Report estimated heap bytes for the current annotation paint maps, the
+  ** annotation quad tree, the bands of node glyphs being held, and the glyphs we
+  ** keep around for patching. The payload keys are counted in the quad tree, so
+  ** the maps only count their entries and values. Glyph maps may be getting
+  ** rebuilt, so they are estimated from their sizes alone.
+  */
+  
+  public void reportFootprint(HeapFootprint fp) {
+    String struct = "PaintCacheSmall";
+    Painting paint = painting_;
+    long boxBytes = HeapFootprint.object(8) + HeapFootprint.RECTANGLE;
+    long textBytes = HeapFootprint.object(36) + HeapFootprint.RECTANGLE_2D;
+    if (paint != null) {
+      List<Map<String, BoxPath>> boxMaps = new ArrayList<Map<String, BoxPath>>();
+      boxMaps.add(paint.nameKeyToPaintZero);
+      boxMaps.add(paint.nameKeyToPaintOneQuarter);
+      long count = 0L;
+      long bytes = 0L;
+      for (Map<String, BoxPath> boxMap : boxMaps) {
+        count += boxMap.size();
+        bytes += HeapFootprint.hashMap(boxMap.size()) + (boxMap.size() * boxBytes);
+      }
+      fp.add(struct, "box paint maps", count, bytes);
+      int textCount = paint.nameKeyToPaintOneHalf.size();
+      fp.add(struct, "text paint maps", textCount, HeapFootprint.hashMap(textCount) + (textCount * textBytes));
+      int[] treeCounts = new int[2];
+      long treeBytes = paint.names.estimateBytes(treeCounts);
+      fp.add(struct, "annotation quad tree", treeCounts[1], treeBytes);
+      long indexBytes = HeapFootprint.intArray(paint.linkIndex.length) + HeapFootprint.intArray(paint.nodeIndex.length) + 
+                        HeapFootprint.refArray(paint.nodeRefs.size()) + HeapFootprint.refArray(paint.linkRefs.size());
+      fp.add(struct, "row and column indices", paint.linkIndex.length + paint.nodeIndex.length, indexBytes);
+      int[] glyphCounts = paint.nodeGlyphs.counts();
+      long perGlyph = HeapFootprint.object(36) + (3 * textBytes) + boxBytes + 
+                      (2 * HeapFootprint.RECTANGLE_2D) + (4 * HeapFootprint.arrayList(1));
+      long glyphBytes = HeapFootprint.linkedHashMap(glyphCounts[0]) + 
+                        (glyphCounts[0] * (HeapFootprint.INTEGER + HeapFootprint.refArray(BAND_ROWS_))) + 
+                        (glyphCounts[1] * perGlyph);
+      fp.add(struct, "node glyph bands", glyphCounts[1], glyphBytes);
+    }
+    int annotGlyphCount = annotGlyphs_.size();
+    long annotGlyphBytes = HeapFootprint.hashMap(annotGlyphCount) + 
+                           (annotGlyphCount * (HeapFootprint.arrayList(1) + HeapFootprint.object(12) + HeapFootprint.RECTANGLE_2D + HeapFootprint.arrayList(2)));
+    fp.add(struct, "annotation glyphs", annotGlyphCount, annotGlyphBytes);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Patch the objcache for an updated version of the network we last built it
+  ** for. Annotations that come out the same are kept; the rest are rebuilt. The
+  ** world rectangles that need to be redrawn (where any node, link or annotation
+  ** was added, removed or changed) are added to the dirty list. Only call if
+  ** canPatch() says so.
+  */
+  
+  public Rectangle2D patchObjCache(List<BioFabricNetwork.NodeInfo> targets, List<BioFabricNetwork.LinkInfo> links, 
+                                   boolean shadeNodes, boolean showShadows, BioFabricNetwork.Extents ext, 
+                                   Rectangle2D netBounds, AnnotationSet nodeAnnot, AnnotationSet linkAnnot, 
+                                   List<Rectangle2D> dirty, BTProgressMonitor monitor) throws AsynchExitRequestException {
+    if (!canPatch(shadeNodes, showShadows)) {
+      throw new IllegalStateException();
+    }
+    return (buildOrPatchObjCache(targets, links, shadeNodes, showShadows, ext, 
+                                 netBounds, nodeAnnot, linkAnnot, dirty, monitor));
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the objcache, or patch it if we have a dirty list to fill in. Either way,
+  ** the result goes into a new snapshot that replaces the current one at the end.
+  ** Node glyphs are only built here for the few nodes whose labels might reach
+  ** past the network, since those set the world bounds. The rest are built by the
+  ** snapshot when a tile first needs them.
+  */
+  
+  private Rectangle2D buildOrPatchObjCache(List<BioFabricNetwork.NodeInfo> targets, List<BioFabricNetwork.LinkInfo> links, 
+        		                               boolean shadeNodes, boolean showShadows, BioFabricNetwork.Extents ext, 
+        		                               Rectangle2D netBounds, AnnotationSet nodeAnnot, AnnotationSet linkAnnot, 
+        		                               List<Rectangle2D> dirty, BTProgressMonitor monitor) throws AsynchExitRequestException {
   	
-  	
-    nameKeyToPaintZero_.clear();
-    nameKeyToPaintOneQuarter_.clear();
-    nameKeyToPaintOneHalf_.clear();
-    nameKeyToPaintFirst_.clear();
-    nameKeyToPaintSecond_.clear();
-    nameKeyToPaintThird_.clear();
-
-    nameKeyCount_ = 0;
+    boolean patch = (dirty != null);
+    
+    //
+    // What we drew last time, to compare against. A patch starts from copies of the
+    // current paint maps, since the snapshot holding them may still be painting:
+    //
+    
+    Painting oldPaint = painting_;
+    if (!patch) {
+      startPaintMaps(null);
+      annotGlyphs_.clear();
+      nameKeyCount_ = 0;
+    } else {
+      startPaintMaps(oldPaint);
+    }
+    HashMap<String, List<AnnotGlyphs>> oldAnnotGlyphs = annotGlyphs_;
+    annotGlyphs_ = new HashMap<String, List<AnnotGlyphs>>();
     
     //
     // Build the quad tree after we know the extents it has to cover:
@@ -456,8 +624,6 @@ public class PaintCacheSmall {
     //
     // Need to find the maximum column in use for the links, depending on shadow display or not:
     //
-     
-   // nodes_ = new PaintedPath[targets.size()];
 
     FontRenderContext frc = new FontRenderContext(new AffineTransform(), true, true);
    
@@ -465,31 +631,21 @@ public class PaintCacheSmall {
     Map<Integer, MinMax> linkExtents = ext.allLinkExtents.get(Boolean.valueOf(showShadows));
     MinMax linkCols = ext.allLinkFullRange.get(Boolean.valueOf(showShadows));
      
-    linkIndex_ = new int[(numLinks == 0) ? 0 : linkCols.max + 1 - linkCols.min];
-    indexOffset_ = linkCols.min;  // In subviews, links do NOT start at column 0!
+    int[] linkIndex = new int[(numLinks == 0) ? 0 : linkCols.max + 1 - linkCols.min];
+    int indexOffset = linkCols.min;  // In subviews, links do NOT start at column 0!
     // And in subviews with non-contiguous links, we need to skip non-link columns, so init with -1:
-    Arrays.fill(linkIndex_, -1);
-    linkRefs_ = links;
+    Arrays.fill(linkIndex, -1);
     
     int numNodes = targets.size();
     
-    LoopReporter lr = new LoopReporter(targets.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeGraphics");
     HashMap<Integer, MinMax> nodeExtents = ext.allNodeExtents.get(Boolean.valueOf(showShadows));
     Integer singletonMinRow = ext.singletonNodeStart.get(Boolean.valueOf(showShadows));
     MinMax nodeRows = ext.allNodeFullRange.get(Boolean.valueOf(showShadows));
-    for (int i = 0; i < numNodes; i++) {
-      BioFabricNetwork.NodeInfo node = targets.get(i);
-      int num = node.nodeRow;
-      lr.report();
-      buildNodeTextAndRect(node, frc, colGen_, linkExtents, shadeNodes, showShadows, nameMap, drainMap, qtpc);
-    }
     
-    nodeIndex_ = new int[(numNodes == 0) ? 0 : nodeRows.max + 1 - nodeRows.min];
-    nodeIndexOffset_ = nodeRows.min;  // In subviews, links do NOT start at column 0!
+    int[] nodeIndex = new int[(numNodes == 0) ? 0 : nodeRows.max + 1 - nodeRows.min];
+    int nodeIndexOffset = nodeRows.min;  // In subviews, links do NOT start at column 0!
     // And in subviews with non-contiguous links, we need to skip non-link columns, so init with -1:
-    Arrays.fill(nodeIndex_, -1);
-    nodeRefs_ = targets;
-    nodesForShadow_ = showShadows;
+    Arrays.fill(nodeIndex, -1);
       
     //
     // We do not build e.g. 10^6 link paths, but stock the drawing primitives while painting:
@@ -499,18 +655,35 @@ public class PaintCacheSmall {
     for (int i = 0; i < numLinks; i++) {
       BioFabricNetwork.LinkInfo link = links.get(i);
       lr2.report();
-      linkIndex_[link.getUseColumn(showShadows) - indexOffset_] = i;
+      linkIndex[link.getUseColumn(showShadows) - indexOffset] = i;
+    }
+    if (patch) {
+      changedLinkColumns(oldPaint.linkRefs, oldPaint.linkIndex, oldPaint.indexOffset, 
+                         links, linkIndex, indexOffset, dirty);
     }
     
     //
     // Fill the node index
     //
     
-    LoopReporter lr3 = new LoopReporter(numLinks, 20, monitor, 0.0, 1.0, "progress.buildNodeGraphicsToo");
+    LoopReporter lr3 = new LoopReporter(numNodes, 20, monitor, 0.0, 1.0, "progress.buildNodeGraphicsToo");
     for (int i = 0; i < numNodes; i++) {
       BioFabricNetwork.NodeInfo node = targets.get(i);
       lr3.report();
-      nodeIndex_[node.nodeRow - nodeIndexOffset_] = i;
+      nodeIndex[node.nodeRow - nodeIndexOffset] = i;
+    }
+    
+    int minDrainZone = FabricDisplayOptionsManager.getMgr().getDisplayOptions().getMinDrainZone();
+    NodeGlyphStore nodeGlyphs = new NodeGlyphStore(targets, nodeIndex, nodeIndexOffset, shadeNodes, 
+                                                   showShadows, linkExtents, minDrainZone);
+    
+    //
+    // Node glyphs that are different from last time need drawing, where they were
+    // and where they are now:
+    //
+    
+    if (patch) {
+      changedNodes(oldPaint.nodeGlyphs, nodeGlyphs, dirty, monitor);
     }
       
     int annotCount = 0;
@@ -520,7 +693,12 @@ public class PaintCacheSmall {
         AnnotColorSource.AnnotColor acol = an.getColor();
         AnnotColorSource.AnnotColor col = (acol == null) ? annotColors_[annotCount++ % annotColors_.length] : acol;
         lr4.report();
-        buildAnAnnotationRect(an.getRange(), an.getName(), col.getColor(), true, nodeExtents, frc, linkCols, qtpc, null);
+        String sig = annotSignature(an, col.getColor(), true, linkCols, null);
+        if (!reuseAnnotGlyphs(sig, oldAnnotGlyphs, qtpc, patch)) {
+          int firstPay = qtpc.size();
+          buildAnAnnotationRect(an.getRange(), an.getName(), col.getColor(), true, nodeExtents, frc, linkCols, qtpc, null);
+          addAnnotGlyphs(sig, qtpc.subList(firstPay, qtpc.size()), dirty);
+        }
       }
     }
     
@@ -536,16 +714,36 @@ public class PaintCacheSmall {
           col = (acol == null) ? annotColors_[annotCount++ % annotColors_.length].getColor() : acol.getColor();
         }  
         lr5.report();
-        buildAnAnnotationRect(an.getRange(), an.getName(), col, false, linkExtents, frc, nodeRows, qtpc, singletonMinRow);
+        String sig = annotSignature(an, col, false, nodeRows, singletonMinRow);
+        if (!reuseAnnotGlyphs(sig, oldAnnotGlyphs, qtpc, patch)) {
+          int firstPay = qtpc.size();
+          buildAnAnnotationRect(an.getRange(), an.getName(), col, false, linkExtents, frc, nodeRows, qtpc, singletonMinRow);
+          addAnnotGlyphs(sig, qtpc.subList(firstPay, qtpc.size()), dirty);
+        }
       }
     }
     
     //
-    // Now that we have built everything that is going into the quadTree, we can build it:
+    // Annotations that are gone:
+    //
+    
+    if (patch) {
+      for (List<AnnotGlyphs> olds : oldAnnotGlyphs.values()) {
+        for (AnnotGlyphs old : olds) {
+          dropGlyphs(old.payloads);
+          dirty.add(old.bounds);
+        }
+      }
+    }
+    
+    //
+    // World bounds: the network, padded for node lines, link glyphs and shading,
+    // plus the annotations, plus any node labels reaching past that:
     //
     
-    DoubMinMax dmmw = new DoubMinMax(netBounds.getMinX(), netBounds.getMaxX());
-    DoubMinMax dmmh = new DoubMinMax(netBounds.getMinY(), netBounds.getMaxY());
+    double pad = BB_HALF_WIDTH_ + STROKE_SIZE;
+    DoubMinMax dmmw = new DoubMinMax(netBounds.getMinX() - pad, netBounds.getMaxX() + pad);
+    DoubMinMax dmmh = new DoubMinMax(netBounds.getMinY() - pad, netBounds.getMaxY() + pad);
   
     for (QuadTree.Payload qtp : qtpc) {
     	Rectangle2D qtpr = qtp.getRect();
@@ -554,16 +752,414 @@ public class PaintCacheSmall {
     	dmmh.update(qtpr.getMinY());
     	dmmh.update(qtpr.getMaxY());
     }
+    addNodeGlyphReach(nodeGlyphs, dmmw, dmmh, frc, monitor);
+    
+    //
+    // Now that we have built everything that is going into the quadTree, we can build it:
+    //
     
     Rectangle2D worldRect = new Rectangle2D.Double(dmmw.min, dmmh.min, dmmw.max - dmmw.min, dmmh.max - dmmh.min);
-    names_ = new QuadTree(worldRect, 5);
+    QuadTree names = new QuadTree(worldRect, 5);
     
     for (QuadTree.Payload qtp : qtpc) {   	
-    	names_.insertPayload(qtp);
+    	names.insertPayload(qtp);
     }
     qtpc.clear();
+    
+    painting_ = new Painting(targets, links, linkIndex, indexOffset, nodeIndex, nodeIndexOffset, 
+                             showShadows, shadeNodes, names, nameKeyToPaintZero_, nameKeyToPaintOneQuarter_, 
+                             nameKeyToPaintOneHalf_, nodeGlyphs);
     return (worldRect);
   }
+  
+  /***************************************************************************
+  **
+  ** Widen the world bounds for node labels that reach past them. A cheap upper bound
+  ** on each node's reach is checked first, so glyphs only get built for the nodes
+  ** near the left and top edges that might actually stick out.
+  */
+  
+  private void addNodeGlyphReach(NodeGlyphStore store, DoubMinMax dmmw, DoubMinMax dmmh, FontRenderContext frc,
+                                 BTProgressMonitor monitor) throws AsynchExitRequestException {
+    double charWidth = fonts_.get(TextPath.FontSizes.TINY).getMaxCharBounds(frc).getWidth();
+    double drainHeight = 0.0;
+    for (Font font : fonts_.values()) {
+      drainHeight = Math.max(drainHeight, font.getMaxCharBounds(frc).getHeight());
+    }
+    drainHeight *= LABEL_FONT_HEIGHT_SCALE_;
+    
+    LoopReporter lr = new LoopReporter(store.nodeRefs.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeGraphics");
+    for (BioFabricNetwork.NodeInfo node : store.nodeRefs) {
+      lr.report();
+      double nameWidth = node.getNodeName().length() * charWidth;
+      double left = (node.getColRange(store.showShadows).min * BioFabricPanel.GRID_SIZE) - 
+                    nameWidth - BB_HALF_WIDTH_ - NODE_LABEL_X_SHIM_;
+      double top = ((node.nodeRow - DRAIN_ZONE_ROW_OFFSET_) * BioFabricPanel.GRID_SIZE) - Math.max(nameWidth, drainHeight);
+      if ((left >= dmmw.min) && (top >= dmmh.min)) {
+        continue;
+      }
+      NodeGlyphs glyphs = glyphsForRow(store, node.nodeRow);
+      if (glyphs != null) {
+        dmmw.update(glyphs.bounds.getMinX());
+        dmmw.update(glyphs.bounds.getMaxX());
+        dmmh.update(glyphs.bounds.getMinY());
+        dmmh.update(glyphs.bounds.getMaxY());
+      }
+    }
+    lr.finish();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** For a patch, add where the nodes that are drawn differently were, and where
+  ** they are now. Nodes are compared by signature, so glyphs only get built for
+  ** the ones that changed.
+  */
+  
+  private void changedNodes(NodeGlyphStore oldStore, NodeGlyphStore newStore, List<Rectangle2D> dirty,
+                            BTProgressMonitor monitor) throws AsynchExitRequestException {
+    HashMap<NetNode, BioFabricNetwork.NodeInfo> oldNodes = new HashMap<NetNode, BioFabricNetwork.NodeInfo>();
+    for (BioFabricNetwork.NodeInfo node : oldStore.nodeRefs) {
+      oldNodes.put(node.getNodeIDWithName(), node);
+    }
+    
+    //
+    // Go in row order, since the network works out drain zones on demand a band of rows at a time:
+    //
+    
+    ArrayList<BioFabricNetwork.NodeInfo> byRow = new ArrayList<BioFabricNetwork.NodeInfo>(newStore.nodeRefs);
+    Collections.sort(byRow, new Comparator<BioFabricNetwork.NodeInfo>() {
+      public int compare(BioFabricNetwork.NodeInfo n1, BioFabricNetwork.NodeInfo n2) {
+        return ((n1.nodeRow < n2.nodeRow) ? -1 : ((n1.nodeRow == n2.nodeRow) ? 0 : 1));
+      }
+    });
+    LoopReporter lr = new LoopReporter(byRow.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeGraphics");
+    for (BioFabricNetwork.NodeInfo node : byRow) {
+      lr.report();
+      BioFabricNetwork.NodeInfo old = oldNodes.remove(node.getNodeIDWithName());
+      if ((old != null) && nodeSignature(old, oldStore).equals(nodeSignature(node, newStore))) {
+        continue;
+      }
+      if (old != null) {
+        dirty.add(glyphsForRow(oldStore, old.nodeRow).bounds);
+      }
+      dirty.add(glyphsForRow(newStore, node.nodeRow).bounds);
+    }
+    lr.finish();
+    
+    //
+    // Nodes that are gone:
+    //
+    
+    for (BioFabricNetwork.NodeInfo old : oldNodes.values()) {
+      dirty.add(glyphsForRow(oldStore, old.nodeRow).bounds);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the glyphs for the node in a row, building them if the band holding them
+  ** has not been built or has been dropped. Null if there is no node in the row.
+  */
+  
+  private NodeGlyphs glyphsForRow(NodeGlyphStore store, int row) {
+    NodeGlyphs retval = store.get(row);
+    if (retval != null) {
+      return (retval);
+    }
+    BioFabricNetwork.NodeInfo node = store.nodeForRow(row);
+    if (node == null) {
+      return (null);
+    }
+    return (store.put(row, buildNodeGlyphs(node, store)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the glyphs for the rows a clip covers, for drawing node names
+  */
+  
+  private void glyphsForRows(NodeGlyphStore store, Rectangle clip, List<NodeGlyphs> glyphs) {
+    int startRow = (int)Math.floor(clip.getMinY() / BioFabricPanel.GRID_SIZE) - 1;
+    int endRow = (int)Math.ceil(clip.getMaxY() / BioFabricPanel.GRID_SIZE) + 1;
+    startRow = Math.max(startRow, store.nodeIndexOffset);
+    endRow = Math.min(endRow, store.nodeIndex.length - 1 + store.nodeIndexOffset);
+    for (int i = startRow; i <= endRow; i++) {
+      NodeGlyphs got = glyphsForRow(store, i);
+      if (got != null) {
+        glyphs.add(got);
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the glyphs for the nodes owning the drain zones a clip covers, for drawing 
+  ** drain zone labels and shading. Each zone is looked up once.
+  */
+  
+  private void glyphsForColumns(Painting paint, Rectangle clip, List<NodeGlyphs> glyphs) {
+    int startCol = (int)Math.floor(clip.getMinX() / BioFabricPanel.GRID_SIZE) - 1;
+    int endCol = (int)Math.ceil(clip.getMaxX() / BioFabricPanel.GRID_SIZE) + 1;
+    startCol = Math.max(startCol, paint.indexOffset);
+    endCol = Math.min(endCol, paint.linkIndex.length - 1 + paint.indexOffset);
+    HashSet<Integer> seen = new HashSet<Integer>();
+    MinMax zone = new MinMax();
+    for (int i = startCol; i <= endCol; i++) {
+      BioFabricNetwork.NodeInfo owner = drainOwner(paint, i, zone);
+      if (owner == null) {
+        continue;
+      }
+      i = Math.max(i, zone.max);
+      if (seen.add(Integer.valueOf(owner.nodeRow))) {
+        NodeGlyphs got = glyphsForRow(paint.nodeGlyphs, owner.nodeRow);
+        if (got != null) {
+          glyphs.add(got);
+        }
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Node whose drain zone holds the link column, or null. The zone is returned
+  ** in zone. As with the network, the zone belongs to one end of the link.
+  */
+  
+  private static BioFabricNetwork.NodeInfo drainOwner(Painting paint, int col, MinMax zone) {
+    BioFabricNetwork.LinkInfo link = linkAt(paint.linkRefs, paint.linkIndex, paint.indexOffset, col);
+    if (link == null) {
+      return (null);
+    }
+    NodeGlyphStore store = paint.nodeGlyphs;
+    int[] ends = new int[] {link.topRow(), link.bottomRow()};
+    for (int i = 0; i < ends.length; i++) {
+      BioFabricNetwork.NodeInfo node = store.nodeForRow(ends[i]);
+      if (node == null) {
+        continue;
+      }
+      for (BioFabricNetwork.DrainZone dz : node.getDrainZones(store.showShadows)) {
+        MinMax dzmm = dz.getMinMax();
+        if ((col >= dzmm.min) && (col <= dzmm.max)) {
+          zone.min = dzmm.min;
+          zone.max = dzmm.max;
+          return (node);
+        }
+      }
+    }
+    return (null);
+  }
+  
+  /***************************************************************************
+  **
+  ** Start a fresh set of paint maps to build into, seeded from a snapshot if 
+  ** we are patching it
+  */
+  
+  private void startPaintMaps(Painting seed) {
+    if (seed == null) {
+      nameKeyToPaintZero_ = new HashMap<String, BoxPath>();
+      nameKeyToPaintOneQuarter_ = new HashMap<String, BoxPath>();
+      nameKeyToPaintOneHalf_ = new HashMap<String, TextPath>();
+    } else {
+      nameKeyToPaintZero_ = new HashMap<String, BoxPath>(seed.nameKeyToPaintZero);
+      nameKeyToPaintOneQuarter_ = new HashMap<String, BoxPath>(seed.nameKeyToPaintOneQuarter);
+      nameKeyToPaintOneHalf_ = new HashMap<String, TextPath>(seed.nameKeyToPaintOneHalf);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Everything that goes into drawing a node's label, drain zones and line. If 
+  ** this does not change, neither does the drawing.
+  */
+  
+  private String nodeSignature(BioFabricNetwork.NodeInfo node, NodeGlyphStore store) {
+    StringBuffer buf = new StringBuffer();
+    MinMax colmm = node.getColRange(store.showShadows);
+    Map<Integer, MinMax> linkExtents = store.linkExtents;
+    buf.append(node.getNodeName()).append('\t').append(node.nodeRow);
+    buf.append(':').append(colmm.min).append(':').append(colmm.max).append(':').append(node.colorKey);
+    for (BioFabricNetwork.DrainZone dz : node.getDrainZones(store.showShadows)) {
+      MinMax dzmm = dz.getMinMax();
+      buf.append('|').append(dzmm.min).append(':').append(dzmm.max);
+      if (store.shadeNodes) {
+        //
+        // Shading runs over the rows the links in the zone cover:
+        //
+        int minRow = Integer.MAX_VALUE;
+        int maxRow = Integer.MIN_VALUE;
+        for (int i = dzmm.min; i <= dzmm.max; i++) {
+          MinMax range = linkExtents.get(Integer.valueOf(i));
+          if (range != null) {
+            minRow = Math.min(minRow, range.min);
+            maxRow = Math.max(maxRow, range.max);
+          }
+        }
+        buf.append(':').append(minRow).append(':').append(maxRow);
+      }
+    }
+    return (buf.toString());
+  }
+  
+  /***************************************************************************
+  **
+  ** Everything that goes into drawing an annotation
+  */
+  
+  private String annotSignature(Annot an, Color col, boolean isHoriz, MinMax fullExtents, Integer extentCap) {
+    StringBuffer buf = new StringBuffer();
+    MinMax range = an.getRange();
+    buf.append((isHoriz) ? 'N' : 'L').append(an.getName()).append('\t');
+    buf.append(range.min).append(':').append(range.max).append(':').append(col.getRGB());
+    buf.append(':').append(fullExtents.min).append(':').append(fullExtents.max).append(':').append(extentCap);
+    return (buf.toString());
+  }
+  
+  /***************************************************************************
+  **
+  ** If we are patching and drew the same annotation last time, keep it
+  */
+  
+  private boolean reuseAnnotGlyphs(String sig, HashMap<String, List<AnnotGlyphs>> oldAnnotGlyphs, 
+                                   ArrayList<QuadTree.Payload> payloadCache, boolean patch) {
+    if (!patch) {
+      return (false);
+    }
+    List<AnnotGlyphs> olds = oldAnnotGlyphs.get(sig);
+    if ((olds == null) || olds.isEmpty()) {
+      return (false);
+    }
+    AnnotGlyphs old = olds.remove(olds.size() - 1);
+    payloadCache.addAll(old.payloads);
+    addAnnotGlyphs(old);
+    return (true);
+  }
+  
+  /***************************************************************************
+  **
+  ** Remember a freshly built annotation. If we are patching, it needs drawing.
+  */
+  
+  private void addAnnotGlyphs(String sig, List<QuadTree.Payload> payloads, List<Rectangle2D> dirty) {
+    AnnotGlyphs made = new AnnotGlyphs(sig, payloads);
+    addAnnotGlyphs(made);
+    if (dirty != null) {
+      dirty.add(made.bounds);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Remember an annotation
+  */
+  
+  private void addAnnotGlyphs(AnnotGlyphs glyphs) {
+    List<AnnotGlyphs> forSig = annotGlyphs_.get(glyphs.signature);
+    if (forSig == null) {
+      forSig = new ArrayList<AnnotGlyphs>();
+      annotGlyphs_.put(glyphs.signature, forSig);
+    }
+    forSig.add(glyphs);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Toss the paint objects for the payloads
+  */
+  
+  private void dropGlyphs(List<QuadTree.Payload> payloads) {
+    for (QuadTree.Payload pay : payloads) {
+      String key = pay.getKey();
+      nameKeyToPaintZero_.remove(key);
+      nameKeyToPaintOneQuarter_.remove(key);
+      nameKeyToPaintOneHalf_.remove(key);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add the world rects for the link columns that are not drawn the same as they 
+  ** were before. Runs of changed columns are merged.
+  */
+  
+  private void changedLinkColumns(List<BioFabricNetwork.LinkInfo> oldLinkRefs, int[] oldLinkIndex, int oldIndexOffset, 
+                                  List<BioFabricNetwork.LinkInfo> linkRefs, int[] linkIndex, int indexOffset, 
+                                  List<Rectangle2D> dirty) {
+    int minCol = Math.min(oldIndexOffset, indexOffset);
+    int maxCol = Math.max(oldIndexOffset + oldLinkIndex.length, indexOffset + linkIndex.length) - 1;
+    int runStart = Integer.MIN_VALUE;
+    int runTop = Integer.MAX_VALUE;
+    int runBottom = Integer.MIN_VALUE;
+    for (int i = minCol; i <= maxCol + 1; i++) {
+      BioFabricNetwork.LinkInfo oldLink = (i > maxCol) ? null : linkAt(oldLinkRefs, oldLinkIndex, oldIndexOffset, i);
+      BioFabricNetwork.LinkInfo newLink = (i > maxCol) ? null : linkAt(linkRefs, linkIndex, indexOffset, i);
+      boolean changed = (i <= maxCol) && !sameLinkDrawing(oldLink, newLink);
+      if (changed) {
+        if (runStart == Integer.MIN_VALUE) {
+          runStart = i;
+        }
+        if (oldLink != null) {
+          runTop = Math.min(runTop, oldLink.topRow());
+          runBottom = Math.max(runBottom, oldLink.bottomRow());
+        }
+        if (newLink != null) {
+          runTop = Math.min(runTop, newLink.topRow());
+          runBottom = Math.max(runBottom, newLink.bottomRow());
+        }
+      } else if (runStart != Integer.MIN_VALUE) {
+        double pad = BB_HALF_WIDTH_ + STROKE_SIZE;
+        double x = (runStart * BioFabricPanel.GRID_SIZE) - pad;
+        double y = (runTop * BioFabricPanel.GRID_SIZE) - pad;
+        double width = ((i - 1 - runStart) * BioFabricPanel.GRID_SIZE) + (2.0 * pad);
+        double height = ((runBottom - runTop) * BioFabricPanel.GRID_SIZE) + (2.0 * pad);
+        dirty.add(new Rectangle2D.Double(x, y, width, height));
+        runStart = Integer.MIN_VALUE;
+        runTop = Integer.MAX_VALUE;
+        runBottom = Integer.MIN_VALUE;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Link drawn in the column, or null
+  */
+  
+  private static BioFabricNetwork.LinkInfo linkAt(List<BioFabricNetwork.LinkInfo> refs, int[] index, 
+                                                  int offset, int col) {
+    int idx = col - offset;
+    if ((idx < 0) || (idx >= index.length) || (index[idx] == -1)) {
+      return (null);
+    }
+    return (refs.get(index[idx]));
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if two links (either may be null) get drawn the same in a column
+  */
+  
+  private static boolean sameLinkDrawing(BioFabricNetwork.LinkInfo link1, BioFabricNetwork.LinkInfo link2) {
+    if ((link1 == null) || (link2 == null)) {
+      return (link1 == link2);
+    }
+    String key1 = link1.getColorKey();
+    String key2 = link2.getColorKey();
+    return ((link1.getStartRow() == link2.getStartRow()) && 
+            (link1.getEndRow() == link2.getEndRow()) &&
+            (link1.isDirected() == link2.isDirected()) &&
+            ((key1 == null) ? (key2 == null) : key1.equals(key2)));
+  }
  
   /***************************************************************************
   ** 
@@ -585,19 +1181,10 @@ public class PaintCacheSmall {
 
   /***************************************************************************
   **
-  ** Build the text objects associated with a node
+  ** World bounds of a node's label
   */
   
-  private void buildNodeTextAndRect(BioFabricNetwork.NodeInfo target,
-                                    FontRenderContext frc,
-                                    FabricColorGenerator colGen, Map<Integer, MinMax> linkExtents,
-                                    boolean shadeNodes, boolean showShadows, Map<NetNode, Rectangle2D> nameMap,
-                                    Map<NetNode, List<Rectangle2D>> drainMap, ArrayList<QuadTree.Payload> payloadCache) {
- 
-    //
-    // Left end node label sizing and Y:
-    //
-    
+  private Rectangle2D nameBounds(BioFabricNetwork.NodeInfo target, boolean showShadows, FontRenderContext frc) {
     MinMax colmm = target.getColRange(showShadows);
     Rectangle2D labelBounds = fonts_.get(TextPath.FontSizes.TINY).getStringBounds(target.getNodeName(), frc);
     // Easiest font height hack is to scale it by ~.67: 
@@ -605,28 +1192,32 @@ public class PaintCacheSmall {
     double namey = (target.nodeRow * BioFabricPanel.GRID_SIZE) + (scaleHeight / 2.0);
     double namex = (colmm.min * BioFabricPanel.GRID_SIZE) - labelBounds.getWidth() - BB_HALF_WIDTH_ - NODE_LABEL_X_SHIM_;
     labelBounds.setRect(namex, namey - scaleHeight, labelBounds.getWidth(), scaleHeight);
+    return (labelBounds);
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the text objects associated with a node
+  */
+  
+  private NodeGlyphs buildNodeGlyphs(BioFabricNetwork.NodeInfo target, NodeGlyphStore store) {
+ 
+    FontRenderContext frc = new FontRenderContext(new AffineTransform(), true, true);
+    NodeGlyphs retval = new NodeGlyphs(target, store.showShadows);
     
     //
-    // Get the name bounds into the map and the extents into the QuadTree:
+    // Left end node label:
     //
     
-    nameMap.put(target.getNodeIDWithName(), (Rectangle2D) labelBounds.clone());
-    TextPath npp = new TextPath(Color.BLACK, target.getNodeName(), namex, namey, labelBounds, false, TextPath.FontSizes.TINY);
-    String nkk = Integer.toString(nameKeyCount_++);
-    QuadTree.Payload pay = new QuadTree.Payload(labelBounds, nkk);
-    payloadCache.add(pay);
-    nameKeyToPaintSecond_.put(nkk, npp);
-    nameKeyToNodeID_.put(nkk, target.getNodeID());
+    Rectangle2D labelBounds = nameBounds(target, store.showShadows, frc);
+    retval.nameRect = (Rectangle2D)labelBounds.clone();
+    retval.name = new TextPath(Color.BLACK, target.getNodeName(), labelBounds.getX(), labelBounds.getMaxY(), 
+                               labelBounds, false, TextPath.FontSizes.TINY);
+    retval.addToBounds(labelBounds);
     
     //
     // Now process drain zones:
     //
-
-    //
-    // All the drain zone text rectangles associated with this node:
-    //
-    
-    List<Rectangle2D> rectList = new ArrayList<Rectangle2D>();
     
     // Drain zone Y: Lifted slightly above node line and link boxes:
     
@@ -636,7 +1227,7 @@ public class PaintCacheSmall {
     // Drain zone info for each zone:
     //
     
-    List<BioFabricNetwork.DrainZone> zones = target.getDrainZones(showShadows);
+    List<BioFabricNetwork.DrainZone> zones = target.getDrainZones(store.showShadows);
  
     //
     // Process each zone:
@@ -652,8 +1243,7 @@ public class PaintCacheSmall {
       // Check if drain zone can show text
       //
   
-      FabricDisplayOptions options = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
-      curr.setGreaterThanMinDZ(curr.diff + 1 >= options.getMinDrainZone());
+      curr.setGreaterThanMinDZ(curr.diff + 1 >= store.minDrainZone);
       // + 1 because #links in (a,b) is b-a+1
       
       // Drain zone sizing / rotation:
@@ -684,9 +1274,11 @@ public class PaintCacheSmall {
 	      // Build the node zone shade rectangle if one is requested:
 	      //
 	      
-	      if (shadeNodes) {
+	      if (store.shadeNodes) {
 	      	Color col = ((target.nodeRow % 2) == 0) ? superLightBlue_ : superLightPink_;
-	        buildANodeShadeRect(curr.dzmm, linkExtents, curr.dumpRect, col, payloadCache);
+	        Rectangle shade = buildANodeShadeRect(curr.dzmm, store.linkExtents, curr.dumpRect);
+	        retval.shades.add(new BoxPath(col, shade));
+	        retval.addToBounds(shade);
 	      }
 	      
 	    }
@@ -699,25 +1291,19 @@ public class PaintCacheSmall {
           //
           TextPath drain = new TextPath(Color.BLACK, target.getNodeName(), tnamex, tnamey,
                   curr.dumpRect, curr.doRotateName, curr.font);
-          nkk = Integer.toString(nameKeyCount_++);
-          pay = new QuadTree.Payload(curr.dumpRect, nkk);
-          payloadCache.add(pay);
           if (curr.font == TextPath.FontSizes.TINY) {
-            nameKeyToPaintThird_.put(nkk, drain);
-            nameKeyToNodeID_.put(nkk, target.getNodeID());
+            retval.tinyDrainLabels.add(drain);
           } else {
-            nameKeyToPaintSecond_.put(nkk, drain);
-            nameKeyToNodeID_.put(nkk, target.getNodeID());
+            retval.drainLabels.add(drain);
           }
         }
       
       if (curr.dumpRect != null) {
-        rectList.add((Rectangle2D) curr.dumpRect.clone());
+        retval.drainRects.add((Rectangle2D)curr.dumpRect.clone());
+        retval.addToBounds(curr.dumpRect);
       }
     }
-    drainMap.put(target.getNodeIDWithName(), rectList);
-    
-    return;
+    return (retval);
   } 
   
   /***************************************************************************
@@ -778,13 +1364,212 @@ public class PaintCacheSmall {
 	  }
   }
   
+  /***************************************************************************
+  **
+  ** Immutable snapshot of everything paintIt() needs. The maps are never changed
+  ** once they are in here. Node glyphs are filled in as they are needed, but only
+  ** ever from this same network and settings.
+  */
+  
+  private static class Painting {
+    final List<BioFabricNetwork.NodeInfo> nodeRefs;
+    final List<BioFabricNetwork.LinkInfo> linkRefs;
+    final int[] linkIndex;
+    final int indexOffset;
+    final int[] nodeIndex;
+    final int nodeIndexOffset;
+    final boolean nodesForShadow;
+    final boolean glyphsShaded;
+    final QuadTree names;
+    final Map<String, BoxPath> nameKeyToPaintZero;
+    final Map<String, BoxPath> nameKeyToPaintOneQuarter;
+    final Map<String, TextPath> nameKeyToPaintOneHalf;
+    final NodeGlyphStore nodeGlyphs;
+    
+    Painting(List<BioFabricNetwork.NodeInfo> nodeRefs, List<BioFabricNetwork.LinkInfo> linkRefs,
+             int[] linkIndex, int indexOffset, int[] nodeIndex, int nodeIndexOffset, 
+             boolean nodesForShadow, boolean glyphsShaded, QuadTree names, 
+             Map<String, BoxPath> nameKeyToPaintZero, Map<String, BoxPath> nameKeyToPaintOneQuarter,
+             Map<String, TextPath> nameKeyToPaintOneHalf, NodeGlyphStore nodeGlyphs) {
+      this.nodeRefs = nodeRefs;
+      this.linkRefs = linkRefs;
+      this.linkIndex = linkIndex;
+      this.indexOffset = indexOffset;
+      this.nodeIndex = nodeIndex;
+      this.nodeIndexOffset = nodeIndexOffset;
+      this.nodesForShadow = nodesForShadow;
+      this.glyphsShaded = glyphsShaded;
+      this.names = names;
+      this.nameKeyToPaintZero = nameKeyToPaintZero;
+      this.nameKeyToPaintOneQuarter = nameKeyToPaintOneQuarter;
+      this.nameKeyToPaintOneHalf = nameKeyToPaintOneHalf;
+      this.nodeGlyphs = nodeGlyphs;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Node glyphs for one network and set of display settings, kept in bands of
+  ** rows. Only the most recently used bands are kept; a dropped glyph is just
+  ** built again. Tile builders on several threads share it, so glyphs are built
+  ** outside the lock and the first one in wins.
+  */
+  
+  private static class NodeGlyphStore {
+    final List<BioFabricNetwork.NodeInfo> nodeRefs;
+    final int[] nodeIndex;
+    final int nodeIndexOffset;
+    final boolean shadeNodes;
+    final boolean showShadows;
+    final Map<Integer, MinMax> linkExtents;
+    final int minDrainZone;
+    private final GlyphBands bands_;
+    
+    NodeGlyphStore(List<BioFabricNetwork.NodeInfo> nodeRefs, int[] nodeIndex, int nodeIndexOffset,
+                   boolean shadeNodes, boolean showShadows, Map<Integer, MinMax> linkExtents, int minDrainZone) {
+      this.nodeRefs = nodeRefs;
+      this.nodeIndex = nodeIndex;
+      this.nodeIndexOffset = nodeIndexOffset;
+      this.shadeNodes = shadeNodes;
+      this.showShadows = showShadows;
+      this.linkExtents = linkExtents;
+      this.minDrainZone = minDrainZone;
+      this.bands_ = new GlyphBands();
+    }
+    
+    BioFabricNetwork.NodeInfo nodeForRow(int row) {
+      int idx = row - nodeIndexOffset;
+      // If we are not drawing contiguous nodes (subviews with gaps) we will hit non-node rows:
+      if ((idx < 0) || (idx >= nodeIndex.length) || (nodeIndex[idx] == -1)) {
+        return (null);
+      }
+      return (nodeRefs.get(nodeIndex[idx]));
+    }
+    
+    synchronized NodeGlyphs get(int row) {
+      NodeGlyphs[] band = bands_.get(Integer.valueOf(row / BAND_ROWS_));
+      return ((band == null) ? null : band[row % BAND_ROWS_]);
+    }
+    
+    synchronized NodeGlyphs put(int row, NodeGlyphs glyphs) {
+      Integer bandKey = Integer.valueOf(row / BAND_ROWS_);
+      NodeGlyphs[] band = bands_.get(bandKey);
+      if (band == null) {
+        band = new NodeGlyphs[BAND_ROWS_];
+        bands_.put(bandKey, band);
+      }
+      int slot = row % BAND_ROWS_;
+      if (band[slot] == null) {
+        band[slot] = glyphs;
+      }
+      return (band[slot]);
+    }
+    
+    /***************************************************************************
+    **
+    ** Number of bands, and of glyphs in them
+    */
+    
+    synchronized int[] counts() {
+      int[] retval = new int[] {bands_.size(), 0};
+      for (NodeGlyphs[] band : bands_.values()) {
+        for (int i = 0; i < band.length; i++) {
+          retval[1] += (band[i] == null) ? 0 : 1;
+        }
+      }
+      return (retval);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Least recently used bands of node glyphs
+  */
+  
+  private static class GlyphBands extends LinkedHashMap<Integer, NodeGlyphs[]> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    GlyphBands() {
+      super(16, 0.75F, true);
+    }
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, NodeGlyphs[]> eldest) {
+      return (size() > MAX_BANDS_);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** What we built for a node: its label, the drain zone labels (the tiny ones get
+  ** drawn over the links), the zone shading, the label and drain zone rects we
+  ** report, and the world rect covering all of it plus the node line.
+  */
+  
+  private static class NodeGlyphs {
+    
+    NID nodeID;
+    NetNode node;
+    TextPath name;
+    Rectangle2D nameRect;
+    List<TextPath> drainLabels;
+    List<TextPath> tinyDrainLabels;
+    List<BoxPath> shades;
+    List<Rectangle2D> drainRects;
+    Rectangle2D bounds;
+    
+    NodeGlyphs(BioFabricNetwork.NodeInfo node, boolean showShadows) {
+      this.nodeID = node.getNodeID();
+      this.node = node.getNodeIDWithName();
+      this.drainLabels = new ArrayList<TextPath>();
+      this.tinyDrainLabels = new ArrayList<TextPath>();
+      this.shades = new ArrayList<BoxPath>();
+      this.drainRects = new ArrayList<Rectangle2D>();
+      MinMax colmm = node.getColRange(showShadows);
+      double pad = BB_HALF_WIDTH_ + STROKE_SIZE;
+      this.bounds = new Rectangle2D.Double((colmm.min * BioFabricPanel.GRID_SIZE) - pad, 
+                                           (node.nodeRow * BioFabricPanel.GRID_SIZE) - pad,
+                                           ((colmm.max - colmm.min) * BioFabricPanel.GRID_SIZE) + (2.0 * pad), 
+                                           2.0 * pad);
+    }
+    
+    void addToBounds(Rectangle2D rect) {
+      Rectangle2D.union(this.bounds, rect, this.bounds);
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** What we built for an annotation
+  */
+  
+  private static class AnnotGlyphs {
+    
+    String signature;
+    List<QuadTree.Payload> payloads;
+    Rectangle2D bounds;
+    
+    AnnotGlyphs(String signature, List<QuadTree.Payload> payloads) {
+      this.signature = signature;
+      this.payloads = new ArrayList<QuadTree.Payload>(payloads);
+      for (QuadTree.Payload pay : this.payloads) {
+        if (this.bounds == null) {
+          this.bounds = (Rectangle2D)pay.getRect().clone();
+        } else {
+          Rectangle2D.union(this.bounds, pay.getRect(), this.bounds);
+        }
+      }
+    }
+  }
+  
   /***************************************************************************
   **
   ** Build a backRect
   */
   
-  private void buildANodeShadeRect(MinMax dzmm, Map<Integer, MinMax> linkExtents, 
-  		                             Rectangle2D dumpRect, Color col, ArrayList<QuadTree.Payload> payloadCache) {  
+  private Rectangle buildANodeShadeRect(MinMax dzmm, Map<Integer, MinMax> linkExtents, Rectangle2D dumpRect) {  
     int minRow = Integer.MAX_VALUE;
     int maxRow = Integer.MIN_VALUE;       
     for (int i = dzmm.min; i <= dzmm.max; i++) {
@@ -805,13 +1590,7 @@ public class PaintCacheSmall {
     int rectWidth = rectRight - rectLeft;
     int rectBot = (int)Math.floor((maxRow * BioFabricPanel.GRID_SIZE) + BB_HALF_WIDTH_ + (STROKE_SIZE / 2.0));
     int rectHeight = rectBot - rectTop;
-    Rectangle rect = new Rectangle(rectLeft, rectTop, rectWidth, rectHeight);
-    BoxPath npp = new BoxPath(col, rect);
-    String nkk = Integer.toString(nameKeyCount_++);
-    QuadTree.Payload pay = new QuadTree.Payload(rect, nkk);
-    payloadCache.add(pay);
-    nameKeyToPaintFirst_.put(nkk, npp);
-    return;
+    return (new Rectangle(rectLeft, rectTop, rectWidth, rectHeight));
   }
  
   /***************************************************************************
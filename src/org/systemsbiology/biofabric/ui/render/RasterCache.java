@@ -20,30 +20,32 @@
 package org.systemsbiology.biofabric.ui.render;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
-
-import org.systemsbiology.biofabric.util.UiUtil;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.systemsbiology.biofabric.util.HeapFootprint;
 
 /****************************************************************************
 **
-** This is a cache to hold tiling images using their compressed underlying
-** data buffers.
+** Cache for image tiles. Tiles are held compressed in memory, and the least 
+** recently used are spilled to a single memory-mapped tile store on disk when
+** we go over budget.
+**
+** Thread safety: structural changes (caching, replacing, dropping, spilling) take
+** the write lock. Fetching an image takes the read lock, so any number of threads
+** can be decompressing tiles at once, and a byte buffer cannot be recycled out
+** from under a reader. The in-memory map is kept in access order, so LRU touches
+** and evictions are constant time; touches are serialized on the map itself.
 */
 
 public class RasterCache {
@@ -55,14 +57,21 @@ public class RasterCache {
   ////////////////////////////////////////////////////////////////////////////
    
   private String cachePref_;  
-  private HashMap<String, BytesWithMeta> bufferCache_;
-  private HashMap<String, String> handleToFile_;
+  private LinkedHashMap<String, BytesWithMeta> bufferCache_;
+  private TileSegmentStore store_;
+  private HashMap<String, PyramidTile> pyramidTiles_;
   private HashMap<String, InfoForImage> infoForImage_;
-  private ArrayList<String> queue_;
+  private ReentrantReadWriteLock lock_;
   private int nextHandle_;
   private int maxMeg_;
   private int currSize_;
   private ShiftData shiftData_;
+  private TileCodec codec_;
+  
+  private AtomicLong hits_;
+  private AtomicLong misses_;
+  private AtomicLong spills_;
+  private AtomicLong spillBytes_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -75,12 +84,13 @@ public class RasterCache {
   ** Constructor
   */
 
-  public RasterCache(String cachePref, int maxMeg, DirectColorModel cMod) {
+  public RasterCache(String cachePref, int maxMeg, DirectColorModel cMod, TileCodec codec) {
     cachePref_ = cachePref;
-    bufferCache_ = new HashMap<String, BytesWithMeta>();
-    handleToFile_ = new HashMap<String, String>();
+    bufferCache_ = new LinkedHashMap<String, BytesWithMeta>(64, 0.75F, true);
+    store_ = new TileSegmentStore(cachePref);
+    pyramidTiles_ = new HashMap<String, PyramidTile>();
     infoForImage_ = new HashMap<String, InfoForImage>();
-    queue_ = new ArrayList<String>();
+    lock_ = new ReentrantReadWriteLock();
     nextHandle_ = 0;
     if (maxMeg == 0) {
       throw new IllegalArgumentException();
@@ -88,7 +98,11 @@ public class RasterCache {
     maxMeg_ = maxMeg * 1000000;
     currSize_ = 0;
     shiftData_ = new ShiftData(cMod);
-
+    codec_ = codec;
+    hits_ = new AtomicLong(0L);
+    misses_ = new AtomicLong(0L);
+    spills_ = new AtomicLong(0L);
+    spillBytes_ = new AtomicLong(0L);
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -105,13 +119,58 @@ public class RasterCache {
   */
   
   public BufferedImage getAnImage(String handle, ImgAndBufPool bis) throws IOException {
-    BytesWithMeta bwm = getADataBuffer(handle, bis);
-    if (bwm == null) {
-    	return (null);
+    lock_.readLock().lock();
+    try {
+      BytesWithMeta bwm;
+      synchronized (bufferCache_) {
+        bwm = bufferCache_.get(handle);
+      }
+      if (bwm != null) {
+        hits_.incrementAndGet();
+        return (bufToImage(bwm, bis, infoForImage_.get(handle)));
+      }
+    } finally {
+      lock_.readLock().unlock();
     }
-    InfoForImage ifi = this.infoForImage_.get(handle); 
-    BufferedImage bi = bufToImage(bwm, bis, ifi);
-    return (bi);
+    
+    //
+    // Not in memory. Loading from disk changes the cache, so we need the write lock. Once
+    // loaded, drop back to the read lock for the decompression:
+    //
+    
+    lock_.writeLock().lock();
+    boolean haveWrite = true;
+    try {
+      BytesWithMeta bwm = getADataBuffer(handle, bis);
+      if (bwm == null) {
+        return (null);
+      }
+      lock_.readLock().lock();
+      lock_.writeLock().unlock();
+      haveWrite = false;
+      try {
+        return (bufToImage(bwm, bis, infoForImage_.get(handle)));
+      } finally {
+        lock_.readLock().unlock();
+      }
+    } finally {
+      if (haveWrite) {
+        lock_.writeLock().unlock();
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Compress an image so it is ready to be cached. This does the expensive part
+  ** of caching without holding any locks. *recycles the image*
+  */
+  
+  public PackedImage packImage(BufferedImage bi, ImgAndBufPool bis) {
+    InfoForImage ifi = new InfoForImage(bi);	
+    BytesWithMeta bwm = imageToBuf(bi, bis, ifi);
+    bis.returnImage(bi);
+    return (new PackedImage(bwm, ifi));
   }
  
   /***************************************************************************
@@ -120,19 +179,56 @@ public class RasterCache {
   */
   
   public String cacheAnImage(BufferedImage bi, ImgAndBufPool bis) throws IOException {
+    return (cachePackedImage(packImage(bi, bis), bis));
+  }
+  
+  /***************************************************************************
+  **
+  ** Cache an already packed image, return a handle
+  */
+  
+  public String cachePackedImage(PackedImage pi, ImgAndBufPool bis) throws IOException {
+    lock_.writeLock().lock();
+    try {
+      maintainSize(pi.bwm.buf.length, bis);
+      String handle = Integer.toString(nextHandle_++);
+      synchronized (bufferCache_) {
+        bufferCache_.put(handle, pi.bwm);
+      }
+      infoForImage_.put(handle, pi.ifi);
+      currSize_ += pi.bwm.buf.length;
+      return (handle);
+    } finally {
+      lock_.writeLock().unlock();
+    }
+  }
 
-  	InfoForImage ifi = new InfoForImage(bi);	
-  	BytesWithMeta bwm = imageToBuf(bi, bis, ifi);
-  	bis.returnImage(bi);
-    maintainSize(bwm.buf.length, bis);
- 
-    String handle = Integer.toString(nextHandle_++);
-    bufferCache_.put(handle, bwm);
-    infoForImage_.put(handle, ifi);
-    queue_.add(0, handle);
-    currSize_ += bwm.buf.length;
-    
-    return (handle);
+  /***************************************************************************
+  **
+  ** Toss a packed image that we decided not to cache
+  */
+  
+  public void discardPackedImage(PackedImage pi, ImgAndBufPool bis) {
+    bis.returnByteBuf(pi.bwm.buf);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Register a tile that lives in a persisted pyramid file, return a handle. Nothing
+  ** is loaded until the tile is asked for.
+  */
+  
+  String cachePyramidTile(TilePyramidFile pyramid, TilePyramidFile.Entry entry) {
+    lock_.writeLock().lock();
+    try {
+      String handle = Integer.toString(nextHandle_++);
+      pyramidTiles_.put(handle, new PyramidTile(pyramid, entry));
+      infoForImage_.put(handle, new InfoForImage(entry.width, entry.height, BufferedImage.TYPE_INT_RGB, entry.length));
+      return (handle);
+    } finally {
+      lock_.writeLock().unlock();
+    }
   }
 
   /***************************************************************************
@@ -141,9 +237,62 @@ public class RasterCache {
   */
   
   public void releaseResources()  {
-  	UiUtil.fixMePrintout("DO THIS IN A THREAD_SAFE FASHION!!");
+    lock_.writeLock().lock();
+    try {
+      store_.close();
+      synchronized (bufferCache_) {
+        bufferCache_.clear();
+      }
+      infoForImage_.clear();
+      pyramidTiles_.clear();
+      currSize_ = 0;
+    } finally {
+      lock_.writeLock().unlock();
+    }
   	return;
   }
+  
+  /***************************************************************************
+  **
+  ** Get usage stats
+  */
+  
+  public Stats getStats() {
+    lock_.readLock().lock();
+    try {
+      int inMem;
+      synchronized (bufferCache_) {
+        inMem = bufferCache_.size();
+      }
+      return (new Stats(hits_.get(), misses_.get(), spills_.get(), spillBytes_.get(),
+                        inMem, currSize_, store_.size(), maxMeg_));
+    } finally {
+      lock_.readLock().unlock();
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Estimated heap bytes held by in-memory tiles, counting the whole backing
+  ** buffer even when the packed tile uses less of it
+  */
+  
+  public long estimateMemoryBytes() {
+    lock_.readLock().lock();
+    try {
+      long retval;
+      synchronized (bufferCache_) {
+        retval = HeapFootprint.linkedHashMap(bufferCache_.size());
+        for (Map.Entry<String, BytesWithMeta> entry : bufferCache_.entrySet()) {
+          retval += HeapFootprint.string(entry.getKey()) + HeapFootprint.object(8) + 
+                    HeapFootprint.byteArray(entry.getValue().buf.length);
+        }
+      }
+      return (retval);
+    } finally {
+      lock_.readLock().unlock();
+    }
+  }
  
   /***************************************************************************
   **
@@ -196,30 +345,27 @@ public class RasterCache {
   */
   
   public void dropAnImage(String handle, ImgAndBufPool bis) throws IOException {
-  	//
-  	// Since we don't store images, we just need to drop the data buffer!
-  	//
-  	BytesWithMeta bye = getADataBuffer(handle, bis);
-    if (bye == null) {
-      return;
-    }
-    currSize_ -= bye.buf.length;
-    if (currSize_ < 0) {
-      currSize_ = 0;
-    }
-    
-    queue_.remove(handle);
-    bufferCache_.remove(handle);
-    infoForImage_.remove(handle);
-    bis.returnByteBuf(bye.buf);
-
-    String fileName = handleToFile_.get(handle);
-    if (fileName != null) {
-      File dropFile = new File(fileName);
-      if (dropFile.exists()) {
-        dropFile.delete();
+    lock_.writeLock().lock();
+    try {
+      //
+      // Since we don't store images, we just need to drop the data buffer!
+      //
+      BytesWithMeta bye;
+      synchronized (bufferCache_) {
+        bye = bufferCache_.remove(handle);
+      }
+      if (bye != null) {
+        currSize_ -= bye.buf.length;
+        if (currSize_ < 0) {
+          currSize_ = 0;
+        }
+        bis.returnByteBuf(bye.buf);
       }
-      handleToFile_.remove(handle);
+      infoForImage_.remove(handle);
+      pyramidTiles_.remove(handle);
+      store_.remove(handle);
+    } finally {
+      lock_.writeLock().unlock();
     }
     return;
   }
@@ -230,205 +376,158 @@ public class RasterCache {
   */
   
   public String replaceAnImage(String handle, BufferedImage bi, ImgAndBufPool bis) throws IOException {
-  	
-    BytesWithMeta bye = getADataBuffer(handle, bis);
-    currSize_ -= bye.buf.length;
-    if (currSize_ < 0) {
-      currSize_ = 0;
-    }
-    bis.returnByteBuf(bye.buf);
-
-    // Note above getADataBuffer put us at the front of the queue
-    
-    InfoForImage ifi = new InfoForImage(bi);
-  	BytesWithMeta bwm = imageToBuf(bi, bis, ifi);
-  	bis.returnImage(bi);
-    maintainSize(bwm.buf.length, bis);
- 
-    bufferCache_.put(handle, bwm);
-    infoForImage_.put(handle, ifi);
-    queue_.add(0, handle);
-    currSize_ += bwm.buf.length;
-    
-    String fileName = handleToFile_.get(handle);
-    if (fileName != null) {
-      File holdFile = new File(fileName);
-      writeBufferToFile(bwm, holdFile, bis);
-    }
-
-    return (handle);
+    return (replacePackedImage(handle, packImage(bi, bis), bis));
   }
-   
+  
   /***************************************************************************
   **
-  ** Manage in-memory cache, toss least recently used. Tossed byte array recycled.
+  ** Replace the image with the given handle with an already packed image.
   */
   
-  private void maintainSize(int sizeEst, ImgAndBufPool bis) throws IOException {
-    while (((sizeEst + currSize_) > maxMeg_) && (queue_.size() > 0)) {
-      String goodBye = queue_.remove(queue_.size() - 1);
-      BytesWithMeta bwm = bufferCache_.remove(goodBye);
-      String fileName = handleToFile_.get(goodBye);
-      if (fileName == null) {
-      	//System.out.println("Flushing to file cache to maintain size");
-        File holdFile = getAFile();
-        currSize_ -= bwm.buf.length;
+  public String replacePackedImage(String handle, PackedImage pi, ImgAndBufPool bis) throws IOException {
+    lock_.writeLock().lock();
+    try {
+      BytesWithMeta bye;
+      synchronized (bufferCache_) {
+        bye = bufferCache_.remove(handle);
+      }
+      if (bye != null) {
+        currSize_ -= bye.buf.length;
         if (currSize_ < 0) {
           currSize_ = 0;
         }
-        writeBufferToFile(bwm, holdFile, bis);
-        bis.returnByteBuf(bwm.buf);
-        handleToFile_.put(goodBye, holdFile.getAbsolutePath());
-        fileCacheReport();
+        bis.returnByteBuf(bye.buf);
+      }
+      
+      maintainSize(pi.bwm.buf.length, bis);
+      synchronized (bufferCache_) {
+        bufferCache_.put(handle, pi.bwm);
       }
+      infoForImage_.put(handle, pi.ifi);
+      currSize_ += pi.bwm.buf.length;
+      
+      //
+      // Old spilled copy is stale. Toss it; if this gets evicted, it will be spilled fresh:
+      //
+      
+      store_.remove(handle);
+      pyramidTiles_.remove(handle);
+    } finally {
+      lock_.writeLock().unlock();
     }
-    // System.out.println("Curr mem cache: " + currSize_);
-    return;
+    return (handle);
   }
-  
+   
   /***************************************************************************
   **
-  ** Get temp file:
-  ** On Mac 10.5.8, JDK 1.6, this seems to go into:
-  ** /private/var/folders/[2 characters]/[Random string of characters]/-Tmp-
-  ** Note: To cd into -Tmp-, use "cd -- -Tmp-"
+  ** Manage in-memory cache, toss least recently used. Tossed byte array recycled.
+  ** Caller must hold the write lock.
   */
   
-  private File getAFile() throws IOException {
-    File file = null;
-    File dir = null;
-    if (cachePref_ != null) {
-      dir = new File(cachePref_);
-      if (!dir.exists() || !dir.isDirectory()) {
-        throw new IOException();
+  private void maintainSize(int sizeEst, ImgAndBufPool bis) throws IOException {
+    while ((sizeEst + currSize_) > maxMeg_) {
+      String goodBye;
+      BytesWithMeta bwm;
+      synchronized (bufferCache_) {
+        if (bufferCache_.isEmpty()) {
+          break;
+        }
+        Iterator<Map.Entry<String, BytesWithMeta>> eit = bufferCache_.entrySet().iterator();
+        Map.Entry<String, BytesWithMeta> eldest = eit.next();
+        goodBye = eldest.getKey();
+        bwm = eldest.getValue();
+        eit.remove();
       }
-      file = File.createTempFile("BioFabric", ".tmp", dir);
-    } else {
-      file = File.createTempFile("BioFabric", ".tmp");
-    }
-    file.deleteOnExit();
-    return (file);
-  }
-
-  /***************************************************************************
-  ** 
-  ** Stats on image file cache:
-  */
-  
-  public long fileCacheReport() {
-     
-  	long length = 0;
-  	int numFile = 0;
-   
-    for (String holdFilePath : handleToFile_.values()) {    
-      File holdFile = new File(holdFilePath);
-      if (!holdFile.exists()) {
-        continue;
+      currSize_ -= bwm.buf.length;
+      if (currSize_ < 0) {
+        currSize_ = 0;
       }
-      if (numFile == 0) {
-        System.out.println("Directory: " + holdFile.getParentFile().getAbsolutePath());
+      //
+      // Tiles from a pyramid file can just be reloaded from there:
+      //
+      if (!store_.contains(goodBye) && !pyramidTiles_.containsKey(goodBye)) {
+        store_.append(goodBye, bwm.buf, bwm.used);
+        spills_.incrementAndGet();
+        spillBytes_.addAndGet(bwm.used);
       }
-  	  length += holdFile.length();
-  	  numFile++;
+      bis.returnByteBuf(bwm.buf);
     }
-    System.out.println("Total bytes used: " + length);
-    System.out.println("Total file count: " + numFile);
-    return (length);
-  }
-
-  /***************************************************************************
-  ** 
-  ** Write out a DataBuffer for file. Buffer is NOT recycled.
-  */
-
-  private void writeBufferToFile(BytesWithMeta bwm, File file, ImgAndBufPool bis) throws IOException {
-  	long prewrite = Runtime.getRuntime().freeMemory();
-  	BufferedOutputStream out = null;
-  	try {
-  	  out = new BufferedOutputStream(new FileOutputStream(file));
-  	  out.write(bwm.buf, 0, bwm.used);
-  	} finally {
-  		if (out != null) {
-  		  out.close();
-  		}
-  	}
     return;
   }
   
   /***************************************************************************
   ** 
-  ** Read in a DataBuffer
+  ** Stats on image file cache:
   */
-
-  private BytesWithMeta readBufferFromFile(File file, InfoForImage ifi, ImgAndBufPool bis) throws IOException {
-  	long preread = Runtime.getRuntime().freeMemory();
-  	byte[] buf = bis.fetchByteBuf(ifi.compressedNumBytes);
-  	BufferedInputStream in = null;
-  	int off = 0;
-  	try {
-	  	in = new BufferedInputStream(new FileInputStream(file));
-	  	while (true) {
-	  	  int num = in.read(buf, off, buf.length - off);
-	  	  if (num == -1) {
-	  	  	break;
-	  	  }
-	  	  off += num;
-	  	}
-  	} finally {
-  		if (in != null) {
-  		  in.close();
-  		}
-  	}
-    if (ifi.compressedNumBytes != off) {
-    	throw new IOException();
+  
+  public long fileCacheReport() {
+    File file = store_.getFile();
+    if (file != null) {
+      System.out.println("Tile store: " + file.getAbsolutePath());
     }
-    return (new BytesWithMeta(buf, off));
+    System.out.println("Total bytes used: " + store_.liveBytes() + " (file size " + store_.fileBytes() + ")");
+    System.out.println("Total tile count: " + store_.size());
+    return (store_.liveBytes());
   }
 
   /***************************************************************************
   **
-  ** Get a BytesWithMeta from the cache; returns null if no BytesWithMeta
+  ** Get a BytesWithMeta from the cache, loading it from disk if needed; returns 
+  ** null if no BytesWithMeta. Caller must hold the write lock.
   */
   
   private BytesWithMeta getADataBuffer(String handle, ImgAndBufPool bis) throws IOException {
   	
     //
-  	// We have a hit in the memory cache. Retrieve it, and move it to the front of the
+  	// We have a hit in the memory cache. Retrieving it moves it to the front of the
   	// queue since it now is the most recently used:
   	//
   	
-    BytesWithMeta retval = bufferCache_.get(handle);
+    BytesWithMeta retval;
+    synchronized (bufferCache_) {
+      retval = bufferCache_.get(handle);
+    }
     if (retval != null) {
-      queue_.remove(handle);
-      queue_.add(0, handle);
+      hits_.incrementAndGet();
       return (retval);
     }
     
     //
-    // Not in memory cache, look for file:
+    // Not in memory cache, look in the tile store:
     //
    
-    String fileName = handleToFile_.get(handle);
-   
-    if (fileName == null) {
-      return (null);
-    }
-    
-    //
-    // File is gone (should not happen...handleToFile_ should be authoritative):
-    //
-    
-    File holdFile = new File(fileName);
-    if (!holdFile.exists()) {
-      return (null);
+    int storedLen = store_.length(handle);
+    PyramidTile pyrTile = null;
+    if (storedLen < 0) {
+      pyrTile = pyramidTiles_.get(handle);
+      if (pyrTile == null) {
+        return (null);
+      }
+      storedLen = pyrTile.entry.length;
     }
+    misses_.incrementAndGet();
     
     //
-    // Get the image in from file:
+    // Copy it out of the mapped file. No stream to open, no syscall. Pyramid tiles
+    // come from the pyramid file instead:
     //
     
     InfoForImage ifi = infoForImage_.get(handle); 
-    retval = readBufferFromFile(holdFile, ifi, bis);
+    if (ifi.compressedNumBytes != storedLen) {
+      throw new IOException();
+    }
+    byte[] buf = bis.fetchByteBuf(storedLen);
+    if (pyrTile != null) {
+      try {
+        pyrTile.pyramid.read(pyrTile.entry, buf);
+      } catch (IOException ioex) {
+        bis.returnByteBuf(buf);
+        throw ioex;
+      }
+    } else {
+      store_.read(handle, buf);
+    }
+    retval = new BytesWithMeta(buf, storedLen);
 
     //
     // Manage in-memory cache size, toss least recently used:
@@ -441,8 +540,9 @@ public class RasterCache {
     // Install it in the memory cache, again putting it as most recently used
     //
 
-    bufferCache_.put(handle, retval);
-    queue_.add(0, handle);
+    synchronized (bufferCache_) {
+      bufferCache_.put(handle, retval);
+    }
     currSize_ += size;
     return (retval);
   }
@@ -453,25 +553,12 @@ public class RasterCache {
   */
 
   private BytesWithMeta imageToBuf(BufferedImage bi, ImgAndBufPool bis, InfoForImage ifi)  { 
-  	Raster rast = bi.getRaster();
-  	DataBufferInt dbb = (DataBufferInt)rast.getDataBuffer();
-  	int[] data = dbb.getData();
-  	byte[] byteData = bis.fetchByteBuf(data.length * 3);
-  	oneIntToThreeBytes(data, byteData, shiftData_);
-  	
-  	// We do not know how big the result will be. So we use a buffer the same size as the
-  	// data. IS THAT A PROBLEM???? What about METADATA?
-  	byte[] output = bis.fetchByteBuf(byteData.length);
-    Deflater deflate = new Deflater();
-    deflate.setInput(byteData);
-    deflate.finish();
-    int compressedDataLength = deflate.deflate(output);
-    byte[] result = bis.fetchByteBuf(compressedDataLength);
-    System.arraycopy(output, 0, result, 0, compressedDataLength);
-    bis.returnByteBuf(output);
-    bis.returnByteBuf(byteData);
-    ifi.setCompressedSize(compressedDataLength);
-    return (new BytesWithMeta(result, compressedDataLength));
+    Raster rast = bi.getRaster();
+    DataBufferInt dbb = (DataBufferInt)rast.getDataBuffer();
+    int[] data = dbb.getData();
+    TileCodec.Encoded enc = codec_.encode(data, ifi.width * ifi.height, shiftData_, bis);
+    ifi.setCompressedSize(enc.used);
+    return (new BytesWithMeta(enc.buf, enc.used));
   }
     
   /***************************************************************************
@@ -479,25 +566,18 @@ public class RasterCache {
   ** Convert a buffer into an image. Buffer is not recycled, caller is responsible.
   */
 
-  private BufferedImage bufToImage(BytesWithMeta bwm, ImgAndBufPool bis, InfoForImage ifi) throws IOException {   	
-  	Inflater inflate = new Inflater();
-    byte[] decomp = bis.fetchByteBuf(ifi.uncompressedNumBytes);
-    inflate.setInput(bwm.buf, 0, bwm.used);
-    int resultLength;
+  private BufferedImage bufToImage(BytesWithMeta bwm, ImgAndBufPool bis, InfoForImage ifi) throws IOException {
+    int numPix = ifi.width * ifi.height;
+    int[] intData = bis.fetchBuf(numPix);
     try {
-      resultLength = inflate.inflate(decomp);
-    } catch (DataFormatException dfex) {
-    	throw new IOException();
+      codec_.decode(bwm.buf, bwm.used, intData, numPix, shiftData_, bis);
+    } catch (IOException ioex) {
+      bis.returnBuf(intData);
+      throw ioex;
     }
-    inflate.end();
-    
-    int[] intData = bis.fetchBuf(decomp.length / 3);
-    threeBytesToOneInt(decomp, intData, shiftData_);
- 
     BufferedImage bi = bis.fetchImage(ifi.width, ifi.height, ifi.type);
-  	WritableRaster biRast = bi.getRaster();
-  	biRast.setDataElements(0, 0, ifi.width, ifi.height, intData);
-    bis.returnByteBuf(decomp);
+    WritableRaster biRast = bi.getRaster();
+    biRast.setDataElements(0, 0, ifi.width, ifi.height, intData);
     bis.returnBuf(intData);
     return (bi);
   }
@@ -551,6 +631,14 @@ public class RasterCache {
       this.type = bi.getType();
 	  }
     
+    InfoForImage(int width, int height, int type, int compressedNumBytes) {
+      this.uncompressedNumBytes = width * height * 3;
+      this.compressedNumBytes = compressedNumBytes;
+      this.width = width;
+      this.height = height;
+      this.type = type;
+    }
+    
     void setCompressedSize(int size) {
     	this.compressedNumBytes = size;
 	  } 
@@ -579,5 +667,94 @@ public class RasterCache {
       blueShift_ = shiftForMask(blueMask_);	
 	  }
   }
+  
+  /***************************************************************************
+  ** 
+  ** A compressed image, ready to go into the cache
+  */ 
+ 
+  public static class PackedImage {
+    
+    private BytesWithMeta bwm;
+    private InfoForImage ifi;
+    
+    PackedImage(BytesWithMeta bwm, InfoForImage ifi) {
+      this.bwm = bwm;
+      this.ifi = ifi;
+    }
+    
+    byte[] getBytes() {
+      return (bwm.buf);
+    }
+    
+    int getUsed() {
+      return (bwm.used);
+    }
+    
+    int getWidth() {
+      return (ifi.width);
+    }
+    
+    int getHeight() {
+      return (ifi.height);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** A tile we can reload from a pyramid file
+  */ 
+ 
+  private static class PyramidTile {
+    
+    TilePyramidFile pyramid;
+    TilePyramidFile.Entry entry;
+    
+    PyramidTile(TilePyramidFile pyramid, TilePyramidFile.Entry entry) {
+      this.pyramid = pyramid;
+      this.entry = entry;
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Cache usage statistics. Hits and misses count image fetches satisfied from
+  ** memory versus those needing a reload from disk.
+  */ 
+ 
+  public static class Stats {
+    
+    public final long hits;
+    public final long misses;
+    public final long spills;
+    public final long spillBytes;
+    public final int tilesInMemory;
+    public final int bytesInMemory;
+    public final int tilesOnDisk;
+    public final int maxBytes;
+    
+    Stats(long hits, long misses, long spills, long spillBytes, 
+          int tilesInMemory, int bytesInMemory, int tilesOnDisk, int maxBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.spills = spills;
+      this.spillBytes = spillBytes;
+      this.tilesInMemory = tilesInMemory;
+      this.bytesInMemory = bytesInMemory;
+      this.tilesOnDisk = tilesOnDisk;
+      this.maxBytes = maxBytes;
+    }
+    
+    public double hitRate() {
+      long total = hits + misses;
+      return ((total == 0L) ? 0.0 : (double)hits / (double)total);
+    }
+    
+    @Override
+    public String toString() {
+      return ("RasterCache: hits=" + hits + " misses=" + misses + " spills=" + spills + 
+              " spillBytes=" + spillBytes + " memTiles=" + tilesInMemory + " memBytes=" + bytesInMemory + 
+              " diskTiles=" + tilesOnDisk + " maxBytes=" + maxBytes);
+    }
+  }
 }
-
@@ -0,0 +1,70 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.io.IOException;
+
+/****************************************************************************
+**
+** Interface for codecs that pack tile pixels for the RasterCache
+*/
+
+public interface TileCodec {
+  
+  /***************************************************************************
+  **
+  ** Name used to select the codec
+  */
+
+  public String getName();
+  
+  /***************************************************************************
+  **
+  ** Encode the first numPix pixels of a TYPE_INT_RGB data array. The returned
+  ** buffer must come from the pool, since the cache recycles it there.
+  */
+
+  public Encoded encode(int[] pixels, int numPix, RasterCache.ShiftData sd, ImgAndBufPool bis);
+  
+  /***************************************************************************
+  **
+  ** Decode into the first numPix pixels of a TYPE_INT_RGB data array. The
+  ** encoded buffer is not recycled; caller is responsible.
+  */
+
+  public void decode(byte[] buf, int used, int[] pixels, int numPix, 
+                     RasterCache.ShiftData sd, ImgAndBufPool bis) throws IOException;
+  
+  /***************************************************************************
+  **
+  ** Encoded result. Buffers are pooled, so may be longer than what is used.
+  */
+  
+  public static class Encoded {
+    public final byte[] buf;
+    public final int used;
+    
+    public Encoded(byte[] buf, int used) {
+      this.buf = buf;
+      this.used = used;
+    }
+  }
+}
@@ -0,0 +1,669 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.systemsbiology.biofabric.api.util.PreferenceStorage;
+
+/****************************************************************************
+**
+** The tile codecs we offer, and how to pick one
+*/
+
+public final class TileCodecs {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  //
+  // Original approach: three bytes per pixel through a default level Deflater:
+  //
+  
+  public static final String DEFLATE = "deflate";
+  
+  //
+  // Same layout, but fastest deflate level, with reused per-thread Deflaters:
+  //
+  
+  public static final String FAST_DEFLATE = "fastDeflate";
+  
+  //
+  // Palette plus run lengths. Tiles are mostly white with few colors:
+  //
+  
+  public static final String PALETTE_RUN = "paletteRun";
+  
+  //
+  // User preference key to choose the codec:
+  //
+  
+  public static final String CODEC_PREF = "TileCodec";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  private static final String DEFAULT_CODEC_ = PALETTE_RUN;
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the codec for the name. Unknown names get the default.
+  */
+  
+  public static TileCodec codecForName(String name) {
+    if (DEFLATE.equals(name)) {
+      return (new DeflateCodec(DEFLATE, Deflater.DEFAULT_COMPRESSION, false));
+    } else if (FAST_DEFLATE.equals(name)) {
+      return (new DeflateCodec(FAST_DEFLATE, Deflater.BEST_SPEED, true));
+    } else if (PALETTE_RUN.equals(name)) {
+      return (new PaletteRunCodec());
+    }
+    if (name != null) {
+      System.err.println("Unknown tile codec: " + name);
+    }
+    return (codecForName(DEFAULT_CODEC_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the codec chosen in the user preferences
+  */
+  
+  public static TileCodec codecFromPrefs() {
+    String pref = new PreferenceStorage().getPreference(CODEC_PREF);
+    return (codecForName((pref == null) ? DEFAULT_CODEC_ : pref.trim()));
+  }
+  
+  /***************************************************************************
+  **
+  ** Set the codec to use for future sessions
+  */
+  
+  public static void setCodecPref(String name) {
+    new PreferenceStorage().setPreference(CODEC_PREF, name);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Pixels to packed RGB bytes
+  */
+  
+  private static void pixelsToBytes(int[] pixels, int numPix, byte[] output, RasterCache.ShiftData sd) {
+    for (int i = 0; i < numPix; i++) {
+      int pix = pixels[i];
+      int byteBase = 3 * i;
+      output[byteBase] = (byte)((pix & sd.redMask_) >> sd.redShift_);
+      output[byteBase + 1] = (byte)((pix & sd.greenMask_) >> sd.greenShift_);
+      output[byteBase + 2] = (byte)((pix & sd.blueMask_) >> sd.blueShift_);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Packed RGB bytes to pixels
+  */
+  
+  private static void bytesToPixels(byte[] input, int[] pixels, int numPix, RasterCache.ShiftData sd) {
+    int byteIndex = 0;
+    for (int i = 0; i < numPix; i++) {
+      pixels[i] = ((input[byteIndex++] & 0xFF) << sd.redShift_) |
+                  ((input[byteIndex++] & 0xFF) << sd.greenShift_) |
+                  ((input[byteIndex++] & 0xFF) << sd.blueShift_);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Deflate into a pooled buffer, leaving prefixLen bytes open at the front.
+  */
+  
+  private static TileCodec.Encoded deflateInto(Deflater deflate, byte[] input, int len, 
+                                               int prefixLen, ImgAndBufPool bis) {
+    deflate.setInput(input, 0, len);
+    deflate.finish();
+    byte[] output = bis.fetchByteBuf(prefixLen + len + (len >> 8) + 64);
+    int outLen = prefixLen;
+    while (true) {
+      outLen += deflate.deflate(output, outLen, output.length - outLen);
+      if (deflate.finished()) {
+        break;
+      }
+      byte[] bigger = bis.fetchByteBuf(output.length * 2);
+      System.arraycopy(output, 0, bigger, 0, outLen);
+      bis.returnByteBuf(output);
+      output = bigger;
+    }
+    byte[] result = bis.fetchByteBuf(outLen);
+    System.arraycopy(output, 0, result, 0, outLen);
+    bis.returnByteBuf(output);
+    return (new TileCodec.Encoded(result, outLen));
+  }
+  
+  /***************************************************************************
+  **
+  ** Inflate into pixels
+  */
+  
+  private static void inflateFrom(Inflater inflate, byte[] buf, int off, int len, int[] pixels, int numPix,
+                                  RasterCache.ShiftData sd, ImgAndBufPool bis) throws IOException {
+    int needBytes = numPix * 3;
+    byte[] decomp = bis.fetchByteBuf(needBytes);
+    inflate.setInput(buf, off, len);
+    int got = 0;
+    try {
+      while (got < needBytes) {
+        int num = inflate.inflate(decomp, got, needBytes - got);
+        if ((num == 0) && (inflate.finished() || inflate.needsInput())) {
+          break;
+        }
+        got += num;
+      }
+    } catch (DataFormatException dfex) {
+      bis.returnByteBuf(decomp);
+      throw new IOException();
+    }
+    if (got != needBytes) {
+      bis.returnByteBuf(decomp);
+      throw new IOException();
+    }
+    bytesToPixels(decomp, pixels, numPix, sd);
+    bis.returnByteBuf(decomp);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Never instantiate
+  */ 
+    
+  private TileCodecs() {
+    throw new UnsupportedOperationException();
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Three bytes per pixel, deflated. With reuse, each thread keeps one Deflater
+  ** and one Inflater around instead of building (and finalizing) new ones per tile.
+  */
+  
+  static class DeflateCodec implements TileCodec {
+    
+    private String name_;
+    private int level_;
+    private ThreadLocal<Deflater> deflaters_;
+    private ThreadLocal<Inflater> inflaters_;
+    
+    DeflateCodec(String name, int level, boolean reuse) {
+      name_ = name;
+      level_ = level;
+      if (reuse) {
+        final int useLevel = level;
+        deflaters_ = new ThreadLocal<Deflater>() {
+          protected Deflater initialValue() {
+            return (new Deflater(useLevel));
+          }
+        };
+        inflaters_ = new ThreadLocal<Inflater>() {
+          protected Inflater initialValue() {
+            return (new Inflater());
+          }
+        };
+      }
+    }
+    
+    public String getName() {
+      return (name_);
+    }
+    
+    Deflater deflaterForThread() {
+      Deflater retval = deflaters_.get();
+      retval.reset();
+      return (retval);
+    }
+    
+    Inflater inflaterForThread() {
+      Inflater retval = inflaters_.get();
+      retval.reset();
+      return (retval);
+    }
+    
+    public TileCodec.Encoded encode(int[] pixels, int numPix, RasterCache.ShiftData sd, ImgAndBufPool bis) {
+      return (encodeWithPrefix(pixels, numPix, sd, bis, 0));
+    }
+    
+    TileCodec.Encoded encodeWithPrefix(int[] pixels, int numPix, RasterCache.ShiftData sd, 
+                                       ImgAndBufPool bis, int prefixLen) {
+      byte[] byteData = bis.fetchByteBuf(numPix * 3);
+      pixelsToBytes(pixels, numPix, byteData, sd);
+      Deflater deflate;
+      if (deflaters_ != null) {
+        deflate = deflaterForThread();
+      } else {
+        deflate = new Deflater(level_);
+      }
+      TileCodec.Encoded retval = deflateInto(deflate, byteData, numPix * 3, prefixLen, bis);
+      if (deflaters_ == null) {
+        deflate.end();
+      }
+      bis.returnByteBuf(byteData);
+      return (retval);
+    }
+    
+    public void decode(byte[] buf, int used, int[] pixels, int numPix, 
+                       RasterCache.ShiftData sd, ImgAndBufPool bis) throws IOException {
+      decodeFrom(buf, 0, used, pixels, numPix, sd, bis);
+      return;
+    }
+    
+    void decodeFrom(byte[] buf, int off, int len, int[] pixels, int numPix, 
+                    RasterCache.ShiftData sd, ImgAndBufPool bis) throws IOException {
+      Inflater inflate;
+      if (inflaters_ != null) {
+        inflate = inflaterForThread();
+      } else {
+        inflate = new Inflater();
+      }
+      try {
+        inflateFrom(inflate, buf, off, len, pixels, numPix, sd, bis);
+      } finally {
+        if (inflaters_ == null) {
+          inflate.end();
+        }
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Palette and run-length codec. Layout is a mode byte, then for palette mode
+  ** the palette size minus one, three bytes per palette color, and then runs
+  ** as a palette index byte followed by the run length minus one as a varint.
+  ** Long run streams get deflated as well, when that makes them smaller. Tiles
+  ** with more than 256 colors (e.g. heavily antialiased drawing), or where runs
+  ** do not pay off, fall back to fast deflate after the mode byte.
+  */
+  
+  static class PaletteRunCodec implements TileCodec {
+    
+    private static final byte MODE_PALETTE_ = 0;
+    private static final byte MODE_DEFLATE_ = 1;
+    private static final byte MODE_PALETTE_DEFLATE_ = 2;
+    private static final int MAX_PALETTE_ = 256;
+    private static final int HASH_SIZE_ = 1024;
+    private static final int DEFLATE_RUNS_MIN_ = 4096;
+    
+    private DeflateCodec fallback_;
+    
+    PaletteRunCodec() {
+      fallback_ = new DeflateCodec(FAST_DEFLATE, Deflater.BEST_SPEED, true);
+    }
+    
+    public String getName() {
+      return (PALETTE_RUN);
+    }
+    
+    public TileCodec.Encoded encode(int[] pixels, int numPix, RasterCache.ShiftData sd, ImgAndBufPool bis) {
+      int rgbMask = sd.redMask_ | sd.greenMask_ | sd.blueMask_;
+      int[] palette = new int[MAX_PALETTE_];
+      int palSize = 0;
+      int[] hashKeys = new int[HASH_SIZE_];
+      int[] hashVals = new int[HASH_SIZE_];
+      Arrays.fill(hashVals, -1);
+      
+      //
+      // Runs can't be allowed to cost more than the raw three bytes per pixel, else 
+      // deflate wins anyway:
+      //
+      
+      int runLimit = numPix * 3;
+      byte[] runs = bis.fetchByteBuf(runLimit + 8);
+      int pos = 0;
+      boolean overflow = false;
+      int i = 0;
+      while (i < numPix) {
+        int pix = pixels[i] & rgbMask;
+        int runEnd = i + 1;
+        while ((runEnd < numPix) && ((pixels[runEnd] & rgbMask) == pix)) {
+          runEnd++;
+        }
+        //
+        // Palette lookup:
+        //
+        int slot = (pix * 0x9E3779B1) >>> 22;
+        int index = -1;
+        while (hashVals[slot] != -1) {
+          if (hashKeys[slot] == pix) {
+            index = hashVals[slot];
+            break;
+          }
+          slot = (slot + 1) & (HASH_SIZE_ - 1);
+        }
+        if (index == -1) {
+          if (palSize == MAX_PALETTE_) {
+            overflow = true;
+            break;
+          }
+          index = palSize;
+          palette[palSize++] = pix;
+          hashKeys[slot] = pix;
+          hashVals[slot] = index;
+        }
+        //
+        // Emit the run:
+        //
+        if ((pos + 6) > runLimit) {
+          overflow = true;
+          break;
+        }
+        runs[pos++] = (byte)index;
+        int runLenM1 = runEnd - i - 1;
+        while ((runLenM1 & ~0x7F) != 0) {
+          runs[pos++] = (byte)((runLenM1 & 0x7F) | 0x80);
+          runLenM1 >>>= 7;
+        }
+        runs[pos++] = (byte)runLenM1;
+        i = runEnd;
+      }
+      
+      if (overflow) {
+        bis.returnByteBuf(runs);
+        TileCodec.Encoded enc = fallback_.encodeWithPrefix(pixels, numPix, sd, bis, 1);
+        enc.buf[0] = MODE_DEFLATE_;
+        return (enc);
+      }
+      
+      //
+      // Big run streams (busy tiles) still have lots of redundancy, so deflate them
+      // if that is a win:
+      //
+      
+      byte mode = MODE_PALETTE_;
+      byte[] body = runs;
+      int bodyLen = pos;
+      if (pos > DEFLATE_RUNS_MIN_) {
+        Deflater deflate = fallback_.deflaterForThread();
+        TileCodec.Encoded packed = deflateInto(deflate, runs, pos, 4, bis);
+        if (packed.used < pos) {
+          mode = MODE_PALETTE_DEFLATE_;
+          body = packed.buf;
+          bodyLen = packed.used;
+          body[0] = (byte)(pos >>> 24);
+          body[1] = (byte)(pos >>> 16);
+          body[2] = (byte)(pos >>> 8);
+          body[3] = (byte)pos;
+          bis.returnByteBuf(runs);
+        } else {
+          bis.returnByteBuf(packed.buf);
+        }
+      }
+      
+      int total = 2 + (palSize * 3) + bodyLen;
+      byte[] result = bis.fetchByteBuf(total);
+      int off = 0;
+      result[off++] = mode;
+      result[off++] = (byte)(palSize - 1);
+      for (int j = 0; j < palSize; j++) {
+        int pix = palette[j];
+        result[off++] = (byte)((pix & sd.redMask_) >> sd.redShift_);
+        result[off++] = (byte)((pix & sd.greenMask_) >> sd.greenShift_);
+        result[off++] = (byte)((pix & sd.blueMask_) >> sd.blueShift_);
+      }
+      System.arraycopy(body, 0, result, off, bodyLen);
+      bis.returnByteBuf(body);
+      return (new TileCodec.Encoded(result, total));
+    }
+    
+    public void decode(byte[] buf, int used, int[] pixels, int numPix, 
+                       RasterCache.ShiftData sd, ImgAndBufPool bis) throws IOException {
+      if (used < 1) {
+        throw new IOException();
+      }
+      byte mode = buf[0];
+      if (mode == MODE_DEFLATE_) {
+        fallback_.decodeFrom(buf, 1, used - 1, pixels, numPix, sd, bis);
+        return;
+      } else if ((mode != MODE_PALETTE_) && (mode != MODE_PALETTE_DEFLATE_)) {
+        throw new IOException();
+      }
+      int off = 1;
+      int palSize = (buf[off++] & 0xFF) + 1;
+      int[] palette = new int[palSize];
+      for (int j = 0; j < palSize; j++) {
+        palette[j] = ((buf[off++] & 0xFF) << sd.redShift_) |
+                     ((buf[off++] & 0xFF) << sd.greenShift_) |
+                     ((buf[off++] & 0xFF) << sd.blueShift_);
+      }
+      if (mode == MODE_PALETTE_) {
+        decodeRuns(buf, off, used, palette, pixels, numPix);
+        return;
+      }
+      
+      int runLen = ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | 
+                   ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+      off += 4;
+      if ((runLen < 0) || (runLen > (numPix * 6))) {
+        throw new IOException();
+      }
+      byte[] runs = bis.fetchByteBuf(runLen);
+      try {
+        Inflater inflate = fallback_.inflaterForThread();
+        inflate.setInput(buf, off, used - off);
+        int got = 0;
+        while (got < runLen) {
+          int num = inflate.inflate(runs, got, runLen - got);
+          if ((num == 0) && (inflate.finished() || inflate.needsInput())) {
+            throw new IOException();
+          }
+          got += num;
+        }
+        decodeRuns(runs, 0, runLen, palette, pixels, numPix);
+      } catch (DataFormatException dfex) {
+        throw new IOException();
+      } finally {
+        bis.returnByteBuf(runs);
+      }
+      return;
+    }
+    
+    private void decodeRuns(byte[] buf, int off, int used, int[] palette, int[] pixels, int numPix) throws IOException {
+      int palSize = palette.length;
+      int pixPos = 0;
+      while (off < used) {
+        int index = buf[off++] & 0xFF;
+        int runLenM1 = 0;
+        int shift = 0;
+        while (true) {
+          int b = buf[off++];
+          runLenM1 |= (b & 0x7F) << shift;
+          if ((b & 0x80) == 0) {
+            break;
+          }
+          shift += 7;
+        }
+        int runEnd = pixPos + runLenM1 + 1;
+        if ((index >= palSize) || (runEnd > numPix)) {
+          throw new IOException();
+        }
+        Arrays.fill(pixels, pixPos, runEnd, palette[index]);
+        pixPos = runEnd;
+      }
+      if (pixPos != numPix) {
+        throw new IOException();
+      }
+      return;
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // TEST FRAME
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Micro-benchmark: encode/decode throughput and bytes per tile for each codec,
+  ** on synthetic tiles that look like bin-rendered and antialiased fabric tiles.
+  ** The "deflate" codec is the original RasterCache path.
+  */
+
+  public static void main(String[] argv) {
+    int width = 1600;
+    int height = 901;
+    int reps = (argv.length > 0) ? Integer.parseInt(argv[0]) : 20;
+    BufferedImage[] tiles = new BufferedImage[] {benchTile(width, height, false, 1L), 
+                                                 benchTile(width, height, true, 2L),
+                                                 new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)};
+    String[] tileNames = new String[] {"binned", "antialiased", "blank"};
+    Graphics2D g2 = tiles[2].createGraphics();
+    g2.setPaint(Color.WHITE);
+    g2.fillRect(0, 0, width, height);
+    g2.dispose();
+    
+    RasterCache.ShiftData sd = new RasterCache.ShiftData((DirectColorModel)tiles[0].getColorModel());
+    String[] codecs = new String[] {DEFLATE, FAST_DEFLATE, PALETTE_RUN};
+    ImgAndBufPool bis = new ImgAndBufPool(50000);
+    int numPix = width * height;
+    double rawMeg = (numPix * 4.0) / (1024.0 * 1024.0);
+    
+    for (int t = 0; t < tiles.length; t++) {
+      int[] pixels = ((DataBufferInt)tiles[t].getRaster().getDataBuffer()).getData();
+      for (int c = 0; c < codecs.length; c++) {
+        TileCodec codec = codecForName(codecs[c]);
+        int[] check = new int[numPix];
+        long encNanos = 0L;
+        long decNanos = 0L;
+        int bytes = 0;
+        for (int r = 0; r < reps + 2; r++) { // first two are warmup
+          long t0 = System.nanoTime();
+          TileCodec.Encoded enc = codec.encode(pixels, numPix, sd, bis);
+          long t1 = System.nanoTime();
+          try {
+            codec.decode(enc.buf, enc.used, check, numPix, sd, bis);
+          } catch (IOException ioex) {
+            System.err.println("Decode failure " + codecs[c]);
+            return;
+          }
+          long t2 = System.nanoTime();
+          if (r >= 2) {
+            encNanos += t1 - t0;
+            decNanos += t2 - t1;
+          }
+          bytes = enc.used;
+          bis.returnByteBuf(enc.buf);
+        }
+        int rgbMask = sd.redMask_ | sd.greenMask_ | sd.blueMask_;
+        for (int i = 0; i < numPix; i++) {
+          if ((check[i] & rgbMask) != (pixels[i] & rgbMask)) {
+            System.err.println("Mismatch " + codecs[c] + " at " + i);
+            return;
+          }
+        }
+        double encMBs = (rawMeg * reps) / (encNanos / 1.0E9);
+        double decMBs = (rawMeg * reps) / (decNanos / 1.0E9);
+        System.out.println(tileNames[t] + " " + codecs[c] + ": " + bytes + " bytes/tile, encode " + 
+                           Math.round(encMBs) + " MB/s, decode " + Math.round(decMBs) + " MB/s");
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build a synthetic fabric-like tile
+  */
+
+  private static BufferedImage benchTile(int width, int height, boolean antiAlias, long seed) {
+    BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = bi.createGraphics();
+    g2.setPaint(Color.WHITE);
+    g2.fillRect(0, 0, width, height);
+    if (antiAlias) {
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g2.setStroke(new BasicStroke(1.5F));
+    }
+    Random rand = new Random(seed);
+    Color[] cycle = new Color[30];
+    for (int i = 0; i < cycle.length; i++) {
+      cycle[i] = new Color(90 + rand.nextInt(60), 80 + rand.nextInt(60), 80 + rand.nextInt(60), (antiAlias) ? 120 : 255);
+    }
+    for (int i = 0; i < 300; i++) {
+      int y = rand.nextInt(height);
+      int x0 = rand.nextInt(width);
+      g2.setPaint(cycle[i % cycle.length]);
+      g2.drawLine(x0, y, Math.min(width - 1, x0 + rand.nextInt(width / 2)), y);
+    }
+    for (int i = 0; i < 600; i++) {
+      int x = rand.nextInt(width);
+      int y0 = rand.nextInt(height);
+      g2.setPaint(cycle[i % cycle.length]);
+      g2.drawLine(x, y0, x, Math.min(height - 1, y0 + rand.nextInt(height / 3)));
+    }
+    g2.dispose();
+    return (bi);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+/****************************************************************************
+**
+** Tracks how the view is moving through the world, so the BufferBuilder can
+** build tiles before they are needed: those in view first, then the ones the
+** view is heading toward, then the next zoom level around the cursor.
+*/
+
+class TilePrefetcher {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  //
+  // How far ahead we project the view along its velocity:
+  //
+  
+  private static final double LOOKAHEAD_MS_ = 400.0;
+  
+  //
+  // If views are further apart in time than this, the view was not moving:
+  //
+  
+  private static final long IDLE_MS_ = 750L;
+  
+  //
+  // Weight of the newest velocity sample:
+  //
+  
+  private static final double SMOOTHING_ = 0.5;
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+   
+  private Rectangle2D lastView_;
+  private int lastDepth_;
+  private long lastTime_;
+  private double velX_;
+  private double velY_;
+  private int zoomDir_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  TilePrefetcher() {
+    lastView_ = null;
+    lastDepth_ = -1;
+    lastTime_ = 0L;
+    velX_ = 0.0;
+    velY_ = 0.0;
+    zoomDir_ = 1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** The view has been drawn at the given depth. Returns null if nothing has changed,
+  ** else what we want built. Cursor may be null.
+  */
+  
+  synchronized Plan update(int depth, Rectangle2D view, Point2D cursor, long now, int numDepths) {
+    if ((lastView_ != null) && (depth == lastDepth_) && view.equals(lastView_)) {
+      return (null);
+    }
+    
+    //
+    // A big zoom change, or landing somewhere new, is a jump. Old motion is meaningless:
+    //
+    
+    boolean jumped = (lastView_ == null) || (Math.abs(depth - lastDepth_) > 1) || !view.intersects(lastView_);
+    long dt = now - lastTime_;
+    if (jumped || (depth != lastDepth_) || (dt <= 0L) || (dt > IDLE_MS_)) {
+      velX_ = 0.0;
+      velY_ = 0.0;
+    } else {
+      double vx = (view.getCenterX() - lastView_.getCenterX()) / dt;
+      double vy = (view.getCenterY() - lastView_.getCenterY()) / dt;
+      velX_ = (SMOOTHING_ * vx) + ((1.0 - SMOOTHING_) * velX_);
+      velY_ = (SMOOTHING_ * vy) + ((1.0 - SMOOTHING_) * velY_);
+    }
+    if ((lastDepth_ >= 0) && (depth != lastDepth_)) {
+      zoomDir_ = (depth > lastDepth_) ? 1 : -1;
+    }
+    lastView_ = (Rectangle2D)view.clone();
+    lastDepth_ = depth;
+    lastTime_ = now;
+    
+    //
+    // Where the view will be shortly, if it keeps going:
+    //
+    
+    Rectangle2D ahead = null;
+    double dx = velX_ * LOOKAHEAD_MS_;
+    double dy = velY_ * LOOKAHEAD_MS_;
+    if ((dx != 0.0) || (dy != 0.0)) {
+      ahead = new Rectangle2D.Double(view.getX() + dx, view.getY() + dy, view.getWidth(), view.getHeight());
+      ahead.add(view);
+    }
+    
+    //
+    // Next zoom level in the direction we last zoomed. Zooming in, it is the part
+    // of the view around the cursor that would still be showing:
+    //
+    
+    int nextDepth = depth + zoomDir_;
+    Rectangle2D nextRect = null;
+    if ((nextDepth >= 2) && (nextDepth < numDepths)) {
+      if (zoomDir_ > 0) {
+        Point2D center = ((cursor != null) && view.contains(cursor)) ? cursor 
+                                                                     : new Point2D.Double(view.getCenterX(), view.getCenterY());
+        double halfW = view.getWidth() / 4.0;
+        double halfH = view.getHeight() / 4.0;
+        nextRect = new Rectangle2D.Double(center.getX() - halfW, center.getY() - halfH, 2.0 * halfW, 2.0 * halfH);
+      } else {
+        nextRect = (Rectangle2D)view.clone();
+      }
+    } else {
+      nextDepth = -1;
+    }
+    Point2D aheadCenter = (ahead == null) ? null : new Point2D.Double(view.getCenterX() + dx, view.getCenterY() + dy);
+    return (new Plan(depth, view, ahead, aheadCenter, nextDepth, nextRect));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** What to build, in priority order. Ahead and next rects may be null.
+  */
+  
+  static class Plan {
+    final int depth;
+    final Rectangle2D visible;
+    final Rectangle2D ahead;
+    final Point2D aheadCenter;
+    final int nextDepth;
+    final Rectangle2D nextRect;
+    
+    Plan(int depth, Rectangle2D visible, Rectangle2D ahead, Point2D aheadCenter, 
+         int nextDepth, Rectangle2D nextRect) {
+      this.depth = depth;
+      this.visible = visible;
+      this.ahead = ahead;
+      this.aheadCenter = aheadCenter;
+      this.nextDepth = nextDepth;
+      this.nextRect = nextRect;
+    }
+  }
+}
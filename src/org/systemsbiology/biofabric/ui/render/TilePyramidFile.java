@@ -0,0 +1,458 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/****************************************************************************
+**
+** A tile pyramid persisted to disk, so reopening the same network can serve
+** tiles without rendering them again. The file is named by a content key that
+** covers everything that affects the pixels; if anything changes, we get a
+** different file. Tiles are appended as they are built, so a session that only
+** got partway through still leaves behind a useful (partial) pyramid.
+**
+** Layout is a header (magic, version, key) followed by records, each with a
+** fixed-size header (depth, world rect, image size, length, or -1 if blank)
+** and the codec bytes. A torn last record (e.g. from a crash) is truncated
+** away on open. Superseded copies of a tile stay in the file as dead records;
+** when there are enough of them, the live records are copied into a fresh file
+** on open, which then replaces the old one.
+*/
+
+class TilePyramidFile {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  static final String SUFFIX = ".bftp";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int MAGIC_ = 0x42465450;
+  private static final int VERSION_ = 1;
+  private static final int RECORD_HEADER_SIZE_ = 4 + (4 * 8) + 4 + 4 + 4;
+  private static final int BLANK_ = -1;
+  private static final String COMPACT_SUFFIX_ = ".tmp";
+  
+  //
+  // Don't bother compacting until at least this much is dead:
+  //
+  
+  private static final long COMPACT_MIN_DEAD_ = 4L * 1024L * 1024L;
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+   
+  private File file_;
+  private RandomAccessFile raf_;
+  private FileChannel channel_;
+  private FileLock lock_;
+  private HashMap<Rectangle2D, Entry> entries_;
+  private long writePos_;
+  private boolean canWrite_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Use open().
+  */
+
+  private TilePyramidFile(File file) {
+    file_ = file;
+    entries_ = new HashMap<Rectangle2D, Entry>();
+    writePos_ = 0L;
+    canWrite_ = false;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** File to use for the key
+  */
+  
+  static File fileForKey(File dir, String key) {
+    return (new File(dir, key + SUFFIX));
+  }
+  
+  /***************************************************************************
+  **
+  ** Open the pyramid for the key, reading in what tiles it already has. If some
+  ** other session holds the file, we can read but not add to it.
+  */
+  
+  static TilePyramidFile open(File file, String key) throws IOException {
+    TilePyramidFile retval = new TilePyramidFile(file);
+    retval.openAndScan(key, true);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Keep only the most recently used pyramids in the directory
+  */
+  
+  static void prune(File dir, int keep, File inUse) {
+    File[] files = dir.listFiles(new FileFilter() {
+      public boolean accept(File pathname) {
+        return (pathname.isFile() && pathname.getName().endsWith(SUFFIX));
+      }
+    });
+    if ((files == null) || (files.length <= keep)) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long diff = f2.lastModified() - f1.lastModified();
+        return ((diff > 0L) ? 1 : ((diff < 0L) ? -1 : 0));
+      }
+    });
+    for (int i = keep; i < files.length; i++) {
+      if (!files[i].equals(inUse) && !files[i].delete()) {
+        System.err.println("Could not prune tile pyramid " + files[i]);
+      }
+    }
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Tiles that were in the file when we opened it
+  */
+  
+  synchronized Collection<Entry> getEntries() {
+    return (new ArrayList<Entry>(entries_.values()));
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy the tile bytes into the buffer. Uses positional reads, so safe with
+  ** concurrent appends.
+  */
+  
+  void read(Entry entry, byte[] dest) throws IOException {
+    FileChannel chan;
+    synchronized (this) {
+      chan = channel_;
+    }
+    if (chan == null) {
+      throw new IOException();
+    }
+    ByteBuffer bb = ByteBuffer.wrap(dest, 0, entry.length);
+    long pos = entry.offset;
+    while (bb.hasRemaining()) {
+      int num = chan.read(bb, pos);
+      if (num < 0) {
+        throw new IOException();
+      }
+      pos += num;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add a tile. Null buffer means a blank tile. Failures just stop us from adding
+  ** more; the pyramid is only a cache.
+  */
+  
+  synchronized void append(int depth, Rectangle2D worldRect, int width, int height, byte[] buf, int len) {
+    if (!canWrite_) {
+      return;
+    }
+    ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_SIZE_);
+    head.putInt(depth);
+    head.putDouble(worldRect.getX());
+    head.putDouble(worldRect.getY());
+    head.putDouble(worldRect.getWidth());
+    head.putDouble(worldRect.getHeight());
+    head.putInt(width);
+    head.putInt(height);
+    head.putInt((buf == null) ? BLANK_ : len);
+    head.flip();
+    ByteBuffer[] bufs = (buf == null) ? new ByteBuffer[] {head} 
+                                      : new ByteBuffer[] {head, ByteBuffer.wrap(buf, 0, len)};
+    try {
+      channel_.position(writePos_);
+      long want = RECORD_HEADER_SIZE_ + ((buf == null) ? 0 : len);
+      long wrote = 0L;
+      while (wrote < want) {
+        wrote += channel_.write(bufs);
+      }
+      writePos_ += want;
+    } catch (IOException ioex) {
+      System.err.println("Stopped saving tile pyramid: " + ioex.getMessage());
+      canWrite_ = false;
+    }
+    return;
+  }
+ 
+  /***************************************************************************
+  **
+  ** Done with the file. It stays on disk for next time.
+  */
+  
+  synchronized void close() {
+    try {
+      if (lock_ != null) {
+        lock_.release();
+      }
+      if (raf_ != null) {
+        raf_.close();
+      }
+    } catch (IOException ioex) {
+      System.err.println("Problem closing tile pyramid");
+    }
+    lock_ = null;
+    raf_ = null;
+    channel_ = null;
+    canWrite_ = false;
+    entries_.clear();
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Open up the file and build the index
+  */
+  
+  private synchronized void openAndScan(String key, boolean mayCompact) throws IOException {
+    raf_ = new RandomAccessFile(file_, "rw");
+    channel_ = raf_.getChannel();
+    try {
+      lock_ = channel_.tryLock();
+    } catch (OverlappingFileLockException oflex) {
+      lock_ = null;
+    }
+    canWrite_ = (lock_ != null);
+    
+    long fileLen = channel_.size();
+    boolean headerOK = false;
+    if (fileLen > 0L) {
+      try {
+        raf_.seek(0L);
+        headerOK = (raf_.readInt() == MAGIC_) && (raf_.readInt() == VERSION_) && raf_.readUTF().equals(key);
+      } catch (IOException ioex) {
+        headerOK = false;
+      }
+    }
+    if (!headerOK) {
+      if (!canWrite_) {
+        return;
+      }
+      raf_.setLength(0L);
+      raf_.seek(0L);
+      raf_.writeInt(MAGIC_);
+      raf_.writeInt(VERSION_);
+      raf_.writeUTF(key);
+      writePos_ = raf_.getFilePointer();
+      return;
+    }
+    
+    //
+    // Walk the records. Later copies of a tile win:
+    //
+    
+    long pos = raf_.getFilePointer();
+    long firstRecord = pos;
+    long deadBytes = 0L;
+    ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_SIZE_);
+    while ((pos + RECORD_HEADER_SIZE_) <= fileLen) {
+      head.clear();
+      while (head.hasRemaining()) {
+        if (channel_.read(head, pos + head.position()) < 0) {
+          break;
+        }
+      }
+      head.flip();
+      int depth = head.getInt();
+      Rectangle2D rect = new Rectangle2D.Double(head.getDouble(), head.getDouble(), head.getDouble(), head.getDouble());
+      int width = head.getInt();
+      int height = head.getInt();
+      int len = head.getInt();
+      long dataPos = pos + RECORD_HEADER_SIZE_;
+      long nextPos = dataPos + ((len == BLANK_) ? 0 : len);
+      if ((len < BLANK_) || (nextPos > fileLen) || (width <= 0) || (height <= 0)) {
+        break;
+      }
+      Entry old = entries_.put(rect, new Entry(depth, rect, width, height, dataPos, len));
+      if (old != null) {
+        deadBytes += old.recordSize();
+      }
+      pos = nextPos;
+    }
+    writePos_ = pos;
+    if (canWrite_ && (pos < fileLen)) {
+      raf_.setLength(pos);
+    }
+    file_.setLastModified(System.currentTimeMillis());
+    
+    long liveBytes = (pos - firstRecord) - deadBytes;
+    if (mayCompact && canWrite_ && (deadBytes > COMPACT_MIN_DEAD_) && (deadBytes > liveBytes)) {
+      compact(key);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy the live records into a fresh file, swap it in, and open that. If the
+  ** copy fails, we keep going with the file we have.
+  */
+  
+  private void compact(String key) throws IOException {
+    File tmpFile = new File(file_.getPath() + COMPACT_SUFFIX_);
+    ArrayList<Entry> live = new ArrayList<Entry>(entries_.values());
+    Collections.sort(live, new Comparator<Entry>() {
+      public int compare(Entry e1, Entry e2) {
+        return ((e1.offset < e2.offset) ? -1 : ((e1.offset > e2.offset) ? 1 : 0));
+      }
+    });
+    RandomAccessFile out = null;
+    try {
+      out = new RandomAccessFile(tmpFile, "rw");
+      out.setLength(0L);
+      out.writeInt(MAGIC_);
+      out.writeInt(VERSION_);
+      out.writeUTF(key);
+      FileChannel outChan = out.getChannel();
+      outChan.position(out.getFilePointer());
+      for (Entry entry : live) {
+        long start = entry.offset - RECORD_HEADER_SIZE_;
+        long size = entry.recordSize();
+        long done = 0L;
+        while (done < size) {
+          long num = channel_.transferTo(start + done, size - done, outChan);
+          if (num <= 0L) {
+            throw new IOException();
+          }
+          done += num;
+        }
+      }
+      out.close();
+      out = null;
+    } catch (IOException ioex) {
+      if (out != null) {
+        try { out.close(); } catch (IOException ioe) {}
+      }
+      tmpFile.delete();
+      System.err.println("Could not compact tile pyramid: " + ioex.getMessage());
+      return;
+    }
+    
+    //
+    // Let go of the old file so the new one can take its place on any platform:
+    //
+    
+    close();
+    if (!tmpFile.renameTo(file_)) {
+      file_.delete();
+      if (!tmpFile.renameTo(file_)) {
+        tmpFile.delete();
+      }
+    }
+    openAndScan(key, false);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Where a tile lives in the file
+  */
+  
+  static class Entry {
+    final int depth;
+    final Rectangle2D worldRect;
+    final int width;
+    final int height;
+    final long offset;
+    final int length;
+    
+    Entry(int depth, Rectangle2D worldRect, int width, int height, long offset, int length) {
+      this.depth = depth;
+      this.worldRect = worldRect;
+      this.width = width;
+      this.height = height;
+      this.offset = offset;
+      this.length = length;
+    }
+    
+    boolean isBlank() {
+      return (length == BLANK_);
+    }
+    
+    long recordSize() {
+      return (RECORD_HEADER_SIZE_ + ((length == BLANK_) ? 0 : length));
+    }
+  }
+}
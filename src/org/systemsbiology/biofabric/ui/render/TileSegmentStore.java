@@ -0,0 +1,452 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/****************************************************************************
+**
+** Disk store for tiles spilled out of the RasterCache. Instead of one temp file
+** per tile, all tiles are appended to a single segment file that is memory-mapped
+** in fixed-size regions. An index maps each handle to its extent. Replaced and
+** dropped tiles leave dead space behind; once dead space outweighs live data, the
+** live extents are copied into the other of two files the store owns, and the old
+** one is tossed. Each of the two is registered for deletion on exit just once.
+** Reading a tile back copies it out of the mapping into a pooled byte array
+** rather than handing out the mapped slice. A slice would go stale at the next
+** compaction, and the tile codecs work on arrays anyway.
+*/
+
+class TileSegmentStore {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  //
+  // Size of each mapped region of the file. A tile never spans two regions:
+  //
+  
+  private static final int REGION_SIZE_ = 32 * 1024 * 1024;
+  
+  //
+  // Don't bother compacting until at least this much is dead:
+  //
+  
+  private static final long COMPACT_MIN_DEAD_ = 16L * 1024L * 1024L;
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+   
+  private String cachePref_;
+  private File[] paths_;
+  private int slot_;
+  private File file_;
+  private RandomAccessFile raf_;
+  private FileChannel channel_;
+  private ArrayList<Region> regions_;
+  private long fileEnd_;
+  private HashMap<String, Extent> index_;
+  private long liveBytes_;
+  private long deadBytes_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The file is not created until the first tile is spilled.
+  */
+
+  TileSegmentStore(String cachePref) {
+    cachePref_ = cachePref;
+    paths_ = new File[2];
+    slot_ = 0;
+    file_ = null;
+    regions_ = new ArrayList<Region>();
+    fileEnd_ = 0L;
+    index_ = new HashMap<String, Extent>();
+    liveBytes_ = 0L;
+    deadBytes_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Answer if we hold the tile
+  */
+  
+  synchronized boolean contains(String handle) {
+    return (index_.containsKey(handle));
+  }
+  
+  /***************************************************************************
+  **
+  ** Append a tile. If we already hold a copy for the handle, it becomes dead space.
+  */
+  
+  synchronized void append(String handle, byte[] buf, int len) throws IOException {
+    remove(handle);
+    if (channel_ == null) {
+      raf_ = openFile(slot_);
+      file_ = paths_[slot_];
+      channel_ = raf_.getChannel();
+      regions_ = new ArrayList<Region>();
+      fileEnd_ = 0L;
+    }
+    Region reg = (regions_.isEmpty()) ? null : regions_.get(regions_.size() - 1);
+    if ((reg == null) || ((reg.size - reg.used) < len)) {
+      reg = addRegion(Math.max(REGION_SIZE_, len));
+    }
+    ByteBuffer dup = reg.buf.duplicate();
+    dup.position(reg.used);
+    dup.put(buf, 0, len);
+    index_.put(handle, new Extent(regions_.size() - 1, reg.used, len));
+    reg.used += len;
+    liveBytes_ += len;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the length of the stored tile, or -1 if we do not have it
+  */
+  
+  synchronized int length(String handle) {
+    Extent ext = index_.get(handle);
+    return ((ext == null) ? -1 : ext.length);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get a read-only view of the stored tile bytes, straight out of the mapping.
+  ** Null if we do not have it. View is only good until the next compaction.
+  */
+  
+  synchronized ByteBuffer slice(String handle) {
+    Extent ext = index_.get(handle);
+    if (ext == null) {
+      return (null);
+    }
+    return (sliceForExtent(regions_, ext));
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy the stored tile into the given buffer. Returns number of bytes, or -1
+  ** if we do not have it.
+  */
+  
+  synchronized int read(String handle, byte[] dest) {
+    ByteBuffer view = slice(handle);
+    if (view == null) {
+      return (-1);
+    }
+    int len = view.remaining();
+    view.get(dest, 0, len);
+    return (len);
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop the tile. Its bytes become dead space. 
+  */
+  
+  synchronized void remove(String handle) throws IOException {
+    Extent ext = index_.remove(handle);
+    if (ext == null) {
+      return;
+    }
+    liveBytes_ -= ext.length;
+    deadBytes_ += ext.length;
+    if ((deadBytes_ > COMPACT_MIN_DEAD_) && (deadBytes_ > liveBytes_)) {
+      compact();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of stored tiles
+  */
+  
+  synchronized int size() {
+    return (index_.size());
+  }
+  
+  /***************************************************************************
+  **
+  ** Bytes of live tile data
+  */
+  
+  synchronized long liveBytes() {
+    return (liveBytes_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Size of the backing file
+  */
+  
+  synchronized long fileBytes() {
+    return (fileEnd_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Location of the backing file, or null if nothing spilled yet
+  */
+  
+  synchronized File getFile() {
+    return (file_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Close and delete the file
+  */
+  
+  synchronized void close() {
+    index_.clear();
+    liveBytes_ = 0L;
+    deadBytes_ = 0L;
+    closeFile(file_, raf_, regions_);
+    file_ = null;
+    raf_ = null;
+    channel_ = null;
+    regions_ = new ArrayList<Region>();
+    fileEnd_ = 0L;
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get temp file for a slot, making it the first time only:
+  ** On Mac 10.5.8, JDK 1.6, this seems to go into:
+  ** /private/var/folders/[2 characters]/[Random string of characters]/-Tmp-
+  ** Note: To cd into -Tmp-, use "cd -- -Tmp-"
+  */
+  
+  private File storeFile(int slot) throws IOException {
+    if (paths_[slot] == null) {
+      File file = null;
+      if (cachePref_ != null) {
+        File dir = new File(cachePref_);
+        if (!dir.exists() || !dir.isDirectory()) {
+          throw new IOException();
+        }
+        file = File.createTempFile("BioFabric", ".tiles", dir);
+      } else {
+        file = File.createTempFile("BioFabric", ".tiles");
+      }
+      file.deleteOnExit();
+      paths_[slot] = file;
+    }
+    return (paths_[slot]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Open the file for a slot, emptied out. Nothing in the store changes.
+  */
+  
+  private RandomAccessFile openFile(int slot) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(storeFile(slot), "rw");
+    try {
+      raf.setLength(0L);
+    } catch (IOException ioex) {
+      raf.close();
+      throw ioex;
+    }
+    return (raf);
+  }
+ 
+  /***************************************************************************
+  **
+  ** Map a new region at the end of the file
+  */
+  
+  private Region addRegion(int size) throws IOException {
+    MappedByteBuffer mbb = channel_.map(FileChannel.MapMode.READ_WRITE, fileEnd_, size);
+    Region reg = new Region(mbb, size);
+    regions_.add(reg);
+    fileEnd_ += size;
+    return (reg);
+  }
+  
+  /***************************************************************************
+  **
+  ** Slice out an extent
+  */
+  
+  private static ByteBuffer sliceForExtent(ArrayList<Region> regions, Extent ext) {
+    ByteBuffer dup = regions.get(ext.region).buf.duplicate();
+    dup.position(ext.offset);
+    dup.limit(ext.offset + ext.length);
+    return (dup.slice().asReadOnlyBuffer());
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy the live tiles into the other file and drop the old one. If the copy
+  ** fails, the store is left as it was.
+  */
+  
+  private void compact() throws IOException {
+    int newSlot = 1 - slot_;
+    RandomAccessFile newRaf = openFile(newSlot);
+    
+    File oldFile = file_;
+    RandomAccessFile oldRaf = raf_;
+    FileChannel oldChannel = channel_;
+    ArrayList<Region> oldRegions = regions_;
+    long oldEnd = fileEnd_;
+    
+    raf_ = newRaf;
+    channel_ = newRaf.getChannel();
+    regions_ = new ArrayList<Region>();
+    fileEnd_ = 0L;
+    HashMap<String, Extent> newIndex = new HashMap<String, Extent>();
+    long newLive = 0L;
+    
+    try {
+      Iterator<Map.Entry<String, Extent>> eit = index_.entrySet().iterator();
+      while (eit.hasNext()) {
+        Map.Entry<String, Extent> entry = eit.next();
+        ByteBuffer src = sliceForExtent(oldRegions, entry.getValue());
+        int len = src.remaining();
+        Region reg = (regions_.isEmpty()) ? null : regions_.get(regions_.size() - 1);
+        if ((reg == null) || ((reg.size - reg.used) < len)) {
+          reg = addRegion(Math.max(REGION_SIZE_, len));
+        }
+        ByteBuffer dup = reg.buf.duplicate();
+        dup.position(reg.used);
+        dup.put(src);
+        newIndex.put(entry.getKey(), new Extent(regions_.size() - 1, reg.used, len));
+        reg.used += len;
+        newLive += len;
+      }
+    } catch (IOException ioex) {
+      closeFile(paths_[newSlot], newRaf, regions_);
+      raf_ = oldRaf;
+      channel_ = oldChannel;
+      regions_ = oldRegions;
+      fileEnd_ = oldEnd;
+      throw ioex;
+    }
+    
+    index_ = newIndex;
+    liveBytes_ = newLive;
+    deadBytes_ = 0L;
+    slot_ = newSlot;
+    file_ = paths_[newSlot];
+    closeFile(oldFile, oldRaf, oldRegions);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Close and delete a file. Mappings go away when collected, so on some platforms
+  ** the delete will not happen until exit. 
+  */
+  
+  private static void closeFile(File file, RandomAccessFile raf, ArrayList<Region> regions) {
+    regions.clear();
+    if (raf != null) {
+      try {
+        raf.close();
+      } catch (IOException ioex) {
+        System.err.println("Problem closing tile store " + file);
+      }
+    }
+    if ((file != null) && file.exists()) {
+      file.delete();
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** A mapped piece of the file
+  */ 
+ 
+  private static class Region {
+    MappedByteBuffer buf;
+    int size;
+    int used;
+    
+    Region(MappedByteBuffer buf, int size) {
+      this.buf = buf;
+      this.size = size;
+      this.used = 0;
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Where a tile lives
+  */ 
+ 
+  private static class Extent {
+    int region;
+    int offset;
+    int length;
+    
+    Extent(int region, int offset, int length) {
+      this.region = region;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
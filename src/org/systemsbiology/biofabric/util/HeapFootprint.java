@@ -0,0 +1,406 @@
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/****************************************************************************
+**
+** Estimated retained heap bytes, broken down by model and display structure.
+** These are sizes worked out from element counts using typical 64-bit JVM
+** object layouts (compressed references, 8 byte alignment), not measurements.
+** They are meant to show which structure is big, e.g. after an out of memory
+** error, not to add up to what the JVM reports.
+*/
+
+public class HeapFootprint {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  public static final int OBJECT_HEADER = 12;
+  public static final int ARRAY_HEADER = 16;
+  public static final int REFERENCE = 4;
+  
+  //
+  // Some common small objects:
+  //
+  
+  public static final long INTEGER = 16;
+  public static final long MIN_MAX = 24;
+  public static final long RECTANGLE = 32;
+  public static final long RECTANGLE_2D = 48;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  private static final int ALIGN_ = 8;
+  private static final long HASH_MAP_ = 48;
+  private static final long HASH_MAP_ENTRY_ = 32;
+  private static final long LINKED_HASH_MAP_ENTRY_ = 40;
+  private static final long TREE_MAP_ = 48;
+  private static final long TREE_MAP_ENTRY_ = 40;
+  private static final long ARRAY_LIST_ = 24;
+  private static final long KB_ = 1024L;
+  private static final long MB_ = 1024L * 1024L;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static volatile boolean logPhases_ = false;
+  private static String lastReport_ = null;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+ 
+  private String phase_;
+  private LinkedHashMap<String, List<Part>> byStructure_;
+  private LinkedHashMap<String, List<String>> notes_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The phase says when the report was taken, e.g. "after network build".
+  */
+
+  public HeapFootprint(String phase) {
+    phase_ = phase;
+    byStructure_ = new LinkedHashMap<String, List<Part>>();
+    notes_ = new LinkedHashMap<String, List<String>>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Add the estimate for one part of a structure. Count is the number of 
+  ** elements (links, tiles, etc.) the part holds, for context.
+  */
+
+  public void add(String structure, String part, long count, long bytes) {
+    List<Part> parts = byStructure_.get(structure);
+    if (parts == null) {
+      parts = new ArrayList<Part>();
+      byStructure_.put(structure, parts);
+    }
+    parts.add(new Part(part, count, bytes));
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add a line of text (e.g. usage counters) to show under a structure. It
+  ** does not count toward the totals.
+  */
+
+  public void addNote(String structure, String note) {
+    if (!byStructure_.containsKey(structure)) {
+      byStructure_.put(structure, new ArrayList<Part>());
+    }
+    List<String> notes = notes_.get(structure);
+    if (notes == null) {
+      notes = new ArrayList<String>();
+      notes_.put(structure, notes);
+    }
+    notes.add(note);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the total estimate
+  */
+
+  public long getTotalBytes() {
+    long retval = 0L;
+    for (List<Part> parts : byStructure_.values()) {
+      for (Part part : parts) {
+        retval += part.bytes;
+      }
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the report as text
+  */
+
+  public String getReport() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("Heap footprint (estimated), ").append(phase_).append(":\n");
+    for (Map.Entry<String, List<Part>> entry : byStructure_.entrySet()) {
+      long subTotal = 0L;
+      for (Part part : entry.getValue()) {
+        subTotal += part.bytes;
+      }
+      buf.append("  ").append(entry.getKey()).append(": ").append(formatBytes(subTotal)).append('\n');
+      for (Part part : entry.getValue()) {
+        buf.append("    ").append(part.name).append(": ").append(formatBytes(part.bytes));
+        buf.append(" (").append(part.count).append(")\n");
+      }
+      List<String> notes = notes_.get(entry.getKey());
+      if (notes != null) {
+        for (String note : notes) {
+          buf.append("    ").append(note).append('\n');
+        }
+      }
+    }
+    Runtime rt = Runtime.getRuntime();
+    long used = rt.totalMemory() - rt.freeMemory();
+    buf.append("  Total estimated: ").append(formatBytes(getTotalBytes()));
+    buf.append("; JVM heap in use: ").append(formatBytes(used));
+    buf.append(" of max ").append(formatBytes(rt.maxMemory())).append('\n');
+    return (buf.toString());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Turn on logging of a report after each build phase
+  */
+
+  public static void setLogPhases(boolean doLog) {
+    logPhases_ = doLog;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if we are logging after each build phase
+  */
+
+  public static boolean getLogPhases() {
+    return (logPhases_);
+  }
+  
+  /***************************************************************************
+  **
+  ** If we are logging phases, report on the source and log it
+  */
+
+  public static void logPhase(String phase, Source source) {
+    if (!logPhases_) {
+      return;
+    }
+    HeapFootprint fp = new HeapFootprint(phase);
+    source.reportFootprint(fp);
+    String report = fp.getReport();
+    synchronized (HeapFootprint.class) {
+      lastReport_ = report;
+    }
+    System.err.print(report);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the last logged report, or null. Handy after an out of memory error,
+  ** when it is too late to make a new one.
+  */
+
+  public static synchronized String getLastReport() {
+    return (lastReport_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Round up to the object alignment
+  */
+
+  public static long align(long bytes) {
+    return (((bytes + ALIGN_ - 1) / ALIGN_) * ALIGN_);
+  }
+  
+  /***************************************************************************
+  **
+  ** An object with the given number of bytes of fields
+  */
+
+  public static long object(int fieldBytes) {
+    return (align(OBJECT_HEADER + fieldBytes));
+  }
+  
+  /***************************************************************************
+  **
+  ** Arrays
+  */
+
+  public static long intArray(long length) {
+    return (align(ARRAY_HEADER + (4L * length)));
+  }
+  
+  public static long byteArray(long length) {
+    return (align(ARRAY_HEADER + length));
+  }
+  
+  public static long charArray(long length) {
+    return (align(ARRAY_HEADER + (2L * length)));
+  }
+  
+  public static long refArray(long length) {
+    return (align(ARRAY_HEADER + (REFERENCE * length)));
+  }
+  
+  /***************************************************************************
+  **
+  ** A string, including its character array
+  */
+
+  public static long string(String str) {
+    return ((str == null) ? 0L : object(12) + charArray(str.length()));
+  }
+  
+  /***************************************************************************
+  **
+  ** A HashMap (or HashSet) with the given number of entries, not counting the
+  ** keys and values. The table is sized the way HashMap grows it.
+  */
+
+  public static long hashMap(int size) {
+    int capacity = 16;
+    while (size > (capacity * 3 / 4)) {
+      capacity <<= 1;
+    }
+    return (HASH_MAP_ + refArray(capacity) + (size * HASH_MAP_ENTRY_));
+  }
+  
+  /***************************************************************************
+  **
+  ** A LinkedHashMap, not counting the keys and values
+  */
+
+  public static long linkedHashMap(int size) {
+    return (hashMap(size) + (size * (LINKED_HASH_MAP_ENTRY_ - HASH_MAP_ENTRY_)));
+  }
+  
+  /***************************************************************************
+  **
+  ** A TreeMap (or TreeSet), not counting the keys and values
+  */
+
+  public static long treeMap(int size) {
+    return (TREE_MAP_ + (size * TREE_MAP_ENTRY_));
+  }
+  
+  /***************************************************************************
+  **
+  ** An ArrayList, not counting the elements
+  */
+
+  public static long arrayList(int size) {
+    return (ARRAY_LIST_ + refArray(size));
+  }
+  
+  /***************************************************************************
+  **
+  ** A BufferedImage, pixels and all
+  */
+
+  public static long image(BufferedImage bi) {
+    DataBuffer db = bi.getRaster().getDataBuffer();
+    long elemBytes = DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    return (object(64) + align(ARRAY_HEADER + (db.getSize() * elemBytes * db.getNumBanks())));
+  }
+  
+  /***************************************************************************
+  **
+  ** Format bytes for the report
+  */
+
+  public static String formatBytes(long bytes) {
+    if (bytes >= 10L * MB_) {
+      return ((bytes / MB_) + " MB");
+    } else if (bytes >= 10L * KB_) {
+      return ((bytes / KB_) + " KB");
+    }
+    return (bytes + " B");
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INTERFACES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Implemented by things that can report their footprint
+  */
+  
+  public interface Source {
+    public void reportFootprint(HeapFootprint fp);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** One line of the report
+  */
+  
+  private static class Part {
+    String name;
+    long count;
+    long bytes;
+    
+    Part(String name, long count, long bytes) {
+      this.name = name;
+      this.count = count;
+      this.bytes = bytes;
+    }
+  }
+}
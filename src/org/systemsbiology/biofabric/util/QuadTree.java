@@ -105,6 +105,21 @@ public class QuadTree {
   public boolean getPath(Rectangle2D worldRect, List<QuadTreeNode> path) {
   	return (root_.getPath(worldRect, path));
   }
+  
+  /***************************************************************************
+	**
+	** Given a rectangle that maps exactly to one of our nodes, fill in its four children,
+	** in upper left, upper right, lower left, lower right order. Returns false if the
+	** node is at the deepest level.
+	*/
+	  
+  public boolean getChildren(Rectangle2D worldRect, List<QuadTreeNode> kids) {
+    ArrayList<QuadTreeNode> path = new ArrayList<QuadTreeNode>();
+    if (!root_.getPath(worldRect, path)) {
+      return (false);
+    }
+  	return (path.get(path.size() - 1).getChildren(kids));
+  }
 
   /***************************************************************************
 	**
@@ -120,6 +135,17 @@ public class QuadTree {
   	return (root_.getAllNodesToDepth(minDepth, maxDepth, nodes));
   }
   
+  /***************************************************************************
+  **
+  ** Estimated heap bytes for the nodes and payloads. Fills in the node and
+  ** payload counts, if asked.
+  */
+  
+  public long estimateBytes(int[] counts) {
+    int[] useCounts = (counts == null) ? new int[2] : counts;
+    return (HeapFootprint.object(12) + HeapFootprint.RECTANGLE_2D + root_.estimateBytes(useCounts));
+  }
+  
   /***************************************************************************
   **
   ** Nodes of the tree
@@ -337,6 +363,26 @@ public class QuadTree {
 	  	throw new IllegalStateException();
     } 
 
+	  /***************************************************************************
+	  **
+	  ** Fill in our four children, if we are not at the deepest level
+	  */
+	  
+	  boolean getChildren(List<QuadTreeNode> kids) {
+	    if ((depth_ + 1) >= treeDepth_) {
+	      return (false);
+	    }
+	    if (needKidInit_) {
+	      needKidInit_ = false;
+	      split();
+	    }
+	    kids.add(ulKid_);
+	    kids.add(urKid_);
+	    kids.add(llKid_);
+	    kids.add(lrKid_);
+	    return (true);
+	  }
+	  
 	  /***************************************************************************
 	  **
 	  ** Given a depth, fill in all the children encountered up to and including that depth
@@ -461,6 +507,31 @@ public class QuadTree {
     	llKid_ = new QuadTreeNode(this, Corner.LOWER_LEFT,depth_ + 1, treeDepth_);
     	lrKid_ = new QuadTreeNode(this, Corner.LOWER_RIGHT, depth_ + 1, treeDepth_);
     	return;    
+    }
+    
+	  /***************************************************************************
+	  **
+	  ** Estimated heap bytes for this node and everything under it. Counts are
+	  ** nodes, then payloads.
+	  */
+    
+    long estimateBytes(int[] counts) {
+      long retval = HeapFootprint.object(40) + HeapFootprint.RECTANGLE_2D;
+      counts[0]++;
+      if (payloads_ != null) {
+        retval += HeapFootprint.arrayList(payloads_.size());
+        for (Payload pay : payloads_) {
+          retval += HeapFootprint.object(8) + HeapFootprint.RECTANGLE_2D + HeapFootprint.string(pay.getKey());
+          counts[1]++;
+        }
+      }
+      QuadTreeNode[] kids = new QuadTreeNode[] {ulKid_, urKid_, llKid_, lrKid_};
+      for (QuadTreeNode kid : kids) {
+        if (kid != null) {
+          retval += kid.estimateBytes(counts);
+        }
+      }
+      return (retval);
     }
   }
   
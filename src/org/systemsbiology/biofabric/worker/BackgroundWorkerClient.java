@@ -41,6 +41,7 @@ import org.systemsbiology.biofabric.api.util.PluginResourceManager;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerControlManager;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerOwner;
 import org.systemsbiology.biofabric.util.GoodnessChart;
+import org.systemsbiology.biofabric.util.HeapFootprint;
 import org.systemsbiology.biofabric.util.ResourceManager;
 import org.systemsbiology.biofabric.util.UiUtil;
 
@@ -295,6 +296,11 @@ public class BackgroundWorkerClient {
   public void finishedWork(Object result, Exception remoteEx, OutOfMemoryError memErr) {
     done_ = true;
     if (memErr != null) {
+      String lastFootprint = HeapFootprint.getLastReport();
+      if (lastFootprint != null) {
+        System.err.println("Out of memory. Last heap footprint report:");
+        System.err.print(lastFootprint);
+      }
       ExceptionHandler.getHandler().displayOutOfMemory(memErr);
     }
     try {